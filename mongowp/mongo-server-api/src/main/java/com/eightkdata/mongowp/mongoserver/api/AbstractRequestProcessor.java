@@ -24,7 +24,11 @@ package com.eightkdata.mongowp.mongoserver.api;
 import io.netty.util.AttributeKey;
 import io.netty.util.AttributeMap;
 
+import java.util.Iterator;
+import java.util.Locale;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import com.eightkdata.mongowp.messages.request.QueryMessage;
@@ -33,11 +37,17 @@ import com.eightkdata.mongowp.messages.request.RequestOpCode;
 import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor.QueryCommand;
 import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor.QueryCommandGroup;
 import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.callback.OperationCancelledException;
 import com.eightkdata.mongowp.mongoserver.api.callback.RequestProcessor;
 import com.eightkdata.mongowp.mongoserver.api.commands.QueryReply;
 import com.eightkdata.mongowp.mongoserver.api.commands.QueryRequest;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.projection.CursorProjections;
+import com.eightkdata.mongowp.mongoserver.api.projection.RawProjection;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.nettybson.api.BSONDocument;
 import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+import com.google.common.collect.ImmutableSet;
 import org.bson.BSONObject;
 
 /**
@@ -48,6 +58,21 @@ public abstract class AbstractRequestProcessor implements RequestProcessor {
     public static final String QUERY_MESSAGE_ADMIN_DATABASE = "admin";
     
     public static final AttributeKey<QueryCommand> QUERY_COMMAND = AttributeKey.valueOf("queryCommand");
+    /**
+     * The lower case names of the commands whose first key names the
+     * collection they run on. Other commands have string values there too,
+     * like <code>{getLog: "global"}</code> or
+     * <code>{renameCollection: "db.a", to: "db.b"}</code>, that are not
+     * collections of their database.
+     */
+    private static final ImmutableSet<String> COLLECTION_COMMANDS = ImmutableSet.of(
+            "aggregate", "clonecollectionascapped", "collmod", "collstats", "compact", "converttocapped",
+            "count", "create", "createindexes", "delete", "deleteindexes", "distinct", "drop", "dropindexes",
+            "find", "findandmodify", "geonear", "geosearch", "insert", "listindexes", "mapreduce",
+            "parallelcollectionscan", "plancacheclear", "plancacheclearfilters", "plancachelistfilters",
+            "plancachelistplans", "plancachelistqueryshapes", "plancachesetfilter", "reindex", "text",
+            "touch", "update", "validate"
+    );
 
     private final QueryCommandProcessor queryCommandProcessor;
     private final MetaQueryProcessor metaQueryProcessor;
@@ -61,6 +86,29 @@ public abstract class AbstractRequestProcessor implements RequestProcessor {
         this.metaQueryProcessor = metaQueryProcessor;
     }
 
+    /**
+     * @return the collection a command runs on, that is the string value of
+     *         its first key (as in <code>{count: "coll", ...}</code>) for the
+     *         commands known to run on a collection, or null if the command
+     *         runs on the whole database or is not known
+     */
+    @Nullable
+    public static String getCommandCollection(@Nonnull BSONDocument command) {
+        Iterator<String> keys = command.getKeys().iterator();
+        if (!keys.hasNext()) {
+            return null;
+        }
+        String commandName = keys.next();
+        if (!COLLECTION_COMMANDS.contains(commandName.toLowerCase(Locale.ROOT))) {
+            return null;
+        }
+        Object collection = command.getValue(commandName);
+        if (!(collection instanceof String) || ((String) collection).isEmpty()) {
+            return null;
+        }
+        return (String) collection;
+    }
+
     @Override
     public void queryMessage(@Nonnull QueryMessage queryMessage, @Nonnull MessageReplier messageReplier) throws Exception {
     	AttributeMap attributeMap = messageReplier.getAttributeMap();
@@ -100,6 +148,15 @@ public abstract class AbstractRequestProcessor implements RequestProcessor {
 	public boolean handleError(@Nonnull RequestOpCode requestOpCode, @Nonnull MessageReplier messageReplier, @Nonnull Throwable throwable) throws Exception {
     	AttributeMap attributeMap = messageReplier.getAttributeMap();
 		if (requestOpCode == RequestOpCode.OP_QUERY) {
+			if (throwable instanceof OperationCancelledException) {
+				OperationCancelledException cancelledException = (OperationCancelledException) throwable;
+				if (attributeMap.attr(QUERY_COMMAND).get() != null) {
+					messageReplier.replyQueryCommandFailure(cancelledException.getErrorCode());
+				} else {
+					messageReplier.replyQueryFailure(cancelledException.getErrorCode());
+				}
+				return true;
+			}
 			if (attributeMap.attr(QUERY_COMMAND).get() != null) {
 				queryCommandProcessor.handleError(attributeMap.attr(QUERY_COMMAND).get(), messageReplier, throwable);
 				return true;
@@ -114,9 +171,14 @@ public abstract class AbstractRequestProcessor implements RequestProcessor {
                 queryMessage.getDatabase(),
                 messageReplier.getAttributeMap()
         );
+        try {
+            parseQueryDocument(queryMessage.getDocument(), requestBuilder);
+        } catch (IllegalArgumentException ex) {
+            messageReplier.replyQueryFailure(MongoWP.ErrorCode.BAD_VALUE, ex.getMessage());
+            return;
+        }
         requestBuilder.setCollection(queryMessage.getCollection())
-                .setQuery(extractQuery(queryMessage.getDocument()))
-                .setProjection(null)
+                .setProjection(extractProjection(queryMessage.getReturnFieldsSelector()))
                 .setNumberToSkip(queryMessage.getNumberToSkip())
                 .setLimit(queryMessage.getNumberToReturn())
                 .setAwaitData(queryMessage.isFlagSet(QueryMessage.Flag.AWAIT_DATA))
@@ -135,32 +197,155 @@ public abstract class AbstractRequestProcessor implements RequestProcessor {
             requestBuilder.setAutoclose(true);
         }
         
+        QueryRequest request = requestBuilder.build();
+        // Projections are checked before the backend runs, so a rejected query never opens a cursor
+        RawProjection projection;
+        try {
+            projection = RawProjection.compile(request.getProjection());
+        } catch (IllegalArgumentException ex) {
+            messageReplier.replyQueryFailure(MongoWP.ErrorCode.BAD_VALUE, ex.getMessage());
+            return;
+        }
+
         QueryReply reply;
-        if (metaQueryProcessor.isMetaQuery(queryMessage)) {
-            reply = metaQueryProcessor.query(requestBuilder.build());
+        try {
+            if (metaQueryProcessor.isMetaQuery(queryMessage)) {
+                reply = metaQueryProcessor.query(request);
+            }
+            else {
+                reply = query(request);
+            }
+        } catch (IllegalArgumentException ex) {
+            messageReplier.replyQueryFailure(MongoWP.ErrorCode.BAD_VALUE, ex.getMessage());
+            return;
+        }
+
+        // Projections the backend did not push down are applied when the documents are encoded
+        if (!reply.isProjectionApplied()) {
+            if (projection != null) {
+                CursorProjections cursorProjections = messageReplier.getAttributeMap()
+                        .attr(CursorProjections.CURSOR_PROJECTIONS).get();
+                if (reply.getCursorId() != 0 && cursorProjections != null) {
+                    // The getMores of the cursor are projected the same way, on any connection
+                    cursorProjections.register(reply.getCursorId(), projection);
+                }
+                reply = new QueryReply.Builder()
+                        .setCursorId(reply.getCursorId())
+                        .setStartingFrom(reply.getStartingFrom())
+                        .setDocuments(projection.apply(reply.getDocuments()))
+                        .setProjectionApplied(true)
+                        .build();
+            }
+        }
+
+        // Replies that do not open a backend cursor are spooled if they do not fit in the first batch
+        CursorManager cursorManager = messageReplier.getAttributeMap().attr(CursorManager.CURSOR_MANAGER).get();
+        if (cursorManager != null && reply.getCursorId() == 0 && !request.isAutoclose() && !request.isTailable()) {
+            cursorManager.reply(request, reply.getDocuments(), messageReplier);
         }
         else {
-            reply = query(requestBuilder.build());
+            reply.reply(messageReplier);
         }
-        reply.reply(messageReplier);
     }
 	
 	public abstract void noSuchCommand(@Nonnull BSONDocument query, @Nonnull MessageReplier messageReplier) throws Exception;
 	
 	public abstract void adminOnlyCommand(@Nonnull QueryCommand queryCommand, @Nonnull MessageReplier messageReplier) throws Exception;
 
+    /**
+     * @throws IllegalArgumentException If the filter, the sort or another
+     *                                  part of the query is not supported,
+     *                                  which is replied as a bad value
+     */
     public abstract QueryReply query(QueryRequest build) throws Exception;
     
-    private BSONObject extractQuery(BSONDocument document) {
+    @Nullable
+    private BSONObject extractProjection(@Nullable BSONDocument returnFieldsSelector) {
+        if (returnFieldsSelector == null) {
+            return null;
+        }
+        return ((MongoBSONDocument) returnFieldsSelector).getBSONObject();
+    }
+
+    /**
+     * Sets the filter and the modifiers of the query document, that is either
+     * the filter itself or a document like
+     * <code>{$query: filter, $orderby: sort, $hint: index, ...}</code>.
+     * Unknown modifiers are ignored.
+     *
+     * @throws IllegalArgumentException If a modifier has a value of the
+     *                                  wrong type
+     */
+    private void parseQueryDocument(BSONDocument document, QueryRequest.Builder requestBuilder) {
         BSONObject query = ((MongoBSONDocument) document).getBSONObject();
+        BSONObject filter = null;
         for (String key : query.keySet()) {
     		if ("query".equals(key) || "$query".equals(key)) {
     			Object queryObject = query.get(key);
-    			if (queryObject != null && queryObject instanceof BSONObject) {
-    				return (BSONObject) queryObject;
+    			if (queryObject instanceof BSONObject) {
+    				filter = (BSONObject) queryObject;
+    				break;
     			}
     		}
     	}
-        return query;
+        if (filter == null) {
+            requestBuilder.setQuery(query);
+            return;
+        }
+        requestBuilder.setQuery(filter);
+
+        for (String key : query.keySet()) {
+            Object value = query.get(key);
+            if ("$orderby".equals(key) || "orderby".equals(key)) {
+                requestBuilder.setOrderBy(getModifierDocument(key, value));
+            }
+            else if ("$hint".equals(key)) {
+                if (!(value instanceof String) && !(value instanceof BSONObject)) {
+                    throw new IllegalArgumentException("$hint must be either a string or a nested object");
+                }
+                requestBuilder.setHint(value);
+            }
+            else if ("$maxScan".equals(key)) {
+                if (!(value instanceof Number) || ((Number) value).intValue() < 0) {
+                    throw new IllegalArgumentException("$maxScan must be a non negative number");
+                }
+                requestBuilder.setMaxScan(((Number) value).intValue());
+            }
+            else if ("$min".equals(key)) {
+                requestBuilder.setMin(getModifierDocument(key, value));
+            }
+            else if ("$max".equals(key)) {
+                requestBuilder.setMax(getModifierDocument(key, value));
+            }
+            else if ("$returnKey".equals(key)) {
+                requestBuilder.setReturnKey(isModifierTrue(value));
+            }
+            else if ("$showDiskLoc".equals(key)) {
+                requestBuilder.setShowDiskLoc(isModifierTrue(value));
+            }
+            else if ("$snapshot".equals(key)) {
+                requestBuilder.setSnapshot(isModifierTrue(value));
+            }
+            else if ("$comment".equals(key)) {
+                requestBuilder.setComment(value);
+            }
+            else if ("$explain".equals(key)) {
+                requestBuilder.setExplain(isModifierTrue(value));
+            }
+        }
+    }
+
+    private static BSONObject getModifierDocument(String key, Object value) {
+        if (!(value instanceof BSONObject)) {
+            throw new IllegalArgumentException(key + " must be an object");
+        }
+        return (BSONObject) value;
+    }
+
+    private static boolean isModifierTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value instanceof Number && ((Number) value).doubleValue() != 0;
     }
 }
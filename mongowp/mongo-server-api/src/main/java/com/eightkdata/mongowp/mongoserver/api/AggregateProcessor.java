@@ -0,0 +1,59 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.commands.AggregateRequest;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A {@link QueryCommandProcessor} that is able to run aggregation pipelines
+ * with the <code>aggregate</code> command.
+ * <p>
+ * The results are streamed: the server only reads the documents of the first
+ * batch when the command is received and, if the request asks for a cursor,
+ * keeps the iterator on its
+ * {@link com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager} to read
+ * the rest on the following getMores. Cursors are only supported when the
+ * server has a cursor manager.
+ */
+public interface AggregateProcessor extends QueryCommandProcessor {
+
+    /**
+     * Prepares the pipeline of the request, whose results should be
+     * evaluated lazily as they are iterated.
+     * <p>
+     * The iterator can be read from a different thread on each getMore, but
+     * never from two threads at once. Iterators that implement
+     * {@link java.io.Closeable} are closed once they are exhausted or their
+     * cursors are closed.
+     *
+     * @return the results of the pipeline or, if the request is
+     *         {@linkplain AggregateRequest#isExplain() explained}, the
+     *         documents that describe its stages
+     * @throws IllegalArgumentException If the pipeline is not valid
+     * @throws Exception
+     */
+    @Nonnull
+    public Iterable<? extends BSONDocument> aggregate(@Nonnull AggregateRequest request) throws Exception;
+}
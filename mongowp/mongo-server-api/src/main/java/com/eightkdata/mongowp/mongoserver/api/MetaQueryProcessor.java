@@ -2,6 +2,7 @@ package com.eightkdata.mongowp.mongoserver.api;
 
 import com.eightkdata.mongowp.messages.request.QueryMessage;
 import com.eightkdata.mongowp.mongoserver.api.commands.*;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryProfiler;
 import com.eightkdata.nettybson.api.BSONDocument;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
@@ -31,6 +32,10 @@ public abstract class MetaQueryProcessor {
             @Nonnull BSONObject query
     ) throws Exception;
 
+    /**
+     * Queries the <code>system.profile</code> collection of channels that
+     * have no {@link QueryProfiler}
+     */
     protected abstract Iterable<BSONDocument> queryProfile(
             @Nonnull String database,
             @Nonnull AttributeMap attributeMap,
@@ -77,6 +82,10 @@ public abstract class MetaQueryProcessor {
             return queryIndexes(database, attributeMap, query);
         }
         else if (PROFILE_COLLECTION.equals(collection)) {
+            QueryProfiler queryProfiler = attributeMap.attr(QueryProfiler.QUERY_PROFILER).get();
+            if (queryProfiler != null) {
+                return queryProfiler.query(database, query);
+            }
             return queryProfile(database, attributeMap, query);
         }
         else if (JS_COLLECTION.equals(collection)) {
@@ -88,12 +97,7 @@ public abstract class MetaQueryProcessor {
     }
     
     QueryReply query(QueryRequest request) throws Exception {
-        BSONObject projection = request.getProjection();
-        if (projection != null && !projection.keySet().isEmpty()) {
-            throw new UnsupportedOperationException(
-                    "Projections are not supported on meta collections queries"
-            );
-        }
+        // The projection is applied by the server
         Iterable<BSONDocument> documents = getDocuments(
                 request.getAttributes(),
                 request.getDatabase(),
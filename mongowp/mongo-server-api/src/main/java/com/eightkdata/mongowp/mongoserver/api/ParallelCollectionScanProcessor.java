@@ -0,0 +1,60 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.commands.ParallelCollectionScanRequest;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A {@link QueryCommandProcessor} that is able to split a collection in
+ * disjoint partitions, so it can be read by several cursors at the same time
+ * with the <code>parallelCollectionScan</code> command.
+ * <p>
+ * The cursors are kept by the server
+ * {@link com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager}, so
+ * the command is only supported when the server has one.
+ */
+public interface ParallelCollectionScanProcessor extends QueryCommandProcessor {
+
+    /**
+     * Splits the requested collection in disjoint partitions.
+     * <p>
+     * The partitions are not read here. The iterator of each one is read by
+     * its cursor when the getMores are received, which can be on a different
+     * thread each time, but never on two threads at once. The partitions of
+     * the same scan are read concurrently. Iterators that implement
+     * {@link java.io.Closeable} are closed with their cursors.
+     *
+     * @return at most {@link ParallelCollectionScanRequest#getNumCursors()}
+     *         partitions that contain all the documents of the collection
+     *         once
+     * @throws Exception
+     */
+    @Nonnull
+    public List<? extends Iterable<? extends BSONDocument>> parallelCollectionScan(
+            @Nonnull ParallelCollectionScanRequest request
+    ) throws Exception;
+}
@@ -21,7 +21,11 @@
 
 package com.eightkdata.mongowp.mongoserver.api;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nonnegative;
@@ -30,11 +34,22 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
 
 import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.mongoserver.api.cache.ResultCache;
 import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
 import com.eightkdata.mongowp.mongoserver.api.commands.*;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryProfiler;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShapeStats;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
 import java.util.Locale;
 import org.bson.BSONObject;
 
@@ -120,6 +135,18 @@ public interface QueryCommandProcessor {
     }
 
     public class ProcessorCaller extends QueryCommandProcessorCaller {
+        /**
+         * Commands that the backend may implement and that only change the
+         * collection they name
+         */
+        private static final ImmutableSet<QueryCommand> COLLECTION_COMMANDS = ImmutableSet.<QueryCommand>of(
+                QueryAndWriteOperationsQueryCommand.findAndModify,
+                AdministrationQueryCommand.drop,
+                AdministrationQueryCommand.collMod,
+                AdministrationQueryCommand.compact,
+                AdministrationQueryCommand.convertToCapped,
+                AdministrationQueryCommand.reIndex
+        );
         @Nonnull private final QueryCommandProcessor queryCommandProcessor;
         @Nonnull private final MetaQueryProcessor metaQueryProcessor;
 
@@ -139,16 +166,13 @@ public interface QueryCommandProcessor {
                     getDatabase(),
                     messageReplier.getAttributeMap()
             );
-            String collection;
-            if (document.hasKey("count")) {
-                collection = (String) document.getValue("count");
-            }
-            else {
+            String collection = document.getString("count", null);
+            if (collection == null) {
                 throw new RuntimeException("attribute count must be an String");
             }
-            String hint = document.hasKey("hint") ? (String) document.getValue("hint") : null;
-            int limit = document.hasKey("limit") ? (Integer) document.getValue("limit") : 0;
-            int skip = document.hasKey("skip") ? (Integer) document.getValue("skip") : 0;
+            String hint = document.getString("hint", null);
+            int limit = document.getInt("limit", 0);
+            int skip = document.getInt("skip", 0);
             BSONObject query = document.hasKey("query") ? (BSONObject) document.getValue("query") : null;
             
             requestBuilder.setCollection(collection)
@@ -157,6 +181,10 @@ public interface QueryCommandProcessor {
                     .setQuery(query)
                     .setSkip(skip);
             
+            ResultCache.Lookup cacheLookup = lookupCachedResult("count", collection, document);
+            if (cacheLookup != null && cacheLookup.replyIfCached(messageReplier)) {
+                return;
+            }
             CountReply reply;
             if (metaQueryProcessor.isMetaCollection(requestBuilder.getCollection())) {
                 reply = metaQueryProcessor.count(requestBuilder.build());
@@ -164,7 +192,7 @@ public interface QueryCommandProcessor {
             else {
                 reply = queryCommandProcessor.count(requestBuilder.build());
             }
-            reply.reply(messageReplier);
+            reply.reply(cachingReplier(cacheLookup));
         }
 
         public void collStats(BSONDocument query) throws Exception {
@@ -196,6 +224,10 @@ public interface QueryCommandProcessor {
                     collection,
                     scale
             );
+            ResultCache.Lookup cacheLookup = lookupCachedResult("collStats", collection, query);
+            if (cacheLookup != null && cacheLookup.replyIfCached(messageReplier)) {
+                return;
+            }
             CollStatsReply reply;
             if (metaQueryProcessor.isMetaCollection(collection)) {
                 reply = metaQueryProcessor.collStats(request);
@@ -203,35 +235,63 @@ public interface QueryCommandProcessor {
             else {
                 reply = queryCommandProcessor.collStats(request);
             }
-            reply.reply(messageReplier);
+            reply.reply(cachingReplier(cacheLookup));
         }
         
         public void insert(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.insert(document, messageReplier);
+            try {
+                queryCommandProcessor.insert(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "insert");
+            }
         }
         
         public void update(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.update(document, messageReplier);
+            try {
+                queryCommandProcessor.update(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "update");
+            }
         }
         
         public void delete(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.delete(document, messageReplier);
+            try {
+                queryCommandProcessor.delete(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "delete");
+            }
         }
         
         public void createIndexes(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.createIndexes(document, messageReplier);
+            try {
+                queryCommandProcessor.createIndexes(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "createIndexes");
+            }
         }
         
         public void create(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.create(document, messageReplier);
+            try {
+                queryCommandProcessor.create(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "create");
+            }
         }
         
         public void drop(@Nonnull BSONDocument document) throws Exception {
-        	queryCommandProcessor.drop(document, messageReplier);
+            try {
+                queryCommandProcessor.drop(document, messageReplier);
+            } finally {
+                invalidateCachedResults(document, "drop");
+            }
         }
 
         public void deleteIndexes(BSONDocument query) throws Exception {
-            queryCommandProcessor.deleteIndexes(query, messageReplier);
+            try {
+                queryCommandProcessor.deleteIndexes(query, messageReplier);
+            } finally {
+                invalidateCachedResults(query, "deleteIndexes");
+            }
         }
 
         public void getLastError(
@@ -258,7 +318,11 @@ public interface QueryCommandProcessor {
         }
         
         public void buildInfo() {
-        	queryCommandProcessor.buildInfo(messageReplier);
+            ResultCache.Lookup cacheLookup = lookupCachedResult("buildInfo", null, (BSONObject) null);
+            if (cacheLookup != null && cacheLookup.replyIfCached(messageReplier)) {
+                return;
+            }
+        	queryCommandProcessor.buildInfo(cachingReplier(cacheLookup));
         }
         
         public void ping() {
@@ -269,24 +333,395 @@ public interface QueryCommandProcessor {
         	queryCommandProcessor.getLog(log, messageReplier);
         }
 
-        public void unimplemented(@Nonnull QueryCommand userCommand) throws Exception {
-        	queryCommandProcessor.unimplemented(userCommand, messageReplier);
+        /**
+         * Delegates on {@link QueryCommandProcessor#unimplemented}. As the
+         * backend may still execute the command, the cached results it could
+         * have changed are invalidated
+         */
+        public void unimplemented(@Nonnull QueryCommand userCommand, @Nonnull BSONDocument query) throws Exception {
+            try {
+                queryCommandProcessor.unimplemented(userCommand, messageReplier);
+            } finally {
+                invalidateCachedResults(userCommand, query);
+            }
         }
 
         public void listDatabases() throws Exception {
             queryCommandProcessor.listDatabases(messageReplier);
         }
+
+        /**
+         * Replies the status kept by the server metrics, or delegates on
+         * {@link QueryCommandProcessor#unimplemented} if the channel has no
+         * metrics registry
+         */
+        public void serverStatus() throws Exception {
+            MetricsRegistry metricsRegistry = messageReplier.getAttributeMap().attr(MetricsRegistry.METRICS_REGISTRY).get();
+            if (metricsRegistry == null) {
+                queryCommandProcessor.unimplemented(DiagnosticQueryCommand.serverStatus, messageReplier);
+                return;
+            }
+            new ServerStatusReply(metricsRegistry.getServerStatus()).reply(messageReplier);
+        }
+
+        /**
+         * Replies the per namespace stats kept by the server metrics, or
+         * delegates on {@link QueryCommandProcessor#unimplemented} if the
+         * channel has no metrics registry
+         */
+        public void top() throws Exception {
+            MetricsRegistry metricsRegistry = messageReplier.getAttributeMap().attr(MetricsRegistry.METRICS_REGISTRY).get();
+            if (metricsRegistry == null) {
+                queryCommandProcessor.unimplemented(DiagnosticQueryCommand.top, messageReplier);
+                return;
+            }
+            new TopReply(metricsRegistry.getTopStats().getTotals()).reply(messageReplier);
+        }
+
+        /**
+         * Changes the profiling settings of the database as requested by a
+         * <code>profile</code> command (level -1 only reads them), or
+         * delegates on {@link QueryCommandProcessor#unimplemented} if the
+         * channel has no query profiler
+         */
+        public void profile(@Nonnull BSONDocument query) throws Exception {
+            QueryProfiler queryProfiler = messageReplier.getAttributeMap().attr(QueryProfiler.QUERY_PROFILER).get();
+            if (queryProfiler == null) {
+                queryCommandProcessor.unimplemented(DiagnosticQueryCommand.profile, messageReplier);
+                return;
+            }
+            Object level = query.getValue("profile");
+            if (!(level instanceof Number)) {
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, "profile must be a number");
+                return;
+            }
+            QueryProfiler.Settings previous = queryProfiler.getSettings(getDatabase());
+            int newLevel = ((Number) level).intValue();
+            if (newLevel != -1) {
+                Object slowMs = query.hasKey("slowms") ? query.getValue("slowms") : null;
+                Object sampleRate = query.hasKey("sampleRate") ? query.getValue("sampleRate") : null;
+                QueryProfiler.Settings settings;
+                try {
+                    settings = new QueryProfiler.Settings(
+                            newLevel,
+                            slowMs instanceof Number ? ((Number) slowMs).longValue() : previous.getSlowMs(),
+                            sampleRate instanceof Number ? ((Number) sampleRate).doubleValue() : previous.getSampleRate()
+                    );
+                } catch (IllegalArgumentException ex) {
+                    messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, ex.getMessage());
+                    return;
+                }
+                queryProfiler.setSettings(getDatabase(), settings);
+            }
+            new ProfileReply(previous.getLevel(), previous.getSlowMs(), previous.getSampleRate()).reply(messageReplier);
+        }
+
+        /**
+         * Replies the query shapes executed on the given collection, as
+         * aggregated by the server, or delegates on
+         * {@link QueryCommandProcessor#unimplemented} if the channel has no
+         * query shape stats
+         */
+        public void planCacheListQueryShapes(@Nonnull String collection) throws Exception {
+            QueryShapeStats queryShapeStats = messageReplier.getAttributeMap().attr(QueryShapeStats.QUERY_SHAPE_STATS).get();
+            if (queryShapeStats == null) {
+                queryCommandProcessor.unimplemented(QueryPlanCacheQueryCommand.planCacheListQueryShapes, messageReplier);
+                return;
+            }
+            List<QueryShape> shapes = new ArrayList<QueryShape>();
+            for (QueryShapeStats.ShapeStatistics statistics : queryShapeStats.getShapes(getDatabase(), collection)) {
+                shapes.add(statistics.getShape());
+            }
+            new PlanCacheListQueryShapesReply(shapes).reply(messageReplier);
+        }
         
+        /**
+         * Runs the pipeline of an <code>aggregate</code> command on the
+         * backend and replies its results inline or, if a cursor is
+         * requested, replies the first batch and keeps the rest on a server
+         * cursor. Delegates on {@link QueryCommandProcessor#unimplemented} if
+         * the backend is not an {@link AggregateProcessor} or a cursor is
+         * requested and the channel has no cursor manager.
+         */
+        public void aggregate(@Nonnull BSONDocument query) throws Exception {
+            if (!(queryCommandProcessor instanceof AggregateProcessor)) {
+                queryCommandProcessor.unimplemented(AggregationQueryCommand.aggregate, messageReplier);
+                return;
+            }
+            Object collection = query.getValue("aggregate");
+            if (!(collection instanceof String)) {
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, "aggregate must be a string");
+                return;
+            }
+            Object pipeline = query.hasKey("pipeline") ? query.getValue("pipeline") : null;
+            if (!(pipeline instanceof List)) {
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, "pipeline must be an array");
+                return;
+            }
+            AggregateRequest.Builder requestBuilder = new AggregateRequest.Builder(
+                    getDatabase(),
+                    messageReplier.getAttributeMap()
+            );
+            requestBuilder.setCollection((String) collection)
+                    .setRawPipeline((List<?>) pipeline)
+                    .setAllowDiskUse(query.getBoolean("allowDiskUse", false))
+                    .setExplain(query.getBoolean("explain", false));
+            Object cursor = query.hasKey("cursor") ? query.getValue("cursor") : null;
+            if (cursor != null) {
+                if (!(cursor instanceof BSONObject)) {
+                    messageReplier.replyQueryCommandFailure(
+                            MongoWP.ErrorCode.BAD_VALUE,
+                            "cursor field must be missing or an object"
+                    );
+                    return;
+                }
+                Object batchSize = ((BSONObject) cursor).get("batchSize");
+                if (batchSize == null) {
+                    requestBuilder.setBatchSize(AggregateRequest.DEFAULT_BATCH_SIZE);
+                }
+                else if (batchSize instanceof Number && ((Number) batchSize).intValue() >= 0) {
+                    requestBuilder.setBatchSize(((Number) batchSize).intValue());
+                }
+                else {
+                    messageReplier.replyQueryCommandFailure(
+                            MongoWP.ErrorCode.BAD_VALUE,
+                            "cursor.batchSize must be a non negative number"
+                    );
+                    return;
+                }
+            }
+            AggregateRequest request = requestBuilder.build();
+
+            CursorManager cursorManager = messageReplier.getAttributeMap().attr(CursorManager.CURSOR_MANAGER).get();
+            if (request.isCursor() && !request.isExplain() && cursorManager == null) {
+                queryCommandProcessor.unimplemented(AggregationQueryCommand.aggregate, messageReplier);
+                return;
+            }
+
+            Iterator<? extends BSONDocument> results;
+            try {
+                results = ((AggregateProcessor) queryCommandProcessor).aggregate(request).iterator();
+            } catch (IllegalArgumentException ex) {
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, ex.getMessage());
+                return;
+            }
+            boolean keptOnCursor = false;
+            try {
+                if (request.isExplain()) {
+                    AggregateReply.explain(Lists.newArrayList(results)).reply(messageReplier);
+                }
+                else if (!request.isCursor()) {
+                    AggregateReply.inline(Lists.newArrayList(results)).reply(messageReplier);
+                }
+                else {
+                    assert cursorManager != null;
+                    Integer batchSize = request.getBatchSize();
+                    assert batchSize != null;
+                    List<BSONDocument> firstBatch = new ArrayList<BSONDocument>(
+                            Math.min(batchSize, AggregateRequest.DEFAULT_BATCH_SIZE)
+                    );
+                    while (firstBatch.size() < batchSize && results.hasNext()) {
+                        firstBatch.add(results.next());
+                    }
+                    long cursorId = 0;
+                    if (results.hasNext()) {
+                        cursorId = cursorManager.open(
+                                getDatabase(),
+                                request.getCollection(),
+                                results,
+                                firstBatch.size(),
+                                false
+                        );
+                        keptOnCursor = true;
+                    }
+                    AggregateReply.cursor(getDatabase() + '.' + request.getCollection(), cursorId, firstBatch)
+                            .reply(messageReplier);
+                }
+            } finally {
+                if (!keptOnCursor && results instanceof Closeable) {
+                    Closeables.close((Closeable) results, true);
+                }
+            }
+        }
+
+        /**
+         * Opens a cursor on each partition of the collection returned by the
+         * backend, or delegates on {@link QueryCommandProcessor#unimplemented}
+         * if the backend is not a {@link ParallelCollectionScanProcessor} or
+         * the channel has no cursor manager. If the scan cannot be replied,
+         * the cursors it opened are closed.
+         *
+         * @throws IllegalStateException If the backend returns no partitions
+         *                               or more than the requested ones
+         */
+        public void parallelCollectionScan(@Nonnull BSONDocument query) throws Exception {
+            CursorManager cursorManager = messageReplier.getAttributeMap().attr(CursorManager.CURSOR_MANAGER).get();
+            if (cursorManager == null || !(queryCommandProcessor instanceof ParallelCollectionScanProcessor)) {
+                queryCommandProcessor.unimplemented(QueryAndWriteOperationsQueryCommand.parallelCollectionScan, messageReplier);
+                return;
+            }
+            Object collection = query.getValue("parallelCollectionScan");
+            if (collection == null) {
+                collection = query.getValue("parallelcollectionscan");
+            }
+            if (!(collection instanceof String)) {
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, "parallelCollectionScan must be a string");
+                return;
+            }
+            Object numCursors = query.hasKey("numCursors") ? query.getValue("numCursors") : null;
+            if (!(numCursors instanceof Number)
+                    || ((Number) numCursors).intValue() < ParallelCollectionScanRequest.MIN_CURSORS
+                    || ((Number) numCursors).intValue() > ParallelCollectionScanRequest.MAX_CURSORS) {
+                messageReplier.replyQueryCommandFailure(
+                        MongoWP.ErrorCode.BAD_VALUE,
+                        "numCursors has to be between " + ParallelCollectionScanRequest.MIN_CURSORS
+                                + " and " + ParallelCollectionScanRequest.MAX_CURSORS + " was: " + numCursors
+                );
+                return;
+            }
+            ParallelCollectionScanRequest request = new ParallelCollectionScanRequest(
+                    getDatabase(),
+                    messageReplier.getAttributeMap(),
+                    (String) collection,
+                    ((Number) numCursors).intValue()
+            );
+
+            List<? extends Iterable<? extends BSONDocument>> partitions
+                    = ((ParallelCollectionScanProcessor) queryCommandProcessor).parallelCollectionScan(request);
+            if (partitions.isEmpty() || partitions.size() > request.getNumCursors()) {
+                throw new IllegalStateException(
+                        "The backend split " + request.getCollection() + " in " + partitions.size()
+                                + " partitions, but between 1 and " + request.getNumCursors() + " were requested"
+                );
+            }
+            // The iterators are created one by one, so on a failure only the opened ones are closed
+            List<Long> cursorIds = new ArrayList<Long>(partitions.size());
+            boolean replied = false;
+            try {
+                for (Iterable<? extends BSONDocument> partition : partitions) {
+                    Iterator<? extends BSONDocument> iterator = partition.iterator();
+                    boolean kept = false;
+                    try {
+                        cursorIds.add(cursorManager.open(getDatabase(), request.getCollection(), iterator, 0, false));
+                        kept = true;
+                    } finally {
+                        if (!kept && iterator instanceof Closeable) {
+                            Closeables.close((Closeable) iterator, true);
+                        }
+                    }
+                }
+                new ParallelCollectionScanReply(getDatabase() + '.' + request.getCollection(), cursorIds)
+                        .reply(messageReplier);
+                replied = true;
+            } finally {
+                if (!replied) {
+                    for (long cursorId : cursorIds) {
+                        cursorManager.close(cursorId);
+                    }
+                }
+            }
+        }
+
         public void getnonce() {
             queryCommandProcessor.getnonce(messageReplier);
         }
 
         public void listCollections(BSONDocument query) throws Exception {
-            queryCommandProcessor.listCollections(messageReplier, query);
+            ResultCache.Lookup cacheLookup = lookupCachedResult("listCollections", null, query);
+            if (cacheLookup != null && cacheLookup.replyIfCached(messageReplier)) {
+                return;
+            }
+            queryCommandProcessor.listCollections(cachingReplier(cacheLookup), query);
         }
 
         public void listIndexes(String collection) throws Exception {
-            queryCommandProcessor.listIndexes(messageReplier, collection);
+            ResultCache.Lookup cacheLookup = lookupCachedResult("listIndexes", collection, (BSONObject) null);
+            if (cacheLookup != null && cacheLookup.replyIfCached(messageReplier)) {
+                return;
+            }
+            queryCommandProcessor.listIndexes(cachingReplier(cacheLookup), collection);
+        }
+
+        /**
+         * @param collection the collection the result depends on, or null if
+         *                   it depends on the whole database
+         * @return the lookup of the result on the result cache of the channel,
+         *         or null if the channel has no result cache or the command
+         *         cannot be cached
+         */
+        @Nullable
+        private ResultCache.Lookup lookupCachedResult(
+                @Nonnull String command,
+                @Nullable String collection,
+                @Nonnull BSONDocument arguments) {
+            if (!(arguments instanceof MongoBSONDocument)) {
+                return null;
+            }
+            return lookupCachedResult(command, collection, ((MongoBSONDocument) arguments).getBSONObject());
+        }
+
+        @Nullable
+        private ResultCache.Lookup lookupCachedResult(
+                @Nonnull String command,
+                @Nullable String collection,
+                @Nullable BSONObject arguments) {
+            ResultCache resultCache = messageReplier.getAttributeMap().attr(ResultCache.RESULT_CACHE).get();
+            if (resultCache == null) {
+                return null;
+            }
+            return resultCache.lookup(getDatabase(), collection, command, arguments);
+        }
+
+        private MessageReplier cachingReplier(@Nullable ResultCache.Lookup cacheLookup) {
+            return cacheLookup != null ? cacheLookup.capture(messageReplier) : messageReplier;
+        }
+
+        /**
+         * Invalidates the cached results of the collections changed by a
+         * command delegated on {@link QueryCommandProcessor#unimplemented}.
+         * Only the named collection is invalidated for the commands known to
+         * change just it, and the whole database for the rest.
+         */
+        private void invalidateCachedResults(@Nonnull QueryCommand userCommand, @Nonnull BSONDocument query) {
+            ResultCache resultCache = messageReplier.getAttributeMap().attr(ResultCache.RESULT_CACHE).get();
+            if (resultCache == null) {
+                return;
+            }
+            if (userCommand == AdministrationQueryCommand.renameCollection) {
+                // it runs on admin and names both namespaces
+                Object source = query.getKeys().isEmpty() ? null : query.getValue(query.getKeys().iterator().next());
+                invalidateNamespace(resultCache, source instanceof String ? (String) source : null);
+                Object target = query.hasKey("to") ? query.getValue("to") : null;
+                invalidateNamespace(resultCache, target instanceof String ? (String) target : null);
+                return;
+            }
+            String collection = COLLECTION_COMMANDS.contains(userCommand)
+                    ? AbstractRequestProcessor.getCommandCollection(query)
+                    : null;
+            resultCache.invalidate(getDatabase(), collection);
+        }
+
+        private void invalidateNamespace(@Nonnull ResultCache resultCache, @Nullable String namespace) {
+            int dot = namespace != null ? namespace.indexOf('.') : -1;
+            if (dot <= 0) {
+                resultCache.invalidate(getDatabase(), null);
+                return;
+            }
+            assert namespace != null;
+            resultCache.invalidate(namespace.substring(0, dot), namespace.substring(dot + 1));
+        }
+
+        /**
+         * Invalidates the cached results of the collection named by the given
+         * command, or of the whole database if it names none
+         */
+        private void invalidateCachedResults(@Nonnull BSONDocument command, @Nonnull String collectionKey) {
+            ResultCache resultCache = messageReplier.getAttributeMap().attr(ResultCache.RESULT_CACHE).get();
+            if (resultCache == null) {
+                return;
+            }
+            Object collection = command.hasKey(collectionKey) ? command.getValue(collectionKey) : null;
+            resultCache.invalidate(getDatabase(), collection instanceof String ? (String) collection : null);
         }
     }
 
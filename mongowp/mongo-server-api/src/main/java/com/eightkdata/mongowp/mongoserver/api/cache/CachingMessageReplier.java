@@ -0,0 +1,44 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.cache;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+
+/**
+ * Replies to the same request than another replier, storing the replies on a
+ * {@link ResultCache}.
+ */
+class CachingMessageReplier extends MessageReplier {
+    private final ResultCache.Lookup lookup;
+
+    CachingMessageReplier(@Nonnull MessageReplier messageReplier, @Nonnull ResultCache.Lookup lookup) {
+        super(messageReplier);
+        this.lookup = lookup;
+    }
+
+    @Override
+    protected void replyMessage(@Nonnull ReplyMessage replyMessage) {
+        lookup.store(replyMessage);
+        super.replyMessage(replyMessage);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.cache;
+
+import io.netty.util.AttributeKey;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * Caches the replies of idempotent read commands, keyed by database, command
+ * and the encoded BSON of their arguments, so only identical commands share a
+ * reply.
+ * <p>
+ * Each reply depends on a collection or on a whole database. It is discarded
+ * once its time to live expires or when {@link #invalidate} is called for its
+ * collection or database. Invalidations do not touch the cache: they
+ * increment a generation counter per namespace and replies cached with an
+ * older generation are ignored. Since the generation is read before the reply
+ * is computed, a reply computed while a write is executed is never served
+ * after the write is invalidated.
+ */
+@ThreadSafe
+public class ResultCache {
+
+    public static final AttributeKey<ResultCache> RESULT_CACHE = AttributeKey.valueOf("resultCache");
+
+    private final WTinyLfuCache<Key, CachedReply> replies;
+    private final long ttlNanos;
+    /**
+     * incremented by the writes on each collection
+     */
+    private final ConcurrentMap<String, AtomicLong> collectionGenerations = new ConcurrentHashMap<String, AtomicLong>();
+    /**
+     * incremented by the writes on any collection of each database
+     */
+    private final ConcurrentMap<String, AtomicLong> databaseGenerations = new ConcurrentHashMap<String, AtomicLong>();
+    /**
+     * incremented when a whole database is invalidated
+     */
+    private final ConcurrentMap<String, AtomicLong> dropGenerations = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity the number of replies kept
+     * @param ttl      the time each reply is kept
+     */
+    public ResultCache(@Nonnegative int capacity, @Nonnegative long ttl, @Nonnull TimeUnit unit) {
+        Preconditions.checkArgument(ttl > 0, "The time to live must be positive");
+        this.replies = new WTinyLfuCache<Key, CachedReply>(capacity);
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @param collection the collection the reply depends on, or null if it
+     *                   depends on the whole database
+     * @param arguments  the command document
+     */
+    @Nonnull
+    public Lookup lookup(
+            @Nonnull String database,
+            @Nullable String collection,
+            @Nonnull String command,
+            @Nullable BSONObject arguments) {
+        return new Lookup(
+                new Key(database, collection, command, arguments != null ? encode(arguments) : Key.NO_ARGUMENTS),
+                collection != null
+                        ? generation(collectionGenerations, database + '.' + collection)
+                        : generation(databaseGenerations, database),
+                generation(dropGenerations, database)
+        );
+    }
+
+    /**
+     * Invalidates the replies that depend on the given collection and on its
+     * database
+     *
+     * @param collection the collection that has been written, or null if the
+     *                   whole database must be invalidated
+     */
+    public void invalidate(@Nonnull String database, @Nullable String collection) {
+        if (collection != null) {
+            increment(collectionGenerations, database + '.' + collection);
+        }
+        else {
+            increment(dropGenerations, database);
+        }
+        increment(databaseGenerations, database);
+    }
+
+    public void clear() {
+        replies.clear();
+    }
+
+    public int size() {
+        return replies.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static long generation(ConcurrentMap<String, AtomicLong> generations, String namespace) {
+        AtomicLong generation = generations.get(namespace);
+        return generation != null ? generation.get() : 0;
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> generations, String namespace) {
+        AtomicLong generation = generations.get(namespace);
+        if (generation == null) {
+            AtomicLong newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(namespace, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    private static byte[] encode(BSONObject arguments) {
+        return new BasicBSONEncoder().encode(arguments);
+    }
+
+    /**
+     * A lookup of a reply, that can be replied from the cache or captured
+     * to be cached
+     */
+    public class Lookup {
+        private final Key key;
+        private final long generation;
+        private final long dropGeneration;
+
+        private Lookup(Key key, long generation, long dropGeneration) {
+            this.key = key;
+            this.generation = generation;
+            this.dropGeneration = dropGeneration;
+        }
+
+        /**
+         * @return true iff the reply was cached and has been replied to the
+         *         given replier
+         */
+        public boolean replyIfCached(@Nonnull MessageReplier messageReplier) {
+            CachedReply cachedReply = replies.get(key);
+            if (cachedReply == null || !isValid(cachedReply)) {
+                if (cachedReply != null) {
+                    replies.remove(key);
+                }
+                misses.incrementAndGet();
+                return false;
+            }
+            hits.incrementAndGet();
+            messageReplier.replyMessageMultipleDocumentsWithFlags(
+                    0, cachedReply.startingFrom, cachedReply.documents, cachedReply.flags
+            );
+            return true;
+        }
+
+        /**
+         * @return a replier that replies to the same request than the given
+         *         one and caches its reply, if it can be cached
+         */
+        @Nonnull
+        public MessageReplier capture(@Nonnull MessageReplier messageReplier) {
+            return new CachingMessageReplier(messageReplier, this);
+        }
+
+        private boolean isValid(CachedReply cachedReply) {
+            return System.nanoTime() - cachedReply.expiresAt < 0
+                    && cachedReply.generation == currentGeneration()
+                    && cachedReply.dropGeneration == generation(dropGenerations, key.database);
+        }
+
+        private long currentGeneration() {
+            return key.collection != null
+                    ? generation(collectionGenerations, key.database + '.' + key.collection)
+                    : generation(databaseGenerations, key.database);
+        }
+
+        void store(@Nonnull ReplyMessage replyMessage) {
+            if (!isCacheable(replyMessage)) {
+                return;
+            }
+            replies.put(key, new CachedReply(
+                    ImmutableList.copyOf(replyMessage.getDocuments()),
+                    replyMessage.getFlags(),
+                    replyMessage.getStartingFrom(),
+                    generation,
+                    dropGeneration,
+                    System.nanoTime() + ttlNanos
+            ));
+        }
+    }
+
+    /**
+     * Only successful replies that do not open a cursor are cached
+     */
+    private static boolean isCacheable(ReplyMessage replyMessage) {
+        if (replyMessage.getCursorId() != 0 || replyMessage.isFlagSet(ReplyMessage.Flag.QUERY_FAILURE)) {
+            return false;
+        }
+        for (BSONDocument document : replyMessage.getDocuments()) {
+            Object ok = document.hasKey("ok") ? document.getValue("ok") : null;
+            if (ok instanceof Number && ((Number) ok).doubleValue() != 1) {
+                return false;
+            }
+            // Replies written with a BSONWriter embed raw documents
+            Object cursor = document.hasKey("cursor") ? document.getValue("cursor") : null;
+            Object cursorId = null;
+            if (cursor instanceof BSONObject) {
+                cursorId = ((BSONObject) cursor).get("id");
+            }
+            else if (cursor instanceof BSONDocument) {
+                cursorId = ((BSONDocument) cursor).getValue("id");
+            }
+            if (cursorId instanceof Number && ((Number) cursorId).longValue() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Immutable
+    private static final class Key {
+        private static final byte[] NO_ARGUMENTS = new byte[0];
+
+        private final String database;
+        @Nullable private final String collection;
+        private final String command;
+        private final byte[] arguments;
+
+        private Key(String database, @Nullable String collection, String command, byte[] arguments) {
+            this.database = database;
+            this.collection = collection;
+            this.command = command;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Arrays.equals(arguments, other.arguments)
+                    && command.equals(other.command)
+                    && database.equals(other.database)
+                    && (collection == null ? other.collection == null : collection.equals(other.collection));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = database.hashCode();
+            hash = hash * 31 + (collection != null ? collection.hashCode() : 0);
+            hash = hash * 31 + command.hashCode();
+            return hash * 31 + Arrays.hashCode(arguments);
+        }
+    }
+
+    @Immutable
+    private static final class CachedReply {
+        private final ImmutableList<BSONDocument> documents;
+        private final Set<ReplyMessage.Flag> flags;
+        private final int startingFrom;
+        private final long generation;
+        private final long dropGeneration;
+        private final long expiresAt;
+
+        private CachedReply(
+                ImmutableList<BSONDocument> documents,
+                Set<ReplyMessage.Flag> flags,
+                int startingFrom,
+                long generation,
+                long dropGeneration,
+                long expiresAt) {
+            this.documents = documents;
+            this.flags = flags;
+            this.startingFrom = startingFrom;
+            this.generation = generation;
+            this.dropGeneration = dropGeneration;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
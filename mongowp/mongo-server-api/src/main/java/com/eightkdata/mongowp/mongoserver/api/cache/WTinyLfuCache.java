@@ -0,0 +1,160 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.cache;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A size bounded map that evicts following the W-TinyLFU policy.
+ * <p>
+ * New entries are added to a small LRU window (1% of the capacity). Entries
+ * leaving the window compete with the next victim of the main space and only
+ * the one used more often, as estimated by a {@link FrequencySketch}, is
+ * kept. The main space is a segmented LRU: entries that are used while on its
+ * probation segment are promoted to its protected segment (80% of the main
+ * space).
+ * <p>
+ * All the operations lock the whole cache, which is meant for entries that
+ * are much more expensive to compute than to look up.
+ */
+@ThreadSafe
+class WTinyLfuCache<K, V> {
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+    private final FrequencySketch sketch;
+    /**
+     * Each segment is kept in insertion order, from the least recently used
+     * entry to the most recently used one
+     */
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<K, V>();
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<K, V>();
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<K, V>();
+
+    WTinyLfuCache(@Nonnegative int capacity) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be positive");
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = Math.max(1, capacity - windowCapacity);
+        this.protectedCapacity = mainCapacity * 4 / 5;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    @Nullable
+    synchronized V get(@Nonnull K key) {
+        sketch.increment(key);
+        V value = window.remove(key);
+        if (value != null) {
+            window.put(key, value);
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            promote(key, value);
+            return value;
+        }
+        value = protectedSegment.remove(key);
+        if (value != null) {
+            protectedSegment.put(key, value);
+        }
+        return value;
+    }
+
+    synchronized void put(@Nonnull K key, @Nonnull V value) {
+        sketch.increment(key);
+        if (window.containsKey(key)) {
+            window.remove(key);
+            window.put(key, value);
+            return;
+        }
+        if (probation.remove(key) != null) {
+            promote(key, value);
+            return;
+        }
+        if (protectedSegment.remove(key) != null) {
+            protectedSegment.put(key, value);
+            return;
+        }
+        window.put(key, value);
+        if (window.size() > windowCapacity) {
+            Map.Entry<K, V> candidate = removeEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    synchronized void remove(@Nonnull K key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    private void promote(K key, V value) {
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+            Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Moves an entry evicted from the window to the main space, if it is used
+     * more often than the entry it would evict
+     */
+    private void admit(K key, V value) {
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.put(key, value);
+            return;
+        }
+        LinkedHashMap<K, V> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        K victim = victimSegment.keySet().iterator().next();
+        if (sketch.frequency(key) > sketch.frequency(victim)) {
+            victimSegment.remove(victim);
+            probation.put(key, value);
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> segment) {
+        Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+        Map.Entry<K, V> eldest = iterator.next();
+        // the entry is copied, as it cannot be used once removed
+        Map.Entry<K, V> copy = new AbstractMap.SimpleImmutableEntry<K, V>(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        return copy;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+
+/**
+ * A {@link RequestProcessor} that is able to process legacy unacknowledged
+ * writes (OP_INSERT, OP_UPDATE and OP_DELETE) in batches.
+ * <p>
+ * When write batching is enabled on the server, these messages are not sent
+ * to {@link #insert}, {@link #update} or {@link #delete}. They are queued in
+ * the order they are received, consecutive writes to the same namespace being
+ * grouped in a batch, and delivered to {@link #writeBatch} once a batch is
+ * full, the batch delay expires or any other message is received on the same
+ * connection (for example a getLastError command).
+ */
+public interface BatchWriteRequestProcessor extends RequestProcessor {
+
+    /**
+     * Processes a batch of writes sent by the same connection to the same
+     * namespace.
+     * <p>
+     * Writes are given in the order they were received and no reply must be
+     * sent for them. Errors should be recorded so a later getLastError can
+     * report them.
+     *
+     * @param database the database of all the writes
+     * @param collection the collection of all the writes
+     * @param writes a not empty list of {@link com.eightkdata.mongowp.messages.request.InsertMessage},
+     *               {@link com.eightkdata.mongowp.messages.request.UpdateMessage} and
+     *               {@link com.eightkdata.mongowp.messages.request.DeleteMessage}
+     * @param messageReplier a replier bound to the last write of the batch
+     * @throws Exception
+     */
+    public void writeBatch(
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnull List<RequestMessage> writes,
+            @Nonnull MessageReplier messageReplier
+    ) throws Exception;
+}
@@ -0,0 +1,162 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import io.netty.util.AttributeKey;
+import io.netty.util.AttributeMap;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Tells whether the work done for a connection or a request is still needed.
+ * <p>
+ * Each connection has a token that is cancelled when the connection is
+ * closed, and each request has a child token of it, bound to the deadline of
+ * the request. A token is cancelled when it, or its parent, is explicitly
+ * cancelled, or when its deadline expires. Deadline expiration is only seen
+ * by polling: listeners are notified only of explicit cancellations.
+ */
+@ThreadSafe
+public class CancellationToken {
+    /**
+     * The token of the request being processed on a channel
+     */
+    public static final AttributeKey<CancellationToken> REQUEST_TOKEN = AttributeKey.valueOf("requestCancellationToken");
+
+    /**
+     * A token that is never cancelled
+     */
+    public static final CancellationToken NONE = new CancellationToken(null, Deadline.NONE);
+
+    @Nullable private final CancellationToken parent;
+    private final Deadline deadline;
+    private final Set<CancellationToken> children =
+            Collections.newSetFromMap(new ConcurrentHashMap<CancellationToken, Boolean>());
+    private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a token without parent nor deadline
+     */
+    public CancellationToken() {
+        this(null, Deadline.NONE);
+    }
+
+    private CancellationToken(@Nullable CancellationToken parent, @Nonnull Deadline deadline) {
+        this.parent = parent;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the token of the request being processed, or {@link #NONE} if
+     *         there is none
+     */
+    @Nonnull
+    public static CancellationToken of(@Nonnull AttributeMap attributes) {
+        CancellationToken token = attributes.attr(REQUEST_TOKEN).get();
+        return token == null ? NONE : token;
+    }
+
+    /**
+     * Creates a token that is cancelled when this one is. It must be
+     * {@link #close() closed} once it is no longer used.
+     */
+    @Nonnull
+    public CancellationToken newChild(@Nonnull Deadline deadline) {
+        CancellationToken child = new CancellationToken(this, deadline);
+        children.add(child);
+        if (cancelled) {
+            child.cancel();
+        }
+        return child;
+    }
+
+    /**
+     * Detaches this token from its parent
+     */
+    public void close() {
+        if (parent != null) {
+            parent.children.remove(this);
+        }
+    }
+
+    @Nonnull
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public void cancel() {
+        if (this == NONE) {
+            return;
+        }
+        cancelled = true;
+        for (CancellationToken child : children) {
+            child.cancel();
+        }
+        notifyListeners();
+    }
+
+    public boolean isCancelled() {
+        return cancelled || deadline.isExpired();
+    }
+
+    public boolean isDeadlineExceeded() {
+        return !cancelled && deadline.isExpired();
+    }
+
+    /**
+     * @throws OperationCancelledException if this token is cancelled
+     */
+    public void throwIfCancelled() throws OperationCancelledException {
+        if (cancelled) {
+            throw new OperationCancelledException(false);
+        }
+        if (deadline.isExpired()) {
+            throw new OperationCancelledException(true);
+        }
+    }
+
+    /**
+     * Registers a listener that is run once, on the thread that cancels this
+     * token, or right away if it is already cancelled. This can be used to
+     * abort blocking calls.
+     */
+    public void addListener(@Nonnull Runnable listener) {
+        listeners.add(listener);
+        if (cancelled) {
+            notifyListeners();
+        }
+    }
+
+    private void notifyListeners() {
+        Runnable listener;
+        while ((listener = listeners.poll()) != null) {
+            listener.run();
+        }
+    }
+}
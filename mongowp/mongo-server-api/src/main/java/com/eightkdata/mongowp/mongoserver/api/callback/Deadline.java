@@ -0,0 +1,118 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+import com.eightkdata.mongowp.mongoserver.api.AbstractRequestProcessor;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONType;
+
+/**
+ * The instant after which the result of a request is no longer useful to the
+ * client, as requested by the <code>maxTimeMS</code> option.
+ */
+@Immutable
+public final class Deadline {
+    /**
+     * A deadline that never expires
+     */
+    public static final Deadline NONE = new Deadline(false, 0);
+
+    private static final String QUERY_MAX_TIME_MS = "$maxTimeMS";
+    private static final String COMMAND_MAX_TIME_MS = "maxTimeMS";
+
+    private final boolean bounded;
+    private final long deadlineNanos;
+
+    private Deadline(boolean bounded, long deadlineNanos) {
+        this.bounded = bounded;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    @Nonnull
+    public static Deadline after(@Nonnegative long timeout, @Nonnull TimeUnit unit) {
+        return new Deadline(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * @return the deadline requested by the <code>maxTimeMS</code> option of
+     *         the given request, starting now, or {@link #NONE} if the request
+     *         has no such option
+     */
+    @Nonnull
+    public static Deadline forRequest(@Nonnull RequestMessage requestMessage) {
+        if (!(requestMessage instanceof QueryMessage)) {
+            return NONE;
+        }
+        QueryMessage queryMessage = (QueryMessage) requestMessage;
+        BSONDocument document = queryMessage.getDocument();
+        String key = AbstractRequestProcessor.QUERY_MESSAGE_COMMAND_COLLECTION.equals(queryMessage.getCollection())
+                ? COMMAND_MAX_TIME_MS
+                : QUERY_MAX_TIME_MS;
+        BSONType type = document.getType(key);
+        if (type != BSONType.INT32 && type != BSONType.INT64 && type != BSONType.DOUBLE) {
+            return NONE;
+        }
+        long maxTimeMS = document.getLong(key, 0);
+        if (maxTimeMS <= 0) {
+            // as in MongoDB, 0 means no limit
+            return NONE;
+        }
+        return after(maxTimeMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false iff this deadline never expires
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return the time left until this deadline expires, 0 if it has already
+     *         expired or {@link Long#MAX_VALUE} if it is not bounded
+     */
+    @Nonnegative
+    public long getRemaining(@Nonnull TimeUnit unit) {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        if (!bounded) {
+            return "Deadline{none}";
+        }
+        return "Deadline{remainingMillis=" + getRemaining(TimeUnit.MILLISECONDS) + '}';
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONWriter;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The <code>{ok: 0, &lt;messageKey&gt;: message, code: code}</code> document
+ * sent on failures, written with a {@link BSONWriter} instead of going through
+ * a map and the driver encoder.
+ */
+final class ErrorReplyDocument {
+    static final String QUERY_MESSAGE_KEY = "$err";
+    static final String COMMAND_MESSAGE_KEY = "errmsg";
+
+    private ErrorReplyDocument() {
+    }
+
+    @Nonnull
+    static BSONDocument of(@Nonnull String messageKey, @Nonnull String message, int code) {
+        assert QUERY_MESSAGE_KEY.equals(messageKey) || COMMAND_MESSAGE_KEY.equals(messageKey);
+        return new BSONWriter()
+                .append("ok", MongoWP.KO.doubleValue())
+                .append(messageKey, message)
+                .append("code", code)
+                .build();
+    }
+}
@@ -21,12 +21,15 @@
 
 package com.eightkdata.mongowp.mongoserver.api.callback;
 
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import com.eightkdata.mongowp.messages.response.ReplyMessage.Flag;
+import com.eightkdata.mongowp.mongoserver.protocol.ErrorMessageTemplate;
 import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.nettybson.api.BSONDocument;
 import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.AttributeKey;
 import io.netty.util.AttributeMap;
@@ -34,11 +37,11 @@ import io.netty.util.AttributeMap;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.text.MessageFormat;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -53,6 +56,12 @@ public class MessageReplier {
 	 */
     public static final AttributeKey<Integer> REQUEST_ID = AttributeKey.valueOf("requestId");
 
+    private static final PreEncodedReply OK_REPLY = createOkReply();
+
+    private static final Set<Flag> NO_FLAGS = Sets.immutableEnumSet(EnumSet.noneOf(Flag.class));
+    private static final Set<Flag> QUERY_FAILURE_FLAGS = Sets.immutableEnumSet(Flag.QUERY_FAILURE);
+    private static final Set<Flag> CURSOR_NOT_FOUND_FLAGS = Sets.immutableEnumSet(Flag.CURSOR_NOT_FOUND);
+
     private final ChannelHandlerContext channelHandlerContext;
     private final int requestId;
 
@@ -62,6 +71,14 @@ public class MessageReplier {
         this.channelHandlerContext = channelHandlerContext;
         this.requestId = channelHandlerContext.attr(REQUEST_ID).get();
     }
+
+    /**
+     * Creates a replier that replies the same request than the given one
+     */
+    protected MessageReplier(@Nonnull MessageReplier messageReplier) {
+        this.channelHandlerContext = messageReplier.channelHandlerContext;
+        this.requestId = messageReplier.requestId;
+    }
     
     public int getConnectionId() {
     	return channelHandlerContext.attr(CONNECTION_ID).get();
@@ -71,7 +88,19 @@ public class MessageReplier {
     	return channelHandlerContext;
     }
 
-    private void replyMessage(ReplyMessage replyMessage) {
+    /**
+     * @return the token that tells whether the request being replied is still
+     *         needed
+     */
+    @Nonnull
+    public CancellationToken getCancellationToken() {
+        return CancellationToken.of(channelHandlerContext);
+    }
+
+    /**
+     * All the replies are written by this method
+     */
+    protected void replyMessage(@Nonnull ReplyMessage replyMessage) {
         channelHandlerContext.writeAndFlush(replyMessage);
     }
 
@@ -79,6 +108,27 @@ public class MessageReplier {
         replyMessage(builder.build());
     }
 
+    /**
+     * Sends a reply encoded in advance, for static or rarely changing
+     * replies
+     */
+    public void replyPreEncoded(@Nonnull PreEncodedReply reply) {
+        channelHandlerContext.writeAndFlush(reply.toRequest(requestId));
+    }
+
+    /**
+     * Replies <code>{ok: 1}</code>, encoded in advance
+     */
+    public void replyOk() {
+        replyPreEncoded(OK_REPLY);
+    }
+
+    private static PreEncodedReply createOkReply() {
+        Map<String, Object> okDocumentMap = new HashMap<String, Object>(1);
+        okDocumentMap.put("ok", MongoWP.OK);
+        return PreEncodedReply.of(new MongoBSONDocument(okDocumentMap));
+    }
+
     public void replyMessage(long cursorId, int startingFrom, @Nonnull BSONDocument document) {
         replyMessageBuilder(new ReplyMessage.Builder(requestId, cursorId, startingFrom, document));
     }
@@ -118,11 +168,11 @@ public class MessageReplier {
     public void replyMessageMultipleDocuments(
             long cursorId, int startingFrom, @Nonnull Iterable<BSONDocument> documents
     ) {
-    	replyMessageMultipleDocumentsWithFlags(cursorId, startingFrom, documents, EnumSet.noneOf(Flag.class));
+    	replyMessageMultipleDocumentsWithFlags(cursorId, startingFrom, documents, NO_FLAGS);
     }
 
     public void replyMessageMultipleDocumentsWithFlags(
-            long cursorId, int startingFrom, @Nonnull Iterable<BSONDocument> documents, @Nonnull EnumSet<ReplyMessage.Flag> flags
+            long cursorId, int startingFrom, @Nonnull Iterable<BSONDocument> documents, @Nonnull Set<ReplyMessage.Flag> flags
     ) {
     	Iterator<BSONDocument> iterator = documents.iterator();
         ReplyMessage.Builder builder = new ReplyMessage.Builder(
@@ -136,7 +186,7 @@ public class MessageReplier {
     }
 
     public void replyMessageWithFlags(
-            long cursorId, int startingFrom, @Nonnull EnumSet<ReplyMessage.Flag> flags
+            long cursorId, int startingFrom, @Nonnull Set<ReplyMessage.Flag> flags
     ) {
         ReplyMessage.Builder builder = new ReplyMessage.Builder(
                 requestId, cursorId, startingFrom
@@ -146,84 +196,59 @@ public class MessageReplier {
     }
 
     public void replyMessageWithFlags(
-            @Nonnull EnumSet<ReplyMessage.Flag> flags, long cursorId, int startingFrom,
+            @Nonnull Set<ReplyMessage.Flag> flags, long cursorId, int startingFrom,
             @Nonnull BSONDocument firstDocument, @Nullable BSONDocument... documents
     ) {
         replyMessageBuilder(getReplyMessageBuilder(cursorId, startingFrom, firstDocument, documents).setFlags(flags));
     }
 
     public void replyQueryFailure(@Nonnull String errorMessage, @Nonnegative int errorCode, Object...args) {
-        Map<String,Object> errorDocumentMap = new HashMap<String, Object>(2);
-        errorDocumentMap.put("ok", MongoWP.KO);
-        errorDocumentMap.put("$err", MessageFormat.format(errorMessage, args));
-        errorDocumentMap.put("code", errorCode);
-
-        replyMessageWithFlags(
-                EnumSet.of(ReplyMessage.Flag.QUERY_FAILURE), 0, 0, new MongoBSONDocument(errorDocumentMap)
-        );
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, ErrorMessageTemplate.formatPattern(errorMessage, args), errorCode);
     }
 
     public void replyQueryFailure(@Nonnull MongoWP.ErrorCode errorCode, Object...args) {
-        replyQueryFailure(errorCode.getErrorMessage(), errorCode.getErrorCode(), args);
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, errorCode.format(args), errorCode.getErrorCode());
     }
 
     public void replyQueryCommandFailure(@Nonnull String errorMessage, @Nonnegative int errorCode, Object...args) {
-        Map<String,Object> errorDocumentMap = new HashMap<String, Object>(2);
-        errorDocumentMap.put("ok", MongoWP.KO);
-        errorDocumentMap.put("errmsg", MessageFormat.format(errorMessage, args));
-        errorDocumentMap.put("code", errorCode);
-
-        replyMessageWithFlags(
-                EnumSet.of(ReplyMessage.Flag.QUERY_FAILURE), 0, 0, new MongoBSONDocument(errorDocumentMap)
-        );
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.COMMAND_MESSAGE_KEY, ErrorMessageTemplate.formatPattern(errorMessage, args), errorCode);
     }
 
     public void replyQueryCommandFailure(@Nonnull MongoWP.ErrorCode errorCode, Object...args) {
-        replyQueryCommandFailure(errorCode.getErrorMessage(), errorCode.getErrorCode(), args);
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.COMMAND_MESSAGE_KEY, errorCode.format(args), errorCode.getErrorCode());
     }
 
     public void replyWriteFailure(@Nonnull String errorMessage, @Nonnegative int errorCode, Object...args) {
-        Map<String,Object> errorDocumentMap = new HashMap<String, Object>(2);
-        errorDocumentMap.put("ok", MongoWP.KO);
-        errorDocumentMap.put("errmsg", MessageFormat.format(errorMessage, args));
-        errorDocumentMap.put("code", errorCode);
-
-        replyMessageWithFlags(
-                EnumSet.of(ReplyMessage.Flag.QUERY_FAILURE), 0, 0, new MongoBSONDocument(errorDocumentMap)
-        );
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.COMMAND_MESSAGE_KEY, ErrorMessageTemplate.formatPattern(errorMessage, args), errorCode);
     }
 
     public void replyWriteFailure(@Nonnull MongoWP.ErrorCode errorCode, Object...args) {
-        replyWriteFailure(errorCode.getErrorMessage(), errorCode.getErrorCode(), args);
+        replyFailure(QUERY_FAILURE_FLAGS, ErrorReplyDocument.COMMAND_MESSAGE_KEY, errorCode.format(args), errorCode.getErrorCode());
     }
 
     public void replyGetMoreFailure(@Nonnull String errorMessage, @Nonnegative int errorCode, Object...args) {
-        Map<String,Object> errorDocumentMap = new HashMap<String, Object>(2);
-        errorDocumentMap.put("ok", MongoWP.KO);
-        errorDocumentMap.put("$err", MessageFormat.format(errorMessage, args));
-        errorDocumentMap.put("code", errorCode);
-
-        replyMessageWithFlags(
-                EnumSet.of(ReplyMessage.Flag.CURSOR_NOT_FOUND), 0, 0, new MongoBSONDocument(errorDocumentMap)
-        );
+        replyFailure(CURSOR_NOT_FOUND_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, ErrorMessageTemplate.formatPattern(errorMessage, args), errorCode);
     }
 
     public void replyGetMoreFailure(@Nonnull MongoWP.ErrorCode errorCode) {
-        replyGetMoreFailure(errorCode.getErrorMessage(), errorCode.getErrorCode());
+        replyFailure(CURSOR_NOT_FOUND_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, errorCode.format(), errorCode.getErrorCode());
     }
 
     public void replyKillCursorsFailure(@Nonnull String errorMessage, @Nonnegative int errorCode, Object...args) {
-        Map<String,Object> errorDocumentMap = new HashMap<String, Object>(2);
-        errorDocumentMap.put("ok", MongoWP.KO);
-        errorDocumentMap.put("$err", MessageFormat.format(errorMessage, args));
-        errorDocumentMap.put("code", errorCode);
-
-        replyMessageWithFlags(
-                EnumSet.noneOf(ReplyMessage.Flag.class), 0, 0, new MongoBSONDocument(errorDocumentMap)
-        );
+        replyFailure(NO_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, ErrorMessageTemplate.formatPattern(errorMessage, args), errorCode);
     }
 
     public void replyKillCursorsFailure(@Nonnull MongoWP.ErrorCode errorCode) {
-        replyKillCursorsFailure(errorCode.getErrorMessage(), errorCode.getErrorCode());
+        replyFailure(NO_FLAGS, ErrorReplyDocument.QUERY_MESSAGE_KEY, errorCode.format(), errorCode.getErrorCode());
+    }
+
+    /**
+     * The error document is written without going through a map, see
+     * {@link ErrorReplyDocument}
+     */
+    private void replyFailure(
+            @Nonnull Set<ReplyMessage.Flag> flags, @Nonnull String messageKey, @Nonnull String message, int errorCode
+    ) {
+        replyMessageWithFlags(flags, 0, 0, ErrorReplyDocument.of(messageKey, message, errorCode));
     }
 }
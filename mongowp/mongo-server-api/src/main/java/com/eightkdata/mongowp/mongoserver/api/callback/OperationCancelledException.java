@@ -0,0 +1,48 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+
+/**
+ * Thrown when a request is abandoned because its {@link CancellationToken}
+ * has been cancelled.
+ */
+public class OperationCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean deadlineExceeded;
+
+    public OperationCancelledException(boolean deadlineExceeded) {
+        super(deadlineExceeded ? "The request exceeded its time limit" : "The request was cancelled");
+        this.deadlineExceeded = deadlineExceeded;
+    }
+
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    @Nonnull
+    public MongoWP.ErrorCode getErrorCode() {
+        return deadlineExceeded ? MongoWP.ErrorCode.EXCEEDED_TIME_LIMIT : MongoWP.ErrorCode.INTERRUPTED;
+    }
+}
@@ -134,7 +134,7 @@ public enum AdministrationQueryCommand implements QueryCommandProcessor.QueryCom
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
@@ -0,0 +1,100 @@
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONWriter;
+
+/**
+ * The reply of an aggregate command, in one of its three forms: a cursor and
+ * its first batch, all the results inline or the explained stages, that is
+ * <code>{cursor: {id: id, ns: namespace, firstBatch: [...]}, ok: 1}</code> or
+ * <code>{&lt;arrayKey&gt;: [...], ok: 1}</code>.
+ * <p>
+ * The documents are written as they are, without converting them to driver
+ * objects.
+ */
+public class AggregateReply implements Reply {
+
+    @Nullable private final String namespace;
+    private final long cursorId;
+    private final String arrayKey;
+    private final List<? extends BSONDocument> documents;
+
+    private AggregateReply(
+            @Nullable String namespace,
+            long cursorId,
+            @Nonnull String arrayKey,
+            @Nonnull List<? extends BSONDocument> documents) {
+        this.namespace = namespace;
+        this.cursorId = cursorId;
+        this.arrayKey = arrayKey;
+        this.documents = documents;
+    }
+
+    /**
+     * @param cursorId the cursor that holds the rest of the results, or 0 if
+     *                 all of them are on the first batch
+     */
+    public static AggregateReply cursor(
+            @Nonnull String namespace,
+            long cursorId,
+            @Nonnull List<? extends BSONDocument> firstBatch) {
+        return new AggregateReply(namespace, cursorId, "firstBatch", firstBatch);
+    }
+
+    public static AggregateReply inline(@Nonnull List<? extends BSONDocument> results) {
+        return new AggregateReply(null, 0, "result", results);
+    }
+
+    public static AggregateReply explain(@Nonnull List<? extends BSONDocument> stages) {
+        return new AggregateReply(null, 0, "stages", stages);
+    }
+
+    /**
+     * @return the cursor id, or null if the reply is not a cursor
+     */
+    @Nullable
+    public Long getCursorId() {
+        return namespace != null ? cursorId : null;
+    }
+
+    @Nonnull
+    public List<? extends BSONDocument> getDocuments() {
+        return documents;
+    }
+
+    @Override
+    public void reply(MessageReplier replier) {
+        replier.replyMessageNoCursor(toDocument());
+    }
+
+    @Nonnull
+    BSONDocument toDocument() {
+        BSONWriter writer = new BSONWriter();
+        if (namespace != null) {
+            writer.startDocument("cursor")
+                    .append("id", cursorId)
+                    .append("ns", namespace);
+            appendDocuments(writer);
+            writer.end();
+        }
+        else {
+            appendDocuments(writer);
+        }
+        return writer.append("ok", MongoWP.OK.doubleValue()).build();
+    }
+
+    private void appendDocuments(BSONWriter writer) {
+        writer.startArray(arrayKey);
+        for (BSONDocument document : documents) {
+            writer.append(null, document);
+        }
+        writer.end();
+    }
+}
@@ -0,0 +1,239 @@
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import io.netty.util.AttributeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+import org.bson.BSONObject;
+
+/**
+ * An aggregation pipeline to run on a collection.
+ * <p>
+ * The pipeline is kept as it was received. Its stages are only parsed when
+ * {@link #getStages()} is called, so backends that hand the raw pipeline to
+ * their own engine do not pay for it.
+ */
+public class AggregateRequest extends CollectionCommandRequest {
+
+    public static final int DEFAULT_BATCH_SIZE = 101;
+
+    private final List<?> rawPipeline;
+    @Nullable private final Integer batchSize;
+    private final boolean allowDiskUse;
+    private final boolean explain;
+    private volatile List<Stage> stages;
+
+    private AggregateRequest(
+            String database,
+            AttributeMap attributes,
+            String collection,
+            List<?> rawPipeline,
+            Integer batchSize,
+            boolean allowDiskUse,
+            boolean explain) {
+        super(database, attributes, collection);
+        this.rawPipeline = rawPipeline;
+        this.batchSize = batchSize;
+        this.allowDiskUse = allowDiskUse;
+        this.explain = explain;
+    }
+
+    /**
+     * @return the pipeline as it was received: a list whose elements should
+     *         be the stage documents
+     */
+    @Nonnull
+    public List<?> getRawPipeline() {
+        return rawPipeline;
+    }
+
+    /**
+     * Parses the pipeline the first time it is called.
+     *
+     * @throws IllegalArgumentException If the pipeline contains a malformed
+     *                                  stage
+     */
+    @Nonnull
+    public List<Stage> getStages() {
+        List<Stage> result = stages;
+        if (result == null) {
+            List<Stage> parsed = new ArrayList<Stage>(rawPipeline.size());
+            for (Object stage : rawPipeline) {
+                parsed.add(Stage.parse(stage));
+            }
+            result = Collections.unmodifiableList(parsed);
+            stages = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return true iff the results must be returned on a cursor
+     */
+    public boolean isCursor() {
+        return batchSize != null;
+    }
+
+    /**
+     * @return the number of documents of the first batch, or null if the
+     *         results must be returned inline instead of on a cursor
+     */
+    @Nullable
+    @Nonnegative
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return true iff the stages can write temporary data to disk
+     */
+    public boolean isAllowDiskUse() {
+        return allowDiskUse;
+    }
+
+    /**
+     * @return true iff the plan of the pipeline must be returned instead of
+     *         its results
+     */
+    public boolean isExplain() {
+        return explain;
+    }
+
+    /**
+     * A stage of the pipeline, like <code>{$match: {...}}</code>
+     */
+    @Immutable
+    public static class Stage {
+        private final String operator;
+        private final Object argument;
+
+        private Stage(@Nonnull String operator, @Nullable Object argument) {
+            this.operator = operator;
+            this.argument = argument;
+        }
+
+        private static Stage parse(Object stage) {
+            if (!(stage instanceof BSONObject)) {
+                throw new IllegalArgumentException("Pipeline stages must be documents, but found " + stage);
+            }
+            Set<String> keys = ((BSONObject) stage).keySet();
+            if (keys.size() != 1) {
+                throw new IllegalArgumentException(
+                        "A pipeline stage specification object must contain exactly one field, but found " + stage
+                );
+            }
+            String operator = keys.iterator().next();
+            if (!operator.startsWith("$")) {
+                throw new IllegalArgumentException("Unrecognized pipeline stage name: '" + operator + "'");
+            }
+            return new Stage(operator, ((BSONObject) stage).get(operator));
+        }
+
+        /**
+         * @return the name of the stage, like <code>$match</code>
+         */
+        @Nonnull
+        public String getOperator() {
+            return operator;
+        }
+
+        /**
+         * @return the specification of the stage, usually a
+         *         {@link BSONObject}
+         */
+        @Nullable
+        public Object getArgument() {
+            return argument;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + operator + ": " + argument + '}';
+        }
+    }
+
+    public static class Builder {
+        private final String database;
+        private final AttributeMap attributes;
+        private String collection;
+        private List<?> rawPipeline = Collections.emptyList();
+        private Integer batchSize;
+        private boolean allowDiskUse;
+        private boolean explain;
+
+        public Builder(@Nonnull String database, @Nonnull AttributeMap attributes) {
+            this.database = database;
+            this.attributes = attributes;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public Builder setCollection(@Nonnull String collection) {
+            this.collection = collection;
+            return this;
+        }
+
+        public List<?> getRawPipeline() {
+            return rawPipeline;
+        }
+
+        public Builder setRawPipeline(@Nonnull List<?> rawPipeline) {
+            this.rawPipeline = rawPipeline;
+            return this;
+        }
+
+        public Integer getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * @param batchSize the number of documents of the first batch, or
+         *                  null to return the results inline
+         */
+        public Builder setBatchSize(@Nullable @Nonnegative Integer batchSize) {
+            Preconditions.checkArgument(batchSize == null || batchSize >= 0, "The batch size cannot be negative");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public boolean isAllowDiskUse() {
+            return allowDiskUse;
+        }
+
+        public Builder setAllowDiskUse(boolean allowDiskUse) {
+            this.allowDiskUse = allowDiskUse;
+            return this;
+        }
+
+        public boolean isExplain() {
+            return explain;
+        }
+
+        public Builder setExplain(boolean explain) {
+            this.explain = explain;
+            return this;
+        }
+
+        public AggregateRequest build() {
+            Preconditions.checkState(collection != null, "The collection is required");
+            return new AggregateRequest(
+                    database,
+                    attributes,
+                    collection,
+                    rawPipeline,
+                    batchSize,
+                    allowDiskUse,
+                    explain
+            );
+        }
+    }
+}
@@ -35,7 +35,12 @@ import com.eightkdata.nettybson.api.BSONDocument;
  * matteom
  */
 public enum AggregationQueryCommand implements QueryCommandProcessor.QueryCommand {
-    aggregate,
+    aggregate {
+		@Override
+		public void doCall(RequestBaseMessage queryMessage, BSONDocument query, ProcessorCaller caller) throws Exception {
+			caller.aggregate(query);
+		}
+    },
     count {
 		@Override
 		public void doCall(RequestBaseMessage queryMessage, BSONDocument query, ProcessorCaller caller) throws Exception {
@@ -68,7 +73,7 @@ public enum AggregationQueryCommand implements QueryCommandProcessor.QueryComman
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
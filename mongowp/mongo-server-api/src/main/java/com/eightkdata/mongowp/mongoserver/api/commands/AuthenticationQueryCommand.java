@@ -75,7 +75,7 @@ public enum AuthenticationQueryCommand implements QueryCommandProcessor.QueryCom
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
@@ -2,9 +2,8 @@ package com.eightkdata.mongowp.mongoserver.api.commands;
 
 import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
 import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
-import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+import com.eightkdata.nettybson.api.BSONWriter;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
 import java.util.Map;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
@@ -63,30 +62,50 @@ public class CollStatsReply implements Reply {
 
     @Override
     public void reply(MessageReplier replier) {
-        Map<String, Object> keyValue = Maps.newHashMapWithExpectedSize(15);
-        keyValue.put("ns", database + '.' + collection);
-        keyValue.put("count", toIntIfPossible(count));
-        keyValue.put("size", toIntIfPossible(size));
+        BSONWriter writer = new BSONWriter();
+        writer.append("ns", database + '.' + collection);
+        append(writer, "count", toIntIfPossible(count));
+        append(writer, "size", toIntIfPossible(size));
         if (count.longValue() != 0) {
             Number avgObjSize = scale * size.longValue() / count.longValue();
-            keyValue.put("avgObjSize", toIntIfPossible(avgObjSize));
-        }
-        keyValue.put("storageSize", toIntIfPossible(storageSize));
-        keyValue.put("numExtents", numExtents);
-        keyValue.put("nindexes", sizeByIndex.size());
-        keyValue.put("lastExtentSize", lastExtentSize);
-        keyValue.put("paddingFactor", paddingFactor);
-        keyValue.put("systemFlags", _idIndexExists ? 1 : 0);
-        keyValue.put("userFlags", usePowerOf2Sizes ? 1 : 0);
-        keyValue.put("totalIndexSize", getTotalIndexSize());
-        keyValue.put("indexSizes", toIntIfPossible(sizeByIndex));
-        keyValue.put("capped", capped);
+            append(writer, "avgObjSize", toIntIfPossible(avgObjSize));
+        }
+        append(writer, "storageSize", toIntIfPossible(storageSize));
+        append(writer, "numExtents", numExtents);
+        writer.append("nindexes", sizeByIndex.size());
+        append(writer, "lastExtentSize", lastExtentSize);
+        append(writer, "paddingFactor", paddingFactor);
+        writer.append("systemFlags", _idIndexExists ? 1 : 0);
+        writer.append("userFlags", usePowerOf2Sizes ? 1 : 0);
+        append(writer, "totalIndexSize", getTotalIndexSize());
+        writer.startDocument("indexSizes");
+        for (Map.Entry<String, ? extends Number> entry : sizeByIndex.entrySet()) {
+            append(writer, entry.getKey(), toIntIfPossible(entry.getValue()));
+        }
+        writer.end();
+        writer.append("capped", capped);
         if (maxIfCapped != null) {
-            keyValue.put("max", toIntIfPossible(maxIfCapped));
+            append(writer, "max", toIntIfPossible(maxIfCapped));
         }
-        keyValue.put("ok", MongoWP.OK);
+        writer.append("ok", MongoWP.OK);
         
-        replier.replyMessageNoCursor(new MongoBSONDocument(keyValue));
+        replier.replyMessageNoCursor(writer.build());
+    }
+
+    /**
+     * Integers are written as int32 or int64 and the rest of the numbers as
+     * doubles
+     */
+    private static void append(BSONWriter writer, String key, Number number) {
+        if (number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            writer.append(key, number.intValue());
+        }
+        else if (number instanceof Double || number instanceof Float) {
+            writer.append(key, number.doubleValue());
+        }
+        else {
+            writer.append(key, number.longValue());
+        }
     }
     
     private Number toIntIfPossible(Number number) {
@@ -99,19 +118,6 @@ public class CollStatsReply implements Reply {
         return number;
     }
     
-    private Map<String, Number> toIntIfPossible(Map<String, ? extends Number> old) {
-        Map<String, Number> result = Maps.newHashMapWithExpectedSize(old.size());
-        for (Map.Entry<String, ? extends Number> entry : old.entrySet()) {
-            if (entry.getValue().longValue() < Integer.MAX_VALUE) {
-                result.put(entry.getKey(), entry.getValue().intValue());
-            }
-            else {
-                result.put(entry.getKey(), entry.getValue());
-            }
-        }
-        return result;
-    }
-    
     private Number getTotalIndexSize() {
         long totalSize = 0;
         for (Number indexSize : sizeByIndex.values()) {
@@ -1,6 +1,8 @@
 
 package com.eightkdata.mongowp.mongoserver.api.commands;
 
+import com.eightkdata.mongowp.mongoserver.api.callback.CancellationToken;
+import com.eightkdata.mongowp.mongoserver.api.callback.Deadline;
 import com.google.common.base.Preconditions;
 import io.netty.util.AttributeMap;
 import javax.annotation.Nonnull;
@@ -12,6 +14,7 @@ public class CommandRequest {
 
     private final String database;
     private final AttributeMap attributes;
+    private final CancellationToken cancellationToken;
 
     protected CommandRequest(
             @Nonnull String database, 
@@ -20,6 +23,7 @@ public class CommandRequest {
         Preconditions.checkArgument(attributes != null);
         this.database = database;
         this.attributes = attributes;
+        this.cancellationToken = CancellationToken.of(attributes);
     }
 
     public String getDatabase() {
@@ -29,4 +33,20 @@ public class CommandRequest {
     public AttributeMap getAttributes() {
         return attributes;
     }
+
+    /**
+     * @return the token that tells whether this request is still needed
+     */
+    @Nonnull
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * @return the deadline requested by the client with <code>maxTimeMS</code>
+     */
+    @Nonnull
+    public Deadline getDeadline() {
+        return cancellationToken.getDeadline();
+    }
 }
@@ -3,9 +3,7 @@ package com.eightkdata.mongowp.mongoserver.api.commands;
 
 import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
 import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
-import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
-import com.google.common.collect.Maps;
-import java.util.Map;
+import com.eightkdata.nettybson.api.BSONWriter;
 import javax.annotation.Nonnull;
 
 /**
@@ -37,12 +35,12 @@ public class CountReply implements Reply {
 
     @Override
     public void reply(MessageReplier replier) {
-        Map<String, Object> keyValues = Maps.newHashMapWithExpectedSize(2);
+        BSONWriter writer = new BSONWriter();
         if (ok.equals(MongoWP.OK)) {
-            keyValues.put("n", count);
+            writer.append("n", count);
         }
-        keyValues.put("ok", ok);
+        writer.append("ok", ok.doubleValue());
         
-        replier.replyMessageNoCursor(new MongoBSONDocument(keyValues));
+        replier.replyMessageNoCursor(writer.build());
     }
 }
@@ -63,7 +63,7 @@ public enum DiagnosticQueryCommand implements QueryCommandProcessor.QueryCommand
     getLog(true) {
         @Override
         public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) {
-            String log = (String) query.getValue("getLog");
+            String log = query.getString("getLog", null);
             QueryCommandProcessor.GetLogType getLogType = QueryCommandProcessor.GetLogType.getByLog(log);
             if(null == getLogType) {
                 caller.replyFailure(MongoWP.ErrorCode.INVALID_GET_LOG_LOG, log);
@@ -92,10 +92,25 @@ public enum DiagnosticQueryCommand implements QueryCommandProcessor.QueryCommand
         }
         
     },
-    profile,
-    serverStatus,
+    profile {
+        @Override
+        public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
+            caller.profile(query);
+        }
+    },
+    serverStatus {
+        @Override
+        public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
+            caller.serverStatus();
+        }
+    },
     shardConnPoolStats,
-    top(true),
+    top(true) {
+        @Override
+        public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
+            caller.top();
+        }
+    },
     validate {
         @Override
         public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) {
@@ -139,7 +154,7 @@ public enum DiagnosticQueryCommand implements QueryCommandProcessor.QueryCommand
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
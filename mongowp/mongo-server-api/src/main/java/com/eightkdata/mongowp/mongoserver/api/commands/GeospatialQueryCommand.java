@@ -60,7 +60,7 @@ public enum GeospatialQueryCommand implements QueryCommandProcessor.QueryCommand
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
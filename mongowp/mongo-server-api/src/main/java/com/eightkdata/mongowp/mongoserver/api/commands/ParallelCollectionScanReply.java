@@ -0,0 +1,59 @@
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * The cursors opened by a parallel collection scan. Their first batches are
+ * empty, so all the documents are read with getMores.
+ */
+public class ParallelCollectionScanReply implements Reply {
+
+    private final String namespace;
+    private final List<Long> cursorIds;
+
+    public ParallelCollectionScanReply(@Nonnull String namespace, @Nonnull List<Long> cursorIds) {
+        this.namespace = namespace;
+        this.cursorIds = cursorIds;
+    }
+
+    @Nonnull
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @Nonnull
+    public List<Long> getCursorIds() {
+        return cursorIds;
+    }
+
+    @Override
+    public void reply(MessageReplier replier) {
+        List<Map<String, Object>> cursorDocuments = new ArrayList<Map<String, Object>>(cursorIds.size());
+        for (Long cursorId : cursorIds) {
+            Map<String, Object> cursor = new LinkedHashMap<String, Object>(3);
+            cursor.put("firstBatch", Collections.emptyList());
+            cursor.put("ns", namespace);
+            cursor.put("id", cursorId);
+
+            Map<String, Object> cursorDocument = new LinkedHashMap<String, Object>(2);
+            cursorDocument.put("cursor", cursor);
+            cursorDocument.put("ok", true);
+            cursorDocuments.add(cursorDocument);
+        }
+        Map<String, Object> keyValues = new LinkedHashMap<String, Object>(2);
+        keyValues.put("cursors", cursorDocuments);
+        keyValues.put("ok", MongoWP.OK);
+
+        replier.replyMessageNoCursor(new MongoBSONDocument(keyValues));
+    }
+}
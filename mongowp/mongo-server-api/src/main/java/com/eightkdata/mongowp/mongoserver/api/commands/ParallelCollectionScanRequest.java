@@ -0,0 +1,41 @@
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import io.netty.util.AttributeMap;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A request to read a whole collection through several independent cursors.
+ */
+public class ParallelCollectionScanRequest extends CollectionCommandRequest {
+
+    public static final int MIN_CURSORS = 1;
+    public static final int MAX_CURSORS = 10000;
+
+    private final int numCursors;
+
+    public ParallelCollectionScanRequest(
+            @Nonnull String database,
+            @Nonnull AttributeMap attributes,
+            @Nonnull String collection,
+            @Nonnegative int numCursors) {
+        super(database, attributes, collection);
+        Preconditions.checkArgument(
+                numCursors >= MIN_CURSORS && numCursors <= MAX_CURSORS,
+                "numCursors has to be between %s and %s", MIN_CURSORS, MAX_CURSORS
+        );
+        this.numCursors = numCursors;
+    }
+
+    /**
+     * @return the maximum number of cursors to return. Fewer cursors can be
+     *         returned, for example when the collection is small
+     */
+    @Nonnegative
+    public int getNumCursors() {
+        return numCursors;
+    }
+
+}
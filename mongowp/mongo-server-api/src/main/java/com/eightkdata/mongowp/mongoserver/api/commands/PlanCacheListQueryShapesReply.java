@@ -0,0 +1,69 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.bson.BasicBSONObject;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ *
+ */
+public class PlanCacheListQueryShapesReply implements Reply {
+
+    private final List<QueryShape> shapes;
+
+    public PlanCacheListQueryShapesReply(@Nonnull List<QueryShape> shapes) {
+        this.shapes = shapes;
+    }
+
+    @Nonnull
+    public List<QueryShape> getShapes() {
+        return shapes;
+    }
+
+    @Override
+    public void reply(MessageReplier replier) {
+        List<Map<String, Object>> shapeDocuments = new ArrayList<Map<String, Object>>(shapes.size());
+        for (QueryShape shape : shapes) {
+            Map<String, Object> shapeDocument = new LinkedHashMap<String, Object>(4);
+            shapeDocument.put("query", shape.getShape());
+            shapeDocument.put("sort", new BasicBSONObject());
+            shapeDocument.put("projection", new BasicBSONObject());
+            shapeDocument.put("queryHash", shape.getKey());
+            shapeDocuments.add(shapeDocument);
+        }
+        Map<String, Object> keyValues = new LinkedHashMap<String, Object>(2);
+        keyValues.put("shapes", shapeDocuments);
+        keyValues.put("ok", MongoWP.OK);
+
+        replier.replyMessageNoCursor(new MongoBSONDocument(keyValues));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ *
+ */
+public class ProfileReply implements Reply {
+
+    private final int was;
+    private final long slowMs;
+    private final double sampleRate;
+
+    /**
+     * @param was        the level before the command was executed
+     * @param slowMs     the slow threshold before the command was executed
+     * @param sampleRate the sample rate before the command was executed
+     */
+    public ProfileReply(int was, long slowMs, double sampleRate) {
+        this.was = was;
+        this.slowMs = slowMs;
+        this.sampleRate = sampleRate;
+    }
+
+    public int getWas() {
+        return was;
+    }
+
+    public long getSlowMs() {
+        return slowMs;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void reply(MessageReplier replier) {
+        Map<String, Object> keyValues = new LinkedHashMap<String, Object>(4);
+        keyValues.put("was", was);
+        keyValues.put("slowms", slowMs);
+        keyValues.put("sampleRate", sampleRate);
+        keyValues.put("ok", MongoWP.OK);
+
+        replier.replyMessageNoCursor(new MongoBSONDocument(keyValues));
+    }
+}
@@ -45,11 +45,10 @@ public enum QueryAndWriteOperationsQueryCommand implements QueryCommandProcessor
     getLastError {
         @Override
         public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-            // TODO: no data type checking is being performed. ClassCastExceptions may be thrown
             Object w = query.hasKey("w") ? query.getValue("w") : 1;
-            boolean j = query.hasKey("j") ? (Boolean) query.getValue("j") : false;
-            boolean fsync = query.hasKey("fsync") ? (Boolean) query.getValue("fsync") : false;
-            int wtimeout = query.hasKey("wtimeout") ? (Integer) query.getValue("wtimeout") : 0;
+            boolean j = query.getBoolean("j", false);
+            boolean fsync = query.getBoolean("fsync", false);
+            int wtimeout = query.getInt("wtimeout", 0);
             caller.getLastError(w, j, fsync, wtimeout);
         }
     },
@@ -60,7 +59,12 @@ public enum QueryAndWriteOperationsQueryCommand implements QueryCommandProcessor
         	caller.insert(query);
         }
     },
-    parallelCollectionScan,
+    parallelCollectionScan {
+        @Override
+        public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
+            caller.parallelCollectionScan(query);
+        }
+    },
     resetError,
     text,
     update {
@@ -92,7 +96,7 @@ public enum QueryAndWriteOperationsQueryCommand implements QueryCommandProcessor
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
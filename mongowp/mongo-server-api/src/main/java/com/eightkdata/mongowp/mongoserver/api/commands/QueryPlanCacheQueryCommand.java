@@ -27,6 +27,7 @@ import com.google.common.base.Preconditions;
 
 import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
 import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.nettybson.api.BSONDocument;
 
 /**
@@ -38,7 +39,17 @@ public enum QueryPlanCacheQueryCommand implements QueryCommandProcessor.QueryCom
     planCacheClear,
     planCacheListFilters,
     planCacheListPlans,
-    planCacheListQueryShapes,
+    planCacheListQueryShapes {
+        @Override
+        public void doCall(@Nonnull RequestBaseMessage requestBaseMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
+            Object collection = query.getValue(getKey());
+            if (!(collection instanceof String)) {
+                caller.replyFailure(MongoWP.ErrorCode.BAD_VALUE, "collection name must be a string");
+                return;
+            }
+            caller.planCacheListQueryShapes((String) collection);
+        }
+    },
     planCacheSetFilter
     ;
     
@@ -63,7 +74,7 @@ public enum QueryPlanCacheQueryCommand implements QueryCommandProcessor.QueryCom
     }
 
     public void doCall(@Nonnull RequestBaseMessage queryMessage, @Nonnull BSONDocument query, @Nonnull QueryCommandProcessor.ProcessorCaller caller) throws Exception {
-    	caller.unimplemented(this);
+    	caller.unimplemented(this, query);
     }
 
     @Override
@@ -16,16 +16,19 @@ public class QueryReply implements Reply {
     private final int startingFrom;
     private final @Nonnull Iterable<BSONDocument> documents;
     private final @Nonnull EnumSet<ReplyMessage.Flag> flags;
+    private final boolean projectionApplied;
 
     private QueryReply(
             long cursorId, 
             int startingFrom, 
             Iterable<BSONDocument> documents, 
-            EnumSet<ReplyMessage.Flag> flags) {
+            EnumSet<ReplyMessage.Flag> flags,
+            boolean projectionApplied) {
         this.cursorId = cursorId;
         this.startingFrom = startingFrom;
         this.documents = documents;
         this.flags = flags;
+        this.projectionApplied = projectionApplied;
     }
 
     public long getCursorId() {
@@ -43,6 +46,14 @@ public class QueryReply implements Reply {
     public EnumSet<ReplyMessage.Flag> getFlags() {
         return flags;
     }
+
+    /**
+     * @return true iff the documents are already projected as the request
+     *         asked. Otherwise the server projects them when they are encoded
+     */
+    public boolean isProjectionApplied() {
+        return projectionApplied;
+    }
     
     @Override
     public void reply(MessageReplier replier) {
@@ -57,6 +68,7 @@ public class QueryReply implements Reply {
         private long cursorId;
         private int startingFrom;
         private Iterable<BSONDocument> documents;
+        private boolean projectionApplied;
 
         public long getCursorId() {
             return cursorId;
@@ -85,12 +97,28 @@ public class QueryReply implements Reply {
             return this;
         }
         
+        public boolean isProjectionApplied() {
+            return projectionApplied;
+        }
+
+        /**
+         * Backends that apply the projection of the request must set this,
+         * so the server does not project the documents again. Backends
+         * that return their own cursors must apply it, as their getMores
+         * are not projected by the server.
+         */
+        public Builder setProjectionApplied(boolean projectionApplied) {
+            this.projectionApplied = projectionApplied;
+            return this;
+        }
+        
         public QueryReply build() {
             return new QueryReply(
                     cursorId, 
                     startingFrom, 
                     documents, 
-                    EnumSet.noneOf(ReplyMessage.Flag.class)
+                    EnumSet.noneOf(ReplyMessage.Flag.class),
+                    projectionApplied
             );
         }
     }
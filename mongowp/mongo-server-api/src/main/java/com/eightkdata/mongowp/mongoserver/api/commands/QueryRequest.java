@@ -3,6 +3,7 @@ package com.eightkdata.mongowp.mongoserver.api.commands;
 import io.netty.util.AttributeMap;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nullable;
+import com.google.common.base.Preconditions;
 import org.bson.BSONObject;
 
 /**
@@ -22,6 +23,16 @@ public class QueryRequest extends CollectionCommandRequest {
     private final boolean awaitData;
     private final boolean exhaust;
     private final boolean partial;    
+    private final BSONObject orderBy;
+    private final Object hint;
+    private final int maxScan;
+    private final BSONObject min;
+    private final BSONObject max;
+    private final boolean returnKey;
+    private final boolean showDiskLoc;
+    private final boolean snapshot;
+    private final Object comment;
+    private final boolean explain;
 
     private QueryRequest(
             String database,
@@ -38,7 +49,17 @@ public class QueryRequest extends CollectionCommandRequest {
             boolean noCursorTimeout, 
             boolean awaitData, 
             boolean exhaust, 
-            boolean partial) {
+            boolean partial,
+            BSONObject orderBy,
+            Object hint,
+            int maxScan,
+            BSONObject min,
+            BSONObject max,
+            boolean returnKey,
+            boolean showDiskLoc,
+            boolean snapshot,
+            Object comment,
+            boolean explain) {
         super(database, attributes, collection);
         this.query = query;
         this.projection = projection;
@@ -52,6 +73,16 @@ public class QueryRequest extends CollectionCommandRequest {
         this.awaitData = awaitData;
         this.exhaust = exhaust;
         this.partial = partial;
+        this.orderBy = orderBy;
+        this.hint = hint;
+        this.maxScan = maxScan;
+        this.min = min;
+        this.max = max;
+        this.returnKey = returnKey;
+        this.showDiskLoc = showDiskLoc;
+        this.snapshot = snapshot;
+        this.comment = comment;
+        this.explain = explain;
     }
 
     @Nullable
@@ -106,6 +137,109 @@ public class QueryRequest extends CollectionCommandRequest {
         return partial;
     }
 
+    /**
+     * The <code>$orderby</code> modifier. Together with the limit, it lets
+     * backends that can read an index in order, or keep only the top
+     * documents, stop scanning early.
+     *
+     * @return the sort order, like <code>{a: 1, b: -1}</code>, or null if
+     *         the documents can be returned in any order
+     */
+    @Nullable
+    public BSONObject getOrderBy() {
+        return orderBy;
+    }
+
+    /**
+     * The <code>$hint</code> modifier.
+     *
+     * @return the name of the index to use (a {@link String}), its key
+     *         pattern (a {@link BSONObject}) or null if there is no hint
+     */
+    @Nullable
+    public Object getHint() {
+        return hint;
+    }
+
+    /**
+     * The <code>$maxScan</code> modifier.
+     *
+     * @return the maximum number of documents or index keys to scan, or 0 if
+     *         there is no limit
+     */
+    @Nonnegative
+    public int getMaxScan() {
+        return maxScan;
+    }
+
+    /**
+     * The <code>$min</code> modifier.
+     *
+     * @return the inclusive lower bound of the index keys, or null
+     */
+    @Nullable
+    public BSONObject getMin() {
+        return min;
+    }
+
+    /**
+     * The <code>$max</code> modifier.
+     *
+     * @return the exclusive upper bound of the index keys, or null
+     */
+    @Nullable
+    public BSONObject getMax() {
+        return max;
+    }
+
+    /**
+     * The <code>$returnKey</code> modifier.
+     *
+     * @return true iff only the index keys must be returned
+     */
+    public boolean isReturnKey() {
+        return returnKey;
+    }
+
+    /**
+     * The <code>$showDiskLoc</code> modifier.
+     *
+     * @return true iff the location of each document must be added to it
+     */
+    public boolean isShowDiskLoc() {
+        return showDiskLoc;
+    }
+
+    /**
+     * The <code>$snapshot</code> modifier.
+     *
+     * @return true iff each document must be returned at most once, even if
+     *         it is moved during the query
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The <code>$comment</code> modifier.
+     *
+     * @return the comment to record with the query, or null
+     */
+    @Nullable
+    public Object getComment() {
+        return comment;
+    }
+
+    /**
+     * The <code>$explain</code> modifier.
+     *
+     * @return true iff the plan of the query must be returned instead of its
+     *         documents
+     */
+    public boolean isExplain() {
+        return explain;
+    }
+
     public static class Builder {
 
         private final String database;
@@ -123,6 +257,16 @@ public class QueryRequest extends CollectionCommandRequest {
         private boolean awaitData;
         private boolean exhaust;
         private boolean partial;    
+        private BSONObject orderBy;
+        private Object hint;
+        private int maxScan;
+        private BSONObject min;
+        private BSONObject max;
+        private boolean returnKey;
+        private boolean showDiskLoc;
+        private boolean snapshot;
+        private Object comment;
+        private boolean explain;
 
         public Builder(String database, AttributeMap attributes) {
             this.database = database;
@@ -251,6 +395,105 @@ public class QueryRequest extends CollectionCommandRequest {
             this.partial = partial;
             return this;
         }
+
+        public BSONObject getOrderBy() {
+            return orderBy;
+        }
+
+        public Builder setOrderBy(@Nullable BSONObject orderBy) {
+            this.orderBy = orderBy;
+            return this;
+        }
+
+        public Object getHint() {
+            return hint;
+        }
+
+        /**
+         * @param hint the name of the index (a {@link String}) or its key
+         *             pattern (a {@link BSONObject})
+         */
+        public Builder setHint(@Nullable Object hint) {
+            Preconditions.checkArgument(
+                    hint == null || hint instanceof String || hint instanceof BSONObject,
+                    "The hint must be a string or a document"
+            );
+            this.hint = hint;
+            return this;
+        }
+
+        public int getMaxScan() {
+            return maxScan;
+        }
+
+        public Builder setMaxScan(@Nonnegative int maxScan) {
+            Preconditions.checkArgument(maxScan >= 0, "maxScan cannot be negative");
+            this.maxScan = maxScan;
+            return this;
+        }
+
+        public BSONObject getMin() {
+            return min;
+        }
+
+        public Builder setMin(@Nullable BSONObject min) {
+            this.min = min;
+            return this;
+        }
+
+        public BSONObject getMax() {
+            return max;
+        }
+
+        public Builder setMax(@Nullable BSONObject max) {
+            this.max = max;
+            return this;
+        }
+
+        public boolean isReturnKey() {
+            return returnKey;
+        }
+
+        public Builder setReturnKey(boolean returnKey) {
+            this.returnKey = returnKey;
+            return this;
+        }
+
+        public boolean isShowDiskLoc() {
+            return showDiskLoc;
+        }
+
+        public Builder setShowDiskLoc(boolean showDiskLoc) {
+            this.showDiskLoc = showDiskLoc;
+            return this;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public Builder setSnapshot(boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public Object getComment() {
+            return comment;
+        }
+
+        public Builder setComment(@Nullable Object comment) {
+            this.comment = comment;
+            return this;
+        }
+
+        public boolean isExplain() {
+            return explain;
+        }
+
+        public Builder setExplain(boolean explain) {
+            this.explain = explain;
+            return this;
+        }
         
         public QueryRequest build() {
             return new QueryRequest(
@@ -268,7 +511,17 @@ public class QueryRequest extends CollectionCommandRequest {
                     noCursorTimeout, 
                     awaitData, 
                     exhaust, 
-                    partial
+                    partial,
+                    orderBy,
+                    hint,
+                    maxScan,
+                    min,
+                    max,
+                    returnKey,
+                    showDiskLoc,
+                    snapshot,
+                    comment,
+                    explain
             );
         }
     }
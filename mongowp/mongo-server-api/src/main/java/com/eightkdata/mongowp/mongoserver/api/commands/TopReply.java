@@ -0,0 +1,55 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ *
+ */
+public class TopReply implements Reply {
+
+    private final Map<String, Object> totals;
+
+    public TopReply(@Nonnull Map<String, Object> totals) {
+        this.totals = totals;
+    }
+
+    @Nonnull
+    public Map<String, Object> getTotals() {
+        return totals;
+    }
+
+    @Override
+    public void reply(MessageReplier replier) {
+        Map<String, Object> keyValues = new LinkedHashMap<String, Object>(2);
+        keyValues.put("totals", totals);
+        keyValues.put("ok", MongoWP.OK);
+
+        replier.replyMessageNoCursor(new MongoBSONDocument(keyValues));
+    }
+}
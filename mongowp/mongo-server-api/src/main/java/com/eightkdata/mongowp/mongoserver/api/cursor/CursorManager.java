@@ -0,0 +1,405 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import io.netty.util.AttributeKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+import com.eightkdata.mongowp.messages.request.GetMoreMessage;
+import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.commands.QueryRequest;
+import com.eightkdata.mongowp.mongoserver.api.metrics.Counter;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * Keeps the cursors of the queries whose backend returned all their documents
+ * at once, so only the first batch is sent on the reply and the rest is
+ * spooled out of the Java heap and sent on the following getMores. See
+ * {@link SpooledCursor}.
+ * <p>
+ * It also keeps the cursors opened on backend iterators that are only read
+ * on getMores, like the ones of a parallel collection scan. See
+ * {@link IteratorCursor}.
+ * <p>
+ * Cursors are spooled in direct memory until the spooled bytes of all the
+ * cursors reach the memory limit. Then they are spooled to temporary files.
+ * Cursors are closed once they are exhausted, killed or idle for longer than
+ * the idle timeout (unless they were opened with <code>noCursorTimeout</code>).
+ * <p>
+ * The server handles the getMores and killCursors of the cursors it spools
+ * and delivers the rest to the backend.
+ */
+@ThreadSafe
+public class CursorManager {
+
+    public static final AttributeKey<CursorManager> CURSOR_MANAGER = AttributeKey.valueOf("cursorManager");
+
+    /**
+     * The documents sent on the first batch when the query does not set it
+     */
+    public static final int DEFAULT_FIRST_BATCH_SIZE = 101;
+    /**
+     * The size of the batches is limited to this, unless their first
+     * document is bigger
+     */
+    public static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+    private static final long IDLE_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final long memoryLimit;
+    @Nullable private final File spillDirectory;
+    private final long idleTimeoutNanos;
+    private final ConcurrentMap<Long, ServerCursor> cursors = new ConcurrentHashMap<Long, ServerCursor>();
+    private final Random random = new SecureRandom();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final AtomicLong totalOpened = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong lastIdleCheck = new AtomicLong(System.nanoTime());
+    @Nullable private volatile Counter openCursorsCounter;
+
+    /**
+     * @param memoryLimit    the bytes that can be spooled in direct memory by
+     *                       all the cursors
+     * @param spillDirectory the directory of the temporary files, or null to
+     *                       use the default temporary directory
+     * @param idleTimeout    the time a cursor is kept without being read
+     */
+    public CursorManager(
+            @Nonnegative long memoryLimit,
+            @Nullable File spillDirectory,
+            @Nonnegative long idleTimeout,
+            @Nonnull TimeUnit unit) {
+        Preconditions.checkArgument(memoryLimit >= 0, "The memory limit cannot be negative");
+        Preconditions.checkArgument(idleTimeout > 0, "The idle timeout must be positive");
+        this.memoryLimit = memoryLimit;
+        this.spillDirectory = spillDirectory;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Keeps the given counter updated with the number of open cursors, like
+     * the one of the server {@link MetricsRegistry}. It should be set before
+     * any cursor is opened.
+     */
+    public void setOpenCursorsCounter(@Nonnull Counter counter) {
+        counter.add(cursors.size());
+        openCursorsCounter = counter;
+    }
+
+    /**
+     * Replies the first batch of the given documents and spools the rest on
+     * a new cursor.
+     *
+     * @return the id of the cursor that holds the rest of the documents, or 0
+     *         if all of them were sent
+     */
+    public long reply(
+            @Nonnull QueryRequest request,
+            @Nonnull Iterable<BSONDocument> documents,
+            @Nonnull MessageReplier messageReplier) throws IOException {
+        closeIdleCursors();
+
+        int batchSize = request.getLimit() > 0 ? request.getLimit() : DEFAULT_FIRST_BATCH_SIZE;
+        Iterator<BSONDocument> iterator = documents.iterator();
+        List<BSONDocument> firstBatch = new ArrayList<BSONDocument>(Math.min(batchSize, DEFAULT_FIRST_BATCH_SIZE));
+        while (firstBatch.size() < batchSize && iterator.hasNext()) {
+            firstBatch.add(iterator.next());
+        }
+        if (!iterator.hasNext()) {
+            messageReplier.replyMessageMultipleDocuments(0, 0, firstBatch);
+            return 0;
+        }
+
+        SpooledCursor cursor = new SpooledCursor(
+                this,
+                newCursorId(),
+                request.getDatabase(),
+                request.getCollection(),
+                firstBatch.size(),
+                request.isNoCursorTimeout()
+        );
+        try {
+            while (iterator.hasNext()) {
+                cursor.append(iterator.next());
+            }
+            cursor.finishSpooling();
+        } catch (IOException exception) {
+            cursor.close();
+            throw exception;
+        } catch (RuntimeException exception) {
+            cursor.close();
+            throw exception;
+        }
+        register(cursor);
+
+        messageReplier.replyMessageMultipleDocuments(cursor.getCursorId(), 0, firstBatch);
+        return cursor.getCursorId();
+    }
+
+    /**
+     * Opens a cursor that reads the given documents when its getMores are
+     * received. See {@link IteratorCursor}.
+     *
+     * @param position the number of documents already sent, that is the
+     *                 starting position of the next batch
+     * @return the id of the new cursor
+     */
+    public long open(
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnull Iterator<? extends BSONDocument> documents,
+            @Nonnegative int position,
+            boolean noTimeout) {
+        closeIdleCursors();
+
+        IteratorCursor cursor = new IteratorCursor(newCursorId(), database, collection, documents, position, noTimeout);
+        register(cursor);
+        return cursor.getCursorId();
+    }
+
+    /**
+     * Replies the getMore if its cursor is kept by this manager
+     *
+     * @return true iff the getMore has been replied
+     */
+    public boolean getMore(@Nonnull GetMoreMessage getMoreMessage, @Nonnull MessageReplier messageReplier)
+            throws IOException {
+        closeIdleCursors();
+
+        ServerCursor cursor = cursors.get(getMoreMessage.getCursorId());
+        if (cursor == null) {
+            return false;
+        }
+        PreEncodedReply batch;
+        try {
+            batch = cursor.nextBatch(getMoreMessage.getNumberToReturn(), MAX_BATCH_BYTES);
+        } catch (IOException exception) {
+            close(cursor);
+            throw exception;
+        } catch (RuntimeException exception) {
+            close(cursor);
+            throw exception;
+        }
+        if (batch == null) {
+            messageReplier.replyMessageWithFlags(0, 0, EnumSet.of(ReplyMessage.Flag.CURSOR_NOT_FOUND));
+            return true;
+        }
+        if (cursor.isExhausted()) {
+            close(cursor);
+        }
+        messageReplier.replyPreEncoded(batch);
+        return true;
+    }
+
+    /**
+     * Closes the cursors of the message kept by this manager
+     *
+     * @return true iff all the cursors of the message were kept by this
+     *         manager, so the message does not need to be delivered to the
+     *         backend
+     */
+    public boolean killCursors(@Nonnull KillCursorsMessage killCursorsMessage) {
+        boolean allKilled = true;
+        for (long cursorId : killCursorsMessage.getCursorIds()) {
+            ServerCursor cursor = cursors.get(cursorId);
+            if (cursor != null) {
+                close(cursor);
+            }
+            else {
+                allKilled = false;
+            }
+        }
+        return allKilled;
+    }
+
+    /**
+     * Closes the given cursor if it is kept by this manager
+     *
+     * @return true iff the cursor was kept by this manager
+     */
+    public boolean close(long cursorId) {
+        ServerCursor cursor = cursors.get(cursorId);
+        if (cursor == null) {
+            return false;
+        }
+        close(cursor);
+        return true;
+    }
+
+    /**
+     * Closes all the cursors
+     */
+    public void closeAll() {
+        for (ServerCursor cursor : cursors.values()) {
+            close(cursor);
+        }
+    }
+
+    /**
+     * @return the number of cursors that are open
+     */
+    public int getOpenCursors() {
+        return cursors.size();
+    }
+
+    public long getTotalOpened() {
+        return totalOpened.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the bytes spooled in direct memory that have not been sent yet
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * @return the bytes spooled to temporary files that have not been sent yet
+     */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    @Nullable
+    File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    boolean canSpoolToMemory() {
+        return memoryBytes.get() < memoryLimit;
+    }
+
+    void onMemorySpooled(long bytes) {
+        memoryBytes.addAndGet(bytes);
+    }
+
+    void onMemoryReleased(long bytes) {
+        memoryBytes.addAndGet(-bytes);
+    }
+
+    void onDiskSpooled(long bytes) {
+        diskBytes.addAndGet(bytes);
+    }
+
+    void onDiskReleased(long bytes) {
+        diskBytes.addAndGet(-bytes);
+    }
+
+    private void register(ServerCursor cursor) {
+        cursors.put(cursor.getCursorId(), cursor);
+        totalOpened.incrementAndGet();
+        Counter counter = openCursorsCounter;
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * @return true iff the cursor was kept by this manager and has been
+     *         removed by this call
+     */
+    private boolean remove(ServerCursor cursor) {
+        if (!cursors.remove(cursor.getCursorId(), cursor)) {
+            return false;
+        }
+        Counter counter = openCursorsCounter;
+        if (counter != null) {
+            counter.decrement();
+        }
+        return true;
+    }
+
+    private void close(ServerCursor cursor) {
+        if (remove(cursor)) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Cursor ids are random, so they cannot be guessed by other clients. The
+     * ids of the backend cursors are not known, so they could clash with them
+     * but the chances are negligible.
+     */
+    private long newCursorId() {
+        long cursorId;
+        do {
+            cursorId = random.nextLong() & Long.MAX_VALUE;
+        } while (cursorId == 0 || cursors.containsKey(cursorId));
+        return cursorId;
+    }
+
+    /**
+     * Idle cursors are looked for at most once every few seconds, by the
+     * first request that finds the check is due
+     */
+    private void closeIdleCursors() {
+        long now = System.nanoTime();
+        long lastCheck = lastIdleCheck.get();
+        if (now - lastCheck < IDLE_CHECK_INTERVAL_NANOS || !lastIdleCheck.compareAndSet(lastCheck, now)) {
+            return;
+        }
+        closeIdleCursors(now);
+    }
+
+    /**
+     * Closes the cursors that have not been read for longer than the idle
+     * timeout at the given time, as returned by {@link System#nanoTime()}
+     */
+    void closeIdleCursors(long now) {
+        for (ServerCursor cursor : cursors.values()) {
+            if (!cursor.isNoTimeout() && now - cursor.getLastAccessNanos() > idleTimeoutNanos) {
+                if (remove(cursor)) {
+                    cursor.close();
+                    timedOut.incrementAndGet();
+                }
+            }
+        }
+    }
+}
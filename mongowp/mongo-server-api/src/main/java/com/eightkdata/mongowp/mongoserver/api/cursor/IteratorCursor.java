@@ -0,0 +1,141 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A cursor that reads the documents of a backend iterator when they are
+ * requested, so nothing is kept between batches but the iterator itself.
+ * <p>
+ * Each batch is encoded directly on its reply body. The iterator is consumed
+ * by the thread that serves each getMore, one batch at a time. If it
+ * implements {@link Closeable}, it is closed with the cursor.
+ */
+@ThreadSafe
+public class IteratorCursor extends ServerCursor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IteratorCursor.class);
+
+    private static final int INITIAL_BATCH_BYTES = 16 * 1024;
+
+    private final Iterator<? extends BSONDocument> iterator;
+    /**
+     * The encoded document that did not fit on the last batch
+     */
+    @Nullable private ByteBuf pending;
+    private int position;
+    private boolean exhausted;
+    private boolean closed;
+
+    IteratorCursor(
+            long cursorId,
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnull Iterator<? extends BSONDocument> iterator,
+            @Nonnegative int position,
+            boolean noTimeout) {
+        super(cursorId, database, collection, noTimeout);
+        this.iterator = iterator;
+        this.position = position;
+    }
+
+    @Nullable
+    @Override
+    synchronized PreEncodedReply nextBatch(int numberToReturn, @Nonnegative int maxBatchBytes) {
+        if (closed) {
+            return null;
+        }
+        touch();
+
+        int limit = numberToReturn != 0 ? Math.abs(numberToReturn) : Integer.MAX_VALUE;
+        ByteBuf body = Unpooled.buffer(INITIAL_BATCH_BYTES);
+        ByteBuf out = body.order(ByteOrder.LITTLE_ENDIAN);
+        out.writerIndex(PreEncodedReply.BODY_HEADER_BYTES);
+        int documents = 0;
+        try {
+            if (pending != null) {
+                out.writeBytes(pending);
+                pending = null;
+                documents++;
+            }
+            while (documents < limit && iterator.hasNext()) {
+                int start = out.writerIndex();
+                iterator.next().writeToByteBuf(out);
+                if (documents > 0 && out.writerIndex() - PreEncodedReply.BODY_HEADER_BYTES > maxBatchBytes) {
+                    pending = out.copy(start, out.writerIndex() - start);
+                    out.writerIndex(start);
+                    break;
+                }
+                documents++;
+            }
+            exhausted = pending == null && !iterator.hasNext();
+        } catch (RuntimeException exception) {
+            body.release();
+            throw exception;
+        }
+
+        out.setInt(0, 0);
+        out.setLong(4, exhausted ? 0 : getCursorId());
+        out.setInt(12, position);
+        out.setInt(16, documents);
+        position += documents;
+        return PreEncodedReply.wrap(body, documents);
+    }
+
+    @Override
+    synchronized boolean isExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending = null;
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (IOException exception) {
+                LOGGER.warn("Error while closing the iterator of " + this, exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+
+/**
+ * A cursor kept by a {@link CursorManager}, whose batches are sent by the
+ * server without going through the backend.
+ * <p>
+ * Each cursor serializes its own batches, so the cursors of the same manager
+ * can be read at the same time from different connections.
+ */
+@ThreadSafe
+public abstract class ServerCursor {
+    private final long cursorId;
+    private final String database;
+    private final String collection;
+    private final boolean noTimeout;
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    ServerCursor(long cursorId, @Nonnull String database, @Nonnull String collection, boolean noTimeout) {
+        this.cursorId = cursorId;
+        this.database = database;
+        this.collection = collection;
+        this.noTimeout = noTimeout;
+    }
+
+    public long getCursorId() {
+        return cursorId;
+    }
+
+    @Nonnull
+    public String getDatabase() {
+        return database;
+    }
+
+    @Nonnull
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return true iff the cursor is not closed when it is idle
+     */
+    public boolean isNoTimeout() {
+        return noTimeout;
+    }
+
+    long getLastAccessNanos() {
+        return lastAccessNanos;
+    }
+
+    void touch() {
+        lastAccessNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes the next batch of documents, that must be sent.
+     *
+     * @param numberToReturn the maximum number of documents of the batch, or
+     *                       0 to only limit its size
+     * @param maxBatchBytes  the size of the batch is limited to this, unless
+     *                       its first document is bigger
+     * @return the batch, or null if the cursor has been closed
+     */
+    @Nullable
+    abstract PreEncodedReply nextBatch(int numberToReturn, @Nonnegative int maxBatchBytes) throws IOException;
+
+    abstract boolean isExhausted();
+
+    abstract void close();
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + '{' + cursorId + " on " + database + '.' + collection + '}';
+    }
+}
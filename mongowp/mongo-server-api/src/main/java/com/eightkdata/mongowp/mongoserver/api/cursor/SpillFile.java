@@ -0,0 +1,200 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+
+/**
+ * The temporary file where a {@link SpooledCursor} writes the documents that
+ * do not fit in memory. Encoded documents are appended through a small heap
+ * buffer and read back into a pooled direct buffer per batch, which is
+ * released once the batch is written. Nothing is memory mapped, so long cursors do not pile up
+ * mappings that are only released by the garbage collector.
+ * <p>
+ * The file is deleted when it is closed.
+ */
+@NotThreadSafe
+class SpillFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillFile.class);
+
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    @Nullable private ByteBuf writeBuffer = Unpooled.buffer(WRITE_BUFFER_BYTES);
+    private long size;
+    private long readPosition;
+
+    private SpillFile(File file, RandomAccessFile randomAccessFile) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * @param directory the directory of the file, or null to use the default
+     *                  temporary directory
+     */
+    @Nonnull
+    static SpillFile create(@Nullable File directory) throws IOException {
+        File file = File.createTempFile("mongowp-cursor-", ".spool", directory);
+        try {
+            return new SpillFile(file, new RandomAccessFile(file, "rw"));
+        } catch (IOException exception) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * @param encoded a buffer that starts with the encoded document
+     * @param length  the length of the document
+     */
+    void append(@Nonnull ByteBuf encoded, int length) throws IOException {
+        ByteBuf buffer = writeBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("The spill file is not writable anymore");
+        }
+        buffer.writeBytes(encoded, 0, length);
+        if (buffer.readableBytes() >= WRITE_BUFFER_BYTES) {
+            flush(buffer);
+        }
+    }
+
+    void finishWriting() throws IOException {
+        ByteBuf buffer = writeBuffer;
+        if (buffer != null) {
+            flush(buffer);
+            writeBuffer = null;
+        }
+    }
+
+    private void flush(ByteBuf buffer) throws IOException {
+        while (buffer.isReadable()) {
+            size += buffer.readBytes(channel, buffer.readableBytes());
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the bytes that have not been read yet
+     */
+    long getRemaining() {
+        return size - readPosition;
+    }
+
+    /**
+     * Adds to the batch the next documents that fit in it
+     *
+     * @return the bytes read
+     */
+    long read(@Nonnull SpooledCursor.Batch batch) throws IOException {
+        long remaining = getRemaining();
+        if (remaining <= 0 || batch.isFull()) {
+            return 0;
+        }
+        // The buffer can always hold the first document of the batch
+        int firstLength = readDocumentLength(readPosition);
+        int window = (int) Math.min(
+                remaining,
+                Math.max(firstLength, Math.min(batch.getRemainingBytes(), MongoWP.MAX_MESSAGE_SIZE_BYTES))
+        );
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(window, window);
+        boolean added = false;
+        try {
+            readFully(buffer.nioBuffer(0, window), readPosition);
+            buffer.writerIndex(window);
+
+            int end = 0;
+            while (end + 4 <= window) {
+                int length = SpooledCursor.documentLength(buffer, end);
+                if (end + length > window || !batch.canAdd(length)) {
+                    break;
+                }
+                batch.count(length);
+                end += length;
+            }
+            if (end == 0) {
+                return 0;
+            }
+            batch.add(buffer.slice(0, end));
+            added = true;
+            readPosition += end;
+            return end;
+        } finally {
+            if (!added) {
+                buffer.release();
+            }
+        }
+    }
+
+    private int readDocumentLength(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, position);
+        return header.getInt(0);
+    }
+
+    private void readFully(ByteBuffer destination, long position) throws IOException {
+        long offset = position;
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of the cursor spill file " + file);
+            }
+            offset += read;
+        }
+    }
+
+    void close() {
+        writeBuffer = null;
+        try {
+            randomAccessFile.close();
+        } catch (IOException exception) {
+            LOGGER.warn("Error while closing the cursor spill file " + file, exception);
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
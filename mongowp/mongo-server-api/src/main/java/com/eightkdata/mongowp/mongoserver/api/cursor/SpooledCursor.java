@@ -0,0 +1,281 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * The documents of a query that have not been sent yet, kept as encoded BSON
+ * out of the Java heap: first on direct buffers of a fixed size and, once the
+ * memory of its {@link CursorManager} is exhausted, on a temporary file.
+ * <p>
+ * The memory accounted is the capacity of the direct buffers, as each one is
+ * held until all its documents are sent. A document that does not fit in the
+ * last buffer starts a new one, so buffers are never reallocated.
+ * <p>
+ * Batches are sent as slices of the spooled bytes, so documents are encoded
+ * only once, when they are spooled.
+ */
+@ThreadSafe
+public class SpooledCursor extends ServerCursor {
+    static final int CHUNK_BYTES = 1024 * 1024;
+
+    private final CursorManager manager;
+    /**
+     * The direct buffers with documents that have not been sent yet. Their
+     * reader index is the first document not sent and their capacity cannot
+     * grow.
+     */
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<ByteBuf>();
+    private long memoryBytes;
+    @Nullable private SpillFile spillFile;
+    private int documentsLeft;
+    private int position;
+    private boolean closed;
+
+    SpooledCursor(
+            @Nonnull CursorManager manager,
+            long cursorId,
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnegative int position,
+            boolean noTimeout) {
+        super(cursorId, database, collection, noTimeout);
+        this.manager = manager;
+        this.position = position;
+    }
+
+    public synchronized int getDocumentsLeft() {
+        return documentsLeft;
+    }
+
+    synchronized void append(@Nonnull BSONDocument document) throws IOException {
+        ByteBuf encoded = encode(document);
+        int length = RawBSONUtil.getDocumentLength(encoded, 0);
+        if (!appendToMemory(encoded, length)) {
+            if (spillFile == null) {
+                spillFile = SpillFile.create(manager.getSpillDirectory());
+            }
+            spillFile.append(encoded, length);
+            manager.onDiskSpooled(length);
+        }
+        documentsLeft++;
+    }
+
+    /**
+     * @return a little endian buffer that starts with the encoded document,
+     *         which must only be read with absolute indexes
+     */
+    private static ByteBuf encode(BSONDocument document) {
+        ByteBuf encoded = RawBSONUtil.getEncoded(document);
+        if (encoded == null) {
+            encoded = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+            document.writeToByteBuf(encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * @return true iff the document has been appended to a direct buffer.
+     *         Once a document is spilled to disk, the following ones are too
+     */
+    private boolean appendToMemory(ByteBuf encoded, int length) {
+        if (spillFile != null) {
+            return false;
+        }
+        ByteBuf chunk = chunks.peekLast();
+        if (chunk == null || chunk.maxWritableBytes() < length) {
+            if (!manager.canSpoolToMemory()) {
+                return false;
+            }
+            // Documents bigger than a chunk get a chunk of their exact size
+            int capacity = Math.max(CHUNK_BYTES, length);
+            chunk = Unpooled.directBuffer(capacity, capacity);
+            chunks.addLast(chunk);
+            memoryBytes += capacity;
+            manager.onMemorySpooled(capacity);
+        }
+        chunk.writeBytes(encoded, 0, length);
+        return true;
+    }
+
+    synchronized void finishSpooling() throws IOException {
+        if (spillFile != null) {
+            spillFile.finishWriting();
+        }
+    }
+
+    @Nullable
+    @Override
+    synchronized PreEncodedReply nextBatch(int numberToReturn, @Nonnegative int maxBatchBytes) throws IOException {
+        if (closed) {
+            return null;
+        }
+        touch();
+
+        int limit = numberToReturn != 0 ? Math.abs(numberToReturn) : Integer.MAX_VALUE;
+        Batch batch = new Batch(limit, maxBatchBytes);
+        while (!chunks.isEmpty() && !batch.isFull()) {
+            ByteBuf chunk = chunks.peekFirst();
+            int start = chunk.readerIndex();
+            int end = start;
+            while (end < chunk.writerIndex()) {
+                int length = documentLength(chunk, end);
+                if (!batch.canAdd(length)) {
+                    break;
+                }
+                batch.count(length);
+                end += length;
+            }
+            if (end > start) {
+                batch.add(chunk.slice(start, end - start).retain());
+                chunk.readerIndex(end);
+            }
+            if (!chunk.isReadable()) {
+                chunks.removeFirst();
+                memoryBytes -= chunk.capacity();
+                manager.onMemoryReleased(chunk.capacity());
+                chunk.release();
+            }
+        }
+        if (!batch.isFull() && spillFile != null) {
+            long read = spillFile.read(batch);
+            manager.onDiskReleased(read);
+        }
+
+        documentsLeft -= batch.documents;
+        int startingFrom = position;
+        position += batch.documents;
+        return batch.toReply(documentsLeft > 0 ? getCursorId() : 0, startingFrom);
+    }
+
+    @Override
+    synchronized boolean isExhausted() {
+        return documentsLeft == 0;
+    }
+
+    @Override
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ByteBuf chunk : chunks) {
+            chunk.release();
+        }
+        chunks.clear();
+        manager.onMemoryReleased(memoryBytes);
+        memoryBytes = 0;
+        if (spillFile != null) {
+            manager.onDiskReleased(spillFile.getRemaining());
+            spillFile.close();
+            spillFile = null;
+        }
+        documentsLeft = 0;
+    }
+
+    static int documentLength(ByteBuf buffer, int index) {
+        return Integer.reverseBytes(buffer.getInt(index));
+    }
+
+    /**
+     * The documents taken for a batch, as slices of the spooled bytes
+     */
+    static class Batch {
+        private final int limit;
+        private final int maxBytes;
+        private final List<ByteBuf> slices = new ArrayList<ByteBuf>(2);
+        private int documents;
+        private int bytes;
+        private boolean full;
+
+        private Batch(int limit, int maxBytes) {
+            this.limit = limit;
+            this.maxBytes = maxBytes;
+        }
+
+        boolean isFull() {
+            return full || documents >= limit;
+        }
+
+        /**
+         * @return the bytes that can still be added without going above the
+         *         size limit
+         */
+        long getRemainingBytes() {
+            return Math.max(0, maxBytes - bytes);
+        }
+
+        /**
+         * @return true iff a document of the given length can be added. Once
+         *         it returns false, the batch is full
+         */
+        boolean canAdd(int length) {
+            if (isFull() || (documents > 0 && (long) bytes + length > maxBytes)) {
+                full = true;
+                return false;
+            }
+            return true;
+        }
+
+        void count(int length) {
+            documents++;
+            bytes += length;
+        }
+
+        void add(ByteBuf slice) {
+            slices.add(slice);
+        }
+
+        private PreEncodedReply toReply(long cursorId, int startingFrom) {
+            ByteBuf header = Unpooled.buffer(PreEncodedReply.BODY_HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN)
+                    .writeInt(0)
+                    .writeLong(cursorId)
+                    .writeInt(startingFrom)
+                    .writeInt(documents);
+
+            ByteBuf[] components = new ByteBuf[slices.size() + 1];
+            components[0] = header;
+            for (int i = 0; i < slices.size(); i++) {
+                components[i + 1] = slices.get(i);
+            }
+            return PreEncodedReply.wrap(Unpooled.wrappedBuffer(components), documents);
+        }
+    }
+}
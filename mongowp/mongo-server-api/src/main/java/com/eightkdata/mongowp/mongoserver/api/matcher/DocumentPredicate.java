@@ -0,0 +1,169 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.ImmutableList;
+
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.FieldPath;
+
+/**
+ * A condition on an encoded document. Logical predicates evaluate their
+ * children in order and stop as soon as the result is known.
+ */
+@Immutable
+abstract class DocumentPredicate {
+
+    /**
+     * @param index the index of the first byte of the document
+     */
+    abstract boolean test(@Nonnull ByteBuf buffer, int index);
+
+    @Nonnull
+    static DocumentPredicate and(@Nonnull List<DocumentPredicate> children) {
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new And(children);
+    }
+
+    @Nonnull
+    static DocumentPredicate not(@Nonnull DocumentPredicate child) {
+        return new Not(child);
+    }
+
+    @Immutable
+    static final class And extends DocumentPredicate {
+        private final ImmutableList<DocumentPredicate> children;
+
+        And(@Nonnull List<DocumentPredicate> children) {
+            this.children = ImmutableList.copyOf(children);
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, int index) {
+            for (DocumentPredicate child : children) {
+                if (!child.test(buffer, index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "$and" + children;
+        }
+    }
+
+    @Immutable
+    static final class Or extends DocumentPredicate {
+        private final ImmutableList<DocumentPredicate> children;
+
+        Or(@Nonnull List<DocumentPredicate> children) {
+            this.children = ImmutableList.copyOf(children);
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, int index) {
+            for (DocumentPredicate child : children) {
+                if (child.test(buffer, index)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "$or" + children;
+        }
+    }
+
+    @Immutable
+    static final class Not extends DocumentPredicate {
+        private final DocumentPredicate child;
+
+        Not(@Nonnull DocumentPredicate child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, int index) {
+            return !child.test(buffer, index);
+        }
+
+        @Override
+        public String toString() {
+            return "$not " + child;
+        }
+    }
+
+    /**
+     * Tests the values a dotted path reaches on the document.
+     * <p>
+     * Arrays are traversed: the value matches if the array itself or any of
+     * its elements matches. Before the end of the path, a numeric name selects
+     * an element of the array and any other name is looked for on the
+     * documents of the array. A path that does not reach any value tests the
+     * missing value.
+     */
+    @Immutable
+    static final class Path extends DocumentPredicate implements FieldPath.Visitor {
+        private final FieldPath path;
+        private final ValuePredicate predicate;
+
+        Path(@Nonnull FieldPath path, @Nonnull ValuePredicate predicate) {
+            this.path = path;
+            this.predicate = predicate;
+        }
+
+        /**
+         * The arrays at the end of the path are tested as a whole and by
+         * element
+         */
+        @Override
+        boolean test(ByteBuf buffer, int index) {
+            return path.visit(buffer, index, true, this);
+        }
+
+        @Override
+        public boolean visit(@Nonnull ByteBuf buffer, @Nullable BSONType type, int valueIndex) {
+            return predicate.test(buffer, type, valueIndex);
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + predicate;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+
+import com.google.common.collect.ImmutableList;
+
+import com.eightkdata.nettybson.api.FieldPath;
+
+/**
+ * The structure of a filter compiled once for every filter of the same
+ * {@link com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape}: its
+ * logical operators, its paths compiled as {@link FieldPath}s and the operators
+ * applied on each path.
+ * <p>
+ * A plan is bound to the values of a filter of its shape to get the
+ * predicates that are evaluated on the documents. Binding walks the filter
+ * by the names of its keys, so the order of the keys does not matter.
+ * <p>
+ * Supported operators are <code>$eq</code>, <code>$ne</code>,
+ * <code>$gt</code>, <code>$gte</code>, <code>$lt</code>, <code>$lte</code>,
+ * <code>$in</code>, <code>$nin</code>, <code>$exists</code>,
+ * <code>$type</code>, <code>$regex</code> (with <code>$options</code>),
+ * <code>$not</code>, <code>$and</code>, <code>$or</code> and
+ * <code>$nor</code>.
+ */
+@Immutable
+final class MatcherPlan {
+    private final QueryNode root;
+
+    private MatcherPlan(QueryNode root) {
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the filter is not supported
+     */
+    @Nonnull
+    static MatcherPlan compile(@Nonnull BSONObject filter) {
+        return new MatcherPlan(compileQuery(filter));
+    }
+
+    /**
+     * @param filter a filter with the shape of the one this plan was
+     *               compiled from
+     * @throws IllegalArgumentException If the values of the filter are not
+     *                                  valid for their operators
+     */
+    @Nonnull
+    DocumentPredicate bind(@Nonnull BSONObject filter) {
+        return root.bind(filter);
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    private static QueryNode compileQuery(BSONObject query) {
+        ImmutableList.Builder<ClauseNode> clauses = ImmutableList.builder();
+        for (String key : query.keySet()) {
+            Object value = query.get(key);
+            if (key.startsWith("$")) {
+                LogicalOperator operator = LogicalOperator.fromName(key);
+                if (operator == null) {
+                    throw new IllegalArgumentException("Unsupported query operator: " + key);
+                }
+                clauses.add(new LogicalNode(key, operator, compileQueries(key, value)));
+            }
+            else {
+                clauses.add(new PathNode(key, FieldPath.of(key), compileValue(key, value)));
+            }
+        }
+        return new QueryNode(clauses.build());
+    }
+
+    private static ImmutableList<QueryNode> compileQueries(String operator, Object value) {
+        List<?> queries = checkQueries(operator, value);
+        ImmutableList.Builder<QueryNode> children = ImmutableList.builder();
+        for (Object query : queries) {
+            children.add(compileQuery((BSONObject) query));
+        }
+        return children.build();
+    }
+
+    private static List<?> checkQueries(String operator, Object value) {
+        if (!(value instanceof List) || ((List<?>) value).isEmpty()) {
+            throw new IllegalArgumentException(operator + " must be a nonempty array");
+        }
+        List<?> queries = (List<?>) value;
+        for (Object query : queries) {
+            if (!isDocument(query)) {
+                throw new IllegalArgumentException(operator + " entries must be objects");
+            }
+        }
+        return queries;
+    }
+
+    private static ValueNode compileValue(String path, Object value) {
+        if (!isDocument(value) || !hasOperators((BSONObject) value)) {
+            return EqualityNode.INSTANCE;
+        }
+        BSONObject operators = (BSONObject) value;
+        ImmutableList.Builder<OperatorNode> nodes = ImmutableList.builder();
+        for (String name : operators.keySet()) {
+            if (!name.startsWith("$")) {
+                throw new IllegalArgumentException("Unknown operator " + name + " mixed with operators on " + path);
+            }
+            if ("$not".equals(name)) {
+                Object notValue = operators.get(name);
+                ValueNode child = isDocument(notValue) && hasOperators((BSONObject) notValue)
+                        ? compileValue(path, notValue)
+                        : RegexNode.INSTANCE;
+                nodes.add(new NotNode(child));
+            }
+            else if ("$options".equals(name)) {
+                if (!operators.containsField("$regex")) {
+                    throw new IllegalArgumentException("$options needs a $regex on " + path);
+                }
+            }
+            else {
+                OperatorNode node = SimpleOperatorNode.fromName(name);
+                if (node == null) {
+                    throw new IllegalArgumentException("Unsupported query operator: " + name);
+                }
+                nodes.add(node);
+            }
+        }
+        return new OperatorsNode(nodes.build());
+    }
+
+    private static boolean isDocument(@Nullable Object value) {
+        return value instanceof BSONObject && !(value instanceof List);
+    }
+
+    private static boolean hasOperators(BSONObject document) {
+        for (String key : document.keySet()) {
+            if (key.startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern toPattern(FieldPath path, @Nullable Object regex, @Nullable Object options) {
+        if (options != null && !(options instanceof String)) {
+            throw new IllegalArgumentException("$options has to be a string on " + path);
+        }
+        int flags = options == null ? 0 : parseFlags((String) options);
+        if (regex instanceof Pattern) {
+            Pattern pattern = (Pattern) regex;
+            return flags == 0 ? pattern : Pattern.compile(pattern.pattern(), pattern.flags() | flags);
+        }
+        if (regex instanceof String) {
+            return Pattern.compile((String) regex, flags);
+        }
+        throw new IllegalArgumentException("$regex has to be a string on " + path);
+    }
+
+    private static int parseFlags(String options) {
+        int flags = 0;
+        for (int i = 0; i < options.length(); i++) {
+            switch (options.charAt(i)) {
+                case 'i': flags |= Pattern.CASE_INSENSITIVE; break;
+                case 'm': flags |= Pattern.MULTILINE; break;
+                case 's': flags |= Pattern.DOTALL; break;
+                case 'x': flags |= Pattern.COMMENTS; break;
+                default: throw new IllegalArgumentException("Invalid regex option " + options.charAt(i));
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * A query document: the conjunction of its clauses
+     */
+    @Immutable
+    private static final class QueryNode {
+        private final ImmutableList<ClauseNode> clauses;
+
+        QueryNode(ImmutableList<ClauseNode> clauses) {
+            this.clauses = clauses;
+        }
+
+        DocumentPredicate bind(BSONObject query) {
+            List<DocumentPredicate> predicates = new ArrayList<DocumentPredicate>(clauses.size());
+            for (ClauseNode clause : clauses) {
+                predicates.add(clause.bind(query.get(clause.key)));
+            }
+            return DocumentPredicate.and(predicates);
+        }
+
+        @Override
+        public String toString() {
+            return clauses.toString();
+        }
+    }
+
+    @Immutable
+    private abstract static class ClauseNode {
+        final String key;
+
+        ClauseNode(String key) {
+            this.key = key;
+        }
+
+        abstract DocumentPredicate bind(Object value);
+    }
+
+    private enum LogicalOperator {
+        AND("$and"),
+        OR("$or"),
+        NOR("$nor");
+
+        private final String name;
+
+        private LogicalOperator(String name) {
+            this.name = name;
+        }
+
+        @Nullable
+        static LogicalOperator fromName(String name) {
+            for (LogicalOperator operator : values()) {
+                if (operator.name.equals(name)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Immutable
+    private static final class LogicalNode extends ClauseNode {
+        private final LogicalOperator operator;
+        private final ImmutableList<QueryNode> children;
+
+        LogicalNode(String key, LogicalOperator operator, ImmutableList<QueryNode> children) {
+            super(key);
+            this.operator = operator;
+            this.children = children;
+        }
+
+        @Override
+        DocumentPredicate bind(Object value) {
+            List<?> queries = checkQueries(key, value);
+            if (queries.size() != children.size()) {
+                throw new IllegalArgumentException(key + " entries must be objects");
+            }
+            List<DocumentPredicate> predicates = new ArrayList<DocumentPredicate>(children.size());
+            for (int i = 0; i < children.size(); i++) {
+                predicates.add(children.get(i).bind((BSONObject) queries.get(i)));
+            }
+            switch (operator) {
+                case AND: return DocumentPredicate.and(predicates);
+                case OR: return new DocumentPredicate.Or(predicates);
+                case NOR: return DocumentPredicate.not(new DocumentPredicate.Or(predicates));
+                default: throw new AssertionError("Unexpected operator " + operator);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key + children;
+        }
+    }
+
+    @Immutable
+    private static final class PathNode extends ClauseNode {
+        private final FieldPath fieldPath;
+        private final ValueNode value;
+
+        PathNode(String key, FieldPath fieldPath, ValueNode value) {
+            super(key);
+            this.fieldPath = fieldPath;
+            this.value = value;
+        }
+
+        @Override
+        DocumentPredicate bind(Object filterValue) {
+            return value.bind(fieldPath, filterValue);
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + value;
+        }
+    }
+
+    /**
+     * What is tested on the values of a path
+     */
+    @Immutable
+    private abstract static class ValueNode {
+        abstract DocumentPredicate bind(FieldPath path, Object value);
+    }
+
+    /**
+     * A value without operators, that is an equality or, if the value is a
+     * regular expression, a match
+     */
+    @Immutable
+    private static final class EqualityNode extends ValueNode {
+        static final EqualityNode INSTANCE = new EqualityNode();
+
+        @Override
+        DocumentPredicate bind(FieldPath path, Object value) {
+            return new DocumentPredicate.Path(path, ValuePredicate.equalTo(value));
+        }
+
+        @Override
+        public String toString() {
+            return "$eq";
+        }
+    }
+
+    /**
+     * The regular expression of a <code>$not</code>
+     */
+    @Immutable
+    private static final class RegexNode extends ValueNode {
+        static final RegexNode INSTANCE = new RegexNode();
+
+        @Override
+        DocumentPredicate bind(FieldPath path, Object value) {
+            if (!(value instanceof Pattern)) {
+                throw new IllegalArgumentException("$not needs a regex or a document on " + path);
+            }
+            return new DocumentPredicate.Path(path, new ValuePredicate.Regex((Pattern) value));
+        }
+
+        @Override
+        public String toString() {
+            return "$regex";
+        }
+    }
+
+    @Immutable
+    private static final class OperatorsNode extends ValueNode {
+        private final ImmutableList<OperatorNode> operators;
+
+        OperatorsNode(ImmutableList<OperatorNode> operators) {
+            this.operators = operators;
+        }
+
+        @Override
+        DocumentPredicate bind(FieldPath path, Object value) {
+            if (!isDocument(value)) {
+                throw new IllegalArgumentException("Operators expected on " + path);
+            }
+            BSONObject document = (BSONObject) value;
+            List<DocumentPredicate> predicates = new ArrayList<DocumentPredicate>(operators.size());
+            for (OperatorNode operator : operators) {
+                predicates.add(operator.bind(path, document));
+            }
+            return DocumentPredicate.and(predicates);
+        }
+
+        @Override
+        public String toString() {
+            return operators.toString();
+        }
+    }
+
+    @Immutable
+    private abstract static class OperatorNode {
+        /**
+         * @param operators the document that contains the operator
+         */
+        abstract DocumentPredicate bind(FieldPath path, BSONObject operators);
+    }
+
+    @Immutable
+    private static final class NotNode extends OperatorNode {
+        private final ValueNode child;
+
+        NotNode(ValueNode child) {
+            this.child = child;
+        }
+
+        @Override
+        DocumentPredicate bind(FieldPath path, BSONObject operators) {
+            return DocumentPredicate.not(child.bind(path, operators.get("$not")));
+        }
+
+        @Override
+        public String toString() {
+            return "$not " + child;
+        }
+    }
+
+    @Immutable
+    private static final class SimpleOperatorNode extends OperatorNode {
+        private static final ImmutableList<String> NAMES = ImmutableList.of(
+                "$eq", "$ne", "$gt", "$gte", "$lt", "$lte", "$in", "$nin", "$exists", "$type", "$regex"
+        );
+
+        private final String name;
+
+        private SimpleOperatorNode(String name) {
+            this.name = name;
+        }
+
+        @Nullable
+        static SimpleOperatorNode fromName(String name) {
+            return NAMES.contains(name) ? new SimpleOperatorNode(name) : null;
+        }
+
+        @Override
+        DocumentPredicate bind(FieldPath path, BSONObject operators) {
+            Object value = operators.get(name);
+            ValuePredicate.ComparisonOperator comparison = ValuePredicate.ComparisonOperator.fromName(name);
+            if (comparison != null) {
+                return new DocumentPredicate.Path(path, new ValuePredicate.Comparison(comparison, value));
+            }
+            if ("$eq".equals(name)) {
+                return new DocumentPredicate.Path(path, new ValuePredicate.Equals(value));
+            }
+            if ("$ne".equals(name)) {
+                return DocumentPredicate.not(new DocumentPredicate.Path(path, new ValuePredicate.Equals(value)));
+            }
+            if ("$in".equals(name) || "$nin".equals(name)) {
+                if (!(value instanceof List)) {
+                    throw new IllegalArgumentException(name + " needs an array on " + path);
+                }
+                DocumentPredicate in = new DocumentPredicate.Path(path, new ValuePredicate.In((List<?>) value));
+                return "$in".equals(name) ? in : DocumentPredicate.not(in);
+            }
+            if ("$exists".equals(name)) {
+                DocumentPredicate exists = new DocumentPredicate.Path(path, ValuePredicate.Exists.INSTANCE);
+                return isTrue(value) ? exists : DocumentPredicate.not(exists);
+            }
+            if ("$type".equals(name)) {
+                if (!(value instanceof Number)) {
+                    throw new IllegalArgumentException("$type has to be a number on " + path);
+                }
+                return new DocumentPredicate.Path(path, new ValuePredicate.Type(((Number) value).byteValue()));
+            }
+            assert "$regex".equals(name);
+            Pattern pattern = toPattern(path, value, operators.get("$options"));
+            return new DocumentPredicate.Path(path, new ValuePredicate.Regex(pattern));
+        }
+
+        private static boolean isTrue(Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue() != 0;
+            }
+            return value != null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
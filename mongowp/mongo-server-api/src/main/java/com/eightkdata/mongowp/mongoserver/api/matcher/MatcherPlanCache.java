@@ -0,0 +1,129 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.bson.BSONObject;
+
+import com.google.common.base.Preconditions;
+
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape;
+
+/**
+ * The compiled {@link MatcherPlan plans} of the filters, by
+ * {@link QueryShape}, so the filters that only differ on their values are
+ * compiled once. The least recently used plans are evicted once the cache is
+ * full.
+ */
+@ThreadSafe
+public class MatcherPlanCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final MatcherPlanCache DEFAULT = new MatcherPlanCache(DEFAULT_CAPACITY);
+
+    @GuardedBy("plans")
+    private final LinkedHashMap<QueryShape, MatcherPlan> plans;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MatcherPlanCache(@Nonnegative int capacity) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be positive");
+        this.plans = new LruMap(capacity);
+    }
+
+    /**
+     * @return the cache shared by the matchers compiled without an explicit
+     *         one
+     */
+    @Nonnull
+    public static MatcherPlanCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the filter is not supported
+     */
+    @Nonnull
+    MatcherPlan getPlan(@Nonnull BSONObject filter) {
+        QueryShape shape = QueryShape.of(filter);
+        MatcherPlan plan;
+        synchronized (plans) {
+            plan = plans.get(shape);
+        }
+        if (plan != null) {
+            hits.incrementAndGet();
+            return plan;
+        }
+        misses.incrementAndGet();
+        plan = MatcherPlan.compile(filter);
+        synchronized (plans) {
+            plans.put(shape, plan);
+        }
+        return plan;
+    }
+
+    public int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+
+    private static final class LruMap extends LinkedHashMap<QueryShape, MatcherPlan> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<QueryShape, MatcherPlan> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A query filter compiled into a tree of predicates that are evaluated
+ * directly on encoded BSON, so documents are matched without decoding them.
+ * Logical operators stop evaluating as soon as their result is known.
+ * <p>
+ * The structure of the filter is compiled once per
+ * {@link com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape} and kept
+ * on a {@link MatcherPlanCache}; compiling another filter of the same shape
+ * only encodes its values. See {@link MatcherPlan} for the supported
+ * operators.
+ * <p>
+ * Values are compared as MongoDB compares them: numbers by their value
+ * whatever their type and the rest only with values whose types have the
+ * same canonical rank.
+ */
+@Immutable
+public final class RawMatcher {
+    private static final RawMatcher ALL = new RawMatcher(null);
+
+    @Nullable private final DocumentPredicate predicate;
+
+    private RawMatcher(@Nullable DocumentPredicate predicate) {
+        this.predicate = predicate;
+    }
+
+    /**
+     * Compiles the filter with the plans of the default cache
+     *
+     * @param filter the filter, or null to match every document
+     * @throws IllegalArgumentException If the filter is not supported
+     */
+    @Nonnull
+    public static RawMatcher compile(@Nullable BSONObject filter) {
+        return compile(filter, MatcherPlanCache.getDefault());
+    }
+
+    /**
+     * @param filter the filter, or null to match every document
+     * @throws IllegalArgumentException If the filter is not supported
+     */
+    @Nonnull
+    public static RawMatcher compile(@Nullable BSONObject filter, @Nonnull MatcherPlanCache cache) {
+        if (filter == null || filter.keySet().isEmpty()) {
+            return ALL;
+        }
+        return new RawMatcher(cache.getPlan(filter).bind(filter));
+    }
+
+    public boolean matchesAll() {
+        return predicate == null;
+    }
+
+    /**
+     * @param index the index of the first byte of the encoded document
+     */
+    public boolean matches(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        return predicate == null || predicate.test(buffer, index);
+    }
+
+    /**
+     * Encodes the document and matches it
+     */
+    public boolean matches(@Nonnull BSONDocument document) {
+        if (predicate == null) {
+            return true;
+        }
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        document.writeToByteBuf(buffer);
+        return predicate.test(buffer, 0);
+    }
+
+    @Override
+    public String toString() {
+        return predicate == null ? "{}" : predicate.toString();
+    }
+}
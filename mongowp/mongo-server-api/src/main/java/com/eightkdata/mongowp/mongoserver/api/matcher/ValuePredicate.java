@@ -0,0 +1,306 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+import com.google.common.collect.ImmutableList;
+
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.RawBSONComparator;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * A condition on a single encoded value, like the <code>$gt: 5</code> of
+ * <code>{a: {$gt: 5}}</code>. The parameters of the condition are encoded
+ * when it is created, so values are compared without decoding them.
+ */
+@Immutable
+abstract class ValuePredicate {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NULL_RANK = RawBSONComparator.getCanonicalRank(BSONType.NULL);
+
+    /**
+     * @param type       the type of the value, or null if the value is missing
+     * @param valueIndex the index of the first byte of the value. It is
+     *                   meaningless if the value is missing
+     */
+    abstract boolean test(@Nonnull ByteBuf buffer, @Nullable BSONType type, int valueIndex);
+
+    /**
+     * A value encoded as the only element of a document with an empty name
+     */
+    @Immutable
+    private static final class Parameter {
+        private static final int VALUE_INDEX = 4 + 1 + 1;
+
+        private final ByteBuf buffer;
+        private final BSONType type;
+        private final int rank;
+
+        private Parameter(@Nullable Object value) {
+            byte[] encoded = new BasicBSONEncoder().encode(new BasicBSONObject("", value));
+            this.buffer = Unpooled.wrappedBuffer(encoded);
+            this.type = BSONType.getByCode(encoded[4]);
+            this.rank = RawBSONComparator.getCanonicalRank(type);
+        }
+
+        /**
+         * @return the comparison of the given value with this one, or null if
+         *         their types are not comparable
+         */
+        @Nullable
+        Integer compareTo(ByteBuf otherBuffer, BSONType otherType, int otherValueIndex) {
+            if (RawBSONComparator.getCanonicalRank(otherType) != rank
+                    || (otherType == BSONType.DECIMAL128) != (type == BSONType.DECIMAL128)) {
+                return null;
+            }
+            return RawBSONComparator.compare(otherBuffer, otherType, otherValueIndex, buffer, type, VALUE_INDEX);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(new BasicBSONDecoder().readObject(buffer.array()).get(""));
+        }
+    }
+
+    @Nonnull
+    static ValuePredicate equalTo(@Nullable Object value) {
+        if (value instanceof Pattern) {
+            return new Regex((Pattern) value);
+        }
+        return new Equals(value);
+    }
+
+    /**
+     * <code>$eq</code>. A null parameter also matches missing and undefined
+     * values
+     */
+    @Immutable
+    static final class Equals extends ValuePredicate {
+        private final Parameter parameter;
+
+        Equals(@Nullable Object value) {
+            this.parameter = new Parameter(value);
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            if (type == null) {
+                return parameter.rank == NULL_RANK;
+            }
+            Integer comparison = parameter.compareTo(buffer, type, valueIndex);
+            return comparison != null && comparison == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "$eq " + parameter;
+        }
+    }
+
+    enum ComparisonOperator {
+        LT("$lt", true, false, false),
+        LTE("$lte", true, true, false),
+        GT("$gt", false, false, true),
+        GTE("$gte", false, true, true);
+
+        private final String name;
+        private final boolean lower;
+        private final boolean equal;
+        private final boolean greater;
+
+        private ComparisonOperator(String name, boolean lower, boolean equal, boolean greater) {
+            this.name = name;
+            this.lower = lower;
+            this.equal = equal;
+            this.greater = greater;
+        }
+
+        boolean accepts(int comparison) {
+            return comparison < 0 ? lower : (comparison > 0 ? greater : equal);
+        }
+
+        @Nullable
+        static ComparisonOperator fromName(String name) {
+            for (ComparisonOperator operator : values()) {
+                if (operator.name.equals(name)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * <code>$lt</code>, <code>$lte</code>, <code>$gt</code> and
+     * <code>$gte</code>. Only values whose types have the same canonical rank
+     * than the parameter are compared, so <code>{$gt: 5}</code> never matches
+     * strings.
+     */
+    @Immutable
+    static final class Comparison extends ValuePredicate {
+        private final ComparisonOperator operator;
+        private final Parameter parameter;
+
+        Comparison(@Nonnull ComparisonOperator operator, @Nullable Object value) {
+            this.operator = operator;
+            this.parameter = new Parameter(value);
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            if (type == null) {
+                return parameter.rank == NULL_RANK && operator.accepts(0);
+            }
+            Integer comparison = parameter.compareTo(buffer, type, valueIndex);
+            return comparison != null && operator.accepts(comparison);
+        }
+
+        @Override
+        public String toString() {
+            return operator + " " + parameter;
+        }
+    }
+
+    /**
+     * <code>$in</code>, whose elements are equalities or regular expressions
+     */
+    @Immutable
+    static final class In extends ValuePredicate {
+        private final ImmutableList<ValuePredicate> alternatives;
+
+        In(@Nonnull List<?> values) {
+            ImmutableList.Builder<ValuePredicate> builder = ImmutableList.builder();
+            for (Object value : values) {
+                builder.add(equalTo(value));
+            }
+            this.alternatives = builder.build();
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            for (ValuePredicate alternative : alternatives) {
+                if (alternative.test(buffer, type, valueIndex)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "$in " + alternatives;
+        }
+    }
+
+    /**
+     * <code>$regex</code>, that only matches strings and symbols
+     */
+    @Immutable
+    static final class Regex extends ValuePredicate {
+        private final Pattern pattern;
+
+        Regex(@Nonnull Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            if (type != BSONType.STRING && type != BSONType.SYMBOL) {
+                return false;
+            }
+            // The length includes the trailing zero
+            int length = RawBSONUtil.getInt32(buffer, valueIndex) - 1;
+            return pattern.matcher(buffer.toString(valueIndex + 4, length, UTF8)).find();
+        }
+
+        @Override
+        public String toString() {
+            return "$regex /" + pattern.pattern() + "/";
+        }
+    }
+
+    /**
+     * <code>{$exists: true}</code>. <code>{$exists: false}</code> is its
+     * negation
+     */
+    @Immutable
+    static final class Exists extends ValuePredicate {
+        static final Exists INSTANCE = new Exists();
+
+        private Exists() {
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            return type != null;
+        }
+
+        @Override
+        public String toString() {
+            return "$exists";
+        }
+    }
+
+    /**
+     * <code>$type</code>, that takes the numeric code of the type
+     */
+    @Immutable
+    static final class Type extends ValuePredicate {
+        private final byte code;
+
+        Type(byte code) {
+            this.code = code;
+        }
+
+        @Override
+        boolean test(ByteBuf buffer, BSONType type, int valueIndex) {
+            return type != null && type.getCode() == code;
+        }
+
+        @Override
+        public String toString() {
+            return "$type " + (code & 0xFF);
+        }
+    }
+}
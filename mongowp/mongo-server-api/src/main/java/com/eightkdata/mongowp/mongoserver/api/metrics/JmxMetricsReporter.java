@@ -0,0 +1,125 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Exports the metrics as the read only attributes of an MBean on the platform
+ * MBean server.
+ */
+public class JmxMetricsReporter implements MetricsReporter {
+    public static final String DEFAULT_OBJECT_NAME = "com.eightkdata.mongowp:type=Metrics";
+
+    private final ObjectName objectName;
+    private MBeanServer mBeanServer;
+
+    public JmxMetricsReporter() throws MalformedObjectNameException {
+        this(new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    public JmxMetricsReporter(@Nonnull ObjectName objectName) {
+        this.objectName = objectName;
+    }
+
+    @Override
+    public synchronized void start(@Nonnull MetricsRegistry registry) throws Exception {
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        mBeanServer.registerMBean(new MetricsMBean(registry), objectName);
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        if (mBeanServer != null) {
+            mBeanServer.unregisterMBean(objectName);
+            mBeanServer = null;
+        }
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+
+        private MetricsMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = registry.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> snapshot = registry.snapshot();
+            AttributeList result = new AttributeList(attributes.length);
+            for (String attribute : attributes) {
+                Long value = snapshot.get(attribute);
+                if (value != null) {
+                    result.add(new Attribute(attribute, value));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> snapshot = registry.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+            }
+            return new MBeanInfo(
+                    MetricsRegistry.class.getName(), "mongowp metrics", attributes, null, null, null
+            );
+        }
+    }
+}
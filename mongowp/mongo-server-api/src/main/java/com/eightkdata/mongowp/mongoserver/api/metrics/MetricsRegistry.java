@@ -0,0 +1,328 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.metrics;
+
+import io.netty.util.AttributeKey;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.messages.request.RequestOpCode;
+import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor.QueryCommand;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+
+/**
+ * The metrics of a server.
+ * <p>
+ * All the metrics are created up front, except the per command latencies that
+ * are created the first time each command is executed, so recording never
+ * allocates nor locks.
+ */
+@ThreadSafe
+public class MetricsRegistry {
+    /**
+     * The registry of the server that owns a channel
+     */
+    public static final AttributeKey<MetricsRegistry> METRICS_REGISTRY = AttributeKey.valueOf("metricsRegistry");
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final String processName = ManagementFactory.getRuntimeMXBean().getName();
+    private final Counter[] requestCounts;
+    private final LatencyRecorder[] requestLatencies;
+    private final ConcurrentMap<QueryCommand, LatencyRecorder> commandLatencies =
+            new ConcurrentHashMap<QueryCommand, LatencyRecorder>();
+    private final LatencyRecorder decodeTime = new LatencyRecorder();
+    private final LatencyRecorder encodeTime = new LatencyRecorder();
+    private final Counter bytesIn = new Counter();
+    private final Counter bytesOut = new Counter();
+    private final Counter activeConnections = new Counter();
+    private final Counter totalConnections = new Counter();
+    private final Counter openCursors = new Counter();
+    private final TopStats topStats = new TopStats();
+    private final List<ServerStatusSection> serverStatusSections = new CopyOnWriteArrayList<ServerStatusSection>();
+
+    public MetricsRegistry() {
+        RequestOpCode[] opCodes = RequestOpCode.values();
+        requestCounts = new Counter[opCodes.length];
+        requestLatencies = new LatencyRecorder[opCodes.length];
+        for (int i = 0; i < opCodes.length; i++) {
+            requestCounts[i] = new Counter();
+            requestLatencies[i] = new LatencyRecorder();
+        }
+    }
+
+    /**
+     * @return the number of requests received with the given opCode,
+     *         including the ones that have not been processed yet
+     */
+    @Nonnull
+    public Counter getRequestCount(@Nonnull RequestOpCode requestOpCode) {
+        return requestCounts[requestOpCode.ordinal()];
+    }
+
+    /**
+     * @return the time spent processing the requests with the given opCode,
+     *         from their decoding to the return of the request processor
+     */
+    @Nonnull
+    public LatencyRecorder getRequestLatency(@Nonnull RequestOpCode requestOpCode) {
+        return requestLatencies[requestOpCode.ordinal()];
+    }
+
+    /**
+     * @return the time spent processing the given command
+     */
+    @Nonnull
+    public LatencyRecorder getCommandLatency(@Nonnull QueryCommand queryCommand) {
+        LatencyRecorder recorder = commandLatencies.get(queryCommand);
+        if (recorder == null) {
+            LatencyRecorder newRecorder = new LatencyRecorder();
+            recorder = commandLatencies.putIfAbsent(queryCommand, newRecorder);
+            if (recorder == null) {
+                recorder = newRecorder;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Records the processing time of a request
+     *
+     * @param queryCommand the command executed by the request, if any
+     */
+    public void recordRequest(
+            @Nonnull RequestOpCode requestOpCode,
+            @Nullable QueryCommand queryCommand,
+            long nanos
+    ) {
+        getRequestLatency(requestOpCode).record(nanos);
+        if (queryCommand != null) {
+            getCommandLatency(queryCommand).record(nanos);
+        }
+    }
+
+    /**
+     * @return the time spent decoding requests. It may be sampled
+     */
+    @Nonnull
+    public LatencyRecorder getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @return the time spent encoding replies. It may be sampled
+     */
+    @Nonnull
+    public LatencyRecorder getEncodeTime() {
+        return encodeTime;
+    }
+
+    @Nonnull
+    public Counter getBytesIn() {
+        return bytesIn;
+    }
+
+    @Nonnull
+    public Counter getBytesOut() {
+        return bytesOut;
+    }
+
+    @Nonnull
+    public Counter getActiveConnections() {
+        return activeConnections;
+    }
+
+    @Nonnull
+    public Counter getTotalConnections() {
+        return totalConnections;
+    }
+
+    /**
+     * @return the cursors currently open. Updated by whoever manages them,
+     *         like the
+     *         {@link com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager}
+     *         of the server
+     */
+    @Nonnull
+    public Counter getOpenCursors() {
+        return openCursors;
+    }
+
+    /**
+     * @return the per namespace stats reported by the <code>top</code> command
+     */
+    @Nonnull
+    public TopStats getTopStats() {
+        return topStats;
+    }
+
+    public void addServerStatusSection(@Nonnull ServerStatusSection section) {
+        serverStatusSections.add(section);
+    }
+
+    public void removeServerStatusSection(@Nonnull ServerStatusSection section) {
+        serverStatusSections.remove(section);
+    }
+
+    /**
+     * @return the reply of the <code>serverStatus</code> command: the
+     *         sections built from these metrics followed by the registered
+     *         sections
+     */
+    @Nonnull
+    public Map<String, Object> getServerStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        long now = System.currentTimeMillis();
+        int pidSeparator = processName.indexOf('@');
+        status.put("host", pidSeparator < 0 ? processName : processName.substring(pidSeparator + 1));
+        status.put("version", MongoWP.VERSION_STRING);
+        status.put("process", "mongowp");
+        if (pidSeparator > 0) {
+            try {
+                status.put("pid", Long.parseLong(processName.substring(0, pidSeparator)));
+            } catch (NumberFormatException ex) {
+                // the runtime name is not pid@host on this JVM
+            }
+        }
+        status.put("uptime", (now - startMillis) / 1000);
+        status.put("uptimeMillis", now - startMillis);
+        status.put("localTime", new Date(now));
+
+        Map<String, Object> connections = new LinkedHashMap<String, Object>();
+        connections.put("current", activeConnections.get());
+        connections.put("totalCreated", totalConnections.get());
+        status.put("connections", connections);
+
+        long commands = 0;
+        Map<String, Object> commandCounts = new TreeMap<String, Object>();
+        for (Map.Entry<QueryCommand, LatencyRecorder> entry : commandLatencies.entrySet()) {
+            long count = entry.getValue().getCount();
+            commands += count;
+            Map<String, Object> command = new LinkedHashMap<String, Object>();
+            command.put("total", count);
+            commandCounts.put(entry.getKey().getKey(), command);
+        }
+        Map<String, Object> opcounters = new LinkedHashMap<String, Object>();
+        opcounters.put("insert", getRequestCount(RequestOpCode.OP_INSERT).get());
+        opcounters.put("query", Math.max(0, getRequestCount(RequestOpCode.OP_QUERY).get() - commands));
+        opcounters.put("update", getRequestCount(RequestOpCode.OP_UPDATE).get());
+        opcounters.put("delete", getRequestCount(RequestOpCode.OP_DELETE).get());
+        opcounters.put("getmore", getRequestCount(RequestOpCode.OP_GET_MORE).get());
+        opcounters.put("command", commands);
+        status.put("opcounters", opcounters);
+
+        long requests = 0;
+        for (Counter requestCount : requestCounts) {
+            requests += requestCount.get();
+        }
+        Map<String, Object> network = new LinkedHashMap<String, Object>();
+        network.put("bytesIn", bytesIn.get());
+        network.put("bytesOut", bytesOut.get());
+        network.put("numRequests", requests);
+        status.put("network", network);
+
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memoryMXBean.getNonHeapMemoryUsage();
+        Map<String, Object> mem = new LinkedHashMap<String, Object>();
+        mem.put("bits", Integer.getInteger("sun.arch.data.model", 64));
+        mem.put("heapUsedMB", heap.getUsed() / MEGABYTE);
+        mem.put("heapCommittedMB", heap.getCommitted() / MEGABYTE);
+        mem.put("heapMaxMB", heap.getMax() < 0 ? -1 : heap.getMax() / MEGABYTE);
+        mem.put("nonHeapUsedMB", nonHeap.getUsed() / MEGABYTE);
+        status.put("mem", mem);
+
+        Map<String, Object> openCursorsSection = new LinkedHashMap<String, Object>();
+        openCursorsSection.put("total", openCursors.get());
+        Map<String, Object> cursor = new LinkedHashMap<String, Object>();
+        cursor.put("open", openCursorsSection);
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("cursor", cursor);
+        metrics.put("commands", commandCounts);
+        status.put("metrics", metrics);
+
+        for (ServerStatusSection section : serverStatusSections) {
+            Map<String, ?> sectionStatus = section.getStatus();
+            Object previous = status.get(section.getName());
+            if (previous instanceof Map) {
+                // sections can extend the built-in ones
+                @SuppressWarnings("unchecked")
+                Map<String, Object> merged = new LinkedHashMap<String, Object>((Map<String, Object>) previous);
+                merged.putAll(sectionStatus);
+                status.put(section.getName(), merged);
+            } else {
+                status.put(section.getName(), sectionStatus);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @return the current value of every metric, by name and sorted by it.
+     *         Latencies are flattened into several values: their count, mean,
+     *         some percentiles and their maximum
+     */
+    @Nonnull
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        snapshot.put("network.bytesIn", bytesIn.get());
+        snapshot.put("network.bytesOut", bytesOut.get());
+        snapshot.put("connections.current", activeConnections.get());
+        snapshot.put("connections.totalCreated", totalConnections.get());
+        snapshot.put("cursors.open", openCursors.get());
+        putLatency(snapshot, "network.decode", decodeTime);
+        putLatency(snapshot, "network.encode", encodeTime);
+        for (RequestOpCode opCode : RequestOpCode.values()) {
+            LatencyRecorder recorder = getRequestLatency(opCode);
+            if (recorder.getCount() != 0) {
+                putLatency(snapshot, "opcodes." + opCode.name(), recorder);
+            }
+        }
+        for (Map.Entry<QueryCommand, LatencyRecorder> entry : commandLatencies.entrySet()) {
+            putLatency(snapshot, "commands." + entry.getKey().getKey().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        return snapshot;
+    }
+
+    private static void putLatency(Map<String, Long> snapshot, String name, LatencyRecorder recorder) {
+        snapshot.put(name + ".count", recorder.getCount());
+        snapshot.put(name + ".meanNanos", recorder.getMeanNanos());
+        snapshot.put(name + ".p50Nanos", recorder.getValueAtPercentile(50));
+        snapshot.put(name + ".p99Nanos", recorder.getValueAtPercentile(99));
+        snapshot.put(name + ".p999Nanos", recorder.getValueAtPercentile(99.9));
+        snapshot.put(name + ".maxNanos", recorder.getMaxNanos());
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.metrics;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A section of the <code>serverStatus</code> command reply.
+ * <p>
+ * Sections are registered on the {@link MetricsRegistry} by the server and
+ * by backends. They are queried on every <code>serverStatus</code>, so they
+ * must be cheap and must not block.
+ */
+public interface ServerStatusSection {
+
+    /**
+     * @return the key of the section on the reply
+     */
+    @Nonnull
+    public String getName();
+
+    /**
+     * @return the values of the section. Values must be encodable as BSON:
+     *         numbers, strings, booleans, dates, lists and maps of them
+     */
+    @Nonnull
+    public Map<String, ?> getStatus();
+}
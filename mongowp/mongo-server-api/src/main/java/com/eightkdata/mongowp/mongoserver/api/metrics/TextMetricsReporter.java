@@ -0,0 +1,98 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.metrics;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Periodically logs the metrics in a plain text format, one
+ * <code>name value</code> pair per line.
+ */
+public class TextMetricsReporter implements MetricsReporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TextMetricsReporter.class);
+
+    private final long period;
+    private final TimeUnit unit;
+    private ScheduledExecutorService executor;
+
+    public TextMetricsReporter(@Nonnegative long period, @Nonnull TimeUnit unit) {
+        Preconditions.checkArgument(period > 0, "The report period must be positive");
+        this.period = period;
+        this.unit = unit;
+    }
+
+    @Nonnull
+    public static String format(@Nonnull MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : registry.snapshot().entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void start(@Nonnull MetricsRegistry registry) {
+        Preconditions.checkState(executor == null, "The reporter has already been started");
+        executor = Executors.newSingleThreadScheduledExecutor(new ReporterThreadFactory());
+        executor.scheduleAtFixedRate(new ReportTask(registry), period, period, unit);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static class ReporterThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mongowp-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class ReportTask implements Runnable {
+        private final MetricsRegistry registry;
+
+        private ReportTask(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info("Metrics:\n{}", format(registry));
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.messages.request.CollectionRequestMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+import com.eightkdata.mongowp.mongoserver.api.AbstractRequestProcessor;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * The time spent and the number of operations of each type executed on each
+ * namespace, as reported by the <code>top</code> command.
+ * <p>
+ * Each namespace keeps its values in one row per {@link Counter} stripe, so
+ * threads recording on the same namespace rarely contend.
+ * <p>
+ * Commands are recorded on the collection they run on, or on
+ * <code>db.$cmd</code> if they run on the whole database. Drops are not
+ * recorded: they forget the stats of the dropped collection or database.
+ */
+@ThreadSafe
+public class TopStats {
+
+    public enum Operation {
+        QUERIES("queries", false),
+        GET_MORE("getmore", false),
+        INSERT("insert", true),
+        UPDATE("update", true),
+        REMOVE("remove", true),
+        COMMANDS("commands", false);
+
+        private final String key;
+        private final boolean write;
+
+        private Operation(String key, boolean write) {
+            this.key = key;
+            this.write = write;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isWrite() {
+            return write;
+        }
+
+        /**
+         * @return the operation executed by the given request, or null if it
+         *         is not accounted by top
+         */
+        @Nullable
+        public static Operation of(@Nonnull RequestMessage requestMessage) {
+            switch (requestMessage.getOpCode()) {
+                case OP_QUERY:
+                    assert requestMessage instanceof CollectionRequestMessage;
+                    String collection = ((CollectionRequestMessage) requestMessage).getCollection();
+                    return AbstractRequestProcessor.QUERY_MESSAGE_COMMAND_COLLECTION.equals(collection)
+                            ? COMMANDS
+                            : QUERIES;
+                case OP_GET_MORE:
+                    return GET_MORE;
+                case OP_INSERT:
+                    return INSERT;
+                case OP_UPDATE:
+                    return UPDATE;
+                case OP_DELETE:
+                    return REMOVE;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    /**
+     * count and time of each operation, rounded up to a multiple of a cache
+     * line
+     */
+    private static final int ROW_SIZE = (OPERATIONS.length * 2 + 7) & ~7;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, NamespaceStats>> databases =
+            new ConcurrentHashMap<String, ConcurrentMap<String, NamespaceStats>>();
+
+    /**
+     * Records the given request, if it is accounted by top
+     */
+    public void record(@Nonnull RequestMessage requestMessage, long nanos) {
+        Operation operation = Operation.of(requestMessage);
+        if (operation == null) {
+            return;
+        }
+        assert requestMessage instanceof CollectionRequestMessage;
+        CollectionRequestMessage collectionRequestMessage = (CollectionRequestMessage) requestMessage;
+        String database = collectionRequestMessage.getDatabase();
+        String collection = collectionRequestMessage.getCollection();
+        if (operation == Operation.COMMANDS) {
+            assert requestMessage instanceof QueryMessage;
+            BSONDocument command = ((QueryMessage) requestMessage).getDocument();
+            String commandCollection = AbstractRequestProcessor.getCommandCollection(command);
+            if (forgetDropped(database, commandCollection, command)) {
+                return;
+            }
+            if (commandCollection != null) {
+                collection = commandCollection;
+            }
+        }
+        record(database, collection, operation, nanos);
+    }
+
+    /**
+     * Forgets the stats of the namespace dropped by the given command, if it
+     * is a drop. The stats are forgotten even if the drop failed, as it could
+     * have been partially applied.
+     *
+     * @return true iff the command is a drop
+     */
+    private boolean forgetDropped(String database, @Nullable String collection, BSONDocument command) {
+        Iterator<String> keys = command.getKeys().iterator();
+        if (!keys.hasNext()) {
+            return false;
+        }
+        String commandName = keys.next();
+        if ("drop".equalsIgnoreCase(commandName) && collection != null) {
+            remove(database, collection);
+            return true;
+        }
+        if ("dropDatabase".equalsIgnoreCase(commandName)) {
+            removeDatabase(database);
+            return true;
+        }
+        return false;
+    }
+
+    public void record(@Nonnull String database, @Nonnull String collection, @Nonnull Operation operation, long nanos) {
+        getNamespaceStats(database, collection).record(operation, Math.max(0, nanos));
+    }
+
+    /**
+     * Forgets the stats of a namespace, for instance once it is dropped
+     */
+    public void remove(@Nonnull String database, @Nonnull String collection) {
+        ConcurrentMap<String, NamespaceStats> collections = databases.get(database);
+        if (collections != null) {
+            collections.remove(collection);
+        }
+    }
+
+    /**
+     * Forgets the stats of all the namespaces of a database
+     */
+    public void removeDatabase(@Nonnull String database) {
+        databases.remove(database);
+    }
+
+    /**
+     * @return the <code>totals</code> document of the <code>top</code>
+     *         command
+     */
+    @Nonnull
+    public Map<String, Object> getTotals() {
+        Map<String, Object> namespaces = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, NamespaceStats>> database : databases.entrySet()) {
+            for (Map.Entry<String, NamespaceStats> collection : database.getValue().entrySet()) {
+                namespaces.put(database.getKey() + '.' + collection.getKey(), collection.getValue().toDocument());
+            }
+        }
+        Map<String, Object> totals = new LinkedHashMap<String, Object>();
+        totals.put("note", "all times in microseconds");
+        totals.putAll(namespaces);
+        return totals;
+    }
+
+    private NamespaceStats getNamespaceStats(String database, String collection) {
+        ConcurrentMap<String, NamespaceStats> collections = databases.get(database);
+        if (collections == null) {
+            ConcurrentMap<String, NamespaceStats> newCollections = new ConcurrentHashMap<String, NamespaceStats>();
+            collections = databases.putIfAbsent(database, newCollections);
+            if (collections == null) {
+                collections = newCollections;
+            }
+        }
+        NamespaceStats stats = collections.get(collection);
+        if (stats == null) {
+            NamespaceStats newStats = new NamespaceStats();
+            stats = collections.putIfAbsent(collection, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private static class NamespaceStats {
+        private final AtomicLongArray cells = new AtomicLongArray(Counter.STRIPES * ROW_SIZE);
+
+        private void record(Operation operation, long nanos) {
+            int index = Counter.stripe() * ROW_SIZE + operation.ordinal() * 2;
+            cells.getAndIncrement(index);
+            cells.getAndAdd(index + 1, nanos);
+        }
+
+        private Map<String, Object> toDocument() {
+            long[] counts = new long[OPERATIONS.length];
+            long[] nanos = new long[OPERATIONS.length];
+            for (int stripe = 0; stripe < Counter.STRIPES; stripe++) {
+                for (int i = 0; i < OPERATIONS.length; i++) {
+                    int index = stripe * ROW_SIZE + i * 2;
+                    counts[i] += cells.get(index);
+                    nanos[i] += cells.get(index + 1);
+                }
+            }
+
+            long totalCount = 0, totalNanos = 0;
+            long readCount = 0, readNanos = 0;
+            long writeCount = 0, writeNanos = 0;
+            Map<String, Object> operations = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                totalCount += counts[i];
+                totalNanos += nanos[i];
+                if (OPERATIONS[i].isWrite()) {
+                    writeCount += counts[i];
+                    writeNanos += nanos[i];
+                } else {
+                    readCount += counts[i];
+                    readNanos += nanos[i];
+                }
+                operations.put(OPERATIONS[i].getKey(), toEntry(counts[i], nanos[i]));
+            }
+
+            Map<String, Object> document = new LinkedHashMap<String, Object>();
+            document.put("total", toEntry(totalCount, totalNanos));
+            document.put("readLock", toEntry(readCount, readNanos));
+            document.put("writeLock", toEntry(writeCount, writeNanos));
+            document.putAll(operations);
+            return document;
+        }
+
+        private static Map<String, Object> toEntry(long count, long nanos) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>(2);
+            entry.put("time", TimeUnit.NANOSECONDS.toMicros(nanos));
+            entry.put("count", count);
+            return entry;
+        }
+    }
+}
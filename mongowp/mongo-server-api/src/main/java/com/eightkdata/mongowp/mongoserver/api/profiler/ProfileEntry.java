@@ -0,0 +1,225 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * An operation captured by the {@link QueryProfiler}, as shown on the
+ * <code>system.profile</code> collection.
+ */
+@Immutable
+public class ProfileEntry {
+
+    private final long timestamp;
+    private final String op;
+    private final String database;
+    private final String collection;
+    @Nullable private final QueryShape queryShape;
+    private final int numberReturned;
+    private final int responseLength;
+    private final long decodeNanos;
+    private final long backendNanos;
+    private final long encodeNanos;
+    @Nullable private final String client;
+
+    private ProfileEntry(Builder builder) {
+        this.timestamp = builder.timestamp;
+        this.op = builder.op;
+        this.database = builder.database;
+        this.collection = builder.collection;
+        this.queryShape = builder.queryShape;
+        this.numberReturned = builder.numberReturned;
+        this.responseLength = builder.responseLength;
+        this.decodeNanos = builder.decodeNanos;
+        this.backendNanos = builder.backendNanos;
+        this.encodeNanos = builder.encodeNanos;
+        this.client = builder.client;
+    }
+
+    /**
+     * @return the time the operation finished, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Nonnull
+    public String getOp() {
+        return op;
+    }
+
+    @Nonnull
+    public String getDatabase() {
+        return database;
+    }
+
+    @Nonnull
+    public String getCollection() {
+        return collection;
+    }
+
+    @Nonnull
+    public String getNamespace() {
+        return database + '.' + collection;
+    }
+
+    @Nullable
+    public QueryShape getQueryShape() {
+        return queryShape;
+    }
+
+    public int getNumberReturned() {
+        return numberReturned;
+    }
+
+    public int getResponseLength() {
+        return responseLength;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getBackendNanos() {
+        return backendNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getTotalNanos() {
+        return decodeNanos + backendNanos + encodeNanos;
+    }
+
+    @Nullable
+    public String getClient() {
+        return client;
+    }
+
+    @Nonnull
+    public BSONDocument toBSONDocument() {
+        Map<String, Object> keyValues = new LinkedHashMap<String, Object>();
+        keyValues.put("op", op);
+        keyValues.put("ns", getNamespace());
+        if (queryShape != null) {
+            keyValues.put("queryShape", queryShape.getShape());
+            keyValues.put("queryHash", queryShape.getKey());
+        }
+        keyValues.put("nreturned", numberReturned);
+        keyValues.put("responseLength", responseLength);
+        keyValues.put("millis", TimeUnit.NANOSECONDS.toMillis(getTotalNanos()));
+        Map<String, Object> timing = new LinkedHashMap<String, Object>(3);
+        timing.put("decodeMicros", TimeUnit.NANOSECONDS.toMicros(decodeNanos));
+        timing.put("backendMicros", TimeUnit.NANOSECONDS.toMicros(backendNanos));
+        timing.put("encodeMicros", TimeUnit.NANOSECONDS.toMicros(encodeNanos));
+        keyValues.put("timing", timing);
+        keyValues.put("ts", new Date(timestamp));
+        if (client != null) {
+            keyValues.put("client", client);
+        }
+        return new MongoBSONDocument(keyValues);
+    }
+
+    public static class Builder {
+        private long timestamp = System.currentTimeMillis();
+        private String op;
+        private String database;
+        private String collection;
+        @Nullable private QueryShape queryShape;
+        private int numberReturned;
+        private int responseLength;
+        private long decodeNanos;
+        private long backendNanos;
+        private long encodeNanos;
+        @Nullable private String client;
+
+        public Builder setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder setOp(@Nonnull String op) {
+            this.op = op;
+            return this;
+        }
+
+        public Builder setNamespace(@Nonnull String database, @Nonnull String collection) {
+            this.database = database;
+            this.collection = collection;
+            return this;
+        }
+
+        public Builder setQueryShape(@Nullable QueryShape queryShape) {
+            this.queryShape = queryShape;
+            return this;
+        }
+
+        public Builder setNumberReturned(@Nonnegative int numberReturned) {
+            this.numberReturned = numberReturned;
+            return this;
+        }
+
+        public Builder setResponseLength(@Nonnegative int responseLength) {
+            this.responseLength = responseLength;
+            return this;
+        }
+
+        public Builder setDecodeNanos(@Nonnegative long decodeNanos) {
+            this.decodeNanos = decodeNanos;
+            return this;
+        }
+
+        public Builder setBackendNanos(@Nonnegative long backendNanos) {
+            this.backendNanos = backendNanos;
+            return this;
+        }
+
+        public Builder setEncodeNanos(@Nonnegative long encodeNanos) {
+            this.encodeNanos = encodeNanos;
+            return this;
+        }
+
+        public Builder setClient(@Nullable String client) {
+            this.client = client;
+            return this;
+        }
+
+        public ProfileEntry build() {
+            Preconditions.checkState(op != null, "The operation is required");
+            Preconditions.checkState(database != null && collection != null, "The namespace is required");
+            return new ProfileEntry(this);
+        }
+    }
+}
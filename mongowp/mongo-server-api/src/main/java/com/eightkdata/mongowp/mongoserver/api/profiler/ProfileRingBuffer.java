@@ -0,0 +1,71 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded buffer that keeps the last entries added to it, overwriting the
+ * oldest ones. Writers only contend on the sequence counter.
+ */
+@ThreadSafe
+class ProfileRingBuffer {
+    private final AtomicReferenceArray<ProfileEntry> entries;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity a power of two
+     */
+    ProfileRingBuffer(int capacity) {
+        assert capacity > 0 && Integer.bitCount(capacity) == 1;
+        this.entries = new AtomicReferenceArray<ProfileEntry>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    void add(@Nonnull ProfileEntry entry) {
+        entries.set((int) (sequence.getAndIncrement() & mask), entry);
+    }
+
+    /**
+     * @return the entries on the buffer, from the oldest to the newest. Entries
+     *         added while the buffer is read may be missing or replace older
+     *         ones
+     */
+    @Nonnull
+    List<ProfileEntry> getEntries() {
+        long end = sequence.get();
+        long start = Math.max(0, end - entries.length());
+        List<ProfileEntry> result = new ArrayList<ProfileEntry>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            ProfileEntry entry = entries.get((int) (i & mask));
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
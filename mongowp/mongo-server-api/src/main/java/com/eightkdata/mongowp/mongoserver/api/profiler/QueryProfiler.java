@@ -0,0 +1,263 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.bson.BSONObject;
+
+import com.google.common.base.Preconditions;
+
+import com.eightkdata.mongowp.mongoserver.api.matcher.RawMatcher;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * Captures the operations executed on each database, as configured by the
+ * <code>profile</code> command, and keeps the last ones on a bounded ring
+ * buffer per database that backs the <code>system.profile</code> collection.
+ * <p>
+ * With level 1 only the operations slower than the slow threshold are
+ * captured; with level 2 all the operations are. In both cases only the given
+ * fraction of the operations is sampled.
+ */
+@ThreadSafe
+public class QueryProfiler {
+
+    public static final AttributeKey<QueryProfiler> QUERY_PROFILER = AttributeKey.valueOf("queryProfiler");
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    /**
+     * Serializes the changes of the settings
+     */
+    private final Object settingsLock = new Object();
+    private final ConcurrentMap<String, Settings> databaseSettings = new ConcurrentHashMap<String, Settings>();
+    private final ConcurrentMap<String, ProfileRingBuffer> buffers = new ConcurrentHashMap<String, ProfileRingBuffer>();
+    private volatile Settings defaultSettings = Settings.DEFAULT;
+    /**
+     * true iff some database has a level greater than 0, so requests skip the
+     * profiler while it is disabled
+     */
+    private volatile boolean enabled;
+
+    public QueryProfiler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of entries kept per database. It is rounded
+     *                 up to a power of two
+     */
+    public QueryProfiler(@Nonnegative int capacity) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be positive");
+        Preconditions.checkArgument(capacity <= 1 << 30, "The capacity is too big");
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Nonnull
+    public Settings getDefaultSettings() {
+        return defaultSettings;
+    }
+
+    /**
+     * Sets the settings of the databases that have not been configured by
+     * {@link #setSettings}
+     */
+    public void setDefaultSettings(@Nonnull Settings settings) {
+        synchronized (settingsLock) {
+            defaultSettings = settings;
+            updateEnabled();
+        }
+    }
+
+    @Nonnull
+    public Settings getSettings(@Nonnull String database) {
+        Settings settings = databaseSettings.get(database);
+        return settings != null ? settings : defaultSettings;
+    }
+
+    /**
+     * @return the previous settings of the database
+     */
+    @Nonnull
+    public Settings setSettings(@Nonnull String database, @Nonnull Settings settings) {
+        synchronized (settingsLock) {
+            Settings previous = getSettings(database);
+            databaseSettings.put(database, settings);
+            updateEnabled();
+            return previous;
+        }
+    }
+
+    private void updateEnabled() {
+        boolean newEnabled = defaultSettings.getLevel() > 0;
+        for (Settings settings : databaseSettings.values()) {
+            newEnabled |= settings.getLevel() > 0;
+        }
+        enabled = newEnabled;
+    }
+
+    /**
+     * @param sampleKey a value that identifies the operation, like its
+     *                  request id, used to choose the sampled operations
+     * @return true iff an operation on the given database that took the given
+     *         time must be captured
+     */
+    public boolean shouldCapture(@Nonnull String database, long nanos, int sampleKey) {
+        if (!enabled) {
+            return false;
+        }
+        Settings settings = getSettings(database);
+        switch (settings.getLevel()) {
+            case 0:
+                return false;
+            case 1:
+                if (nanos < TimeUnit.MILLISECONDS.toNanos(settings.getSlowMs())) {
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        return isSampled(settings.getSampleRate(), sampleKey);
+    }
+
+    private static boolean isSampled(double sampleRate, int sampleKey) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        // scrambles the key, so consecutive ids are spread over the range
+        int hash = sampleKey * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & 0xFFFF) < sampleRate * 0x10000;
+    }
+
+    public void capture(@Nonnull ProfileEntry entry) {
+        ProfileRingBuffer buffer = buffers.get(entry.getDatabase());
+        if (buffer == null) {
+            ProfileRingBuffer newBuffer = new ProfileRingBuffer(capacity);
+            buffer = buffers.putIfAbsent(entry.getDatabase(), newBuffer);
+            if (buffer == null) {
+                buffer = newBuffer;
+            }
+        }
+        buffer.add(entry);
+    }
+
+    /**
+     * @return the entries captured on the given database, from the oldest to
+     *         the newest
+     */
+    @Nonnull
+    public List<ProfileEntry> getEntries(@Nonnull String database) {
+        ProfileRingBuffer buffer = buffers.get(database);
+        if (buffer == null) {
+            return new ArrayList<ProfileEntry>(0);
+        }
+        return buffer.getEntries();
+    }
+
+    /**
+     * @param query a query on the <code>system.profile</code> collection,
+     *              matched as filters on the collections are (see
+     *              {@link RawMatcher})
+     * @return the documents of the entries captured on the given database that
+     *         match the given query
+     * @throws IllegalArgumentException If the query is not supported
+     */
+    @Nonnull
+    public List<BSONDocument> query(@Nonnull String database, @Nullable BSONObject query) {
+        RawMatcher matcher = RawMatcher.compile(query);
+        List<BSONDocument> result = new ArrayList<BSONDocument>();
+        for (ProfileEntry entry : getEntries(database)) {
+            BSONDocument document = entry.toBSONDocument();
+            if (matcher.matches(document)) {
+                result.add(document);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards the entries captured on the given database
+     */
+    public void clear(@Nonnull String database) {
+        buffers.remove(database);
+    }
+
+    @Immutable
+    public static class Settings {
+        public static final int DEFAULT_SLOW_MS = 100;
+        public static final Settings DEFAULT = new Settings(0, DEFAULT_SLOW_MS, 1.0);
+
+        private final int level;
+        private final long slowMs;
+        private final double sampleRate;
+
+        /**
+         * @param level      0 to capture nothing, 1 to capture the operations
+         *                   slower than slowMs and 2 to capture all of them
+         * @param slowMs     the threshold of level 1
+         * @param sampleRate the fraction of the operations that are sampled,
+         *                   between 0 and 1
+         */
+        public Settings(int level, @Nonnegative long slowMs, double sampleRate) {
+            Preconditions.checkArgument(level >= 0 && level <= 2, "The profiling level must be 0, 1 or 2");
+            Preconditions.checkArgument(slowMs >= 0, "The slow threshold cannot be negative");
+            Preconditions.checkArgument(sampleRate >= 0 && sampleRate <= 1, "The sample rate must be between 0 and 1");
+            this.level = level;
+            this.slowMs = slowMs;
+            this.sampleRate = sampleRate;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getSlowMs() {
+            return slowMs;
+        }
+
+        public double getSampleRate() {
+            return sampleRate;
+        }
+    }
+}
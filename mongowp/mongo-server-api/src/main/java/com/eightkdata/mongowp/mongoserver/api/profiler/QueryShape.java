@@ -0,0 +1,185 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * The shape of a query: its fields and operators, sorted by name, with every
+ * value replaced by 1. Queries that only differ on their values have the
+ * same shape.
+ * <p>
+ * The normalized document and its 64 bit FNV-1a hash are computed in the
+ * same pass over the query. Every field name is hashed between a field tag and
+ * a zero, which cannot be part of a name, and every value starts with its own
+ * tag, so different shapes do not hash the same characters.
+ */
+@Immutable
+public final class QueryShape {
+    private static final Integer PLACEHOLDER = 1;
+
+    private final BSONObject shape;
+    private final long hash;
+
+    private QueryShape(BSONObject shape, long hash) {
+        this.shape = shape;
+        this.hash = hash;
+    }
+
+    @Nonnull
+    public static QueryShape of(@Nullable BSONObject query) {
+        Normalizer normalizer = new Normalizer();
+        BSONObject shape = query == null ? new BasicBSONObject() : normalizer.document(query);
+        return new QueryShape(shape, normalizer.hash);
+    }
+
+    /**
+     * @return the shape of the given query, or null if its implementation is
+     *         not supported
+     */
+    @Nullable
+    public static QueryShape of(@Nonnull BSONDocument query) {
+        if (!(query instanceof MongoBSONDocument)) {
+            return null;
+        }
+        return of(((MongoBSONDocument) query).getBSONObject());
+    }
+
+    /**
+     * @return the shape as a document. It must not be modified
+     */
+    @Nonnull
+    public BSONObject getShape() {
+        return shape;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the hash as an hexadecimal string
+     */
+    @Nonnull
+    public String getKey() {
+        return Long.toHexString(hash);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryShape)) {
+            return false;
+        }
+        QueryShape other = (QueryShape) obj;
+        return hash == other.hash && shape.equals(other.shape);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return shape.toString();
+    }
+
+    private static final class Normalizer {
+        private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+        private static final char DOCUMENT_START = '{';
+        private static final char DOCUMENT_END = '}';
+        private static final char LIST_START = '[';
+        private static final char LIST_END = ']';
+        private static final char FIELD = ':';
+        private static final char FIELD_END = '\0';
+        private static final char VALUE = '1';
+
+        private long hash = FNV_OFFSET_BASIS;
+
+        private BSONObject document(BSONObject document) {
+            List<String> fields = new ArrayList<String>(document.keySet());
+            Collections.sort(fields);
+            BasicBSONObject normalized = new BasicBSONObject();
+            mix(DOCUMENT_START);
+            for (String field : fields) {
+                mix(FIELD);
+                mix(field);
+                mix(FIELD_END);
+                normalized.put(field, value(document.get(field)));
+            }
+            mix(DOCUMENT_END);
+            return normalized;
+        }
+
+        private Object value(Object value) {
+            if (value instanceof List) {
+                // $and, $or and $nor take lists of queries, that keep their shape
+                BasicBSONList list = new BasicBSONList();
+                for (Object element : (List<?>) value) {
+                    if (element instanceof BSONObject && !(element instanceof List)) {
+                        if (list.isEmpty()) {
+                            mix(LIST_START);
+                        }
+                        list.add(document((BSONObject) element));
+                    }
+                }
+                if (list.isEmpty()) {
+                    mix(VALUE);
+                    return PLACEHOLDER;
+                }
+                mix(LIST_END);
+                return list;
+            }
+            if (value instanceof BSONObject) {
+                return document((BSONObject) value);
+            }
+            mix(VALUE);
+            return PLACEHOLDER;
+        }
+
+        private void mix(String string) {
+            for (int i = 0; i < string.length(); i++) {
+                mix(string.charAt(i));
+            }
+        }
+
+        private void mix(char c) {
+            hash ^= c;
+            hash *= FNV_PRIME;
+        }
+    }
+}
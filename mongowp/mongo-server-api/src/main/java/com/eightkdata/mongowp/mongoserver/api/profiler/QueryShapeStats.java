@@ -0,0 +1,281 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import io.netty.util.AttributeKey;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Longs;
+
+import com.eightkdata.mongowp.mongoserver.api.metrics.LatencyRecorder;
+
+/**
+ * Aggregates the executions of each query shape on each namespace: their
+ * count, latency distribution and the documents examined and returned.
+ * <p>
+ * Only the most recently used shapes are kept. Nothing is recorded while it is
+ * disabled.
+ */
+@ThreadSafe
+public class QueryShapeStats {
+
+    public static final AttributeKey<QueryShapeStats> QUERY_SHAPE_STATS = AttributeKey.valueOf("queryShapeStats");
+    /**
+     * Request processors can set this attribute while processing a request to
+     * report the documents they examined
+     */
+    public static final AttributeKey<Long> DOCS_EXAMINED = AttributeKey.valueOf("docsExamined");
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Comparator<ShapeStatistics> BY_TOTAL_TIME = new TotalTimeComparator();
+
+    private final ConcurrentMap<Key, ShapeStatistics> shapes;
+    private volatile boolean enabled;
+
+    /**
+     * Creates disabled stats with the default capacity
+     */
+    public QueryShapeStats() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * @param capacity the number of shapes kept
+     */
+    public QueryShapeStats(@Nonnegative int capacity, boolean enabled) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be positive");
+        this.shapes = CacheBuilder.newBuilder()
+                .maximumSize(capacity)
+                .<Key, ShapeStatistics>build()
+                .asMap();
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param docsExamined the documents examined, or a negative value if they
+     *                     are unknown
+     */
+    public void record(
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnull QueryShape shape,
+            @Nonnegative long nanos,
+            @Nonnegative int docsReturned,
+            long docsExamined) {
+        if (!enabled) {
+            return;
+        }
+        Key key = new Key(database, collection, shape);
+        ShapeStatistics statistics = shapes.get(key);
+        if (statistics == null) {
+            ShapeStatistics newStatistics = new ShapeStatistics(database, collection, shape);
+            statistics = shapes.putIfAbsent(key, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+            }
+        }
+        statistics.record(nanos, docsReturned, docsExamined);
+    }
+
+    /**
+     * @return the shapes executed on the given namespace
+     */
+    @Nonnull
+    public List<ShapeStatistics> getShapes(@Nonnull String database, @Nonnull String collection) {
+        List<ShapeStatistics> result = new ArrayList<ShapeStatistics>();
+        for (ShapeStatistics statistics : shapes.values()) {
+            if (statistics.getDatabase().equals(database) && statistics.getCollection().equals(collection)) {
+                result.add(statistics);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the given number of shapes with the highest total execution
+     *         time, from the most expensive
+     */
+    @Nonnull
+    public List<ShapeStatistics> getTop(@Nonnegative int count) {
+        List<ShapeStatistics> result = new ArrayList<ShapeStatistics>(shapes.values());
+        Collections.sort(result, BY_TOTAL_TIME);
+        return result.size() > count ? new ArrayList<ShapeStatistics>(result.subList(0, count)) : result;
+    }
+
+    public int size() {
+        return shapes.size();
+    }
+
+    public void clear() {
+        shapes.clear();
+    }
+
+    @ThreadSafe
+    public static class ShapeStatistics {
+        private final String database;
+        private final String collection;
+        private final QueryShape shape;
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private final AtomicLong docsReturned = new AtomicLong();
+        private final AtomicLong docsExamined = new AtomicLong();
+        /**
+         * executions that reported their examined documents
+         */
+        private final AtomicLong examinedExecutions = new AtomicLong();
+
+        private ShapeStatistics(String database, String collection, QueryShape shape) {
+            this.database = database;
+            this.collection = collection;
+            this.shape = shape;
+        }
+
+        private void record(long nanos, int returned, long examined) {
+            latencies.record(nanos);
+            docsReturned.addAndGet(returned);
+            if (examined >= 0) {
+                docsExamined.addAndGet(examined);
+                examinedExecutions.incrementAndGet();
+            }
+        }
+
+        @Nonnull
+        public String getDatabase() {
+            return database;
+        }
+
+        @Nonnull
+        public String getCollection() {
+            return collection;
+        }
+
+        @Nonnull
+        public QueryShape getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        @Nonnull
+        public LatencyRecorder getLatencies() {
+            return latencies;
+        }
+
+        public long getDocsReturned() {
+            return docsReturned.get();
+        }
+
+        /**
+         * @return the documents examined by the executions that reported them
+         */
+        public long getDocsExamined() {
+            return docsExamined.get();
+        }
+
+        public long getExaminedExecutions() {
+            return examinedExecutions.get();
+        }
+
+        @Nonnull
+        public Map<String, Object> toStatus() {
+            Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("ns", database + '.' + collection);
+            status.put("queryHash", shape.getKey());
+            status.put("query", shape.getShape());
+            status.put("count", getCount());
+            status.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(latencies.getTotalNanos()));
+            status.put("p50Micros", TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(50)));
+            status.put("p95Micros", TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(95)));
+            status.put("p99Micros", TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99)));
+            status.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(latencies.getMaxNanos()));
+            status.put("docsReturned", getDocsReturned());
+            if (getExaminedExecutions() > 0) {
+                status.put("docsExamined", getDocsExamined());
+            }
+            return status;
+        }
+    }
+
+    private static final class Key {
+        private final String database;
+        private final String collection;
+        private final QueryShape shape;
+
+        private Key(String database, String collection, QueryShape shape) {
+            this.database = database;
+            this.collection = collection;
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return shape.equals(other.shape)
+                    && collection.equals(other.collection)
+                    && database.equals(other.database);
+        }
+
+        @Override
+        public int hashCode() {
+            return (shape.hashCode() * 31 + collection.hashCode()) * 31 + database.hashCode();
+        }
+    }
+
+    private static class TotalTimeComparator implements Comparator<ShapeStatistics>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(ShapeStatistics o1, ShapeStatistics o2) {
+            return Longs.compare(o2.getLatencies().getTotalNanos(), o1.getLatencies().getTotalNanos());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.metrics.ServerStatusSection;
+
+/**
+ * Reports the most expensive query shapes on the <code>queryShapes</code>
+ * section of <code>serverStatus</code>.
+ */
+public class QueryShapesStatusSection implements ServerStatusSection {
+    private static final String NAME = "queryShapes";
+
+    private final QueryShapeStats queryShapeStats;
+    private final int top;
+
+    /**
+     * @param top the number of shapes reported
+     */
+    public QueryShapesStatusSection(@Nonnull QueryShapeStats queryShapeStats, @Nonnegative int top) {
+        this.queryShapeStats = queryShapeStats;
+        this.top = top;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Map<String, ?> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("enabled", queryShapeStats.isEnabled());
+        status.put("shapes", queryShapeStats.size());
+        List<Map<String, Object>> mostExpensive = new ArrayList<Map<String, Object>>(top);
+        for (QueryShapeStats.ShapeStatistics statistics : queryShapeStats.getTop(top)) {
+            mostExpensive.add(statistics.toStatus());
+        }
+        status.put("top", mostExpensive);
+        return status;
+    }
+}
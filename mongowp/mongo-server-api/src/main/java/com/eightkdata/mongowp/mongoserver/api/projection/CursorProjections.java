@@ -0,0 +1,127 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.projection;
+
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * The projections of the backend cursors opened by the queries of a server,
+ * when the backend did not push them down. There is one instance per server,
+ * shared by its connections, as a cursor can be read by any of them.
+ * <p>
+ * The first batch of such a cursor is projected when the query is replied,
+ * and the following ones when their getMores are replied, so all the batches
+ * of a cursor have the same shape. A projection is forgotten when its cursor
+ * is exhausted, is killed or fails.
+ */
+@ThreadSafe
+public class CursorProjections {
+    public static final AttributeKey<CursorProjections> CURSOR_PROJECTIONS = AttributeKey.valueOf("cursorProjections");
+
+    private final ConcurrentMap<Long, RawProjection> projections = new ConcurrentHashMap<Long, RawProjection>();
+
+    /**
+     * Keeps the projection to apply to the getMores of the given cursor
+     */
+    public void register(long cursorId, @Nonnull RawProjection projection) {
+        projections.put(cursorId, projection);
+    }
+
+    /**
+     * @return a replier that projects the batch replied to a getMore of the
+     *         given cursor, or the given replier if the cursor has no
+     *         projection
+     */
+    @Nonnull
+    public MessageReplier getMoreReplier(long cursorId, @Nonnull MessageReplier messageReplier) {
+        RawProjection projection = projections.get(cursorId);
+        if (projection == null) {
+            return messageReplier;
+        }
+        return new ProjectingMessageReplier(messageReplier, this, cursorId, projection);
+    }
+
+    /**
+     * Forgets the projections of the killed cursors
+     */
+    public void forget(@Nonnull long[] cursorIds) {
+        for (long cursorId : cursorIds) {
+            projections.remove(cursorId);
+        }
+    }
+
+    /**
+     * @return the number of cursors with a projection
+     */
+    public int size() {
+        return projections.size();
+    }
+
+    private static class ProjectingMessageReplier extends MessageReplier {
+        private final CursorProjections cursorProjections;
+        private final long cursorId;
+        private final RawProjection projection;
+
+        ProjectingMessageReplier(
+                MessageReplier messageReplier, CursorProjections cursorProjections,
+                long cursorId, RawProjection projection
+        ) {
+            super(messageReplier);
+            this.cursorProjections = cursorProjections;
+            this.cursorId = cursorId;
+            this.projection = projection;
+        }
+
+        @Override
+        protected void replyMessage(@Nonnull ReplyMessage replyMessage) {
+            boolean failed = replyMessage.isFlagSet(ReplyMessage.Flag.QUERY_FAILURE)
+                    || replyMessage.isFlagSet(ReplyMessage.Flag.CURSOR_NOT_FOUND);
+            if (failed || replyMessage.getCursorId() == 0) {
+                cursorProjections.projections.remove(cursorId);
+            }
+            if (failed) {
+                super.replyMessage(replyMessage);
+                return;
+            }
+            ReplyMessage.Builder builder = new ReplyMessage.Builder(
+                    replyMessage.getResponseTo(), replyMessage.getCursorId(), replyMessage.getStartingFrom()
+            );
+            builder.setInt32Flags(replyMessage.getInt32Flags());
+            for (BSONDocument document : replyMessage.getDocuments()) {
+                builder.addBSONDocument(projection.apply(document));
+            }
+            super.replyMessage(builder.build());
+        }
+    }
+}
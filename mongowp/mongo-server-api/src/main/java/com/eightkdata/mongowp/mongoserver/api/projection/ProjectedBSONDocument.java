@@ -0,0 +1,132 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.projection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.eightkdata.nettybson.api.AbstractBSONDocument;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+import org.bson.BSONObject;
+
+/**
+ * A document seen through a {@link RawProjection}.
+ * <p>
+ * The projection is applied when the document is written. Documents kept
+ * encoded are projected from their bytes, copying only the selected elements,
+ * and decoded ones are projected on their objects before being encoded, so
+ * neither is encoded twice. The keys and values are only decoded if they are
+ * read.
+ */
+@Immutable
+class ProjectedBSONDocument extends AbstractBSONDocument {
+    private final BSONDocument source;
+    private final RawProjection projection;
+    private volatile MongoBSONDocument decoded;
+
+    ProjectedBSONDocument(@Nonnull BSONDocument source, @Nonnull RawProjection projection) {
+        this.source = source;
+        this.projection = projection;
+    }
+
+    @Override
+    public boolean hasKey(@Nonnull String key) {
+        return getDecoded().hasKey(key);
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getKeys() {
+        return getDecoded().getKeys();
+    }
+
+    @Override
+    public Object getValue(@Nonnull String key) {
+        return getDecoded().getValue(key);
+    }
+
+    @Nullable
+    @Override
+    public BSONType getType(@Nonnull String key) {
+        return getDecoded().getType(key);
+    }
+
+    @Override
+    public void writeToByteBuf(@Nonnull ByteBuf buffer) {
+        if (source instanceof MongoBSONDocument) {
+            project((MongoBSONDocument) source).writeToByteBuf(buffer);
+            return;
+        }
+        ByteBuf raw = RawBSONUtil.getEncoded(source);
+        if (raw != null) {
+            projection.project(raw, 0, buffer);
+            return;
+        }
+        ByteBuf encoded = buffer.alloc().heapBuffer();
+        try {
+            source.writeToByteBuf(encoded.order(ByteOrder.LITTLE_ENDIAN));
+            projection.project(encoded, 0, buffer);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private MongoBSONDocument getDecoded() {
+        MongoBSONDocument result = decoded;
+        if (result == null) {
+            if (source instanceof MongoBSONDocument) {
+                result = project((MongoBSONDocument) source);
+            }
+            else {
+                ByteBuf buffer = Unpooled.buffer();
+                try {
+                    writeToByteBuf(buffer);
+                    result = new MongoBSONDocument(buffer.order(ByteOrder.LITTLE_ENDIAN));
+                } finally {
+                    buffer.release();
+                }
+            }
+            decoded = result;
+        }
+        return result;
+    }
+
+    private MongoBSONDocument project(MongoBSONDocument document) {
+        BSONObject projected = projection.project(document.getBSONObject());
+        return new MongoBSONDocument(projected);
+    }
+
+    @Override
+    public String toString() {
+        return projection + " of " + source;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.api.projection;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * An inclusion or exclusion projection, like <code>{a: 1, "b.c": 1}</code> or
+ * <code>{a: 0}</code>, applied on encoded BSON.
+ * <p>
+ * Projecting a document copies the byte ranges of the selected elements and
+ * only rewrites the lengths of the documents that contain them. Decoded
+ * documents are projected on their objects, sharing the selected values, so
+ * they are only encoded once. Dotted paths
+ * select fields of embedded documents and of the documents in arrays. Other
+ * array elements are dropped by inclusions and kept by exclusions.
+ * <p>
+ * Projection operators (<code>$slice</code>, <code>$elemMatch</code>,
+ * <code>$</code> and <code>$meta</code>) are not supported.
+ */
+@Immutable
+public class RawProjection {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ID_FIELD = "_id";
+
+    private final boolean inclusion;
+    private final Node root;
+
+    private RawProjection(boolean inclusion, Node root) {
+        this.inclusion = inclusion;
+        this.root = root;
+    }
+
+    /**
+     * @return the projection, or null if it selects all the fields
+     * @throws IllegalArgumentException If the projection is not supported
+     */
+    @Nullable
+    public static RawProjection compile(@Nullable BSONObject projection) {
+        if (projection == null || projection.keySet().isEmpty()) {
+            return null;
+        }
+        Boolean inclusion = null;
+        Boolean includeId = null;
+        for (String path : projection.keySet()) {
+            boolean include = isInclusion(path, projection.get(path));
+            if (ID_FIELD.equals(path)) {
+                includeId = include;
+            }
+            else if (inclusion == null) {
+                inclusion = include;
+            }
+            else if (inclusion != include) {
+                throw new IllegalArgumentException(
+                        "Projection cannot have a mix of inclusion and exclusion: " + projection
+                );
+            }
+        }
+        boolean isInclusion;
+        if (inclusion != null) {
+            isInclusion = inclusion;
+        }
+        else {
+            // Only _id is projected
+            assert includeId != null;
+            isInclusion = includeId;
+        }
+
+        Node root = new Node();
+        for (String path : projection.keySet()) {
+            if (!ID_FIELD.equals(path)) {
+                root.add(path);
+            }
+        }
+        boolean idSelected = includeId != null ? includeId == isInclusion : isInclusion;
+        if (idSelected) {
+            root.add(ID_FIELD);
+        }
+        return new RawProjection(isInclusion, root);
+    }
+
+    private static boolean isInclusion(String path, Object value) {
+        if (path.startsWith("$") || path.endsWith(".$")) {
+            throw new IllegalArgumentException("Unsupported projection operator on " + path);
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        throw new IllegalArgumentException("Unsupported projection value for " + path + ": " + value);
+    }
+
+    public boolean isInclusion() {
+        return inclusion;
+    }
+
+    /**
+     * @return the documents projected when they are encoded
+     */
+    @Nonnull
+    public Iterable<BSONDocument> apply(@Nonnull Iterable<BSONDocument> documents) {
+        return Iterables.transform(documents, new ProjectFunction(this));
+    }
+
+    /**
+     * @return the document projected when it is encoded
+     */
+    @Nonnull
+    public BSONDocument apply(@Nonnull BSONDocument document) {
+        return new ProjectedBSONDocument(document, this);
+    }
+
+    /**
+     * Writes the projection of the document that starts at the given index
+     * of the source buffer.
+     */
+    public void project(@Nonnull ByteBuf source, int documentIndex, @Nonnull ByteBuf out) {
+        projectDocument(source, documentIndex, root, out.order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * @return a new object with the selected fields of the given one, whose
+     *         values are shared with it
+     */
+    @Nonnull
+    public BSONObject project(@Nonnull BSONObject source) {
+        return projectObject(source, root);
+    }
+
+    private BSONObject projectObject(BSONObject source, Node node) {
+        BasicBSONObject result = new BasicBSONObject();
+        for (String key : source.keySet()) {
+            Object value = source.get(key);
+            Node child = node.getChild(key);
+            if (child == null) {
+                if (!inclusion) {
+                    result.put(key, value);
+                }
+            }
+            else if (child.isLeaf()) {
+                if (inclusion) {
+                    result.put(key, value);
+                }
+            }
+            else if (value instanceof List) {
+                result.put(key, projectList((List<?>) value, child));
+            }
+            else if (isDocument(value)) {
+                result.put(key, projectObject(toBSONObject(value), child));
+            }
+            else if (!inclusion) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private BasicBSONList projectList(List<?> source, Node node) {
+        BasicBSONList result = new BasicBSONList();
+        for (Object value : source) {
+            if (value instanceof List) {
+                result.add(projectList((List<?>) value, node));
+            }
+            else if (isDocument(value)) {
+                result.add(projectObject(toBSONObject(value), node));
+            }
+            else if (!inclusion) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDocument(Object value) {
+        return value instanceof BSONObject || value instanceof Map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BSONObject toBSONObject(Object value) {
+        if (value instanceof BSONObject) {
+            return (BSONObject) value;
+        }
+        return new BasicBSONObject((Map<String, Object>) value);
+    }
+
+    private void projectDocument(ByteBuf source, int documentIndex, Node node, ByteBuf out) {
+        int end = documentIndex + RawBSONUtil.getDocumentLength(source, documentIndex) - 1;
+        int outStart = out.writerIndex();
+        out.writeInt(0);
+
+        int index = documentIndex + 4;
+        while (index < end) {
+            BSONType type = BSONType.getByCode(source.getByte(index));
+            int nameEnd = RawBSONUtil.getCStringEnd(source, index + 1);
+            int valueIndex = nameEnd + 1;
+            int elementEnd = valueIndex + RawBSONUtil.getValueLength(source, type, valueIndex);
+
+            Node child = node.getChild(source, index + 1, nameEnd - index - 1);
+            if (child == null) {
+                if (!inclusion) {
+                    out.writeBytes(source, index, elementEnd - index);
+                }
+            }
+            else if (child.isLeaf()) {
+                if (inclusion) {
+                    out.writeBytes(source, index, elementEnd - index);
+                }
+            }
+            else if (type == BSONType.DOCUMENT) {
+                out.writeBytes(source, index, valueIndex - index);
+                projectDocument(source, valueIndex, child, out);
+            }
+            else if (type == BSONType.ARRAY) {
+                out.writeBytes(source, index, valueIndex - index);
+                projectArray(source, valueIndex, child, out);
+            }
+            else if (!inclusion) {
+                out.writeBytes(source, index, elementEnd - index);
+            }
+            index = elementEnd;
+        }
+
+        out.writeByte(0);
+        out.setInt(outStart, out.writerIndex() - outStart);
+    }
+
+    /**
+     * The elements of the array are renumbered, as some of them can be
+     * dropped
+     */
+    private void projectArray(ByteBuf source, int arrayIndex, Node node, ByteBuf out) {
+        int end = arrayIndex + RawBSONUtil.getDocumentLength(source, arrayIndex) - 1;
+        int outStart = out.writerIndex();
+        out.writeInt(0);
+
+        int position = 0;
+        int index = arrayIndex + 4;
+        while (index < end) {
+            BSONType type = BSONType.getByCode(source.getByte(index));
+            int valueIndex = RawBSONUtil.getCStringEnd(source, index + 1) + 1;
+            int elementEnd = valueIndex + RawBSONUtil.getValueLength(source, type, valueIndex);
+
+            if (type == BSONType.DOCUMENT || type == BSONType.ARRAY || !inclusion) {
+                out.writeByte(type.getCode());
+                writePosition(out, position++);
+                if (type == BSONType.DOCUMENT) {
+                    projectDocument(source, valueIndex, node, out);
+                }
+                else if (type == BSONType.ARRAY) {
+                    projectArray(source, valueIndex, node, out);
+                }
+                else {
+                    out.writeBytes(source, valueIndex, elementEnd - valueIndex);
+                }
+            }
+            index = elementEnd;
+        }
+
+        out.writeByte(0);
+        out.setInt(outStart, out.writerIndex() - outStart);
+    }
+
+    private static void writePosition(ByteBuf out, int position) {
+        String name = Integer.toString(position);
+        for (int i = 0; i < name.length(); i++) {
+            out.writeByte(name.charAt(i));
+        }
+        out.writeByte(0);
+    }
+
+    @Override
+    public String toString() {
+        return (inclusion ? "include " : "exclude ") + root;
+    }
+
+    /**
+     * A field of the projection. Leafs are the fields that are included or
+     * excluded as a whole.
+     */
+    private static class Node {
+        private final List<String> keys = new ArrayList<String>(4);
+        private final List<byte[]> names = new ArrayList<byte[]>(4);
+        private final List<Node> children = new ArrayList<Node>(4);
+        private boolean leaf;
+
+        void add(String path) {
+            Node node = this;
+            for (String name : path.split("\\.", -1)) {
+                if (node.leaf) {
+                    // A parent field is already projected as a whole
+                    return;
+                }
+                node = node.getOrAddChild(name);
+            }
+            node.leaf = true;
+            node.keys.clear();
+            node.names.clear();
+            node.children.clear();
+        }
+
+        private Node getOrAddChild(String name) {
+            Node child = getChild(name);
+            if (child != null) {
+                return child;
+            }
+            child = new Node();
+            keys.add(name);
+            names.add(name.getBytes(UTF8));
+            children.add(child);
+            return child;
+        }
+
+        @Nullable
+        Node getChild(ByteBuf source, int nameIndex, int nameLength) {
+            for (int i = 0; i < names.size(); i++) {
+                if (RawBSONUtil.equals(source, nameIndex, nameLength, names.get(i))) {
+                    return children.get(i);
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        Node getChild(String name) {
+            int i = keys.indexOf(name);
+            return i < 0 ? null : children.get(i);
+        }
+
+        boolean isLeaf() {
+            return leaf;
+        }
+
+        @Override
+        public String toString() {
+            if (leaf) {
+                return "*";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(keys.get(i)).append(": ").append(children.get(i));
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private static class ProjectFunction implements Function<BSONDocument, BSONDocument> {
+        private final RawProjection projection;
+
+        ProjectFunction(RawProjection projection) {
+            this.projection = projection;
+        }
+
+        @Override
+        public BSONDocument apply(@Nonnull BSONDocument input) {
+            return projection.apply(input);
+        }
+    }
+}
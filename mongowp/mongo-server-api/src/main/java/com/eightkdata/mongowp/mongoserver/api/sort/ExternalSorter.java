@@ -0,0 +1,414 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.BSONKeyEncoder;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * Sorts documents by a {@link SortSpec}, using temporary files when they do
+ * not fit in memory.
+ * <p>
+ * Documents are copied as encoded BSON to chunks of the heap, next to their
+ * sort keys. The memory used is the capacity of the chunks plus the keys and
+ * the overhead of each entry. When it would go above the memory limit, the
+ * documents added since the last spill are sorted and written as a run to a
+ * temporary file (see {@link RunFile}). Sorting merges the runs on disk and the one in memory
+ * lazily, as the returned iterator is read.
+ * <p>
+ * With a limit, only the best documents seen so far are kept on a bounded
+ * heap, so documents that cannot be on the result are not even copied. If
+ * the documents of the limit do not fit in memory, the sorter falls back to
+ * spilling runs and stops the result at the limit.
+ * <p>
+ * The sort is stable: documents with equal keys are returned in the order
+ * they were added.
+ */
+@NotThreadSafe
+public class ExternalSorter implements Closeable {
+    /**
+     * The highest memory limit
+     */
+    public static final long MAX_MEMORY_LIMIT = 1L << 30;
+
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    /**
+     * Chunks are at most this fraction of the memory limit, so the unused end
+     * of the last one is a small part of it
+     */
+    private static final int CHUNKS_PER_LIMIT = 8;
+
+    private final SortSpec sortSpec;
+    private final long memoryLimit;
+    @Nullable private final File spillDirectory;
+    private final int limit;
+    private final int chunkBytes;
+
+    private final List<ByteBuf> chunks = new ArrayList<ByteBuf>();
+    private final List<SortEntry> entries = new ArrayList<SortEntry>();
+    /**
+     * The best entries, with the worst one on top. Only used with a limit
+     * whose documents fit in memory
+     */
+    @Nullable private PriorityQueue<SortEntry> topEntries;
+    private final List<RunFile> runs = new ArrayList<RunFile>();
+    private long memoryBytes;
+    private long spilledBytes;
+    private long sequence;
+    private boolean sorted;
+    private boolean closed;
+
+    /**
+     * @param memoryLimit    the bytes the chunks of documents and the keys can
+     *                       take on the heap before they are spilled
+     * @param spillDirectory the directory of the temporary files, or null to
+     *                       use the default temporary directory
+     * @param limit          the number of documents to return, or 0 to return
+     *                       all of them
+     */
+    public ExternalSorter(
+            @Nonnull SortSpec sortSpec,
+            @Nonnegative long memoryLimit,
+            @Nullable File spillDirectory,
+            @Nonnegative int limit) {
+        Preconditions.checkArgument(memoryLimit > 0, "The memory limit must be positive");
+        Preconditions.checkArgument(
+                memoryLimit <= MAX_MEMORY_LIMIT, "The memory limit cannot be above %s", MAX_MEMORY_LIMIT
+        );
+        Preconditions.checkArgument(limit >= 0, "The limit cannot be negative");
+        this.sortSpec = sortSpec;
+        this.memoryLimit = memoryLimit;
+        this.spillDirectory = spillDirectory;
+        this.limit = limit;
+        this.chunkBytes = (int) Math.max(1, Math.min(CHUNK_BYTES, memoryLimit / CHUNKS_PER_LIMIT));
+        this.topEntries = limit > 0
+                ? new PriorityQueue<SortEntry>(Math.min(limit, 1024), Collections.reverseOrder(SortEntry.ORDER))
+                : null;
+    }
+
+    /**
+     * Adds a document, encoding it
+     */
+    public void add(@Nonnull BSONDocument document) throws IOException {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        document.writeToByteBuf(buffer);
+        add(buffer, 0);
+    }
+
+    /**
+     * Adds the document encoded at the given index. Its bytes are copied, so
+     * the buffer can be released once this method returns.
+     */
+    public void add(@Nonnull ByteBuf buffer, @Nonnegative int index) throws IOException {
+        Preconditions.checkState(!sorted && !closed, "Documents cannot be added once sorted");
+        byte[] key = sortSpec.getKey(buffer, index);
+        int length = RawBSONUtil.getDocumentLength(buffer, index);
+        long entrySequence = sequence++;
+
+        PriorityQueue<SortEntry> top = topEntries;
+        if (top != null) {
+            if (top.size() >= limit) {
+                SortEntry worst = top.peek();
+                // Equal keys keep the first document
+                if (BSONKeyEncoder.compare(key, worst.getKey()) >= 0) {
+                    return;
+                }
+                SortEntry removed = top.poll();
+                memoryBytes -= removed.getLength() + removed.getOverheadBytes();
+            }
+            ByteBuf copy = Unpooled.copiedBuffer(buffer.slice(index, length));
+            SortEntry entry = new SortEntry(key, entrySequence, copy, 0, length);
+            top.add(entry);
+            memoryBytes += length + entry.getOverheadBytes();
+            if (memoryBytes >= memoryLimit) {
+                entries.addAll(top);
+                topEntries = null;
+                spill();
+            }
+            return;
+        }
+
+        ByteBuf chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.writableBytes() < length) {
+            int capacity = Math.max(chunkBytes, length);
+            if (!entries.isEmpty() && memoryBytes + capacity > memoryLimit) {
+                spill();
+            }
+            chunk = Unpooled.buffer(capacity, capacity);
+            chunks.add(chunk);
+            memoryBytes += capacity;
+        }
+        int chunkIndex = chunk.writerIndex();
+        chunk.writeBytes(buffer, index, length);
+        SortEntry entry = new SortEntry(key, entrySequence, chunk, chunkIndex, length);
+        entries.add(entry);
+        memoryBytes += entry.getOverheadBytes();
+        if (memoryBytes >= memoryLimit) {
+            spill();
+        }
+    }
+
+    /**
+     * Adds all the documents
+     */
+    public void addAll(@Nonnull Iterable<? extends BSONDocument> documents) throws IOException {
+        for (BSONDocument document : documents) {
+            add(document);
+        }
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(entries, SortEntry.ORDER);
+        RunFile run = RunFile.write(spillDirectory, entries);
+        runs.add(run);
+        spilledBytes += run.getSize();
+        entries.clear();
+        chunks.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * Sorts the added documents. No more documents can be added.
+     *
+     * @return the documents in order, copied to the heap as they are read.
+     *         The iterator is {@link Closeable} and closing it closes this
+     *         sorter
+     */
+    @Nonnull
+    public Iterator<BSONDocument> sort() throws IOException {
+        Preconditions.checkState(!sorted && !closed, "The documents have already been sorted");
+        sorted = true;
+        if (topEntries != null) {
+            entries.addAll(topEntries);
+            topEntries = null;
+        }
+        Collections.sort(entries, SortEntry.ORDER);
+        if (runs.isEmpty()) {
+            return new SortedIterator(this, new ListRun(entries), limit);
+        }
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size() + 1, new RunComparator());
+        for (RunFile runFile : runs) {
+            RunFile.Cursor cursor = runFile.open();
+            if (cursor != null) {
+                queue.add(new FileRun(cursor));
+            }
+        }
+        if (!entries.isEmpty()) {
+            queue.add(new ListRun(entries));
+        }
+        return new SortedIterator(this, new MergedRun(queue), limit);
+    }
+
+    /**
+     * @return the number of runs spilled to temporary files
+     */
+    public int getSpilledRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return the bytes written to temporary files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Releases the memory and deletes the temporary files
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (RunFile run : runs) {
+            run.close();
+        }
+        runs.clear();
+        entries.clear();
+        chunks.clear();
+        topEntries = null;
+        memoryBytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ExternalSorter{" + sortSpec + ", limit: " + limit + ", spilled runs: " + runs.size() + '}';
+    }
+
+    /**
+     * Sorted entries, read in order
+     */
+    private abstract static class Run {
+        /**
+         * @return the current entry, or null if the run is exhausted
+         */
+        @Nullable
+        abstract SortEntry getCurrent();
+
+        abstract void next() throws IOException;
+    }
+
+    private static final class ListRun extends Run {
+        private final List<SortEntry> entries;
+        private int position;
+
+        ListRun(List<SortEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        SortEntry getCurrent() {
+            return position < entries.size() ? entries.get(position) : null;
+        }
+
+        @Override
+        void next() {
+            position++;
+        }
+    }
+
+    private static final class FileRun extends Run {
+        private final RunFile.Cursor cursor;
+
+        FileRun(RunFile.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        SortEntry getCurrent() {
+            return cursor.getCurrent();
+        }
+
+        @Override
+        void next() throws IOException {
+            cursor.next();
+        }
+    }
+
+    /**
+     * The k-way merge of several runs, by the current entry of each one
+     */
+    private static final class MergedRun extends Run {
+        private final PriorityQueue<Run> queue;
+
+        MergedRun(PriorityQueue<Run> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        SortEntry getCurrent() {
+            Run first = queue.peek();
+            return first == null ? null : first.getCurrent();
+        }
+
+        @Override
+        void next() throws IOException {
+            Run first = queue.poll();
+            if (first != null) {
+                first.next();
+                if (first.getCurrent() != null) {
+                    queue.add(first);
+                }
+            }
+        }
+    }
+
+    private static final class RunComparator implements Comparator<Run>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(Run run1, Run run2) {
+            SortEntry entry1 = run1.getCurrent();
+            SortEntry entry2 = run2.getCurrent();
+            assert entry1 != null && entry2 != null;
+            return SortEntry.ORDER.compare(entry1, entry2);
+        }
+    }
+
+    private static final class SortedIterator extends AbstractIterator<BSONDocument> implements Closeable {
+        private final ExternalSorter sorter;
+        private final Run run;
+        private final int limit;
+        private int returned;
+
+        SortedIterator(ExternalSorter sorter, Run run, int limit) {
+            this.sorter = sorter;
+            this.run = run;
+            this.limit = limit;
+        }
+
+        @Override
+        protected BSONDocument computeNext() {
+            if (sorter.closed) {
+                return endOfData();
+            }
+            SortEntry entry = run.getCurrent();
+            if (entry == null || (limit > 0 && returned >= limit)) {
+                sorter.close();
+                return endOfData();
+            }
+            // The entry of a run file is only valid until its cursor moves
+            BSONDocument document = SortedDocument.copyOf(entry.getBuffer(), entry.getIndex(), entry.getLength());
+            try {
+                run.next();
+            } catch (IOException exception) {
+                sorter.close();
+                throw new RuntimeException("Error while reading a sort run", exception);
+            }
+            returned++;
+            return document;
+        }
+
+        @Override
+        public void close() {
+            sorter.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * A sorted run spilled to a temporary file by an {@link ExternalSorter}.
+ * Each entry is written as the length of its key, its key, its sequence and
+ * its document. The file is read back through a bounded heap window per
+ * cursor, refilled with positional reads as the merge moves on, so merging
+ * many runs does not map or load them as a whole. The window grows to fit an
+ * entry bigger than it.
+ * <p>
+ * The file is deleted when it is closed.
+ */
+@NotThreadSafe
+class RunFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunFile.class);
+
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int READ_WINDOW_BYTES = 64 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final long size;
+
+    private RunFile(File file, RandomAccessFile randomAccessFile, long size) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.size = size;
+    }
+
+    /**
+     * @param directory the directory of the file, or null to use the default
+     *                  temporary directory
+     * @param entries   the sorted entries
+     */
+    @Nonnull
+    static RunFile write(@Nullable File directory, @Nonnull List<SortEntry> entries) throws IOException {
+        File file = File.createTempFile("mongowp-sort-", ".run", directory);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuf buffer = Unpooled.buffer(WRITE_BUFFER_BYTES);
+            long size = 0;
+            for (SortEntry entry : entries) {
+                buffer.writeInt(entry.getKey().length);
+                buffer.writeBytes(entry.getKey());
+                buffer.writeLong(entry.getSequence());
+                buffer.writeBytes(entry.getBuffer(), entry.getIndex(), entry.getLength());
+                if (buffer.readableBytes() >= WRITE_BUFFER_BYTES) {
+                    size += flush(buffer, channel);
+                }
+            }
+            size += flush(buffer, channel);
+            return new RunFile(file, randomAccessFile, size);
+        } catch (IOException exception) {
+            delete(file, randomAccessFile);
+            throw exception;
+        } catch (RuntimeException exception) {
+            delete(file, randomAccessFile);
+            throw exception;
+        }
+    }
+
+    private static long flush(ByteBuf buffer, FileChannel channel) throws IOException {
+        long written = 0;
+        while (buffer.isReadable()) {
+            written += buffer.readBytes(channel, buffer.readableBytes());
+        }
+        buffer.clear();
+        return written;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return a cursor on the first entry of the run, or null if it is empty
+     */
+    @Nullable
+    Cursor open() throws IOException {
+        if (size == 0) {
+            return null;
+        }
+        Cursor cursor = new Cursor(randomAccessFile.getChannel(), size);
+        cursor.next();
+        return cursor;
+    }
+
+    void close() {
+        delete(file, randomAccessFile);
+    }
+
+    private static void delete(File file, @Nullable RandomAccessFile randomAccessFile) {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException exception) {
+                LOGGER.warn("Error while closing the sort run file " + file, exception);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Reads the entries of a run in order. The current entry points to the
+     * window, so it is only valid until the cursor moves.
+     */
+    @NotThreadSafe
+    static class Cursor {
+        private final FileChannel channel;
+        private final long size;
+        /**
+         * The bytes of the file from the current entry on. Its reader index is
+         * the start of the next entry
+         */
+        private final ByteBuf window = Unpooled.buffer(READ_WINDOW_BYTES);
+        /**
+         * The position on the file of the next byte to load on the window
+         */
+        private long filePosition;
+        @Nullable private SortEntry current;
+
+        private Cursor(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * @return the current entry, or null if the run is exhausted
+         */
+        @Nullable
+        SortEntry getCurrent() {
+            return current;
+        }
+
+        /**
+         * Moves to the next entry
+         */
+        void next() throws IOException {
+            if (!window.isReadable() && filePosition >= size) {
+                current = null;
+                return;
+            }
+            ensureReadable(4);
+            int keyLength = window.getInt(window.readerIndex());
+            int headerLength = 4 + keyLength + 8;
+            ensureReadable(headerLength + 4);
+            int position = window.readerIndex();
+            byte[] key = new byte[keyLength];
+            window.getBytes(position + 4, key);
+            long sequence = window.getLong(position + 4 + keyLength);
+            int documentLength = RawBSONUtil.getDocumentLength(window, position + headerLength);
+            ensureReadable(headerLength + documentLength);
+            // The window may have been compacted
+            int documentIndex = window.readerIndex() + headerLength;
+            current = new SortEntry(key, sequence, window, documentIndex, documentLength);
+            window.skipBytes(headerLength + documentLength);
+        }
+
+        /**
+         * Loads the file on the window until it has the given bytes from its
+         * reader index on, moving them to its start or growing it if needed
+         */
+        private void ensureReadable(int bytes) throws IOException {
+            if (window.readableBytes() >= bytes) {
+                return;
+            }
+            window.discardReadBytes();
+            if (window.capacity() < bytes) {
+                window.capacity(bytes);
+            }
+            while (window.readableBytes() < bytes) {
+                int toRead = (int) Math.min(window.writableBytes(), size - filePosition);
+                if (toRead <= 0) {
+                    throw new EOFException("The sort run ends in the middle of an entry");
+                }
+                ByteBuffer destination = window.nioBuffer(window.writerIndex(), toRead);
+                int read = channel.read(destination, filePosition);
+                if (read < 0) {
+                    throw new EOFException("The sort run ends in the middle of an entry");
+                }
+                window.writerIndex(window.writerIndex() + read);
+                filePosition += read;
+            }
+        }
+    }
+}
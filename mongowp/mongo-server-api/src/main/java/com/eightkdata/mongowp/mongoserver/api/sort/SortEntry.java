@@ -0,0 +1,134 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.eightkdata.nettybson.api.BSONKeyEncoder;
+
+/**
+ * A document to sort: its sort key and where its bytes are.
+ * <p>
+ * The first eight bytes of the key are also kept as a long, so most
+ * comparisons are decided by comparing two longs, without reading the keys.
+ * Entries with equal keys are ordered by the sequence in which they were
+ * added, so sorts are stable.
+ */
+@Immutable
+final class SortEntry {
+    static final Comparator<SortEntry> ORDER = new EntryComparator();
+    /**
+     * The heap bytes used by an entry besides its key and its document
+     */
+    static final int OVERHEAD_BYTES = 64;
+
+    private final byte[] key;
+    private final long prefix;
+    private final long sequence;
+    private final ByteBuf buffer;
+    private final int index;
+    private final int length;
+
+    SortEntry(@Nonnull byte[] key, long sequence, @Nonnull ByteBuf buffer, int index, int length) {
+        this.key = key;
+        this.prefix = prefix(key);
+        this.sequence = sequence;
+        this.buffer = buffer;
+        this.index = index;
+        this.length = length;
+    }
+
+    private static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix <<= 8;
+            if (i < key.length) {
+                prefix |= key[i] & 0xFF;
+            }
+        }
+        return prefix;
+    }
+
+    @Nonnull
+    byte[] getKey() {
+        return key;
+    }
+
+    /**
+     * @return the buffer that holds the encoded document
+     */
+    @Nonnull
+    ByteBuf getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the index of the first byte of the document on its buffer
+     */
+    int getIndex() {
+        return index;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the heap bytes used by the entry, without its document
+     */
+    int getOverheadBytes() {
+        return key.length + OVERHEAD_BYTES;
+    }
+
+    static int compareKeys(@Nonnull SortEntry entry1, @Nonnull SortEntry entry2) {
+        if (entry1.prefix != entry2.prefix) {
+            // Unsigned comparison
+            return (entry1.prefix ^ Long.MIN_VALUE) < (entry2.prefix ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        return BSONKeyEncoder.compare(entry1.key, entry2.key);
+    }
+
+    private static final class EntryComparator implements Comparator<SortEntry>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(SortEntry entry1, SortEntry entry2) {
+            int comparison = compareKeys(entry1, entry2);
+            if (comparison != 0) {
+                return comparison;
+            }
+            return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence > entry2.sequence ? 1 : 0);
+        }
+    }
+}
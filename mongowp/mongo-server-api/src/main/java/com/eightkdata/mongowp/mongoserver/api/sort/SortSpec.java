@@ -0,0 +1,197 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+
+import com.google.common.collect.ImmutableList;
+
+import com.eightkdata.nettybson.api.BSONKeyEncoder;
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.FieldPath;
+import com.eightkdata.nettybson.api.RawBSONComparator;
+
+/**
+ * A sort specification, like <code>{a: 1, "b.c": -1}</code>, that computes
+ * the sort key of encoded documents. Keys are the {@link BSONKeyEncoder}
+ * compound keys of the values of the sorted fields, so documents are ordered
+ * by comparing their keys as unsigned bytes.
+ * <p>
+ * When a path reaches several values, because it goes through arrays, the
+ * lowest one is used by ascending fields and the highest one by descending
+ * fields, as MongoDB does. Missing values and empty arrays sort as null.
+ * <p>
+ * <code>$meta</code> sorts are not supported.
+ */
+@Immutable
+public final class SortSpec {
+    private static final ByteBuf NULL_VALUE = Unpooled.wrappedBuffer(new byte[] {0});
+
+    private final ImmutableList<Field> fields;
+
+    private SortSpec(ImmutableList<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @return the specification, or null if the document is empty
+     * @throws IllegalArgumentException If the specification is not valid
+     */
+    @Nullable
+    public static SortSpec compile(@Nullable BSONObject specification) {
+        if (specification == null || specification.keySet().isEmpty()) {
+            return null;
+        }
+        ImmutableList.Builder<Field> fields = ImmutableList.builder();
+        for (String path : specification.keySet()) {
+            Object direction = specification.get(path);
+            if (!(direction instanceof Number)) {
+                throw new IllegalArgumentException("Unsupported sort direction for " + path + ": " + direction);
+            }
+            double value = ((Number) direction).doubleValue();
+            if (value == 0 || Double.isNaN(value)) {
+                throw new IllegalArgumentException("The sort direction must be 1 or -1 on " + path);
+            }
+            if (path.isEmpty() || path.startsWith("$")) {
+                throw new IllegalArgumentException("Invalid sort field: " + path);
+            }
+            fields.add(new Field(path, value < 0));
+        }
+        return new SortSpec(fields.build());
+    }
+
+    /**
+     * @return true iff the only sorted field is the given one
+     */
+    public boolean isOnlyField(@Nonnull String path) {
+        return fields.size() == 1 && fields.get(0).path.getPath().equals(path);
+    }
+
+    /**
+     * @return true iff the first sorted field is descending
+     */
+    public boolean isFirstDescending() {
+        return fields.get(0).descending;
+    }
+
+    /**
+     * @param index the index of the first byte of the document
+     * @return the sort key of the document
+     * @throws IllegalArgumentException If a sorted value cannot be encoded as
+     *                                  a key
+     */
+    @Nonnull
+    public byte[] getKey(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        ByteBuf out = Unpooled.buffer(16 * fields.size());
+        for (Field field : fields) {
+            field.writeKey(buffer, index, out);
+        }
+        byte[] key = new byte[out.readableBytes()];
+        out.readBytes(key);
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return fields.toString();
+    }
+
+    @Immutable
+    private static final class Field {
+        private final FieldPath path;
+        private final boolean descending;
+
+        Field(String path, boolean descending) {
+            this.path = FieldPath.of(path);
+            this.descending = descending;
+        }
+
+        /**
+         * Only the elements of the arrays at the end of the path are sorted
+         */
+        void writeKey(ByteBuf buffer, int index, ByteBuf out) {
+            Extreme extreme = new Extreme(descending);
+            path.visit(buffer, index, false, extreme);
+            if (extreme.buffer == null) {
+                BSONKeyEncoder.writeNull(out, descending);
+            }
+            else {
+                BSONKeyEncoder.write(out, extreme.buffer, extreme.type, extreme.valueIndex, descending);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + (descending ? -1 : 1);
+        }
+    }
+
+    /**
+     * The lowest or highest of the values a path reaches
+     */
+    private static final class Extreme implements FieldPath.Visitor {
+        private final boolean highest;
+        @Nullable private ByteBuf buffer;
+        @Nullable private BSONType type;
+        private int valueIndex;
+
+        Extreme(boolean highest) {
+            this.highest = highest;
+        }
+
+        @Override
+        public boolean visit(@Nonnull ByteBuf candidateBuffer, @Nullable BSONType candidateType, int candidateValueIndex) {
+            if (candidateType == null) {
+                consider(NULL_VALUE, BSONType.NULL, 0);
+            }
+            else {
+                consider(candidateBuffer, candidateType, candidateValueIndex);
+            }
+            return false;
+        }
+
+        private void consider(ByteBuf candidateBuffer, BSONType candidateType, int candidateValueIndex) {
+            if (buffer != null) {
+                assert type != null;
+                int comparison = RawBSONComparator.compare(
+                        candidateBuffer, candidateType, candidateValueIndex, buffer, type, valueIndex
+                );
+                if (highest ? comparison <= 0 : comparison >= 0) {
+                    return;
+                }
+            }
+            buffer = candidateBuffer;
+            type = candidateType;
+            valueIndex = candidateValueIndex;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+
+import com.eightkdata.nettybson.api.AbstractRawBSONDocument;
+
+/**
+ * A document returned by an {@link ExternalSorter}, copied to the heap so it
+ * stays valid once the sorter is closed. It is written as the sorted bytes
+ * and only decoded if its keys or values are read; the typed accessors
+ * read the bytes.
+ */
+@Immutable
+class SortedDocument extends AbstractRawBSONDocument {
+    private volatile BSONObject decoded;
+
+    private SortedDocument(byte[] bytes) {
+        super(bytes);
+    }
+
+    /**
+     * @param index the index of the first byte of the encoded document
+     */
+    static SortedDocument copyOf(@Nonnull ByteBuf buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        buffer.getBytes(index, bytes);
+        return new SortedDocument(bytes);
+    }
+
+    @Nonnull
+    BSONObject getBSONObject() {
+        BSONObject result = decoded;
+        if (result == null) {
+            result = new BasicBSONDecoder().readObject(getBytes());
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getKeys() {
+        return getBSONObject().keySet();
+    }
+
+    @Override
+    public Object getValue(@Nonnull String key) {
+        return getBSONObject().get(key);
+    }
+
+    @Override
+    public String toString() {
+        return getBSONObject().toString();
+    }
+}
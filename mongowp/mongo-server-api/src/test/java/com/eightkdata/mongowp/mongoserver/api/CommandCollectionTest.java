@@ -0,0 +1,69 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api;
+
+import org.bson.BSONObject;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ */
+public class CommandCollectionTest {
+
+    @Test
+    public void collectionCommandsNameTheirCollection() {
+        assertEquals("c", collectionOf("{count: 'c', query: {a: 1}}"));
+        assertEquals("c", collectionOf("{find: 'c'}"));
+        assertEquals("c", collectionOf("{findandmodify: 'c', query: {}}"));
+        assertEquals("c", collectionOf("{collStats: 'c'}"));
+        assertEquals("c", collectionOf("{drop: 'c'}"));
+    }
+
+    @Test
+    public void otherCommandsRunOnTheDatabase() {
+        assertNull(collectionOf("{getLog: 'global'}"));
+        assertNull(collectionOf("{eval: 'function() {}'}"));
+        assertNull(collectionOf("{renameCollection: 'db.a', to: 'db.b'}"));
+        assertNull(collectionOf("{authenticate: 1, user: 'u'}"));
+        assertNull(collectionOf("{dbStats: 1}"));
+        assertNull(collectionOf("{}"));
+    }
+
+    @Test
+    public void collectionsMustBeNonEmptyStrings() {
+        assertNull(collectionOf("{count: ''}"));
+        assertNull(collectionOf("{count: 1}"));
+    }
+
+    private static String collectionOf(String command) {
+        return AbstractRequestProcessor.getCommandCollection(new MongoBSONDocument((BSONObject) JSON.parse(command)));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.cache;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.DefaultAttributeMap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.commands.AggregateReply;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ResultCacheTest {
+    private static final String COUNT = "{count: 'a', query: {x: 1}}";
+
+    /**
+     * The messages written to the channel, in order
+     */
+    private final List<Object> replies = new ArrayList<Object>();
+    private ResultCache cache;
+    private MessageReplier messageReplier;
+
+    @Before
+    public void setUp() {
+        cache = new ResultCache(100, 1, TimeUnit.HOURS);
+        ChannelHandlerContext ctx = newContext(replies);
+        ctx.attr(MessageReplier.REQUEST_ID).set(1);
+        messageReplier = new MessageReplier(ctx);
+    }
+
+    @Test
+    public void repeatedCommandsAreRepliedFromTheCache() {
+        store(cache.lookup("db", "a", "count", parse(COUNT)), "{n: 3, ok: 1}");
+
+        assertTrue(cache.lookup("db", "a", "count", parse(COUNT)).replyIfCached(messageReplier));
+        assertEquals(parse("{n: 3, ok: 1}"), lastReply());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        assertFalse(isCached("db", "a", "count", "{count: 'a', query: {x: 2}}"));
+        assertFalse(isCached("db", "a", "distinct", COUNT));
+        assertFalse(isCached("other", "a", "count", COUNT));
+    }
+
+    @Test
+    public void expiredRepliesAreNotServed() throws Exception {
+        cache = new ResultCache(100, 10, TimeUnit.MILLISECONDS);
+        store(cache.lookup("db", "a", "count", parse(COUNT)), "{n: 3, ok: 1}");
+        Thread.sleep(50);
+
+        assertFalse(isCached("db", "a", "count", COUNT));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void writesInvalidateTheirCollectionAndDatabase() {
+        store(cache.lookup("db", "a", "count", parse(COUNT)), "{n: 3, ok: 1}");
+        store(cache.lookup("db", "b", "count", parse(COUNT)), "{n: 4, ok: 1}");
+        store(cache.lookup("db", null, "dbStats", null), "{collections: 2, ok: 1}");
+
+        cache.invalidate("db", "a");
+        assertFalse(isCached("db", "a", "count", COUNT));
+        assertTrue(isCached("db", "b", "count", COUNT));
+        assertFalse(isCached("db", null, "dbStats", null));
+    }
+
+    @Test
+    public void databaseInvalidationsDiscardAllItsReplies() {
+        store(cache.lookup("db", "a", "count", parse(COUNT)), "{n: 3, ok: 1}");
+        store(cache.lookup("db", null, "dbStats", null), "{collections: 2, ok: 1}");
+        store(cache.lookup("other", "a", "count", parse(COUNT)), "{n: 5, ok: 1}");
+
+        cache.invalidate("db", null);
+        assertFalse(isCached("db", "a", "count", COUNT));
+        assertFalse(isCached("db", null, "dbStats", null));
+        assertTrue(isCached("other", "a", "count", COUNT));
+    }
+
+    @Test
+    public void repliesComputedDuringWritesAreNotServed() {
+        ResultCache.Lookup lookup = cache.lookup("db", "a", "count", parse(COUNT));
+        cache.invalidate("db", "a");
+        store(lookup, "{n: 3, ok: 1}");
+
+        assertFalse(isCached("db", "a", "count", COUNT));
+    }
+
+    @Test
+    public void cursorAndFailureRepliesAreNotCached() {
+        cache.lookup("db", "a", "find", null).capture(messageReplier)
+                .replyMessage(5, 0, toDocument("{x: 1}"));
+        cache.lookup("db", "a", "count", null).capture(messageReplier)
+                .replyQueryCommandFailure(MongoWP.ErrorCode.INTERNAL_ERROR);
+        store(cache.lookup("db", "a", "distinct", null), "{errmsg: 'failed', ok: 0}");
+        store(cache.lookup("db", "a", "aggregate", null), "{cursor: {id: 7, firstBatch: []}, ok: 1}");
+        AggregateReply.cursor("db.a", 7, Collections.<BSONDocument>emptyList())
+                .reply(cache.lookup("db", "a", "aggregate", parse("{}")).capture(messageReplier));
+        assertEquals(0, cache.size());
+
+        store(cache.lookup("db", "a", "listIndexes", null), "{cursor: {id: 0, firstBatch: []}, ok: 1}");
+        assertEquals(1, cache.size());
+    }
+
+    private void store(ResultCache.Lookup lookup, String reply) {
+        assertFalse(lookup.replyIfCached(messageReplier));
+        lookup.capture(messageReplier).replyMessageNoCursor(toDocument(reply));
+    }
+
+    private boolean isCached(String database, String collection, String command, String arguments) {
+        return cache.lookup(database, collection, command, arguments != null ? parse(arguments) : null)
+                .replyIfCached(messageReplier);
+    }
+
+    private BSONObject lastReply() {
+        ReplyMessage reply = (ReplyMessage) replies.get(replies.size() - 1);
+        assertEquals(1, reply.getDocuments().size());
+        return ((MongoBSONDocument) reply.getDocuments().iterator().next()).getBSONObject();
+    }
+
+    private static BSONDocument toDocument(String json) {
+        return new MongoBSONDocument(parse(json));
+    }
+
+    private static BSONObject parse(String json) {
+        return (BSONObject) JSON.parse(json);
+    }
+
+    /**
+     * A context that records the messages written to it
+     */
+    private static ChannelHandlerContext newContext(final List<Object> written) {
+        final DefaultAttributeMap attributes = new DefaultAttributeMap();
+        return (ChannelHandlerContext) Proxy.newProxyInstance(
+                ResultCacheTest.class.getClassLoader(),
+                new Class<?>[] {ChannelHandlerContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("attr".equals(method.getName())) {
+                            return attributes.attr((AttributeKey<?>) args[0]);
+                        }
+                        if ("writeAndFlush".equals(method.getName())) {
+                            written.add(args[0]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class WTinyLfuCacheTest {
+
+    @Test
+    public void theSizeIsBounded() {
+        WTinyLfuCache<Integer, Integer> cache = new WTinyLfuCache<Integer, Integer>(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(Integer.valueOf(999), cache.get(999));
+    }
+
+    @Test
+    public void frequentEntriesSurviveScans() {
+        WTinyLfuCache<Integer, Integer> cache = new WTinyLfuCache<Integer, Integer>(100);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 10; i++) {
+                cache.get(i);
+            }
+        }
+        // A scan five times bigger than the cache, whose entries are used once
+        for (int i = 1000; i < 1500; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), cache.get(i));
+        }
+    }
+
+    @Test
+    public void removedEntriesAreNotReturned() {
+        WTinyLfuCache<Integer, Integer> cache = new WTinyLfuCache<Integer, Integer>(100);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+        cache.remove(0);
+        cache.remove(49);
+        assertNull(cache.get(0));
+        assertNull(cache.get(49));
+        assertEquals(48, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.Test;
+
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class DeadlineTest {
+
+    @Test
+    public void commandsAndQueriesHaveTheirOption() {
+        Deadline command = Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c").append("maxTimeMS", 60000)));
+        assertTrue(command.isBounded());
+        assertTrue(command.getRemaining(TimeUnit.SECONDS) > 0);
+
+        Deadline query = Deadline.forRequest(query("db.c", new BasicBSONObject("$query", new BasicBSONObject()).append("$maxTimeMS", 60000L)));
+        assertTrue(query.isBounded());
+        assertFalse(query.isExpired());
+    }
+
+    @Test
+    public void noOrZeroTimeIsNotBounded() {
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c"))));
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c").append("maxTimeMS", 0))));
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.c", new BasicBSONObject("maxTimeMS", 60000))));
+    }
+
+    @Test
+    public void valuesOfOtherTypesAreIgnored() {
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c").append("maxTimeMS", "60000"))));
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c").append("maxTimeMS", UUID.randomUUID()))));
+        assertSame(Deadline.NONE, Deadline.forRequest(query("db.$cmd", new BasicBSONObject("count", "c").append("maxTimeMS", new byte[] {1}))));
+    }
+
+    private static QueryMessage query(String namespace, BSONObject document) {
+        return new QueryMessage(
+                new RequestBaseMessage(InetAddress.getLoopbackAddress(), 27017, 1),
+                0,
+                namespace,
+                0,
+                1,
+                new MongoBSONDocument(document),
+                null
+        );
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.callback;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.junit.Test;
+
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class ErrorReplyDocumentTest {
+
+    @Test
+    public void errorsAreWrittenAsBSON() {
+        BSONObject error = decode(ErrorReplyDocument.of(
+                ErrorReplyDocument.QUERY_MESSAGE_KEY,
+                MongoWP.ErrorCode.INTERNAL_ERROR.format("boom"),
+                MongoWP.ErrorCode.INTERNAL_ERROR.getErrorCode()));
+        assertEquals(Arrays.asList("ok", "$err", "code"), Arrays.asList(error.keySet().toArray()));
+        assertEquals(0.0, error.get("ok"));
+        assertEquals("Internal error: boom", error.get("$err"));
+        assertEquals(MongoWP.ErrorCode.INTERNAL_ERROR.getErrorCode(), error.get("code"));
+
+        BSONObject commandError = decode(ErrorReplyDocument.of(ErrorReplyDocument.COMMAND_MESSAGE_KEY, "failed", 2));
+        assertEquals("failed", commandError.get("errmsg"));
+    }
+
+    @Test
+    public void documentsCanBeReadWithoutDecodingThem() {
+        BSONDocument error = ErrorReplyDocument.of(ErrorReplyDocument.COMMAND_MESSAGE_KEY, "failed", 2);
+        assertEquals(0.0, error.getValue("ok"));
+        assertEquals("failed", error.getValue("errmsg"));
+        assertEquals(2, error.getInt("code", 0));
+    }
+
+    @Test
+    public void nonAsciiMessagesAreEncodedAsUtf8() {
+        assertEquals("cl\u00e9 \u00fcn\u00efcode", message("cl\u00e9 \u00fcn\u00efcode"));
+        // surrogate pairs are encoded as a single four byte character
+        assertEquals("emoji \uD83D\uDE00 here", message("emoji \uD83D\uDE00 here"));
+        assertEquals(4 + 1, utf8Length("\uD83D\uDE00"));
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() {
+        assertEquals("a?b", message("a\uD83Db"));
+        assertEquals("?", message("\uDE00"));
+    }
+
+    private static String message(String message) {
+        return (String) decode(ErrorReplyDocument.of(ErrorReplyDocument.COMMAND_MESSAGE_KEY, message, 1))
+                .get("errmsg");
+    }
+
+    /**
+     * @return the length of the errmsg string as written, including its
+     *         trailing zero
+     */
+    private static int utf8Length(String message) {
+        ByteBuf buffer = encode(ErrorReplyDocument.of(ErrorReplyDocument.COMMAND_MESSAGE_KEY, message, 1));
+        // document length, ok element and the type and name of errmsg
+        int stringStart = 4 + (1 + 3 + 8) + (1 + 7);
+        return buffer.getInt(stringStart);
+    }
+
+    private static ByteBuf encode(BSONDocument document) {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        document.writeToByteBuf(buffer);
+        return buffer;
+    }
+
+    private static BSONObject decode(BSONDocument document) {
+        ByteBuf buffer = encode(document);
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return new BasicBSONDecoder().readObject(bytes);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.commands;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ */
+public class AggregateReplyTest {
+    private static final List<BSONDocument> DOCUMENTS = Arrays.asList(
+            toDocument("{_id: 1, a: 'x'}"), toDocument("{_id: 2, a: {b: [1, 2]}}"));
+
+    @Test
+    public void cursorsWrapTheirFirstBatch() {
+        AggregateReply reply = AggregateReply.cursor("db.coll", 42, DOCUMENTS);
+        assertEquals(Long.valueOf(42), reply.getCursorId());
+        assertEquals(
+                JSON.serialize(parse("{cursor: {id: 42, ns: 'db.coll', firstBatch: [{_id: 1, a: 'x'}, {_id: 2, a: {b: [1, 2]}}]}, ok: 1.0}")),
+                JSON.serialize(decode(reply)));
+    }
+
+    @Test
+    public void inlineResultsAndStagesAreArrays() {
+        AggregateReply inline = AggregateReply.inline(DOCUMENTS);
+        assertNull(inline.getCursorId());
+        assertEquals(
+                JSON.serialize(parse("{result: [{_id: 1, a: 'x'}, {_id: 2, a: {b: [1, 2]}}], ok: 1.0}")),
+                JSON.serialize(decode(inline)));
+        assertEquals(
+                JSON.serialize(parse("{stages: [], ok: 1.0}")),
+                JSON.serialize(decode(AggregateReply.explain(Collections.<BSONDocument>emptyList()))));
+    }
+
+    private static BSONObject decode(AggregateReply reply) {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        reply.toDocument().writeToByteBuf(buffer);
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return new BasicBSONDecoder().readObject(bytes);
+    }
+
+    private static BSONDocument toDocument(String json) {
+        return new MongoBSONDocument(parse(json));
+    }
+
+    private static BSONObject parse(String json) {
+        return (BSONObject) JSON.parse(json);
+    }
+}
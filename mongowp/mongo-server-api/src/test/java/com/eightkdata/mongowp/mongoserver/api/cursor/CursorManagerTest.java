@@ -0,0 +1,335 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.cursor;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.DefaultAttributeMap;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.eightkdata.mongowp.messages.request.GetMoreMessage;
+import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.commands.QueryRequest;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class CursorManagerTest {
+    private static final long NO_MEMORY = 0;
+    private static final long ENOUGH_MEMORY = 64 * 1024 * 1024;
+    private static final int PADDING_BYTES = 1000;
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    /**
+     * The messages written to the channel, in order
+     */
+    private final List<Object> replies = new ArrayList<Object>();
+    private ChannelHandlerContext ctx;
+
+    @Before
+    public void setUp() {
+        ctx = newContext(replies);
+        ctx.attr(MessageReplier.REQUEST_ID).set(1);
+    }
+
+    @Test
+    public void spooledDocumentsAreSentOnGetMores() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        long cursorId = reply(manager, 250);
+        assertNotEquals(0, cursorId);
+        assertFirstBatch(cursorId, 0, CursorManager.DEFAULT_FIRST_BATCH_SIZE);
+        assertEquals(1, manager.getOpenCursors());
+        assertTrue(manager.getMemoryBytes() > 0);
+        assertEquals(0, manager.getDiskBytes());
+
+        assertTrue(manager.getMore(getMore(cursorId, 100), new MessageReplier(ctx)));
+        assertBatch(cursorId, 101, 201);
+        assertTrue(manager.getMore(getMore(cursorId, 0), new MessageReplier(ctx)));
+        assertBatch(0, 201, 250);
+
+        assertEquals(0, manager.getOpenCursors());
+        assertEquals(0, manager.getMemoryBytes());
+    }
+
+    @Test
+    public void smallResultsDoNotOpenCursors() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        assertEquals(0, reply(manager, 20));
+        assertFirstBatch(0, 0, 20);
+        assertEquals(0, manager.getOpenCursors());
+        assertEquals(0, manager.getTotalOpened());
+    }
+
+    @Test
+    public void cursorsSpillToDiskOverTheMemoryLimit() throws Exception {
+        CursorManager manager = newManager(NO_MEMORY);
+        long cursorId = reply(manager, 500);
+        assertFirstBatch(cursorId, 0, CursorManager.DEFAULT_FIRST_BATCH_SIZE);
+        assertEquals(0, manager.getMemoryBytes());
+        assertTrue(manager.getDiskBytes() > 399L * PADDING_BYTES);
+        assertEquals(1, countSpillFiles());
+
+        assertTrue(manager.getMore(getMore(cursorId, 150), new MessageReplier(ctx)));
+        assertBatch(cursorId, 101, 251);
+        assertTrue(manager.getMore(getMore(cursorId, 0), new MessageReplier(ctx)));
+        assertBatch(0, 251, 500);
+
+        assertEquals(0, manager.getDiskBytes());
+        assertEquals(0, countSpillFiles());
+    }
+
+    @Test
+    public void cursorsSpillOnceTheirMemoryIsFull() throws Exception {
+        // The first chunk is spooled in memory and the rest does not fit
+        CursorManager manager = newManager(1);
+        long cursorId = reply(manager, 3000);
+        assertFirstBatch(cursorId, 0, CursorManager.DEFAULT_FIRST_BATCH_SIZE);
+        assertEquals(SpooledCursor.CHUNK_BYTES, manager.getMemoryBytes());
+        assertTrue(manager.getDiskBytes() > 0);
+
+        int position = CursorManager.DEFAULT_FIRST_BATCH_SIZE;
+        while (position < 3000) {
+            assertTrue(manager.getMore(getMore(cursorId, 700), new MessageReplier(ctx)));
+            int end = Math.min(position + 700, 3000);
+            assertBatch(end < 3000 ? cursorId : 0, position, end);
+            position = end;
+        }
+        assertEquals(0, manager.getMemoryBytes());
+        assertEquals(0, manager.getDiskBytes());
+        assertEquals(0, countSpillFiles());
+    }
+
+    @Test
+    public void documentsBiggerThanAChunkAreSpooled() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        List<BSONDocument> documents = newDocuments(3);
+        ((MongoBSONDocument) documents.get(2)).getBSONObject()
+                .put("padding", new byte[2 * SpooledCursor.CHUNK_BYTES]);
+        long cursorId = manager.reply(newQuery(1), documents, new MessageReplier(ctx));
+        assertFirstBatch(cursorId, 0, 1);
+        assertTrue(manager.getMemoryBytes() > 2 * SpooledCursor.CHUNK_BYTES);
+
+        assertTrue(manager.getMore(getMore(cursorId, 0), new MessageReplier(ctx)));
+        assertBatch(0, 1, 3);
+        assertEquals(0, manager.getMemoryBytes());
+    }
+
+    @Test
+    public void killedCursorsReleaseTheirBytes() throws Exception {
+        CursorManager manager = newManager(NO_MEMORY);
+        long cursorId = reply(manager, 300);
+        assertEquals(1, countSpillFiles());
+
+        assertTrue(manager.killCursors(killCursors(cursorId)));
+        assertEquals(0, manager.getOpenCursors());
+        assertEquals(0, manager.getDiskBytes());
+        assertEquals(0, countSpillFiles());
+        assertFalse(manager.getMore(getMore(cursorId, 0), new MessageReplier(ctx)));
+    }
+
+    @Test
+    public void unknownCursorsAreLeftToTheBackend() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        long cursorId = reply(manager, 300);
+
+        assertFalse(manager.killCursors(killCursors(cursorId, cursorId + 1)));
+        assertEquals(0, manager.getOpenCursors());
+        assertFalse(manager.getMore(getMore(cursorId + 1, 0), new MessageReplier(ctx)));
+    }
+
+    @Test
+    public void idleCursorsAreClosed() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        reply(manager, 300);
+        long noTimeoutCursorId = manager.reply(
+                newQuery(0, true), newDocuments(300), new MessageReplier(ctx));
+
+        manager.closeIdleCursors(System.nanoTime());
+        assertEquals(2, manager.getOpenCursors());
+
+        manager.closeIdleCursors(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+        assertEquals(1, manager.getOpenCursors());
+        assertEquals(1, manager.getTimedOut());
+        assertTrue(manager.getMore(getMore(noTimeoutCursorId, 0), new MessageReplier(ctx)));
+        assertEquals(0, manager.getMemoryBytes());
+    }
+
+    @Test
+    public void readCursorsAreNotIdle() throws Exception {
+        CursorManager manager = newManager(ENOUGH_MEMORY);
+        long cursorId = reply(manager, 300);
+        long start = System.nanoTime();
+
+        // The getMore is the last access, so the cursor is idle a minute less
+        Thread.sleep(10);
+        assertTrue(manager.getMore(getMore(cursorId, 10), new MessageReplier(ctx)));
+        manager.closeIdleCursors(start + TimeUnit.MINUTES.toNanos(1) + TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(1, manager.getOpenCursors());
+    }
+
+    private CursorManager newManager(long memoryLimit) {
+        return new CursorManager(memoryLimit, spillDirectory.getRoot(), 1, TimeUnit.MINUTES);
+    }
+
+    private long reply(CursorManager manager, int count) throws Exception {
+        return manager.reply(newQuery(0), newDocuments(count), new MessageReplier(ctx));
+    }
+
+    private QueryRequest newQuery(int limit) {
+        return newQuery(limit, false);
+    }
+
+    private QueryRequest newQuery(int limit, boolean noCursorTimeout) {
+        return new QueryRequest.Builder("test", ctx, "coll")
+                .setQuery(new BasicBSONObject())
+                .setLimit(limit)
+                .setNoCursorTimeout(noCursorTimeout)
+                .build();
+    }
+
+    private static GetMoreMessage getMore(long cursorId, int numberToReturn) throws Exception {
+        return new GetMoreMessage(newBaseMessage(), "test.coll", numberToReturn, cursorId);
+    }
+
+    private static KillCursorsMessage killCursors(long... cursorIds) throws Exception {
+        return new KillCursorsMessage(newBaseMessage(), cursorIds.length, cursorIds);
+    }
+
+    private static RequestBaseMessage newBaseMessage() throws Exception {
+        return new RequestBaseMessage(InetAddress.getLoopbackAddress(), 27017, 2);
+    }
+
+    private int countSpillFiles() {
+        File[] files = spillDirectory.getRoot().listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * @return documents whose <code>seq</code> is their position in the list
+     */
+    private static List<BSONDocument> newDocuments(int count) {
+        List<BSONDocument> documents = new ArrayList<BSONDocument>(count);
+        for (int i = 0; i < count; i++) {
+            BSONObject document = new BasicBSONObject("seq", i)
+                    .append("padding", new byte[PADDING_BYTES]);
+            documents.add(new MongoBSONDocument(document));
+        }
+        return documents;
+    }
+
+    /**
+     * Checks the next reply is the first batch, with the documents from start
+     * to end
+     */
+    private void assertFirstBatch(long cursorId, int start, int end) {
+        ReplyMessage reply = (ReplyMessage) replies.remove(0);
+        assertEquals(cursorId, reply.getCursorId());
+        assertSequence(new ArrayList<BSONDocument>(reply.getDocuments()), start, end);
+    }
+
+    /**
+     * Checks the next reply is a getMore batch, with the documents from start
+     * to end
+     */
+    private void assertBatch(long cursorId, int start, int end) {
+        PreEncodedReply reply = ((PreEncodedReply.Message) replies.remove(0)).getReply();
+        assertEquals(end - start, reply.getNumberReturned());
+
+        ByteBuf body = reply.retainedBody().order(ByteOrder.LITTLE_ENDIAN);
+        List<BSONDocument> documents = new ArrayList<BSONDocument>();
+        try {
+            assertEquals(0, body.readInt());
+            assertEquals(cursorId, body.readLong());
+            assertEquals(start, body.readInt());
+            assertEquals(end - start, body.readInt());
+            while (body.isReadable()) {
+                documents.add(new MongoBSONDocument(body));
+            }
+        } finally {
+            body.release();
+        }
+        assertSequence(documents, start, end);
+    }
+
+    private static void assertSequence(List<BSONDocument> documents, int start, int end) {
+        assertEquals(end - start, documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            assertEquals(start + i, documents.get(i).getValue("seq"));
+        }
+    }
+
+    /**
+     * A context that records the messages written to it
+     */
+    private static ChannelHandlerContext newContext(final List<Object> written) {
+        final DefaultAttributeMap attributes = new DefaultAttributeMap();
+        return (ChannelHandlerContext) Proxy.newProxyInstance(
+                CursorManagerTest.class.getClassLoader(),
+                new Class<?>[] {ChannelHandlerContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("attr".equals(method.getName())) {
+                            return attributes.attr((AttributeKey<?>) args[0]);
+                        }
+                        if ("writeAndFlush".equals(method.getName())) {
+                            written.add(args[0]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.matcher;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RawMatcherTest {
+
+    @Test
+    public void emptyFiltersMatchEverything() {
+        assertTrue(RawMatcher.compile(null).matchesAll());
+        assertTrue(RawMatcher.compile(parse("{}")).matchesAll());
+        assertMatches("{}", "{a: 1}");
+    }
+
+    @Test
+    public void negationsMatchMissingFields() {
+        assertMatches("{a: {$ne: 1}}", "{}");
+        assertMatches("{a: {$ne: 1}}", "{a: 2}");
+        assertNotMatches("{a: {$ne: 1}}", "{a: 1}");
+        assertNotMatches("{a: {$ne: 1}}", "{a: [2, 1]}");
+
+        assertMatches("{a: {$nin: [1, 2]}}", "{}");
+        assertMatches("{a: {$nin: [1, 2]}}", "{a: 3}");
+        assertNotMatches("{a: {$nin: [1, 2]}}", "{a: [3, 2]}");
+
+        assertMatches("{'a.b': {$ne: 1}}", "{a: 1}");
+        assertMatches("{a: {$not: {$gt: 1}}}", "{}");
+        assertMatches("{$nor: [{a: 1}]}", "{}");
+    }
+
+    @Test
+    public void nullMatchesMissingFields() {
+        assertMatches("{a: null}", "{}");
+        assertMatches("{a: null}", "{a: null}");
+        assertNotMatches("{a: null}", "{a: 0}");
+        assertMatches("{'a.b': null}", "{a: {c: 1}}");
+        assertMatches("{'a.b': null}", "{a: [1, 2]}");
+        assertMatches("{'a.b': null}", "{a: [{c: 1}]}");
+        assertNotMatches("{'a.b': null}", "{a: [{b: 1}, 2]}");
+        assertMatches("{'a.b': {$exists: false}}", "{a: [1, 2]}");
+        assertNotMatches("{'a.b': {$exists: true}}", "{a: [1, 2]}");
+        assertMatches("{a: {$in: [null, 5]}}", "{}");
+
+        assertNotMatches("{a: {$ne: null}}", "{}");
+        assertMatches("{a: {$ne: null}}", "{a: 0}");
+
+        assertMatches("{a: {$exists: false}}", "{}");
+        assertNotMatches("{a: {$exists: false}}", "{a: null}");
+        assertMatches("{a: {$exists: true}}", "{a: null}");
+    }
+
+    @Test
+    public void comparisonsAreBracketedByType() {
+        assertNotMatches("{a: {$gt: 1}}", "{a: '2'}");
+        assertNotMatches("{a: {$lt: 'b'}}", "{a: 1}");
+        assertMatches("{a: {$lt: 'b'}}", "{a: 'a'}");
+        assertNotMatches("{a: {$gte: null}}", "{a: 1}");
+        assertNotMatches("{a: {$lt: {$date: 0}}}", "{a: -1}");
+    }
+
+    @Test
+    public void numbersAreComparedByValue() {
+        assertMatches("{a: 1}", "{a: 1.0}");
+        assertMatches("{a: {$numberLong: '1'}}", "{a: 1}");
+        assertMatches("{a: {$gte: 2}}", "{a: {$numberLong: '2'}}");
+        assertMatches("{a: {$gt: 2}}", "{a: 2.5}");
+        assertNotMatches("{a: {$lt: 2}}", "{a: 2.0}");
+        assertMatches("{a: {$in: [3]}}", "{a: 3.0}");
+    }
+
+    @Test
+    public void arraysAreTraversed() {
+        assertMatches("{a: 2}", "{a: [1, 2]}");
+        assertMatches("{'a.b': 2}", "{a: [{b: 1}, {b: 2}]}");
+        assertNotMatches("{'a.b': 3}", "{a: [{b: 1}, {b: 2}]}");
+        assertMatches("{'a.b.c': 1}", "{a: [{b: [{c: 0}, {c: 1}]}]}");
+
+        // Each operator can be satisfied by a different element
+        assertMatches("{a: {$gt: 1, $lt: 3}}", "{a: [0, 5]}");
+        assertNotMatches("{a: {$gt: 1, $lt: 3}}", "{a: [0, 0]}");
+
+        // Whole arrays are compared as values
+        assertMatches("{a: [1, 2]}", "{a: [1, 2]}");
+        assertNotMatches("{a: [1, 2]}", "{a: [2, 1]}");
+        assertMatches("{a: [1, 2]}", "{a: [[1, 2], 3]}");
+    }
+
+    @Test
+    public void numericNamesArePositionsAndFieldNames() {
+        assertMatches("{'a.0': 1}", "{a: [1, 2]}");
+        assertNotMatches("{'a.1': 1}", "{a: [1, 2]}");
+        assertMatches("{'a.0.b': 1}", "{a: [{b: 1}]}");
+        assertMatches("{'a.0': 1}", "{a: {'0': 1}}");
+    }
+
+    @Test
+    public void logicalOperators() {
+        assertMatches("{$or: [{a: 1}, {b: 1}]}", "{b: 1}");
+        assertNotMatches("{$or: [{a: 1}, {b: 1}]}", "{a: 2}");
+        assertMatches("{$and: [{a: {$gt: 0}}, {a: {$lt: 2}}]}", "{a: 1}");
+        assertNotMatches("{$nor: [{a: 1}, {b: 1}]}", "{b: 1}");
+        assertMatches("{a: {$not: {$gt: 1}}}", "{a: 1}");
+    }
+
+    @Test
+    public void typesAndRegularExpressions() {
+        assertMatches("{a: {$type: 2}}", "{a: 'x'}");
+        assertNotMatches("{a: {$type: 2}}", "{a: 1}");
+        assertMatches("{a: {$regex: '^x', $options: 'i'}}", "{a: 'Xy'}");
+        assertNotMatches("{a: {$regex: '^x'}}", "{a: 'yx'}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOperatorsAreRejected() {
+        RawMatcher.compile(parse("{$where: 'true'}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidValuesAreRejected() {
+        RawMatcher.compile(parse("{a: {$in: 1}}"));
+    }
+
+    @Test
+    public void plansAreSharedByTheFiltersOfTheSameShape() {
+        MatcherPlanCache cache = new MatcherPlanCache(2);
+        RawMatcher one = RawMatcher.compile(parse("{a: {$gt: 1}, b: 'x'}"), cache);
+        RawMatcher two = RawMatcher.compile(parse("{b: 'y', a: {$gt: 5}}"), cache);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // Each matcher keeps its own values
+        assertTrue(one.matches(encode("{a: 2, b: 'x'}"), 0));
+        assertFalse(two.matches(encode("{a: 2, b: 'y'}"), 0));
+        assertTrue(two.matches(encode("{a: 6, b: 'y'}"), 0));
+
+        RawMatcher.compile(parse("{c: 1}"), cache);
+        RawMatcher.compile(parse("{d: 1}"), cache);
+        assertEquals(2, cache.size());
+    }
+
+    private static void assertMatches(String filter, String document) {
+        assertTrue(filter + " should match " + document, matches(filter, document));
+    }
+
+    private static void assertNotMatches(String filter, String document) {
+        assertFalse(filter + " should not match " + document, matches(filter, document));
+    }
+
+    private static boolean matches(String filter, String document) {
+        return RawMatcher.compile(parse(filter), new MatcherPlanCache(1)).matches(encode(document), 0);
+    }
+
+    private static BSONObject parse(String json) {
+        return (BSONObject) JSON.parse(json);
+    }
+
+    private static ByteBuf encode(String json) {
+        return Unpooled.wrappedBuffer(new BasicBSONEncoder().encode(parse(json)));
+    }
+}
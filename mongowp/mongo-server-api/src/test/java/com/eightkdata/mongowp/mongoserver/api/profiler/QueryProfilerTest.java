@@ -0,0 +1,87 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class QueryProfilerTest {
+    private QueryProfiler profiler;
+
+    @Before
+    public void setUp() {
+        profiler = new QueryProfiler(4);
+        profiler.capture(newEntry("query", "a", 1));
+        profiler.capture(newEntry("insert", "a", 0));
+        profiler.capture(newEntry("query", "b", 10));
+    }
+
+    @Test
+    public void queriesAreMatchedAsCollectionFilters() {
+        assertEquals(3, profiler.query("db", null).size());
+        assertEquals(2, profiler.query("db", parse("{op: 'query'}")).size());
+        assertEquals(1, profiler.query("db", parse("{ns: {$in: ['db.b']}, nreturned: {$gte: 5}}")).size());
+        assertEquals(2, profiler.query("db", parse("{$or: [{op: 'insert'}, {nreturned: 10}]}")).size());
+        assertEquals(3, profiler.query("db", parse("{client: {$exists: false}}")).size());
+        assertEquals(0, profiler.query("other", parse("{op: 'query'}")).size());
+    }
+
+    @Test
+    public void entriesAreKeptUpToTheCapacity() {
+        profiler.capture(newEntry("query", "c", 2));
+        profiler.capture(newEntry("query", "d", 3));
+        List<BSONDocument> entries = profiler.query("db", null);
+        assertEquals(4, entries.size());
+        assertEquals("db.a", entries.get(0).getValue("ns"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOperatorsAreRejected() {
+        profiler.query("db", parse("{op: {$elemMatch: {a: 1}}}"));
+    }
+
+    private static ProfileEntry newEntry(String op, String collection, int numberReturned) {
+        return new ProfileEntry.Builder()
+                .setOp(op)
+                .setNamespace("db", collection)
+                .setNumberReturned(numberReturned)
+                .build();
+    }
+
+    private static BSONObject parse(String json) {
+        return (BSONObject) JSON.parse(json);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.profiler;
+
+import org.bson.BSONObject;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ *
+ */
+public class QueryShapeTest {
+
+    @Test
+    public void valuesAreReplaced() {
+        assertShape("{a: 1, b: 1}", "{b: 'x', a: 3}");
+        assertShape("{a: {$gt: 1, $lt: 1}}", "{a: {$lt: 10, $gt: 5}}");
+        assertShape("{a: {$in: 1}}", "{a: {$in: [1, 2, 3]}}");
+        assertShape("{$or: [{a: 1}, {b: {$exists: 1}}]}", "{$or: [{a: 'x'}, {b: {$exists: false}}]}");
+        assertShape("{}", null);
+    }
+
+    @Test
+    public void queriesThatOnlyDifferOnTheirValuesShareTheShape() {
+        assertSameShape("{a: 1, b: 'x'}", "{b: 'y', a: 3}");
+        assertSameShape("{a: {$in: [1, 2]}}", "{a: {$in: []}}");
+        assertSameShape("{a: {$gt: 5}}", "{a: {$gt: 'x'}}");
+        assertSameShape("{$and: [{a: 1}, {b: 2}]}", "{$and: [{a: 3}, {b: 4}]}");
+    }
+
+    @Test
+    public void differentShapesHaveDifferentKeys() {
+        assertDifferentShapes("{a: 1, b: 1}", "{a1b: 1}");
+        assertDifferentShapes("{a: 1}", "{'a\\u00001': 1}");
+        assertDifferentShapes("{a: {}, '': 1}", "{a: {'}': 1}}");
+        assertDifferentShapes("{a: {b: 1}}", "{a: 1, b: 1}");
+        assertDifferentShapes("{a: {$gt: 1}}", "{a: 1}");
+        assertDifferentShapes("{$or: [{a: 1}, {b: 1}]}", "{$or: [{a: 1, b: 1}]}");
+        assertDifferentShapes("{a: [{b: 1}]}", "{a: {b: 1}}");
+        assertDifferentShapes("{}", "{'': 1}");
+    }
+
+    private static void assertShape(String expected, String query) {
+        assertEquals(parse(expected), QueryShape.of(parse(query)).getShape());
+    }
+
+    private static void assertSameShape(String query, String other) {
+        QueryShape shape = QueryShape.of(parse(query));
+        QueryShape otherShape = QueryShape.of(parse(other));
+        assertEquals(shape, otherShape);
+        assertEquals(shape.getKey(), otherShape.getKey());
+    }
+
+    private static void assertDifferentShapes(String query, String other) {
+        QueryShape shape = QueryShape.of(parse(query));
+        QueryShape otherShape = QueryShape.of(parse(other));
+        assertNotEquals(shape, otherShape);
+        assertNotEquals(shape.getKey(), otherShape.getKey());
+    }
+
+    private static BSONObject parse(String json) {
+        return json == null ? null : (BSONObject) JSON.parse(json);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.projection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RawProjectionTest {
+    private static final String DOCUMENT = "{_id: 1, a: 2, b: 3}";
+
+    @Test
+    public void emptyProjectionsSelectEverything() {
+        assertNull(RawProjection.compile(null));
+        assertNull(RawProjection.compile(parse("{}")));
+    }
+
+    @Test
+    public void inclusionsKeepTheIdUnlessExcluded() {
+        assertTrue(RawProjection.compile(parse("{a: 1}")).isInclusion());
+        assertProjects("{a: 1}", DOCUMENT, "{_id: 1, a: 2}");
+        assertProjects("{a: true}", DOCUMENT, "{_id: 1, a: 2}");
+        assertProjects("{a: 1, _id: 0}", DOCUMENT, "{a: 2}");
+        assertProjects("{a: 1, _id: 1}", DOCUMENT, "{_id: 1, a: 2}");
+        assertProjects("{_id: 1}", DOCUMENT, "{_id: 1}");
+        assertProjects("{c: 1}", DOCUMENT, "{_id: 1}");
+    }
+
+    @Test
+    public void exclusionsKeepTheIdUnlessExcluded() {
+        assertFalse(RawProjection.compile(parse("{a: 0}")).isInclusion());
+        assertProjects("{a: 0}", DOCUMENT, "{_id: 1, b: 3}");
+        assertProjects("{a: false}", DOCUMENT, "{_id: 1, b: 3}");
+        assertProjects("{a: 0, _id: 0}", DOCUMENT, "{b: 3}");
+        assertProjects("{_id: 0}", DOCUMENT, "{a: 2, b: 3}");
+        assertProjects("{c: 0}", DOCUMENT, DOCUMENT);
+    }
+
+    @Test
+    public void nestedPathsSelectFieldsOfEmbeddedDocuments() {
+        String document = "{_id: 1, a: {b: 1, c: {d: 2, e: 3}}, f: 4}";
+        assertProjects("{'a.b': 1}", document, "{_id: 1, a: {b: 1}}");
+        assertProjects("{'a.c.d': 1, f: 1}", document, "{_id: 1, a: {c: {d: 2}}, f: 4}");
+        assertProjects("{'a.b': 1, 'a.c': 1}", document, "{_id: 1, a: {b: 1, c: {d: 2, e: 3}}}");
+        assertProjects("{'a.c.d': 0}", document, "{_id: 1, a: {b: 1, c: {e: 3}}, f: 4}");
+        assertProjects("{'a.z': 1}", document, "{_id: 1, a: {}}");
+    }
+
+    @Test
+    public void nestedPathsStopAtScalars() {
+        assertProjects("{'a.b': 1}", "{_id: 1, a: 5}", "{_id: 1}");
+        assertProjects("{'a.b': 0}", "{_id: 1, a: 5}", "{_id: 1, a: 5}");
+    }
+
+    @Test
+    public void nestedPathsSelectFieldsOfTheDocumentsOfArrays() {
+        String document = "{_id: 1, a: [{b: 1, c: 1}, {c: 2}, 5, [{b: 3, c: 3}, 6]]}";
+        assertProjects("{'a.b': 1}", document, "{_id: 1, a: [{b: 1}, {}, [{b: 3}]]}");
+        assertProjects("{'a.b': 0}", document, "{_id: 1, a: [{c: 1}, {c: 2}, 5, [{c: 3}, 6]]}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mixedProjectionsAreRejected() {
+        RawProjection.compile(parse("{a: 1, b: 0}"));
+    }
+
+    @Test
+    public void operatorsAreRejected() {
+        assertRejected("{'a.$': 1}");
+        assertRejected("{a: {$slice: 2}}");
+        assertRejected("{a: {$elemMatch: {b: 1}}}");
+        assertRejected("{$meta: 'textScore'}");
+        assertRejected("{a: 'x'}");
+    }
+
+    /**
+     * Both the encoded and the decoded documents are projected
+     */
+    private static void assertProjects(String projection, String document, String expected) {
+        RawProjection compiled = RawProjection.compile(parse(projection));
+        String expectedJson = JSON.serialize(parse(expected));
+
+        ByteBuf source = Unpooled.wrappedBuffer(new BasicBSONEncoder().encode(parse(document)));
+        ByteBuf out = Unpooled.buffer();
+        compiled.project(source, 0, out);
+        byte[] projected = new byte[out.readableBytes()];
+        out.readBytes(projected);
+        assertEquals(projection + " on " + document, expectedJson, JSON.serialize(new BasicBSONDecoder().readObject(projected)));
+
+        assertEquals(projection + " on " + document, expectedJson, JSON.serialize(compiled.project(parse(document))));
+    }
+
+    private static void assertRejected(String projection) {
+        try {
+            RawProjection.compile(parse(projection));
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError(projection + " should be rejected");
+    }
+
+    private static BSONObject parse(String json) {
+        return (BSONObject) JSON.parse(json);
+    }
+}
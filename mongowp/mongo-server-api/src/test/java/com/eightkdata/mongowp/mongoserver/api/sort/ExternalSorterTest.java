@@ -0,0 +1,225 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.api.sort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ExternalSorterTest {
+    private static final SortSpec BY_KEY = SortSpec.compile(new BasicBSONObject("key", 1));
+    private static final int PADDING_BYTES = 1000;
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    @Test
+    public void sortsInMemory() throws Exception {
+        ExternalSorter sorter = newSorter(ExternalSorter.MAX_MEMORY_LIMIT, 0);
+        List<BSONObject> documents = newDocuments(500, 50);
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertSorted(documents, sorter.sort(), 0);
+        assertEquals(0, sorter.getSpilledRuns());
+    }
+
+    @Test
+    public void sortsAreStableAcrossRuns() throws Exception {
+        // Few distinct keys, so most documents are equal to others on every run
+        ExternalSorter sorter = newSorter(16 * 1024, 0);
+        List<BSONObject> documents = newDocuments(400, 5);
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertTrue(sorter.getSpilledRuns() > 1);
+        assertSorted(documents, sorter.sort(), 0);
+    }
+
+    @Test
+    public void mergesManyRuns() throws Exception {
+        ExternalSorter sorter = newSorter(8 * 1024, 0);
+        List<BSONObject> documents = newDocuments(1000, 1000);
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertTrue(sorter.getSpilledRuns() >= 10);
+        assertTrue(sorter.getSpilledBytes() > 1000L * PADDING_BYTES);
+        assertSorted(documents, sorter.sort(), 0);
+    }
+
+    @Test
+    public void documentsBiggerThanTheWindowAreMerged() throws Exception {
+        ExternalSorter sorter = newSorter(64 * 1024, 0);
+        List<BSONObject> documents = newDocuments(40, 40);
+        for (int i = 0; i < documents.size(); i += 7) {
+            documents.get(i).put("padding", new byte[200 * 1024]);
+        }
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertTrue(sorter.getSpilledRuns() > 1);
+        assertSorted(documents, sorter.sort(), 0);
+    }
+
+    @Test
+    public void limitsKeepTheBestDocumentsInMemory() throws Exception {
+        ExternalSorter sorter = newSorter(ExternalSorter.MAX_MEMORY_LIMIT, 10);
+        List<BSONObject> documents = newDocuments(500, 20);
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertSorted(documents, sorter.sort(), 10);
+        assertEquals(0, sorter.getSpilledRuns());
+    }
+
+    @Test
+    public void limitsThatDoNotFitInMemorySpill() throws Exception {
+        ExternalSorter sorter = newSorter(16 * 1024, 100);
+        List<BSONObject> documents = newDocuments(500, 20);
+        for (BSONObject document : documents) {
+            sorter.add(toDocument(document));
+        }
+        assertTrue(sorter.getSpilledRuns() > 0);
+        assertSorted(documents, sorter.sort(), 100);
+    }
+
+    @Test
+    public void filesAreDeletedWhenTheResultIsRead() throws Exception {
+        ExternalSorter sorter = newSorter(8 * 1024, 0);
+        for (BSONObject document : newDocuments(100, 100)) {
+            sorter.add(toDocument(document));
+        }
+        assertEquals(sorter.getSpilledRuns(), countRunFiles());
+        assertTrue(countRunFiles() > 0);
+
+        Iterator<BSONDocument> sorted = sorter.sort();
+        while (sorted.hasNext()) {
+            sorted.next();
+        }
+        assertEquals(0, countRunFiles());
+    }
+
+    @Test
+    public void filesAreDeletedWhenTheResultIsClosed() throws Exception {
+        ExternalSorter sorter = newSorter(8 * 1024, 0);
+        for (BSONObject document : newDocuments(100, 100)) {
+            sorter.add(toDocument(document));
+        }
+        Iterator<BSONDocument> sorted = sorter.sort();
+        sorted.next();
+        assertTrue(countRunFiles() > 0);
+
+        ((Closeable) sorted).close();
+        assertEquals(0, countRunFiles());
+        assertFalse(sorted.hasNext());
+    }
+
+    @Test
+    public void filesAreDeletedWhenTheSorterIsClosed() throws Exception {
+        ExternalSorter sorter = newSorter(8 * 1024, 0);
+        for (BSONObject document : newDocuments(100, 100)) {
+            sorter.add(toDocument(document));
+        }
+        assertTrue(countRunFiles() > 0);
+        sorter.close();
+        assertEquals(0, countRunFiles());
+    }
+
+    private ExternalSorter newSorter(long memoryLimit, int limit) {
+        return new ExternalSorter(BY_KEY, memoryLimit, spillDirectory.getRoot(), limit);
+    }
+
+    private int countRunFiles() {
+        File[] files = spillDirectory.getRoot().listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * @return documents with random keys between 0 and the given number, and
+     *         their position in the list as <code>seq</code>
+     */
+    private static List<BSONObject> newDocuments(int count, int keys) {
+        Random random = new Random(count * 31 + keys);
+        List<BSONObject> documents = new ArrayList<BSONObject>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(new BasicBSONObject("key", random.nextInt(keys))
+                    .append("seq", i)
+                    .append("padding", new byte[PADDING_BYTES]));
+        }
+        return documents;
+    }
+
+    private static BSONDocument toDocument(BSONObject document) {
+        return new MongoBSONDocument(document);
+    }
+
+    /**
+     * Checks the result is the stable sort of the documents, cut at the limit
+     */
+    private static void assertSorted(List<BSONObject> documents, Iterator<BSONDocument> sorted, int limit) {
+        List<BSONObject> expected = new ArrayList<BSONObject>(documents);
+        // Collections.sort is stable
+        Collections.sort(expected, new Comparator<BSONObject>() {
+            @Override
+            public int compare(BSONObject document1, BSONObject document2) {
+                return ((Integer) document1.get("key")).compareTo((Integer) document2.get("key"));
+            }
+        });
+        if (limit > 0) {
+            expected = expected.subList(0, limit);
+        }
+        int position = 0;
+        while (sorted.hasNext()) {
+            BSONDocument document = sorted.next();
+            assertTrue("More documents than expected", position < expected.size());
+            BSONObject expectedDocument = expected.get(position);
+            assertEquals(expectedDocument.get("key"), document.getValue("key"));
+            assertEquals("At position " + position, expectedDocument.get("seq"), document.getValue("seq"));
+            position++;
+        }
+        assertEquals(expected.size(), position);
+    }
+}
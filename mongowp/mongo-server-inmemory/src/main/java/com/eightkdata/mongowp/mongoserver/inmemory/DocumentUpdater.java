@@ -0,0 +1,286 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+/**
+ * Applies the update documents of the update commands. An update is either a
+ * replacement document or a document of <code>$set</code>,
+ * <code>$unset</code> and <code>$inc</code> operators on dotted paths.
+ */
+final class DocumentUpdater {
+
+    private DocumentUpdater() {
+    }
+
+    /**
+     * @return the new version of the document. The original is not modified
+     * @throws IllegalArgumentException If the update is not supported or not
+     *                                  valid on the document
+     */
+    @Nonnull
+    static BSONObject apply(@Nonnull BSONObject original, @Nonnull BSONObject update) {
+        BSONObject result;
+        if (isReplacement(update)) {
+            result = new BasicBSONObject();
+            if (original.containsField("_id")) {
+                result.put("_id", original.get("_id"));
+            }
+            for (String key : update.keySet()) {
+                if (!"_id".equals(key)) {
+                    result.put(key, update.get(key));
+                }
+                else if (!Matcher.valuesEqual(original.get("_id"), update.get("_id"))) {
+                    throw new IllegalArgumentException("The _id field cannot be changed");
+                }
+            }
+            return result;
+        }
+
+        result = (BSONObject) copy(original);
+        for (String operator : update.keySet()) {
+            Object arguments = update.get(operator);
+            if (!(arguments instanceof BSONObject) || arguments instanceof List) {
+                throw new IllegalArgumentException("Modifiers operate on fields but we found " + arguments + " instead");
+            }
+            BSONObject fields = (BSONObject) arguments;
+            for (String path : fields.keySet()) {
+                Object value = fields.get(path);
+                if ("$set".equals(operator)) {
+                    setPath(result, path, copy(value));
+                }
+                else if ("$unset".equals(operator)) {
+                    unsetPath(result, path);
+                }
+                else if ("$inc".equals(operator)) {
+                    if (!(value instanceof Number)) {
+                        throw new IllegalArgumentException("Cannot increment with non-numeric argument: " + path);
+                    }
+                    Object current = getPath(result, path);
+                    if (current != null && !(current instanceof Number)) {
+                        throw new IllegalArgumentException("Cannot apply $inc to a value of non-numeric type: " + path);
+                    }
+                    setPath(result, path, current == null ? value : add((Number) current, (Number) value));
+                }
+                else {
+                    throw new IllegalArgumentException("Unsupported update operator: " + operator);
+                }
+            }
+        }
+        if (!Matcher.valuesEqual(original.get("_id"), result.get("_id"))) {
+            throw new IllegalArgumentException("The _id field cannot be changed");
+        }
+        return result;
+    }
+
+    /**
+     * @return the document inserted by an upsert whose filter matched no
+     *         document: the equalities of the filter with the update applied
+     */
+    @Nonnull
+    static BSONObject upsert(@Nullable BSONObject filter, @Nonnull BSONObject update) {
+        BSONObject base = new BasicBSONObject();
+        if (filter != null) {
+            for (String key : filter.keySet()) {
+                Object value = filter.get(key);
+                if (!key.startsWith("$") && !isOperatorDocument(value)) {
+                    setPath(base, key, copy(value));
+                }
+            }
+        }
+        if (isReplacement(update)) {
+            BSONObject result = new BasicBSONObject();
+            if (base.containsField("_id")) {
+                result.put("_id", base.get("_id"));
+            }
+            result.putAll(update);
+            return result;
+        }
+        return apply(base, update);
+    }
+
+    /**
+     * @throws IllegalArgumentException If operators and fields are mixed
+     */
+    static boolean isReplacement(@Nonnull BSONObject update) {
+        boolean operators = false;
+        boolean fields = false;
+        for (String key : update.keySet()) {
+            if (key.startsWith("$")) {
+                operators = true;
+            }
+            else {
+                fields = true;
+            }
+        }
+        if (operators && fields) {
+            throw new IllegalArgumentException("Update operators cannot be mixed with fields");
+        }
+        return !operators;
+    }
+
+    private static boolean isOperatorDocument(Object value) {
+        if (!(value instanceof BSONObject) || value instanceof List) {
+            return false;
+        }
+        for (String key : ((BSONObject) value).keySet()) {
+            if (key.startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Object getPath(BSONObject document, String path) {
+        Object current = document;
+        for (String element : path.split("\\.")) {
+            if (current instanceof List) {
+                int position = parsePosition(element);
+                List<?> list = (List<?>) current;
+                current = position >= 0 && position < list.size() ? list.get(position) : null;
+            }
+            else if (current instanceof BSONObject) {
+                current = ((BSONObject) current).get(element);
+            }
+            else {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setPath(BSONObject document, String path, Object value) {
+        String[] elements = path.split("\\.");
+        Object current = document;
+        for (int i = 0; i < elements.length; i++) {
+            boolean last = i == elements.length - 1;
+            if (current instanceof List) {
+                int position = parsePosition(elements[i]);
+                if (position < 0) {
+                    throw new IllegalArgumentException("Cannot use the part (" + elements[i] + ") of " + path
+                            + " to traverse an array");
+                }
+                List<Object> list = (List<Object>) current;
+                while (list.size() <= position) {
+                    list.add(null);
+                }
+                if (last) {
+                    list.set(position, value);
+                    return;
+                }
+                if (list.get(position) == null) {
+                    list.set(position, new BasicBSONObject());
+                }
+                current = list.get(position);
+            }
+            else if (current instanceof BSONObject) {
+                BSONObject object = (BSONObject) current;
+                if (last) {
+                    object.put(elements[i], value);
+                    return;
+                }
+                if (object.get(elements[i]) == null) {
+                    object.put(elements[i], new BasicBSONObject());
+                }
+                current = object.get(elements[i]);
+            }
+            else {
+                throw new IllegalArgumentException("Cannot create field " + elements[i] + " of " + path
+                        + " in a non document value");
+            }
+        }
+    }
+
+    private static void unsetPath(BSONObject document, String path) {
+        int lastDot = path.lastIndexOf('.');
+        Object parent = lastDot < 0 ? document : getPath(document, path.substring(0, lastDot));
+        String last = path.substring(lastDot + 1);
+        if (parent instanceof List) {
+            int position = parsePosition(last);
+            List<?> list = (List<?>) parent;
+            if (position >= 0 && position < list.size()) {
+                // Array elements are nulled, so the positions of the rest do not change
+                list.set(position, null);
+            }
+        }
+        else if (parent instanceof BSONObject) {
+            ((BSONObject) parent).removeField(last);
+        }
+    }
+
+    private static int parsePosition(String element) {
+        if (element.isEmpty() || element.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < element.length(); i++) {
+            if (!Character.isDigit(element.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(element);
+    }
+
+    private static Number add(Number number1, Number number2) {
+        if (number1 instanceof Double || number1 instanceof Float
+                || number2 instanceof Double || number2 instanceof Float) {
+            return number1.doubleValue() + number2.doubleValue();
+        }
+        long sum = number1.longValue() + number2.longValue();
+        if (number1 instanceof Integer && number2 instanceof Integer && sum == (int) sum) {
+            return (int) sum;
+        }
+        return sum;
+    }
+
+    /**
+     * @return a deep copy of the documents and arrays, so updates do not
+     *         change the values they were decoded from
+     */
+    private static Object copy(Object value) {
+        if (value instanceof List) {
+            BasicBSONList copy = new BasicBSONList();
+            for (Object element : (List<?>) value) {
+                copy.add(copy(element));
+            }
+            return copy;
+        }
+        if (value instanceof BSONObject) {
+            BSONObject object = (BSONObject) value;
+            BasicBSONObject copy = new BasicBSONObject();
+            for (String key : object.keySet()) {
+                copy.put(key, copy(object.get(key)));
+            }
+            return copy;
+        }
+        return value;
+    }
+}
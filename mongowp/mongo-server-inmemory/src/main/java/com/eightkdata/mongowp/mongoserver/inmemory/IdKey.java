@@ -0,0 +1,153 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+import com.eightkdata.nettybson.api.BSONKeyEncoder;
+import com.eightkdata.nettybson.api.BSONType;
+import com.eightkdata.nettybson.api.RawBSONComparator;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * The <code>_id</code> of a stored document, kept as the raw bytes of its
+ * BSON value and ordered as MongoDB orders values (see
+ * {@link RawBSONComparator}), so <code>1</code>, <code>1L</code> and
+ * <code>1.0</code> are the same key.
+ * <p>
+ * Keys are compared and hashed by their {@link BSONKeyEncoder} encoding,
+ * computed once when the key is created.
+ */
+@Immutable
+final class IdKey implements Comparable<IdKey> {
+    private static final byte[] ID_NAME = {'_', 'i', 'd'};
+
+    private final BSONType type;
+    private final byte[] value;
+    /**
+     * The value encoded by {@link BSONKeyEncoder}
+     */
+    private final byte[] key;
+
+    private IdKey(BSONType type, byte[] value) {
+        this.type = type;
+        this.value = value;
+        this.key = BSONKeyEncoder.encode(Unpooled.wrappedBuffer(value), type, 0, false);
+    }
+
+    /**
+     * @param index the index of the first byte of the document
+     * @return the key of the <code>_id</code> of the encoded document, or
+     *         null if it has none
+     * @throws IllegalArgumentException If the <code>_id</code> is an array or
+     *                                  a Decimal128
+     */
+    @Nullable
+    static IdKey of(@Nonnull ByteBuf document, @Nonnegative int index) {
+        int end = index + RawBSONUtil.getDocumentLength(document, index) - 1;
+        int position = index + 4;
+        while (position < end) {
+            BSONType elementType = BSONType.getByCode(document.getByte(position));
+            int nameEnd = RawBSONUtil.getCStringEnd(document, position + 1);
+            int valueIndex = nameEnd + 1;
+            int valueLength = RawBSONUtil.getValueLength(document, elementType, valueIndex);
+            if (RawBSONUtil.equals(document, position + 1, nameEnd - position - 1, ID_NAME)) {
+                if (elementType == BSONType.ARRAY) {
+                    throw new IllegalArgumentException("can't use an array for _id");
+                }
+                byte[] value = new byte[valueLength];
+                document.getBytes(valueIndex, value);
+                return new IdKey(elementType, value);
+            }
+            position = valueIndex + valueLength;
+        }
+        return null;
+    }
+
+    /**
+     * @return the key of the given <code>_id</code> value, as decoded by the
+     *         driver
+     * @throws IllegalArgumentException If the value is an array
+     */
+    @Nonnull
+    static IdKey fromValue(@Nullable Object value) {
+        byte[] encoded = new BasicBSONEncoder().encode(new BasicBSONObject("_id", value));
+        IdKey key = of(Unpooled.wrappedBuffer(encoded), 0);
+        assert key != null;
+        return key;
+    }
+
+    @Nonnull
+    BSONType getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of bytes of the encoded value and of its key
+     */
+    int getByteSize() {
+        return value.length + key.length;
+    }
+
+    @Override
+    public int compareTo(IdKey other) {
+        return BSONKeyEncoder.compare(key, other.key);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof IdKey && Arrays.equals(key, ((IdKey) obj).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(key);
+    }
+
+    /**
+     * @return the decoded value
+     */
+    @Override
+    public String toString() {
+        ByteBuf document = Unpooled.buffer(4 + 1 + ID_NAME.length + 1 + value.length + 1).order(ByteOrder.LITTLE_ENDIAN);
+        document.writeInt(document.capacity());
+        document.writeByte(type.getCode());
+        document.writeBytes(ID_NAME);
+        document.writeByte(0);
+        document.writeBytes(value);
+        document.writeByte(0);
+        return String.valueOf(new BasicBSONDecoder().readObject(document.array()).get("_id"));
+    }
+}
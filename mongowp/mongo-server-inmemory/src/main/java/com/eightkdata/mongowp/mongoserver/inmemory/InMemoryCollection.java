@@ -0,0 +1,827 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.ObjectId;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+
+import com.eightkdata.mongowp.mongoserver.api.sort.ExternalSorter;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A collection of documents ordered by <code>_id</code>, stored as raw BSON
+ * on the slabs of a {@link SlabAllocator}.
+ * <p>
+ * Writers are serialized by a lock. Each write operation gets the next
+ * sequence number and stamps it on the versions it creates and deletes, so
+ * the documents are never modified in place. The operation is published by
+ * setting the committed sequence once all its versions are installed.
+ * <p>
+ * Readers do not take any lock: they register the committed sequence as
+ * their snapshot and, for each key, walk the chain of versions until the one
+ * visible on the snapshot. The versions that are not visible on the oldest
+ * registered snapshot anymore are released by the writers, on the keys they
+ * write and every {@link #VACUUM_INTERVAL} writes on the whole collection.
+ * <p>
+ * Once the collection is dropped new readers see it empty, and its documents
+ * are released when the last registered reader ends.
+ */
+@ThreadSafe
+class InMemoryCollection {
+    static final int VACUUM_INTERVAL = 1024;
+    static final String ID_INDEX_NAME = "_id_";
+    /**
+     * The snapshot of the readers of a dropped collection, which see no
+     * documents
+     */
+    private static final long NO_SNAPSHOT = -1;
+
+    private final String database;
+    private final String name;
+    private final SlabAllocator allocator;
+    private final ConcurrentSkipListMap<IdKey, Version> documents = new ConcurrentSkipListMap<IdKey, Version>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * The number of readers registered on each snapshot
+     */
+    @GuardedBy("snapshots") private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+    @GuardedBy("snapshots") private boolean freed;
+    /**
+     * Set while the registry is locked, so no reader registers once a drop
+     * has decided to release the documents
+     */
+    private volatile boolean dropped;
+    private volatile long committed;
+    private volatile ImmutableMap<String, BSONObject> indexes;
+    private final AtomicInteger liveCount = new AtomicInteger();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong idIndexBytes = new AtomicLong();
+    @GuardedBy("writeLock") private int writesSinceVacuum;
+
+    InMemoryCollection(@Nonnull String database, @Nonnull String name, @Nonnull SlabAllocator allocator) {
+        this.database = database;
+        this.name = name;
+        this.allocator = allocator;
+        this.indexes = ImmutableMap.of(ID_INDEX_NAME, createIndexSpec(new BasicBSONObject("_id", 1), ID_INDEX_NAME));
+    }
+
+    @Nonnull
+    String getDatabase() {
+        return database;
+    }
+
+    @Nonnull
+    String getName() {
+        return name;
+    }
+
+    @Nonnull
+    String getNamespace() {
+        return database + '.' + name;
+    }
+
+    /**
+     * @return the number of documents
+     */
+    int getCount() {
+        return liveCount.get();
+    }
+
+    /**
+     * @return the bytes of the documents
+     */
+    long getDataSize() {
+        return liveBytes.get();
+    }
+
+    /**
+     * @return the bytes of all the versions that are still stored, including
+     *         the ones kept for the readers
+     */
+    long getStorageSize() {
+        return storedBytes.get();
+    }
+
+    long getIdIndexSize() {
+        return idIndexBytes.get();
+    }
+
+    /**
+     * @return the specifications of the indexes, by name. Only the
+     *         <code>_id</code> index is used by queries
+     */
+    @Nonnull
+    ImmutableMap<String, BSONObject> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * @return the documents that match, in ascending or descending
+     *         <code>_id</code> order
+     * @param limit the maximum number of documents, or 0 for no limit
+     */
+    @Nonnull
+    List<BSONDocument> find(@Nonnull Matcher matcher, boolean descending, @Nonnegative int skip, @Nonnegative int limit) {
+        List<BSONDocument> result = new ArrayList<BSONDocument>();
+        long snapshot = acquireSnapshot();
+        if (snapshot == NO_SNAPSHOT) {
+            return result;
+        }
+        try {
+            int skipped = 0;
+            for (Version head : candidates(matcher, descending)) {
+                Version version = head.findVisible(snapshot);
+                if (version == null || !matcher.matches(version.getDocument())) {
+                    continue;
+                }
+                if (skipped < skip) {
+                    skipped++;
+                    continue;
+                }
+                result.add(StoredDocument.copyOf(version.getDocument()));
+                if (limit > 0 && result.size() >= limit) {
+                    break;
+                }
+            }
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the documents that match to the sorter, reading them on a single
+     * snapshot
+     */
+    void sort(@Nonnull Matcher matcher, @Nonnull ExternalSorter sorter) throws IOException {
+        long snapshot = acquireSnapshot();
+        if (snapshot == NO_SNAPSHOT) {
+            return;
+        }
+        try {
+            for (Version head : candidates(matcher, false)) {
+                Version version = head.findVisible(snapshot);
+                if (version != null && matcher.matches(version.getDocument())) {
+                    sorter.add(version.getDocument(), version.getDocument().readerIndex());
+                }
+            }
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * @param limit the maximum number of documents, or 0 for no limit
+     */
+    int count(@Nonnull Matcher matcher, @Nonnegative int skip, @Nonnegative int limit) {
+        if (matcher.matchesAll() && limit == 0) {
+            return dropped ? 0 : Math.max(0, liveCount.get() - skip);
+        }
+        int count = 0;
+        int skipped = 0;
+        long snapshot = acquireSnapshot();
+        if (snapshot == NO_SNAPSHOT) {
+            return 0;
+        }
+        try {
+            for (Version head : candidates(matcher, false)) {
+                Version version = head.findVisible(snapshot);
+                if (version == null || !matcher.matches(version.getDocument())) {
+                    continue;
+                }
+                if (skipped < skip) {
+                    skipped++;
+                    continue;
+                }
+                count++;
+                if (limit > 0 && count >= limit) {
+                    break;
+                }
+            }
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+        return count;
+    }
+
+    /**
+     * Splits the collection in ranges of keys of similar size. Each range is
+     * read on its own snapshot, taken when its iterator is created and
+     * released when the iterator is exhausted or closed.
+     *
+     * @return at most the given number of partitions
+     */
+    @Nonnull
+    List<Iterable<BSONDocument>> partitions(@Nonnegative int count) {
+        int size = documents.size();
+        int partitions = Math.max(1, Math.min(count, size));
+        int step = Math.max(1, size / partitions);
+
+        List<IdKey> boundaries = new ArrayList<IdKey>(partitions - 1);
+        int position = 0;
+        for (IdKey key : documents.keySet()) {
+            if (position > 0 && position % step == 0 && boundaries.size() < partitions - 1) {
+                boundaries.add(key);
+            }
+            position++;
+        }
+        List<Iterable<BSONDocument>> result = new ArrayList<Iterable<BSONDocument>>(boundaries.size() + 1);
+        IdKey from = null;
+        for (IdKey boundary : boundaries) {
+            result.add(new Partition(this, from, boundary));
+            from = boundary;
+        }
+        result.add(new Partition(this, from, null));
+        return result;
+    }
+
+    private Iterable<Version> candidates(Matcher matcher, boolean descending) {
+        IdKey idLookup = matcher.getIdLookup();
+        if (idLookup != null) {
+            Version head = documents.get(idLookup);
+            return head == null ? Collections.<Version>emptyList() : Collections.singletonList(head);
+        }
+        return descending ? documents.descendingMap().values() : documents.values();
+    }
+
+    /**
+     * @return the key of the inserted document
+     * @throws DuplicateKeyException    If there is a document with the same
+     *                                  <code>_id</code>
+     * @throws IllegalArgumentException If the document cannot be stored
+     */
+    @Nonnull
+    IdKey insert(@Nonnull BSONObject document) throws DuplicateKeyException {
+        byte[] encoded = encode(document);
+        IdKey key = getKey(encoded);
+        writeLock.lock();
+        try {
+            checkNotDropped();
+            long sequence = committed + 1;
+            try {
+                install(key, encoded, sequence);
+            } finally {
+                publish(sequence, Collections.singletonList(key));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return key;
+    }
+
+    /**
+     * Updates the documents that match. The documents updated before an
+     * error stay updated.
+     *
+     * @param filter the filter of the matcher, used to build the upserted
+     *               document
+     * @throws DuplicateKeyException    If the upserted document has the
+     *                                  <code>_id</code> of another document
+     * @throws IllegalArgumentException If the update is not supported or not
+     *                                  valid on a document
+     */
+    @Nonnull
+    UpdateResult update(
+            @Nonnull Matcher matcher,
+            @Nullable BSONObject filter,
+            @Nonnull BSONObject update,
+            boolean multi,
+            boolean upsert) throws DuplicateKeyException {
+        int matched = 0;
+        int modified = 0;
+        Object upsertedId = null;
+        List<IdKey> written = new ArrayList<IdKey>();
+        writeLock.lock();
+        try {
+            checkNotDropped();
+            long sequence = committed + 1;
+            try {
+                for (Version head : candidates(matcher, false)) {
+                    if (!head.isLive()) {
+                        continue;
+                    }
+                    if (!matcher.matches(head.getDocument())) {
+                        continue;
+                    }
+                    byte[] original = toBytes(head.getDocument());
+                    BSONObject originalObject = new BasicBSONDecoder().readObject(original);
+                    matched++;
+                    byte[] encoded = encode(DocumentUpdater.apply(originalObject, update));
+                    if (!Arrays.equals(original, encoded)) {
+                        IdKey key = getKey(encoded);
+                        replace(key, head, encoded, sequence);
+                        written.add(key);
+                        modified++;
+                    }
+                    if (!multi) {
+                        break;
+                    }
+                }
+                if (matched == 0 && upsert) {
+                    BSONObject upserted = withIdFirst(DocumentUpdater.upsert(filter, update));
+                    byte[] encoded = encode(upserted);
+                    IdKey key = getKey(encoded);
+                    install(key, encoded, sequence);
+                    written.add(key);
+                    upsertedId = upserted.get("_id");
+                }
+            } finally {
+                publish(sequence, written);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return new UpdateResult(matched, modified, upsertedId);
+    }
+
+    /**
+     * @return the number of deleted documents
+     */
+    int delete(@Nonnull Matcher matcher, boolean justOne) {
+        List<IdKey> deleted = new ArrayList<IdKey>();
+        writeLock.lock();
+        try {
+            checkNotDropped();
+            long sequence = committed + 1;
+            try {
+                for (Map.Entry<IdKey, Version> entry : candidateEntries(matcher)) {
+                    Version head = entry.getValue();
+                    if (!head.isLive() || !matcher.matches(head.getDocument())) {
+                        continue;
+                    }
+                    head.markDeleted(sequence);
+                    liveCount.decrementAndGet();
+                    liveBytes.addAndGet(-head.getDocument().capacity());
+                    idIndexBytes.addAndGet(-entry.getKey().getByteSize());
+                    deleted.add(entry.getKey());
+                    if (justOne) {
+                        break;
+                    }
+                }
+            } finally {
+                publish(sequence, deleted);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return deleted.size();
+    }
+
+    private Iterable<Map.Entry<IdKey, Version>> candidateEntries(Matcher matcher) {
+        IdKey idLookup = matcher.getIdLookup();
+        if (idLookup != null) {
+            NavigableMap<IdKey, Version> single = documents.subMap(idLookup, true, idLookup, true);
+            return single.entrySet();
+        }
+        return documents.entrySet();
+    }
+
+    /**
+     * @return true iff the index did not exist
+     * @throws IllegalArgumentException If the specification is not valid
+     */
+    boolean createIndex(@Nonnull BSONObject specification) {
+        Object key = specification.get("key");
+        Object indexName = specification.get("name");
+        if (!(key instanceof BSONObject) || ((BSONObject) key).keySet().isEmpty()) {
+            throw new IllegalArgumentException("The index key must be a non empty document");
+        }
+        if (!(indexName instanceof String)) {
+            throw new IllegalArgumentException("The index name must be a string");
+        }
+        writeLock.lock();
+        try {
+            if (indexes.containsKey(indexName)) {
+                return false;
+            }
+            indexes = ImmutableMap.<String, BSONObject>builder()
+                    .putAll(indexes)
+                    .put((String) indexName, createIndexSpec((BSONObject) key, (String) indexName))
+                    .build();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param indexName the name of the index, or <code>*</code> to drop all
+     *                  but the <code>_id</code> one
+     * @return true iff the index existed
+     * @throws IllegalArgumentException If the index is the <code>_id</code> one
+     */
+    boolean dropIndex(@Nonnull String indexName) {
+        if (ID_INDEX_NAME.equals(indexName)) {
+            throw new IllegalArgumentException("cannot drop _id index");
+        }
+        writeLock.lock();
+        try {
+            ImmutableMap.Builder<String, BSONObject> remaining = ImmutableMap.builder();
+            boolean found = false;
+            for (Map.Entry<String, BSONObject> index : indexes.entrySet()) {
+                if (ID_INDEX_NAME.equals(index.getKey()) || (!"*".equals(indexName) && !indexName.equals(index.getKey()))) {
+                    remaining.put(index);
+                }
+                else {
+                    found = true;
+                }
+            }
+            indexes = remaining.build();
+            return found || "*".equals(indexName);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private BSONObject createIndexSpec(BSONObject key, String indexName) {
+        BasicBSONObject specification = new BasicBSONObject();
+        specification.put("v", 1);
+        specification.put("key", key);
+        specification.put("name", indexName);
+        specification.put("ns", getNamespace());
+        return specification;
+    }
+
+    /**
+     * Releases the documents once no reader is using them
+     */
+    void drop() {
+        writeLock.lock();
+        try {
+            boolean free;
+            synchronized (snapshots) {
+                dropped = true;
+                free = snapshots.isEmpty() && !freed;
+                freed |= free;
+            }
+            if (free) {
+                freeAll();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void install(IdKey key, byte[] encoded, long sequence) throws DuplicateKeyException {
+        Version head = documents.get(key);
+        if (head != null && head.isLive()) {
+            throw new DuplicateKeyException(getNamespace(), key);
+        }
+        documents.put(key, new Version(store(encoded), sequence, head));
+        liveCount.incrementAndGet();
+        liveBytes.addAndGet(encoded.length);
+        idIndexBytes.addAndGet(key.getByteSize());
+    }
+
+    @GuardedBy("writeLock")
+    private void replace(IdKey key, Version head, byte[] encoded, long sequence) {
+        documents.put(key, new Version(store(encoded), sequence, head));
+        head.markDeleted(sequence);
+        liveBytes.addAndGet(encoded.length - head.getDocument().capacity());
+    }
+
+    @GuardedBy("writeLock")
+    private ByteBuf store(byte[] encoded) {
+        storedBytes.addAndGet(encoded.length);
+        return allocator.store(Unpooled.wrappedBuffer(encoded), 0, encoded.length);
+    }
+
+    /**
+     * Makes the versions of the operation visible to the new readers and
+     * releases the versions of the written keys that are not visible anymore
+     */
+    @GuardedBy("writeLock")
+    private void publish(long sequence, List<IdKey> written) {
+        committed = sequence;
+        long oldest = getOldestSnapshot();
+        for (IdKey key : written) {
+            prune(key, oldest);
+        }
+        writesSinceVacuum += Math.max(1, written.size());
+        if (writesSinceVacuum >= VACUUM_INTERVAL) {
+            writesSinceVacuum = 0;
+            oldest = getOldestSnapshot();
+            for (IdKey key : documents.keySet()) {
+                prune(key, oldest);
+            }
+        }
+    }
+
+    /**
+     * Readers on snapshots not older than the given one stop walking the
+     * chain at or before its first version created on that snapshot, so the
+     * versions that follow it can be released. If the newest version was
+     * deleted on that snapshot the whole chain can be released.
+     */
+    @GuardedBy("writeLock")
+    private void prune(IdKey key, long oldest) {
+        Version head = documents.get(key);
+        if (head == null) {
+            return;
+        }
+        if (head.getDeleted() <= oldest) {
+            documents.remove(key, head);
+            releaseChain(head);
+            return;
+        }
+        Version version = head;
+        while (version != null && version.getCreated() > oldest) {
+            version = version.getPrevious();
+        }
+        if (version != null) {
+            Version unreachable = version.getPrevious();
+            if (unreachable != null) {
+                version.unlinkPrevious();
+                releaseChain(unreachable);
+            }
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void releaseChain(@Nullable Version version) {
+        while (version != null) {
+            storedBytes.addAndGet(-version.getDocument().capacity());
+            allocator.release(version.getDocument());
+            version = version.getPrevious();
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void freeAll() {
+        for (Version head : documents.values()) {
+            releaseChain(head);
+        }
+        documents.clear();
+        liveCount.set(0);
+        liveBytes.set(0);
+        idIndexBytes.set(0);
+    }
+
+    private void checkNotDropped() {
+        if (dropped) {
+            throw new IllegalStateException("The collection " + getNamespace() + " has been dropped");
+        }
+    }
+
+    /**
+     * The snapshot is read while the registry is locked, so a writer never
+     * computes an oldest snapshot newer than a reader that is registering
+     *
+     * @return the registered snapshot, or {@link #NO_SNAPSHOT} if the
+     *         collection is dropped, which must not be released
+     */
+    private long acquireSnapshot() {
+        synchronized (snapshots) {
+            if (dropped) {
+                return NO_SNAPSHOT;
+            }
+            long snapshot = committed;
+            Integer readers = snapshots.get(snapshot);
+            snapshots.put(snapshot, readers == null ? 1 : readers + 1);
+            return snapshot;
+        }
+    }
+
+    private void releaseSnapshot(long snapshot) {
+        boolean free;
+        synchronized (snapshots) {
+            Integer readers = snapshots.get(snapshot);
+            assert readers != null;
+            if (readers == 1) {
+                snapshots.remove(snapshot);
+            }
+            else {
+                snapshots.put(snapshot, readers - 1);
+            }
+            free = dropped && snapshots.isEmpty() && !freed;
+            freed |= free;
+        }
+        if (free) {
+            writeLock.lock();
+            try {
+                freeAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private long getOldestSnapshot() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? committed : snapshots.firstKey();
+        }
+    }
+
+    /**
+     * @return the encoded document, with its <code>_id</code> as first
+     *         element
+     * @throws IllegalArgumentException If the document is too big
+     */
+    private static byte[] encode(BSONObject document) {
+        byte[] encoded = new BasicBSONEncoder().encode(withIdFirst(document));
+        if (encoded.length > MongoWP.MAX_BSON_DOCUMENT_SIZE) {
+            throw new IllegalArgumentException("object to insert too large: " + encoded.length + " bytes");
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the document with an <code>_id</code> as its first element,
+     *         generating an ObjectId if it had none
+     */
+    private static BSONObject withIdFirst(BSONObject document) {
+        Iterator<String> keys = document.keySet().iterator();
+        if (keys.hasNext() && "_id".equals(keys.next())) {
+            return document;
+        }
+        BasicBSONObject result = new BasicBSONObject();
+        result.put("_id", document.containsField("_id") ? document.get("_id") : new ObjectId());
+        for (String key : document.keySet()) {
+            if (!"_id".equals(key)) {
+                result.put(key, document.get(key));
+            }
+        }
+        return result;
+    }
+
+    private static IdKey getKey(byte[] encoded) {
+        IdKey key = IdKey.of(Unpooled.wrappedBuffer(encoded), 0);
+        assert key != null : "Documents are encoded with an _id";
+        return key;
+    }
+
+    private static byte[] toBytes(ByteBuf stored) {
+        byte[] bytes = new byte[stored.capacity()];
+        stored.getBytes(0, bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryCollection{" + getNamespace() + ", count=" + liveCount.get() + '}';
+    }
+
+    /**
+     * The result of an update
+     */
+    static class UpdateResult {
+        private final int matched;
+        private final int modified;
+        @Nullable private final Object upsertedId;
+
+        UpdateResult(int matched, int modified, @Nullable Object upsertedId) {
+            this.matched = matched;
+            this.modified = modified;
+            this.upsertedId = upsertedId;
+        }
+
+        int getMatched() {
+            return matched;
+        }
+
+        int getModified() {
+            return modified;
+        }
+
+        /**
+         * @return the <code>_id</code> of the upserted document, or null if
+         *         no document was upserted
+         */
+        @Nullable
+        Object getUpsertedId() {
+            return upsertedId;
+        }
+    }
+
+    /**
+     * Thrown when a document has the <code>_id</code> of another one
+     */
+    static class DuplicateKeyException extends Exception {
+        static final int ERROR_CODE = 11000;
+        private static final long serialVersionUID = 1L;
+
+        DuplicateKeyException(String namespace, IdKey key) {
+            super("E11000 duplicate key error index: " + namespace + ".$" + ID_INDEX_NAME + " dup key: { : " + key + " }");
+        }
+    }
+
+    /**
+     * A range of keys, from the lower key (included) to the upper one
+     * (excluded)
+     */
+    private static class Partition implements Iterable<BSONDocument> {
+        private final InMemoryCollection collection;
+        @Nullable private final IdKey from;
+        @Nullable private final IdKey to;
+
+        Partition(InMemoryCollection collection, @Nullable IdKey from, @Nullable IdKey to) {
+            this.collection = collection;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Iterator<BSONDocument> iterator() {
+            NavigableMap<IdKey, Version> range = collection.documents;
+            if (from != null) {
+                range = range.tailMap(from, true);
+            }
+            if (to != null) {
+                range = range.headMap(to, false);
+            }
+            return new SnapshotIterator(collection, range.values().iterator());
+        }
+    }
+
+    /**
+     * Reads documents on its own snapshot, which is released once it is
+     * exhausted or closed
+     */
+    private static class SnapshotIterator extends AbstractIterator<BSONDocument> implements Closeable {
+        private final InMemoryCollection collection;
+        private final Iterator<Version> heads;
+        private final long snapshot;
+        private volatile boolean released;
+
+        SnapshotIterator(InMemoryCollection collection, Iterator<Version> heads) {
+            this.collection = collection;
+            this.heads = heads;
+            this.snapshot = collection.acquireSnapshot();
+            this.released = snapshot == NO_SNAPSHOT;
+        }
+
+        @Override
+        protected BSONDocument computeNext() {
+            if (!released) {
+                while (heads.hasNext()) {
+                    Version version = heads.next().findVisible(snapshot);
+                    if (version != null) {
+                        return StoredDocument.copyOf(version.getDocument());
+                    }
+                }
+                close();
+            }
+            return endOfData();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                collection.releaseSnapshot(snapshot);
+            }
+        }
+    }
+}
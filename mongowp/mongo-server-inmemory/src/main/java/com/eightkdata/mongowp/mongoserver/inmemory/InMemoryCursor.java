@@ -0,0 +1,120 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.RawBSONUtil;
+
+/**
+ * The documents of a query that did not fit on its first batch, kept for the
+ * getMores of the connection that sent it when the server does not spool
+ * the cursors (see {@link com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager}).
+ * <p>
+ * The documents were copied from the collection when the query was run, so
+ * the cursor returns the snapshot of the query whatever is written later.
+ * They are released as they are sent.
+ */
+@ThreadSafe
+class InMemoryCursor {
+    private final long cursorId;
+    @GuardedBy("this") private final Queue<BSONDocument> documents;
+    @GuardedBy("this") private int position;
+
+    /**
+     * @param documents the documents not sent yet, which are consumed by the
+     *                  cursor
+     * @param position  the number of documents already sent
+     */
+    InMemoryCursor(long cursorId, @Nonnull Queue<BSONDocument> documents, @Nonnegative int position) {
+        this.cursorId = cursorId;
+        this.documents = documents;
+        this.position = position;
+    }
+
+    long getCursorId() {
+        return cursorId;
+    }
+
+    /**
+     * Replies the next batch, with the cursor id if documents are left
+     *
+     * @return true iff the cursor is exhausted
+     */
+    synchronized boolean replyNextBatch(
+            int numberToReturn, @Nonnegative int maxBatchBytes, @Nonnull MessageReplier messageReplier) {
+        int startingFrom = position;
+        List<BSONDocument> batch = takeBatch(documents, numberToReturn, maxBatchBytes);
+        position += batch.size();
+        boolean exhausted = documents.isEmpty();
+        messageReplier.replyMessageMultipleDocuments(exhausted ? 0 : cursorId, startingFrom, batch);
+        return exhausted;
+    }
+
+    /**
+     * Takes the first documents of the queue, up to the given number (or all
+     * of them if it is 0) and bytes, but at least one
+     */
+    @Nonnull
+    static List<BSONDocument> takeBatch(
+            @Nonnull Queue<BSONDocument> documents, int numberToReturn, @Nonnegative int maxBatchBytes) {
+        int limit = numberToReturn != 0 ? Math.abs(numberToReturn) : Integer.MAX_VALUE;
+        List<BSONDocument> batch = new ArrayList<BSONDocument>(Math.min(limit, documents.size()));
+        long batchBytes = 0;
+        while (batch.size() < limit && !documents.isEmpty()) {
+            batchBytes += getSize(documents.peek());
+            if (!batch.isEmpty() && batchBytes > maxBatchBytes) {
+                break;
+            }
+            batch.add(documents.poll());
+        }
+        return batch;
+    }
+
+    private static int getSize(BSONDocument document) {
+        ByteBuf encoded = RawBSONUtil.getEncoded(document);
+        if (encoded != null) {
+            return RawBSONUtil.getDocumentLength(encoded, 0);
+        }
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            document.writeToByteBuf(buffer);
+            return buffer.readableBytes();
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AttributeMap;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+import com.google.common.base.Supplier;
+
+import com.eightkdata.mongowp.mongoserver.api.MetaQueryProcessor;
+import com.eightkdata.mongowp.mongoserver.api.commands.CollStatsReply;
+import com.eightkdata.mongowp.mongoserver.api.commands.CollStatsRequest;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * The <code>system.namespaces</code> and <code>system.indexes</code>
+ * collections of the in-memory engine, built from its collections. There
+ * are no stored profiles nor stored functions.
+ */
+@ThreadSafe
+public class InMemoryMetaQueryProcessor extends MetaQueryProcessor {
+
+    private final InMemoryStorage storage;
+
+    @Inject
+    public InMemoryMetaQueryProcessor(@Nonnull InMemoryStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    protected Iterable<BSONDocument> queryNamespaces(
+            @Nonnull String database,
+            @Nonnull AttributeMap attributeMap,
+            @Nullable BSONObject query) throws Exception {
+        Matcher matcher = Matcher.compile(query);
+        List<BSONDocument> result = new ArrayList<BSONDocument>();
+        for (InMemoryCollection collection : storage.getCollections(database)) {
+            addIfMatches(result, matcher, new BasicBSONObject("name", collection.getNamespace()));
+            for (String indexName : collection.getIndexes().keySet()) {
+                addIfMatches(result, matcher, new BasicBSONObject("name", collection.getNamespace() + ".$" + indexName));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected Iterable<BSONDocument> queryIndexes(
+            @Nonnull String database,
+            @Nonnull AttributeMap attributeMap,
+            @Nullable BSONObject query) throws Exception {
+        Matcher matcher = Matcher.compile(query);
+        List<BSONDocument> result = new ArrayList<BSONDocument>();
+        for (InMemoryCollection collection : storage.getCollections(database)) {
+            for (BSONObject index : collection.getIndexes().values()) {
+                addIfMatches(result, matcher, index);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected Iterable<BSONDocument> queryProfile(
+            @Nonnull String database,
+            @Nonnull AttributeMap attributeMap,
+            @Nullable BSONObject query) throws Exception {
+        return Collections.emptyList();
+    }
+
+    @Override
+    protected Iterable<BSONDocument> queryJS(
+            @Nonnull String database,
+            @Nonnull AttributeMap attributeMap,
+            @Nullable BSONObject query) throws Exception {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public CollStatsReply collStats(
+            @Nonnull String database,
+            @Nonnull CollStatsRequest request,
+            @Nonnull Supplier<Iterable<BSONDocument>> docsSupplier) throws Exception {
+        int scale = request.getScale().intValue();
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale has to be > 0");
+        }
+        int count = 0;
+        long size = 0;
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            for (BSONDocument document : docsSupplier.get()) {
+                buffer.clear();
+                document.writeToByteBuf(buffer.order(ByteOrder.LITTLE_ENDIAN));
+                count++;
+                size += buffer.readableBytes();
+            }
+        } finally {
+            buffer.release();
+        }
+        return new CollStatsReply.Builder(database, request.getCollection())
+                .setScale(scale)
+                .setCount(count)
+                .setSize(size / scale)
+                .setStorageSize(size / scale)
+                .setNumExtents(0)
+                .setLastExtentSize(0)
+                .setPaddingFactor(1)
+                .setSizeByIndex(Collections.<String, Number>emptyMap())
+                .build();
+    }
+
+    private static void addIfMatches(List<BSONDocument> result, Matcher matcher, BSONObject document) {
+        if (matcher.matches(document)) {
+            result.add(new MongoBSONDocument(document));
+        }
+    }
+}
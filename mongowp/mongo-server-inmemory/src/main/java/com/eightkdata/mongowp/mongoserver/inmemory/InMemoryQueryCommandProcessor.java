@@ -0,0 +1,624 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import com.eightkdata.mongowp.mongoserver.api.ParallelCollectionScanProcessor;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.commands.CollStatsReply;
+import com.eightkdata.mongowp.mongoserver.api.commands.CollStatsRequest;
+import com.eightkdata.mongowp.mongoserver.api.commands.CountReply;
+import com.eightkdata.mongowp.mongoserver.api.commands.CountRequest;
+import com.eightkdata.mongowp.mongoserver.api.commands.ParallelCollectionScanRequest;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * The commands of the in-memory engine. See {@link InMemoryStorage}.
+ * <p>
+ * Commands that do not receive their database read it from the
+ * {@link InMemoryRequestProcessor#DATABASE} attribute of the channel.
+ */
+@ThreadSafe
+public class InMemoryQueryCommandProcessor implements ParallelCollectionScanProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryQueryCommandProcessor.class);
+
+    static final int NAMESPACE_NOT_FOUND_CODE = 26;
+    static final int INDEX_NOT_FOUND_CODE = 27;
+    static final int NAMESPACE_EXISTS_CODE = 48;
+    static final int NOT_REPLICA_SET_CODE = 76;
+
+    private final InMemoryStorage storage;
+    private final Random random = new SecureRandom();
+
+    @Inject
+    public InMemoryQueryCommandProcessor(@Nonnull InMemoryStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public CountReply count(@Nonnull CountRequest request) throws Exception {
+        InMemoryCollection collection = storage.getCollection(request.getDatabase(), request.getCollection());
+        if (collection == null) {
+            return new CountReply(0);
+        }
+        return new CountReply(collection.count(
+                Matcher.compile(request.getQuery()),
+                Math.max(0, request.getSkip()),
+                Math.abs(request.getLimit())
+        ));
+    }
+
+    @Override
+    public void insert(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        List<?> documents = getList(command, "documents");
+        boolean ordered = isOrdered(command);
+        InMemoryCollection collection = storage.getOrCreateCollection(database, getCollectionName(command, "insert"));
+
+        int n = 0;
+        BasicBSONList writeErrors = new BasicBSONList();
+        for (int i = 0; i < documents.size(); i++) {
+            try {
+                collection.insert(getDocument(documents.get(i), "documents"));
+                n++;
+            } catch (InMemoryCollection.DuplicateKeyException ex) {
+                writeErrors.add(writeError(i, InMemoryCollection.DuplicateKeyException.ERROR_CODE, ex.getMessage()));
+            } catch (IllegalArgumentException ex) {
+                writeErrors.add(writeError(i, MongoWP.ErrorCode.BAD_VALUE.getErrorCode(), ex.getMessage()));
+            }
+            if (ordered && !writeErrors.isEmpty()) {
+                break;
+            }
+        }
+        recordLastWrite(messageReplier, writeErrors, LastWriteResult.inserted(n));
+
+        BasicBSONObject reply = new BasicBSONObject("n", n);
+        replyWriteResult(messageReplier, reply, writeErrors);
+    }
+
+    @Override
+    public void update(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        List<?> updates = getList(command, "updates");
+        boolean ordered = isOrdered(command);
+        InMemoryCollection collection = storage.getOrCreateCollection(database, getCollectionName(command, "update"));
+
+        int n = 0;
+        int modified = 0;
+        BasicBSONList upserted = new BasicBSONList();
+        BasicBSONList writeErrors = new BasicBSONList();
+        InMemoryCollection.UpdateResult last = null;
+        for (int i = 0; i < updates.size(); i++) {
+            try {
+                BSONObject statement = getDocument(updates.get(i), "updates");
+                BSONObject filter = getOptionalDocument(statement, "q");
+                InMemoryCollection.UpdateResult result = collection.update(
+                        Matcher.compile(filter),
+                        filter,
+                        getDocument(statement.get("u"), "u"),
+                        isTrue(statement.get("multi")),
+                        isTrue(statement.get("upsert"))
+                );
+                n += result.getMatched();
+                modified += result.getModified();
+                if (result.getUpsertedId() != null) {
+                    n++;
+                    BasicBSONObject upsert = new BasicBSONObject("index", i);
+                    upsert.put("_id", result.getUpsertedId());
+                    upserted.add(upsert);
+                }
+                last = result;
+            } catch (InMemoryCollection.DuplicateKeyException ex) {
+                writeErrors.add(writeError(i, InMemoryCollection.DuplicateKeyException.ERROR_CODE, ex.getMessage()));
+            } catch (IllegalArgumentException ex) {
+                writeErrors.add(writeError(i, MongoWP.ErrorCode.BAD_VALUE.getErrorCode(), ex.getMessage()));
+            }
+            if (ordered && !writeErrors.isEmpty()) {
+                break;
+            }
+        }
+        recordLastWrite(
+                messageReplier,
+                writeErrors,
+                last != null ? LastWriteResult.updated(last) : LastWriteResult.NONE
+        );
+
+        BasicBSONObject reply = new BasicBSONObject("n", n);
+        reply.put("nModified", modified);
+        if (!upserted.isEmpty()) {
+            reply.put("upserted", upserted);
+        }
+        replyWriteResult(messageReplier, reply, writeErrors);
+    }
+
+    @Override
+    public void delete(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        List<?> deletes = getList(command, "deletes");
+        boolean ordered = isOrdered(command);
+        InMemoryCollection collection = storage.getCollection(database, getCollectionName(command, "delete"));
+
+        int n = 0;
+        BasicBSONList writeErrors = new BasicBSONList();
+        for (int i = 0; i < deletes.size(); i++) {
+            try {
+                BSONObject statement = getDocument(deletes.get(i), "deletes");
+                Matcher matcher = Matcher.compile(getOptionalDocument(statement, "q"));
+                Object limit = statement.get("limit");
+                if (collection != null) {
+                    n += collection.delete(matcher, limit instanceof Number && ((Number) limit).intValue() == 1);
+                }
+            } catch (IllegalArgumentException ex) {
+                writeErrors.add(writeError(i, MongoWP.ErrorCode.BAD_VALUE.getErrorCode(), ex.getMessage()));
+            }
+            if (ordered && !writeErrors.isEmpty()) {
+                break;
+            }
+        }
+        recordLastWrite(messageReplier, writeErrors, LastWriteResult.deleted(n));
+
+        BasicBSONObject reply = new BasicBSONObject("n", n);
+        replyWriteResult(messageReplier, reply, writeErrors);
+    }
+
+    @Override
+    public void drop(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        String collectionName = getCollectionName(command, "drop");
+        InMemoryCollection collection = storage.getCollection(database, collectionName);
+        if (collection == null || !storage.dropCollection(database, collectionName)) {
+            messageReplier.replyQueryCommandFailure("ns not found", NAMESPACE_NOT_FOUND_CODE);
+            return;
+        }
+        BasicBSONObject reply = new BasicBSONObject("ns", collection.getNamespace());
+        reply.put("nIndexesWas", collection.getIndexes().size());
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void deleteIndexes(BSONDocument query, MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(query);
+        InMemoryCollection collection = storage.getCollection(
+                getDatabase(messageReplier),
+                getCollectionName(command, "deleteIndexes")
+        );
+        if (collection == null) {
+            messageReplier.replyQueryCommandFailure("ns not found", NAMESPACE_NOT_FOUND_CODE);
+            return;
+        }
+        Object index = command.get("index");
+        String indexName = null;
+        if (index instanceof String) {
+            indexName = (String) index;
+        }
+        else if (index instanceof BSONObject) {
+            for (BSONObject specification : collection.getIndexes().values()) {
+                if (Matcher.valuesEqual(specification.get("key"), index)) {
+                    indexName = (String) specification.get("name");
+                }
+            }
+        }
+        else {
+            throw new IllegalArgumentException("The index to drop must be a name or a key pattern");
+        }
+        int indexesWas = collection.getIndexes().size();
+        if (indexName == null || !collection.dropIndex(indexName)) {
+            messageReplier.replyQueryCommandFailure("index not found with name [" + index + "]", INDEX_NOT_FOUND_CODE);
+            return;
+        }
+        BasicBSONObject reply = new BasicBSONObject("nIndexesWas", indexesWas);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void createIndexes(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        String collectionName = getCollectionName(command, "createIndexes");
+        List<?> indexes = getList(command, "indexes");
+        boolean created = storage.getCollection(database, collectionName) == null;
+        InMemoryCollection collection = storage.getOrCreateCollection(database, collectionName);
+
+        int indexesBefore = collection.getIndexes().size();
+        for (Object index : indexes) {
+            collection.createIndex(getDocument(index, "indexes"));
+        }
+        BasicBSONObject reply = new BasicBSONObject("createdCollectionAutomatically", created);
+        reply.put("numIndexesBefore", indexesBefore);
+        reply.put("numIndexesAfter", collection.getIndexes().size());
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void create(@Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) throws Exception {
+        BSONObject command = toBSONObject(document);
+        String database = getDatabase(messageReplier);
+        String collectionName = getCollectionName(command, "create");
+        if (storage.getCollection(database, collectionName) != null) {
+            messageReplier.replyQueryCommandFailure("collection already exists", NAMESPACE_EXISTS_CODE);
+            return;
+        }
+        storage.getOrCreateCollection(database, collectionName);
+        messageReplier.replyOk();
+    }
+
+    @Override
+    public void getLastError(
+            @Nullable Object w, boolean j, boolean fsync, int wtimeout, @Nonnull MessageReplier messageReplier)
+            throws Exception {
+        // Writes are applied before they are replied, so there is nothing to wait for
+        LastWriteResult result = messageReplier.getAttributeMap().attr(LastWriteResult.LAST_WRITE_RESULT).get();
+        if (result == null) {
+            result = LastWriteResult.NONE;
+        }
+        messageReplier.replyMessageNoCursor(result.toReplyDocument(messageReplier.getConnectionId()));
+    }
+
+    @Override
+    public void validate(@Nonnull String database, @Nonnull BSONDocument document, @Nonnull MessageReplier messageReplier) {
+        BSONObject command = toBSONObject(document);
+        InMemoryCollection collection = storage.getCollection(database, getCollectionName(command, "validate"));
+        if (collection == null) {
+            messageReplier.replyQueryCommandFailure("ns not found", NAMESPACE_NOT_FOUND_CODE);
+            return;
+        }
+        BasicBSONObject keysPerIndex = new BasicBSONObject();
+        for (String indexName : collection.getIndexes().keySet()) {
+            keysPerIndex.put(collection.getNamespace() + ".$" + indexName,
+                    InMemoryCollection.ID_INDEX_NAME.equals(indexName) ? collection.getCount() : 0);
+        }
+        BasicBSONObject reply = new BasicBSONObject("ns", collection.getNamespace());
+        reply.put("nrecords", collection.getCount());
+        reply.put("nIndexes", collection.getIndexes().size());
+        reply.put("keysPerIndex", keysPerIndex);
+        reply.put("valid", true);
+        reply.put("errors", new BasicBSONList());
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void ping(MessageReplier messageReplier) {
+        messageReplier.replyOk();
+    }
+
+    @Override
+    public void listDatabases(MessageReplier messageReplier) throws Exception {
+        BasicBSONList databases = new BasicBSONList();
+        long totalSize = 0;
+        for (String database : storage.getDatabaseNames()) {
+            long size = 0;
+            boolean empty = true;
+            for (InMemoryCollection collection : storage.getCollections(database)) {
+                size += collection.getStorageSize();
+                empty &= collection.getCount() == 0;
+            }
+            BasicBSONObject databaseDocument = new BasicBSONObject("name", database);
+            databaseDocument.put("sizeOnDisk", (double) size);
+            databaseDocument.put("empty", empty);
+            databases.add(databaseDocument);
+            totalSize += size;
+        }
+        BasicBSONObject reply = new BasicBSONObject("databases", databases);
+        reply.put("totalSize", (double) totalSize);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void whatsmyuri(@Nonnull String host, int port, @Nonnull MessageReplier messageReplier) {
+        BasicBSONObject reply = new BasicBSONObject("you", host + ':' + port);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void replSetGetStatus(@Nonnull MessageReplier messageReplier) {
+        messageReplier.replyQueryCommandFailure("not running with --replSet", NOT_REPLICA_SET_CODE);
+    }
+
+    @Override
+    public void listCollections(@Nonnull MessageReplier messageReplier, BSONDocument query) throws Exception {
+        String database = getDatabase(messageReplier);
+        Object filter = query.getValue("filter");
+        if (filter != null && !(filter instanceof BSONObject)) {
+            throw new IllegalArgumentException("filter must be an object");
+        }
+        Matcher matcher = Matcher.compile((BSONObject) filter);
+
+        List<String> names = new ArrayList<String>();
+        for (InMemoryCollection collection : storage.getCollections(database)) {
+            names.add(collection.getName());
+        }
+        Collections.sort(names);
+        BasicBSONList collections = new BasicBSONList();
+        for (String name : names) {
+            BasicBSONObject collection = new BasicBSONObject("name", name);
+            collection.put("options", new BasicBSONObject());
+            if (matcher.matches(collection)) {
+                collections.add(collection);
+            }
+        }
+        replyCursor(messageReplier, database + ".$cmd.listCollections", collections);
+    }
+
+    @Override
+    public void listIndexes(MessageReplier messageReplier, String collectionName) throws Exception {
+        String database = getDatabase(messageReplier);
+        InMemoryCollection collection = storage.getCollection(database, collectionName);
+        if (collection == null) {
+            messageReplier.replyQueryCommandFailure("no collection", NAMESPACE_NOT_FOUND_CODE);
+            return;
+        }
+        BasicBSONList indexes = new BasicBSONList();
+        indexes.addAll(collection.getIndexes().values());
+        replyCursor(messageReplier, database + ".$cmd.listIndexes." + collectionName, indexes);
+    }
+
+    @Override
+    public void getLog(@Nonnull GetLogType log, @Nonnull MessageReplier messageReplier) {
+        BasicBSONObject reply;
+        switch (log) {
+            case all:
+                reply = new BasicBSONObject("names", ImmutableList.of(GetLogType.global.getLogFilter(),
+                        GetLogType.startupWarnings.getLogFilter()));
+                break;
+            case global:
+            case startupWarnings:
+                reply = new BasicBSONObject("totalLinesWritten", 0);
+                reply.put("log", new BasicBSONList());
+                break;
+            default:
+                messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.INVALID_GET_LOG_LOG, log.getLogFilter());
+                return;
+        }
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void isMaster(@Nonnull MessageReplier messageReplier) {
+        BasicBSONObject reply = new BasicBSONObject("ismaster", true);
+        reply.put("maxBsonObjectSize", MongoWP.MAX_BSON_DOCUMENT_SIZE);
+        reply.put("maxMessageSizeBytes", MongoWP.MAX_MESSAGE_SIZE_BYTES);
+        reply.put("maxWriteBatchSize", MongoWP.MAX_WRITE_BATCH_SIZE);
+        reply.put("localTime", new Date());
+        reply.put("maxWireVersion", MongoWP.MAX_WIRE_VERSION);
+        reply.put("minWireVersion", MongoWP.MIN_WIRE_VERSION);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public void buildInfo(@Nonnull MessageReplier messageReplier) {
+        BasicBSONObject reply = new BasicBSONObject("version", MongoWP.VERSION_STRING);
+        reply.put("versionArray", MongoWP.VERSION);
+        reply.put("bits", 64);
+        reply.put("debug", false);
+        reply.put("maxBsonObjectSize", MongoWP.MAX_BSON_DOCUMENT_SIZE);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public boolean handleError(
+            @Nonnull QueryCommand userCommand, @Nonnull MessageReplier messageReplier, @Nonnull Throwable throwable)
+            throws Exception {
+        if (throwable instanceof IllegalArgumentException) {
+            messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.BAD_VALUE, throwable.getMessage());
+            return true;
+        }
+        LOGGER.error("Error while executing the command " + userCommand.getKey(), throwable);
+        messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.INTERNAL_ERROR, String.valueOf(throwable.getMessage()));
+        return true;
+    }
+
+    @Override
+    public void unimplemented(@Nonnull QueryCommand userCommand, @Nonnull MessageReplier messageReplier) throws Exception {
+        messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.UNIMPLEMENTED_COMMAND, userCommand.getKey());
+    }
+
+    @Override
+    public CollStatsReply collStats(CollStatsRequest request) throws Exception {
+        int scale = request.getScale().intValue();
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale has to be > 0");
+        }
+        InMemoryCollection collection = storage.getCollection(request.getDatabase(), request.getCollection());
+        CollStatsReply.Builder builder = new CollStatsReply.Builder(request.getDatabase(), request.getCollection())
+                .setScale(scale)
+                .setPaddingFactor(1)
+                .setLastExtentSize(storage.getSlabBytes() / scale);
+        if (collection == null) {
+            return builder.setCount(0)
+                    .setSize(0)
+                    .setStorageSize(0)
+                    .setNumExtents(0)
+                    .setSizeByIndex(Collections.<String, Number>emptyMap())
+                    .build();
+        }
+        Map<String, Number> sizeByIndex = Maps.newLinkedHashMap();
+        for (String indexName : collection.getIndexes().keySet()) {
+            sizeByIndex.put(indexName,
+                    InMemoryCollection.ID_INDEX_NAME.equals(indexName) ? collection.getIdIndexSize() / scale : 0);
+        }
+        return builder.setCount(collection.getCount())
+                .setSize(collection.getDataSize() / scale)
+                .setStorageSize(collection.getStorageSize() / scale)
+                .setNumExtents(1)
+                .setIdIndexExists(true)
+                .setSizeByIndex(sizeByIndex)
+                .build();
+    }
+
+    @Override
+    public void getnonce(MessageReplier messageReplier) {
+        BasicBSONObject reply = new BasicBSONObject("nonce", Long.toHexString(random.nextLong()));
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    @Override
+    public List<? extends Iterable<? extends BSONDocument>> parallelCollectionScan(
+            @Nonnull ParallelCollectionScanRequest request) throws Exception {
+        InMemoryCollection collection = storage.getCollection(request.getDatabase(), request.getCollection());
+        if (collection == null) {
+            return ImmutableList.of(ImmutableList.<BSONDocument>of());
+        }
+        return collection.partitions(request.getNumCursors());
+    }
+
+    @Nonnull
+    static String getDatabase(@Nonnull MessageReplier messageReplier) {
+        String database = messageReplier.getAttributeMap().attr(InMemoryRequestProcessor.DATABASE).get();
+        if (database == null) {
+            throw new IllegalStateException("The database of the command is unknown");
+        }
+        return database;
+    }
+
+    @Nonnull
+    static BSONObject toBSONObject(@Nonnull BSONDocument document) {
+        if (document instanceof MongoBSONDocument) {
+            return ((MongoBSONDocument) document).getBSONObject();
+        }
+        BasicBSONObject result = new BasicBSONObject();
+        for (String key : document.getKeys()) {
+            result.put(key, document.getValue(key));
+        }
+        return result;
+    }
+
+    /**
+     * Drivers may send the name of the command in lower case
+     */
+    private static String getCollectionName(BSONObject command, String commandName) {
+        String lowerCaseName = commandName.toLowerCase(Locale.ROOT);
+        for (String key : command.keySet()) {
+            if (key.toLowerCase(Locale.ROOT).equals(lowerCaseName)) {
+                Object value = command.get(key);
+                if (!(value instanceof String) || ((String) value).isEmpty()) {
+                    throw new IllegalArgumentException("The collection of " + commandName + " must be a non empty string");
+                }
+                return (String) value;
+            }
+        }
+        throw new IllegalArgumentException("The collection of " + commandName + " is missing");
+    }
+
+    private static List<?> getList(BSONObject command, String key) {
+        Object value = command.get(key);
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException(key + " must be an array");
+        }
+        return (List<?>) value;
+    }
+
+    private static BSONObject getDocument(Object value, String key) {
+        if (!(value instanceof BSONObject) || value instanceof List) {
+            throw new IllegalArgumentException(key + " must be an object");
+        }
+        return (BSONObject) value;
+    }
+
+    @Nullable
+    private static BSONObject getOptionalDocument(BSONObject statement, String key) {
+        Object value = statement.get(key);
+        return value == null ? null : getDocument(value, key);
+    }
+
+    private static boolean isOrdered(BSONObject command) {
+        return !Boolean.FALSE.equals(command.get("ordered"));
+    }
+
+    private static boolean isTrue(Object value) {
+        return Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).doubleValue() != 0);
+    }
+
+    private static BSONObject writeError(int index, int code, String message) {
+        BasicBSONObject writeError = new BasicBSONObject("index", index);
+        writeError.put("code", code);
+        writeError.put("errmsg", message);
+        return writeError;
+    }
+
+    private static void recordLastWrite(MessageReplier messageReplier, List<Object> writeErrors, LastWriteResult result) {
+        LastWriteResult lastWrite = result;
+        if (!writeErrors.isEmpty()) {
+            BSONObject writeError = (BSONObject) writeErrors.get(writeErrors.size() - 1);
+            lastWrite = LastWriteResult.failed((String) writeError.get("errmsg"), (Integer) writeError.get("code"));
+        }
+        messageReplier.getAttributeMap().attr(LastWriteResult.LAST_WRITE_RESULT).set(lastWrite);
+    }
+
+    private static void replyWriteResult(MessageReplier messageReplier, BasicBSONObject reply, BasicBSONList writeErrors) {
+        if (!writeErrors.isEmpty()) {
+            reply.put("writeErrors", writeErrors);
+        }
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    private static void replyCursor(MessageReplier messageReplier, String namespace, BasicBSONList firstBatch) {
+        BasicBSONObject cursor = new BasicBSONObject("id", 0L);
+        cursor.put("ns", namespace);
+        cursor.put("firstBatch", firstBatch);
+        BasicBSONObject reply = new BasicBSONObject("cursor", cursor);
+        reply.put("ok", MongoWP.OK);
+        reply(messageReplier, reply);
+    }
+
+    private static void reply(MessageReplier messageReplier, BSONObject reply) {
+        messageReplier.replyMessageNoCursor(new MongoBSONDocument(reply));
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.AttributeMap;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+import org.bson.BSONObject;
+
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.GetMoreMessage;
+import com.eightkdata.mongowp.messages.request.InsertMessage;
+import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.AbstractRequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor.QueryCommand;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.commands.QueryReply;
+import com.eightkdata.mongowp.mongoserver.api.commands.QueryRequest;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.sort.ExternalSorter;
+import com.eightkdata.mongowp.mongoserver.api.sort.SortSpec;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * A runnable backend that keeps the databases in memory. See
+ * {@link InMemoryStorage}.
+ * <p>
+ * Queries read all their documents at once. If the server spools cursors (see
+ * {@link CursorManager}) they are all returned to it, and otherwise the first
+ * batch is replied and the rest is kept on a cursor of the connection (see
+ * {@link InMemoryCursor}) until it is exhausted or killed or the connection
+ * is closed.
+ * Filters are evaluated on the stored bytes with the operators of a
+ * {@link com.eightkdata.mongowp.mongoserver.api.matcher.RawMatcher}. Sorts on
+ * <code>_id</code> read the collection in order and the rest go through an
+ * {@link ExternalSorter}, which spills to temporary files above
+ * {@link #SORT_MEMORY_LIMIT} bytes. The rest of the query modifiers are
+ * ignored.
+ */
+@ThreadSafe
+public class InMemoryRequestProcessor extends AbstractRequestProcessor {
+
+    /**
+     * The database of the command being executed, for the commands whose
+     * methods do not receive it
+     */
+    public static final AttributeKey<String> DATABASE = AttributeKey.valueOf("inMemoryDatabase");
+
+    /**
+     * The bytes a sort keeps in memory before spilling to temporary files
+     */
+    public static final long SORT_MEMORY_LIMIT = 32 * 1024 * 1024;
+
+    private static final AttributeKey<ConcurrentMap<Long, InMemoryCursor>> CURSORS
+            = AttributeKey.valueOf("inMemoryCursors");
+
+    private final InMemoryStorage storage;
+    private final AtomicLong lastCursorId = new AtomicLong();
+
+    @Inject
+    public InMemoryRequestProcessor(@Nonnull InMemoryStorage storage) {
+        super(new InMemoryQueryCommandProcessor(storage), new InMemoryMetaQueryProcessor(storage));
+        this.storage = storage;
+    }
+
+    @Override
+    public void onChannelActive(@Nonnull AttributeMap attributeMap) {
+    }
+
+    @Override
+    public void onChannelInactive(@Nonnull AttributeMap attributeMap) {
+        attributeMap.attr(DATABASE).remove();
+        attributeMap.attr(LastWriteResult.LAST_WRITE_RESULT).remove();
+        attributeMap.attr(CURSORS).remove();
+    }
+
+    @Override
+    public void queryMessage(@Nonnull QueryMessage queryMessage, @Nonnull MessageReplier messageReplier) throws Exception {
+        messageReplier.getAttributeMap().attr(DATABASE).set(queryMessage.getDatabase());
+        super.queryMessage(queryMessage, messageReplier);
+    }
+
+    @Override
+    public QueryReply query(QueryRequest request) throws Exception {
+        InMemoryCollection collection = storage.getCollection(request.getDatabase(), request.getCollection());
+        List<BSONDocument> documents;
+        if (collection == null) {
+            documents = Collections.emptyList();
+        }
+        else {
+            Matcher matcher = Matcher.compile(request.getQuery());
+            SortSpec sortSpec = SortSpec.compile(request.getOrderBy());
+            // Positive limits that do not close the cursor are batch sizes
+            int limit = request.isAutoclose() ? request.getLimit() : 0;
+            if (sortSpec == null || sortSpec.isOnlyField("_id")) {
+                boolean descending = sortSpec != null && sortSpec.isFirstDescending();
+                documents = collection.find(matcher, descending, request.getNumberToSkip(), limit);
+            }
+            else {
+                documents = sort(collection, matcher, sortSpec, request.getNumberToSkip(), limit);
+            }
+        }
+        return reply(request, documents);
+    }
+
+    /**
+     * Returns all the documents if the server spools the cursors, or else the
+     * first batch, keeping the rest on a cursor of the connection unless the
+     * query closes it
+     */
+    private QueryReply reply(QueryRequest request, List<BSONDocument> documents) {
+        long cursorId = 0;
+        List<BSONDocument> firstBatch = documents;
+        if (request.getAttributes().attr(CursorManager.CURSOR_MANAGER).get() == null) {
+            Queue<BSONDocument> remaining = new ArrayDeque<BSONDocument>(documents);
+            int batchSize = request.getLimit() > 0 ? request.getLimit() : CursorManager.DEFAULT_FIRST_BATCH_SIZE;
+            firstBatch = InMemoryCursor.takeBatch(remaining, batchSize, CursorManager.MAX_BATCH_BYTES);
+            if (!remaining.isEmpty() && !request.isAutoclose()) {
+                InMemoryCursor cursor = new InMemoryCursor(lastCursorId.incrementAndGet(), remaining, firstBatch.size());
+                getCursors(request.getAttributes()).put(cursor.getCursorId(), cursor);
+                cursorId = cursor.getCursorId();
+            }
+        }
+        return new QueryReply.Builder()
+                .setCursorId(cursorId)
+                .setStartingFrom(0)
+                .setDocuments(firstBatch)
+                .build();
+    }
+
+    private static ConcurrentMap<Long, InMemoryCursor> getCursors(AttributeMap attributeMap) {
+        Attribute<ConcurrentMap<Long, InMemoryCursor>> attribute = attributeMap.attr(CURSORS);
+        ConcurrentMap<Long, InMemoryCursor> cursors = attribute.get();
+        if (cursors == null) {
+            cursors = new ConcurrentHashMap<Long, InMemoryCursor>();
+            ConcurrentMap<Long, InMemoryCursor> previous = attribute.setIfAbsent(cursors);
+            if (previous != null) {
+                cursors = previous;
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Sorts the documents that match with an {@link ExternalSorter}, which
+     * keeps only the first ones if there is a limit
+     */
+    private static List<BSONDocument> sort(
+            InMemoryCollection collection,
+            Matcher matcher,
+            SortSpec sortSpec,
+            int skip,
+            int limit) throws IOException {
+        int sorterLimit = limit > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) skip + limit) : 0;
+        ExternalSorter sorter = new ExternalSorter(sortSpec, SORT_MEMORY_LIMIT, null, sorterLimit);
+        try {
+            collection.sort(matcher, sorter);
+            List<BSONDocument> documents = new ArrayList<BSONDocument>();
+            Iterator<BSONDocument> sorted = sorter.sort();
+            for (int skipped = 0; skipped < skip && sorted.hasNext(); skipped++) {
+                sorted.next();
+            }
+            while (sorted.hasNext()) {
+                documents.add(sorted.next());
+            }
+            return documents;
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Override
+    public void getMore(@Nonnull GetMoreMessage getMoreMessage, @Nonnull MessageReplier messageReplier) throws Exception {
+        ConcurrentMap<Long, InMemoryCursor> cursors = messageReplier.getAttributeMap().attr(CURSORS).get();
+        InMemoryCursor cursor = cursors != null ? cursors.get(getMoreMessage.getCursorId()) : null;
+        if (cursor == null) {
+            messageReplier.replyMessageWithFlags(0, 0, EnumSet.of(ReplyMessage.Flag.CURSOR_NOT_FOUND));
+            return;
+        }
+        if (cursor.replyNextBatch(getMoreMessage.getNumberToReturn(), CursorManager.MAX_BATCH_BYTES, messageReplier)) {
+            cursors.remove(cursor.getCursorId(), cursor);
+        }
+    }
+
+    @Override
+    public void killCursors(@Nonnull KillCursorsMessage killCursorsMessage, @Nonnull MessageReplier messageReplier)
+            throws Exception {
+        ConcurrentMap<Long, InMemoryCursor> cursors = messageReplier.getAttributeMap().attr(CURSORS).get();
+        if (cursors != null) {
+            for (long cursorId : killCursorsMessage.getCursorIds()) {
+                cursors.remove(cursorId);
+            }
+        }
+    }
+
+    @Override
+    public void insert(@Nonnull InsertMessage insertMessage, @Nonnull MessageReplier messageReplier) throws Exception {
+        LastWriteResult result;
+        try {
+            InMemoryCollection collection = storage.getOrCreateCollection(
+                    insertMessage.getDatabase(),
+                    insertMessage.getCollection()
+            );
+            boolean continueOnError = insertMessage.isFlagSet(InsertMessage.Flag.CONTINUE_ON_ERROR);
+            int n = 0;
+            result = null;
+            for (BSONDocument document : insertMessage.getDocuments()) {
+                try {
+                    collection.insert(InMemoryQueryCommandProcessor.toBSONObject(document));
+                    n++;
+                } catch (InMemoryCollection.DuplicateKeyException ex) {
+                    result = LastWriteResult.failed(ex.getMessage(), InMemoryCollection.DuplicateKeyException.ERROR_CODE);
+                } catch (IllegalArgumentException ex) {
+                    result = LastWriteResult.failed(ex.getMessage(), MongoWP.ErrorCode.BAD_VALUE.getErrorCode());
+                }
+                if (result != null && !continueOnError) {
+                    break;
+                }
+            }
+            if (result == null) {
+                result = LastWriteResult.inserted(n);
+            }
+        } catch (IllegalArgumentException ex) {
+            result = LastWriteResult.failed(ex.getMessage(), MongoWP.ErrorCode.BAD_VALUE.getErrorCode());
+        }
+        messageReplier.getAttributeMap().attr(LastWriteResult.LAST_WRITE_RESULT).set(result);
+    }
+
+    @Override
+    public void update(@Nonnull UpdateMessage updateMessage, @Nonnull MessageReplier messageReplier) throws Exception {
+        LastWriteResult result;
+        try {
+            InMemoryCollection collection = storage.getOrCreateCollection(
+                    updateMessage.getDatabase(),
+                    updateMessage.getCollection()
+            );
+            BSONObject filter = InMemoryQueryCommandProcessor.toBSONObject(updateMessage.getSelector());
+            result = LastWriteResult.updated(collection.update(
+                    Matcher.compile(filter),
+                    filter,
+                    InMemoryQueryCommandProcessor.toBSONObject(updateMessage.getupdate()),
+                    updateMessage.isFlagSet(UpdateMessage.Flag.MULTI_UPDATE),
+                    updateMessage.isFlagSet(UpdateMessage.Flag.UPSERT)
+            ));
+        } catch (InMemoryCollection.DuplicateKeyException ex) {
+            result = LastWriteResult.failed(ex.getMessage(), InMemoryCollection.DuplicateKeyException.ERROR_CODE);
+        } catch (IllegalArgumentException ex) {
+            result = LastWriteResult.failed(ex.getMessage(), MongoWP.ErrorCode.BAD_VALUE.getErrorCode());
+        }
+        messageReplier.getAttributeMap().attr(LastWriteResult.LAST_WRITE_RESULT).set(result);
+    }
+
+    @Override
+    public void delete(@Nonnull DeleteMessage deleteMessage, @Nonnull MessageReplier messageReplier) throws Exception {
+        LastWriteResult result;
+        try {
+            InMemoryCollection collection = storage.getCollection(
+                    deleteMessage.getDatabase(),
+                    deleteMessage.getCollection()
+            );
+            Matcher matcher = Matcher.compile(InMemoryQueryCommandProcessor.toBSONObject(deleteMessage.getDocument()));
+            int n = collection == null
+                    ? 0
+                    : collection.delete(matcher, deleteMessage.isFlagSet(DeleteMessage.Flag.SINGLE_REMOVE));
+            result = LastWriteResult.deleted(n);
+        } catch (IllegalArgumentException ex) {
+            result = LastWriteResult.failed(ex.getMessage(), MongoWP.ErrorCode.BAD_VALUE.getErrorCode());
+        }
+        messageReplier.getAttributeMap().attr(LastWriteResult.LAST_WRITE_RESULT).set(result);
+    }
+
+    @Override
+    public void noSuchCommand(@Nonnull BSONDocument query, @Nonnull MessageReplier messageReplier) throws Exception {
+        String command = query.getKeys().isEmpty() ? "" : query.getKeys().iterator().next();
+        messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.NO_SUCH_COMMAND, command);
+    }
+
+    @Override
+    public void adminOnlyCommand(@Nonnull QueryCommand queryCommand, @Nonnull MessageReplier messageReplier)
+            throws Exception {
+        messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.MUST_RUN_ON_ADMIN, queryCommand.getKey());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The databases and collections of the in-memory engine. Documents are
+ * stored out of the Java heap, on slabs shared by all the collections.
+ * <p>
+ * The same storage can be shared by several {@link InMemoryRequestProcessor}
+ * instances, for example to serve several ports.
+ */
+@ThreadSafe
+public class InMemoryStorage {
+
+    private final SlabAllocator allocator;
+    private final ConcurrentMap<String, ConcurrentMap<String, InMemoryCollection>> databases
+            = new ConcurrentHashMap<String, ConcurrentMap<String, InMemoryCollection>>();
+
+    public InMemoryStorage() {
+        this(SlabAllocator.DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param slabBytes the size of the direct buffers documents are stored on
+     */
+    public InMemoryStorage(@Nonnegative int slabBytes) {
+        this.allocator = new SlabAllocator(slabBytes);
+    }
+
+    @Nullable
+    InMemoryCollection getCollection(@Nonnull String database, @Nonnull String collection) {
+        ConcurrentMap<String, InMemoryCollection> collections = databases.get(database);
+        return collections == null ? null : collections.get(collection);
+    }
+
+    /**
+     * @return the collection, that is created if it did not exist
+     */
+    @Nonnull
+    InMemoryCollection getOrCreateCollection(@Nonnull String database, @Nonnull String collection) {
+        Preconditions.checkArgument(!collection.isEmpty(), "Invalid empty collection name");
+        ConcurrentMap<String, InMemoryCollection> collections = databases.get(database);
+        if (collections == null) {
+            ConcurrentMap<String, InMemoryCollection> newCollections = new ConcurrentHashMap<String, InMemoryCollection>();
+            collections = databases.putIfAbsent(database, newCollections);
+            if (collections == null) {
+                collections = newCollections;
+            }
+        }
+        InMemoryCollection result = collections.get(collection);
+        if (result == null) {
+            InMemoryCollection newCollection = new InMemoryCollection(database, collection, allocator);
+            result = collections.putIfAbsent(collection, newCollection);
+            if (result == null) {
+                result = newCollection;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true iff the collection existed
+     */
+    boolean dropCollection(@Nonnull String database, @Nonnull String collection) {
+        ConcurrentMap<String, InMemoryCollection> collections = databases.get(database);
+        InMemoryCollection dropped = collections == null ? null : collections.remove(collection);
+        if (dropped == null) {
+            return false;
+        }
+        dropped.drop();
+        return true;
+    }
+
+    /**
+     * @return true iff the database existed
+     */
+    boolean dropDatabase(@Nonnull String database) {
+        ConcurrentMap<String, InMemoryCollection> collections = databases.remove(database);
+        if (collections == null) {
+            return false;
+        }
+        for (InMemoryCollection collection : collections.values()) {
+            collection.drop();
+        }
+        return true;
+    }
+
+    @Nonnull
+    Set<String> getDatabaseNames() {
+        return ImmutableSet.copyOf(databases.keySet());
+    }
+
+    @Nonnull
+    Collection<InMemoryCollection> getCollections(@Nonnull String database) {
+        ConcurrentMap<String, InMemoryCollection> collections = databases.get(database);
+        return collections == null ? ImmutableSet.<InMemoryCollection>of() : ImmutableSet.copyOf(collections.values());
+    }
+
+    /**
+     * @return the bytes of all the stored versions of the documents
+     */
+    public long getStoredBytes() {
+        return allocator.getStoredBytes();
+    }
+
+    int getSlabBytes() {
+        return allocator.getSlabBytes();
+    }
+
+    /**
+     * Drops all the databases
+     */
+    public void close() {
+        for (String database : databases.keySet()) {
+            dropDatabase(database);
+        }
+        allocator.close();
+    }
+}
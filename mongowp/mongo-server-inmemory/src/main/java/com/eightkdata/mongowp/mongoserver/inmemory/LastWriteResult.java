@@ -0,0 +1,99 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.util.AttributeKey;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+/**
+ * The result of the last write of a connection, reported by getLastError
+ */
+@Immutable
+class LastWriteResult {
+    static final AttributeKey<LastWriteResult> LAST_WRITE_RESULT = AttributeKey.valueOf("inMemoryLastWriteResult");
+
+    static final LastWriteResult NONE = new LastWriteResult(0, false, null, null, 0);
+
+    private final int n;
+    private final boolean updatedExisting;
+    @Nullable private final Object upserted;
+    @Nullable private final String error;
+    private final int code;
+
+    private LastWriteResult(int n, boolean updatedExisting, @Nullable Object upserted, @Nullable String error, int code) {
+        this.n = n;
+        this.updatedExisting = updatedExisting;
+        this.upserted = upserted;
+        this.error = error;
+        this.code = code;
+    }
+
+    static LastWriteResult inserted(int n) {
+        return new LastWriteResult(n, false, null, null, 0);
+    }
+
+    static LastWriteResult updated(@Nonnull InMemoryCollection.UpdateResult result) {
+        if (result.getUpsertedId() != null) {
+            return new LastWriteResult(1, false, result.getUpsertedId(), null, 0);
+        }
+        return new LastWriteResult(result.getMatched(), result.getMatched() > 0, null, null, 0);
+    }
+
+    static LastWriteResult deleted(int n) {
+        return new LastWriteResult(n, false, null, null, 0);
+    }
+
+    static LastWriteResult failed(@Nonnull String error, int code) {
+        return new LastWriteResult(0, false, null, error, code);
+    }
+
+    @Nonnull
+    BSONDocument toReplyDocument(int connectionId) {
+        BasicBSONObject document = new BasicBSONObject();
+        document.put("connectionId", connectionId);
+        if (error != null) {
+            document.put("code", code);
+        }
+        document.put("n", n);
+        document.put("syncMillis", 0);
+        document.put("writtenTo", null);
+        if (updatedExisting || upserted != null) {
+            document.put("updatedExisting", updatedExisting);
+        }
+        if (upserted != null) {
+            document.put("upserted", upserted);
+        }
+        document.put("err", error);
+        document.put("ok", MongoWP.OK);
+        return new MongoBSONDocument((BSONObject) document);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+
+import com.eightkdata.mongowp.mongoserver.api.matcher.RawMatcher;
+
+/**
+ * Evaluates a query filter on stored documents with a {@link RawMatcher}, so
+ * documents are matched on their encoded bytes.
+ * <p>
+ * It also tells whether the filter is an equality on <code>_id</code>, so
+ * the only document that can match is looked up instead of scanning the
+ * collection.
+ */
+@Immutable
+final class Matcher {
+    private static final Matcher ALL = new Matcher(RawMatcher.compile(null), null);
+
+    private final RawMatcher rawMatcher;
+    @Nullable private final IdKey idLookup;
+
+    private Matcher(RawMatcher rawMatcher, @Nullable IdKey idLookup) {
+        this.rawMatcher = rawMatcher;
+        this.idLookup = idLookup;
+    }
+
+    /**
+     * @param filter the filter, or null to match every document
+     * @throws IllegalArgumentException If the filter is not supported
+     */
+    @Nonnull
+    static Matcher compile(@Nullable BSONObject filter) {
+        if (filter == null || filter.keySet().isEmpty()) {
+            return ALL;
+        }
+        RawMatcher rawMatcher = RawMatcher.compile(filter);
+        IdKey idLookup = null;
+        if (filter.containsField("_id")) {
+            Object value = filter.get("_id");
+            if (isDocument(value) && ((BSONObject) value).keySet().equals(Collections.singleton("$eq"))) {
+                value = ((BSONObject) value).get("$eq");
+            }
+            if (!(value instanceof List) && !(value instanceof Pattern) && !isOperators(value)) {
+                idLookup = IdKey.fromValue(value);
+            }
+        }
+        return new Matcher(rawMatcher, idLookup);
+    }
+
+    private static boolean isDocument(@Nullable Object value) {
+        return value instanceof BSONObject && !(value instanceof List);
+    }
+
+    private static boolean isOperators(@Nullable Object value) {
+        if (isDocument(value)) {
+            for (String key : ((BSONObject) value).keySet()) {
+                if (key.startsWith("$")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the key of the only document that can match, if the filter
+     *         is an equality on <code>_id</code>
+     */
+    @Nullable
+    IdKey getIdLookup() {
+        return idLookup;
+    }
+
+    boolean matchesAll() {
+        return rawMatcher.matchesAll();
+    }
+
+    /**
+     * @param document the encoded document, starting at its reader index
+     */
+    boolean matches(@Nonnull ByteBuf document) {
+        return rawMatcher.matches(document, document.readerIndex());
+    }
+
+    boolean matches(@Nonnull BSONObject document) {
+        if (rawMatcher.matchesAll()) {
+            return true;
+        }
+        return matches(Unpooled.wrappedBuffer(new BasicBSONEncoder().encode(document)));
+    }
+
+    static boolean valuesEqual(@Nullable Object value1, @Nullable Object value2) {
+        if (value1 == null || value2 == null) {
+            return value1 == value2;
+        }
+        if (value1 instanceof Number && value2 instanceof Number) {
+            Number number1 = (Number) value1;
+            Number number2 = (Number) value2;
+            if (isIntegral(number1) && isIntegral(number2)) {
+                return number1.longValue() == number2.longValue();
+            }
+            return doublesEqual(number1.doubleValue(), number2.doubleValue());
+        }
+        if (value1 instanceof List && value2 instanceof List) {
+            List<?> list1 = (List<?>) value1;
+            List<?> list2 = (List<?>) value2;
+            if (list1.size() != list2.size()) {
+                return false;
+            }
+            for (int i = 0; i < list1.size(); i++) {
+                if (!valuesEqual(list1.get(i), list2.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value1 instanceof BSONObject && value2 instanceof BSONObject) {
+            if (value1 instanceof List || value2 instanceof List) {
+                return false;
+            }
+            BSONObject object1 = (BSONObject) value1;
+            BSONObject object2 = (BSONObject) value2;
+            Iterator<String> keys1 = object1.keySet().iterator();
+            Iterator<String> keys2 = object2.keySet().iterator();
+            while (keys1.hasNext() && keys2.hasNext()) {
+                String key1 = keys1.next();
+                if (!key1.equals(keys2.next()) || !valuesEqual(object1.get(key1), object2.get(key1))) {
+                    return false;
+                }
+            }
+            return !keys1.hasNext() && !keys2.hasNext();
+        }
+        if (value1 instanceof byte[] && value2 instanceof byte[]) {
+            return Arrays.equals((byte[]) value1, (byte[]) value2);
+        }
+        if (value1 instanceof Pattern && value2 instanceof Pattern) {
+            return ((Pattern) value1).pattern().equals(((Pattern) value2).pattern())
+                    && ((Pattern) value1).flags() == ((Pattern) value2).flags();
+        }
+        return value1.equals(value2);
+    }
+
+    /**
+     * NaN is equal to itself, as in MongoDB
+     */
+    private static boolean doublesEqual(double double1, double double2) {
+        if (Double.isNaN(double1) || Double.isNaN(double2)) {
+            return Double.isNaN(double1) && Double.isNaN(double2);
+        }
+        return !(double1 < double2) && !(double1 > double2);
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+    @Override
+    public String toString() {
+        return "Matcher" + rawMatcher;
+    }
+}
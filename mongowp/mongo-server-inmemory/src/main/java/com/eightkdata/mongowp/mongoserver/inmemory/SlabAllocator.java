@@ -0,0 +1,122 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stores encoded documents out of the Java heap, packed on big direct
+ * buffers (slabs).
+ * <p>
+ * Each stored document is a slice of its slab that holds a reference to it,
+ * so a slab is freed once all its documents have been released and it is not
+ * the slab being filled anymore. Documents bigger than a quarter of a slab
+ * get a buffer of their own.
+ */
+@ThreadSafe
+class SlabAllocator {
+
+    static final int DEFAULT_SLAB_BYTES = 4 * 1024 * 1024;
+
+    private final int slabBytes;
+    @GuardedBy("this") @Nullable private ByteBuf currentSlab;
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong allocatedSlabs = new AtomicLong();
+
+    SlabAllocator(@Nonnegative int slabBytes) {
+        Preconditions.checkArgument(slabBytes > 0, "The slab size must be positive");
+        this.slabBytes = slabBytes;
+    }
+
+    /**
+     * Copies the given bytes to a slab.
+     *
+     * @return the stored bytes, that must be released once they are not
+     *         needed anymore. See {@link #release(ByteBuf)}
+     */
+    @Nonnull
+    ByteBuf store(@Nonnull ByteBuf source, @Nonnegative int index, @Nonnegative int length) {
+        storedBytes.addAndGet(length);
+        if (length > slabBytes / 4) {
+            ByteBuf own = Unpooled.directBuffer(length, length);
+            own.writeBytes(source, index, length);
+            return own;
+        }
+        synchronized (this) {
+            ByteBuf slab = currentSlab;
+            if (slab == null || slab.writableBytes() < length) {
+                if (slab != null) {
+                    // The slab is freed when its last document is released
+                    slab.release();
+                }
+                slab = Unpooled.directBuffer(slabBytes, slabBytes);
+                allocatedSlabs.incrementAndGet();
+                currentSlab = slab;
+            }
+            int offset = slab.writerIndex();
+            slab.writeBytes(source, index, length);
+            slab.retain();
+            return slab.slice(offset, length);
+        }
+    }
+
+    /**
+     * Releases bytes returned by {@link #store}
+     */
+    void release(@Nonnull ByteBuf stored) {
+        storedBytes.addAndGet(-stored.capacity());
+        stored.release();
+    }
+
+    /**
+     * @return the bytes of the documents that have not been released
+     */
+    long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    long getAllocatedSlabs() {
+        return allocatedSlabs.get();
+    }
+
+    int getSlabBytes() {
+        return slabBytes;
+    }
+
+    synchronized void close() {
+        if (currentSlab != null) {
+            currentSlab.release();
+            currentSlab = null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+
+import com.eightkdata.nettybson.api.AbstractRawBSONDocument;
+
+/**
+ * A document read from a collection, copied to the heap so it stays valid
+ * once its version is released. It is written as the stored bytes and only
+ * decoded if its keys or values are read; the typed accessors read the bytes.
+ */
+@Immutable
+class StoredDocument extends AbstractRawBSONDocument {
+    private volatile BSONObject decoded;
+
+    StoredDocument(@Nonnull byte[] bytes) {
+        super(bytes);
+    }
+
+    static StoredDocument copyOf(@Nonnull ByteBuf stored) {
+        byte[] bytes = new byte[stored.capacity()];
+        stored.getBytes(0, bytes);
+        return new StoredDocument(bytes);
+    }
+
+    int getSize() {
+        return getLength();
+    }
+
+    @Nonnull
+    BSONObject getBSONObject() {
+        BSONObject result = decoded;
+        if (result == null) {
+            result = new BasicBSONDecoder().readObject(getBytes());
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getKeys() {
+        return getBSONObject().keySet();
+    }
+
+    @Override
+    public Object getValue(@Nonnull String key) {
+        return getBSONObject().get(key);
+    }
+
+    @Override
+    public String toString() {
+        return getBSONObject().toString();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A version of a stored document. The versions of a document are chained
+ * from the newest to the oldest one.
+ * <p>
+ * A version is visible to the readers whose snapshot is between the write
+ * that created it (included) and the write that replaced or deleted it
+ * (excluded). See {@link InMemoryCollection}.
+ */
+@ThreadSafe
+final class Version {
+    static final long LIVE = Long.MAX_VALUE;
+
+    private final ByteBuf document;
+    private final long created;
+    private volatile long deleted = LIVE;
+    @Nullable private volatile Version previous;
+
+    Version(@Nonnull ByteBuf document, long created, @Nullable Version previous) {
+        this.document = document;
+        this.created = created;
+        this.previous = previous;
+    }
+
+    /**
+     * @return the encoded document, stored on a slab
+     */
+    @Nonnull
+    ByteBuf getDocument() {
+        return document;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    long getDeleted() {
+        return deleted;
+    }
+
+    boolean isLive() {
+        return deleted == LIVE;
+    }
+
+    void markDeleted(long sequence) {
+        this.deleted = sequence;
+    }
+
+    @Nullable
+    Version getPrevious() {
+        return previous;
+    }
+
+    void unlinkPrevious() {
+        this.previous = null;
+    }
+
+    boolean isVisible(long snapshot) {
+        return created <= snapshot && snapshot < deleted;
+    }
+
+    /**
+     * @return the version of the chain that is visible on the given snapshot,
+     *         or null if the document did not exist on it
+     */
+    @Nullable
+    Version findVisible(long snapshot) {
+        Version version = this;
+        while (version != null && version.created > snapshot) {
+            version = version.previous;
+        }
+        if (version == null || version.deleted <= snapshot) {
+            return null;
+        }
+        return version;
+    }
+}
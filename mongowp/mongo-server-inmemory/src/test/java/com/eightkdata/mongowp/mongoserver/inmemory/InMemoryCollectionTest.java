@@ -0,0 +1,272 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class InMemoryCollectionTest {
+    private static final int DOCUMENTS = 50;
+
+    private SlabAllocator allocator;
+    private InMemoryCollection collection;
+
+    @Before
+    public void setUp() throws Exception {
+        allocator = new SlabAllocator(64 * 1024);
+        collection = new InMemoryCollection("db", "test", allocator);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            collection.insert(new BasicBSONObject("_id", i).append("v", 0));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        allocator.close();
+    }
+
+    @Test
+    public void readersKeepTheirSnapshot() throws Exception {
+        Iterator<BSONDocument> reader = openReader();
+
+        setAll("v", 1);
+        collection.delete(Matcher.compile(new BasicBSONObject("_id", 0)), true);
+        collection.insert(new BasicBSONObject("_id", DOCUMENTS).append("v", 1));
+
+        int read = 0;
+        while (reader.hasNext()) {
+            BSONDocument document = reader.next();
+            assertEquals(read, document.getInt("_id", -1));
+            assertEquals(0, document.getInt("v", -1));
+            read++;
+        }
+        assertEquals(DOCUMENTS, read);
+
+        List<BSONDocument> current = findAll();
+        assertEquals(DOCUMENTS, current.size());
+        assertEquals(1, current.get(0).getInt("_id", -1));
+        assertEquals(DOCUMENTS, current.get(DOCUMENTS - 1).getInt("_id", -1));
+        for (BSONDocument document : current) {
+            assertEquals(1, document.getInt("v", -1));
+        }
+    }
+
+    @Test
+    public void versionsAreReleasedOnceNoReaderSeesThem() throws Exception {
+        long dataSize = collection.getDataSize();
+        assertEquals(dataSize, collection.getStorageSize());
+
+        Iterator<BSONDocument> reader = openReader();
+        setAll("v", 1);
+        setAll("v", 2);
+        assertTrue(collection.getStorageSize() > dataSize);
+
+        assertEquals(0, reader.next().getInt("v", -1));
+        while (reader.hasNext()) {
+            reader.next();
+        }
+        setAll("v", 3);
+        assertEquals(dataSize, collection.getStorageSize());
+        assertEquals(dataSize, allocator.getStoredBytes());
+    }
+
+    @Test
+    public void vacuumReleasesTheVersionsOfKeysNotWrittenAgain() throws Exception {
+        long dataSize = collection.getDataSize();
+        Iterator<BSONDocument> reader = openReader();
+        setAll("v", 1);
+        while (reader.hasNext()) {
+            reader.next();
+        }
+        assertEquals(2 * dataSize, collection.getStorageSize());
+
+        // Other keys are written until the vacuum runs
+        for (int i = 0; i < InMemoryCollection.VACUUM_INTERVAL; i++) {
+            collection.insert(new BasicBSONObject("_id", DOCUMENTS + i));
+            collection.delete(Matcher.compile(new BasicBSONObject("_id", DOCUMENTS + i)), true);
+        }
+        assertEquals(dataSize, collection.getStorageSize());
+        assertEquals(DOCUMENTS, collection.getCount());
+    }
+
+    @Test
+    public void dropWaitsForTheReaders() throws Exception {
+        Iterator<BSONDocument> reader = openReader();
+        collection.drop();
+
+        int read = 0;
+        while (reader.hasNext()) {
+            reader.next();
+            read++;
+        }
+        assertEquals(DOCUMENTS, read);
+        assertEquals(0, collection.getStorageSize());
+        assertEquals(0, allocator.getStoredBytes());
+    }
+
+    /**
+     * Readers that race a drop either see all the documents or none of them,
+     * and the documents are released once they end
+     */
+    @Test
+    public void concurrentDropsAndReaders() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int round = 0; round < 20; round++) {
+            final InMemoryCollection dropped = new InMemoryCollection("db", "dropped" + round, allocator);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                dropped.insert(new BasicBSONObject("_id", i).append("v", i));
+            }
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch readersDone = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < 20; j++) {
+                                List<BSONDocument> documents = dropped.find(Matcher.compile(null), false, 0, 0);
+                                assertTrue(documents.isEmpty() || documents.size() == DOCUMENTS);
+                                for (BSONDocument document : documents) {
+                                    assertEquals(document.getInt("_id", -1), document.getInt("v", -2));
+                                }
+                                int count = dropped.count(Matcher.compile(new BasicBSONObject("v", new BasicBSONObject("$gte", 0))), 0, 0);
+                                assertTrue(count == 0 || count == DOCUMENTS);
+                            }
+                        } catch (Throwable throwable) {
+                            failure.compareAndSet(null, throwable);
+                        } finally {
+                            readersDone.countDown();
+                        }
+                    }
+                });
+                reader.start();
+            }
+            start.countDown();
+            dropped.drop();
+            readersDone.await();
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals(0, dropped.getStorageSize());
+            assertTrue(dropped.find(Matcher.compile(null), false, 0, 0).isEmpty());
+            assertEquals(0, dropped.count(Matcher.compile(null), 0, 0));
+        }
+        assertEquals(collection.getStorageSize(), allocator.getStoredBytes());
+    }
+
+    /**
+     * Every update increments all the documents at once, so each reader must
+     * see all of them with the same value while the writer updates them and
+     * vacuums the old versions
+     */
+    @Test
+    public void concurrentReadersSeeConsistentSnapshots() throws Exception {
+        final int updates = 4 * InMemoryCollection.VACUUM_INTERVAL / DOCUMENTS;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch readersDone = new CountDownLatch(4);
+
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int last = 0;
+                        while (writing.get()) {
+                            List<BSONDocument> documents = findAll();
+                            assertEquals(DOCUMENTS, documents.size());
+                            int value = documents.get(0).getInt("v", -1);
+                            assertTrue(value >= last);
+                            for (BSONDocument document : documents) {
+                                assertEquals(value, document.getInt("v", -1));
+                            }
+                            last = value;
+                        }
+                    } catch (Throwable throwable) {
+                        failure.compareAndSet(null, throwable);
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            });
+            reader.start();
+        }
+
+        try {
+            for (int i = 1; i <= updates; i++) {
+                collection.update(
+                        Matcher.compile(null),
+                        null,
+                        new BasicBSONObject("$inc", new BasicBSONObject("v", 1)),
+                        true,
+                        false
+                );
+            }
+        } finally {
+            writing.set(false);
+        }
+        readersDone.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        setAll("v", 0);
+        assertEquals(DOCUMENTS, collection.getCount());
+        assertEquals(collection.getDataSize(), collection.getStorageSize());
+        assertEquals(collection.getDataSize(), allocator.getStoredBytes());
+    }
+
+    private Iterator<BSONDocument> openReader() {
+        List<Iterable<BSONDocument>> partitions = collection.partitions(1);
+        assertEquals(1, partitions.size());
+        return partitions.get(0).iterator();
+    }
+
+    private List<BSONDocument> findAll() {
+        return collection.find(Matcher.compile(null), false, 0, 0);
+    }
+
+    private void setAll(String field, int value) throws Exception {
+        BSONObject update = new BasicBSONObject("$set", new BasicBSONObject(field, value));
+        collection.update(Matcher.compile(null), null, update, true, false);
+    }
+}
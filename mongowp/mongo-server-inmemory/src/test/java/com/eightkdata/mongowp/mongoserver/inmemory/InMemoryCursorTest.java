@@ -0,0 +1,82 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.inmemory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.junit.Test;
+
+import com.eightkdata.nettybson.api.BSONDocument;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class InMemoryCursorTest {
+
+    @Test
+    public void batchesAreLimitedByNumber() {
+        Queue<BSONDocument> documents = newDocuments(10, 0);
+        assertEquals(3, InMemoryCursor.takeBatch(documents, 3, Integer.MAX_VALUE).size());
+        assertEquals(4, InMemoryCursor.takeBatch(documents, -4, Integer.MAX_VALUE).size());
+        assertEquals(3, InMemoryCursor.takeBatch(documents, 0, Integer.MAX_VALUE).size());
+        assertEquals(0, documents.size());
+    }
+
+    @Test
+    public void batchesAreLimitedByBytes() {
+        Queue<BSONDocument> documents = newDocuments(10, 1000);
+        int size = encodedSize(documents.peek());
+
+        List<BSONDocument> batch = InMemoryCursor.takeBatch(documents, 0, 3 * size + size / 2);
+        assertEquals(3, batch.size());
+        assertEquals(0, batch.get(0).getInt("_id", -1));
+        assertEquals(3, documents.peek().getInt("_id", -1));
+    }
+
+    @Test
+    public void batchesHaveAtLeastOneDocument() {
+        Queue<BSONDocument> documents = newDocuments(2, 1000);
+        assertEquals(1, InMemoryCursor.takeBatch(documents, 0, 10).size());
+        assertEquals(1, documents.size());
+    }
+
+    private static Queue<BSONDocument> newDocuments(int count, int padding) {
+        Queue<BSONDocument> documents = new ArrayDeque<BSONDocument>(count);
+        for (int i = 0; i < count; i++) {
+            BasicBSONObject document = new BasicBSONObject("_id", i).append("padding", new byte[padding]);
+            documents.add(new StoredDocument(new BasicBSONEncoder().encode(document)));
+        }
+        return documents;
+    }
+
+    private static int encodedSize(BSONDocument document) {
+        return ((StoredDocument) document).getSize();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+package com.eightkdata.mongowp.mongoserver;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.bson.BSONObject;
+
+import com.eightkdata.mongowp.messages.request.CollectionRequestMessage;
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.mongoserver.api.AbstractRequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.metrics.TopStats;
+import com.eightkdata.mongowp.mongoserver.api.profiler.ProfileEntry;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryProfiler;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShape;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShapeStats;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * Gathers the decode, processing and encode times of the requests of a
+ * connection and hands them to the {@link QueryProfiler} and the
+ * {@link QueryShapeStats} once each request is finished.
+ * <p>
+ * Queries and getMores are finished once they are processed and their reply
+ * is encoded, matched by its responseTo field. Writes are finished once they
+ * are processed. Nothing is gathered while both are disabled.
+ * <p>
+ * Commands are attributed to the collection they run on and shaped on their
+ * filter, like the queries of that collection.
+ */
+@ThreadSafe
+public class ConnectionProfiler {
+    /**
+     * Replies that are never sent (like those of failed requests whose error
+     * is not replied) are forgotten, from the oldest one, once this limit is
+     * reached
+     */
+    private static final int MAX_AWAITING_REPLIES = 64;
+
+    private final QueryProfiler queryProfiler;
+    private final QueryShapeStats queryShapeStats;
+    @Nullable private final String client;
+    @GuardedBy("awaitingReply") private final AwaitingReplies awaitingReply = new AwaitingReplies();
+    /**
+     * Only accessed from the event loop, which decodes a request just before
+     * it is read by {@link RequestMessageObjectHandler}
+     */
+    private long lastDecodeNanos;
+
+    public ConnectionProfiler(
+            @Nonnull QueryProfiler queryProfiler,
+            @Nonnull QueryShapeStats queryShapeStats,
+            @Nullable String client) {
+        this.queryProfiler = queryProfiler;
+        this.queryShapeStats = queryShapeStats;
+        this.client = client;
+    }
+
+    @Nonnull
+    public QueryProfiler getQueryProfiler() {
+        return queryProfiler;
+    }
+
+    @Nonnull
+    public QueryShapeStats getQueryShapeStats() {
+        return queryShapeStats;
+    }
+
+    public boolean isEnabled() {
+        return queryProfiler.isEnabled() || queryShapeStats.isEnabled();
+    }
+
+    boolean isAwaitingReplies() {
+        synchronized (awaitingReply) {
+            return !awaitingReply.isEmpty();
+        }
+    }
+
+    /**
+     * Called from the event loop once a request is decoded
+     */
+    void onDecoded(@Nonnegative long nanos) {
+        lastDecodeNanos = nanos;
+    }
+
+    /**
+     * Called from the event loop once a request has been read
+     *
+     * @return the operation to be finished by {@link #onProcessed}, or null if
+     *         the request is not profiled
+     */
+    @Nullable
+    ProfiledOperation start(@Nonnull RequestMessage requestMessage) {
+        long decodeNanos = lastDecodeNanos;
+        lastDecodeNanos = 0;
+        if (!isEnabled()) {
+            return null;
+        }
+        TopStats.Operation operation = TopStats.Operation.of(requestMessage);
+        if (operation == null) {
+            return null;
+        }
+        boolean replied = !operation.isWrite();
+        ProfiledOperation profiledOperation = new ProfiledOperation(
+                requestMessage, operation, decodeNanos, replied ? 2 : 1
+        );
+        if (replied) {
+            synchronized (awaitingReply) {
+                awaitingReply.put(requestMessage.getBaseMessage().getRequestId(), profiledOperation);
+            }
+        }
+        return profiledOperation;
+    }
+
+    /**
+     * @param docsExamined the documents examined by the request processor, or
+     *                     null if it did not report them
+     */
+    void onProcessed(@Nonnull ProfiledOperation profiledOperation, @Nonnegative long nanos, @Nullable Long docsExamined) {
+        profiledOperation.backendNanos = nanos;
+        profiledOperation.docsExamined = docsExamined != null ? docsExamined : -1;
+        if (profiledOperation.pending.decrementAndGet() == 0) {
+            finish(profiledOperation);
+        }
+    }
+
+    /**
+     * Called from the event loop once a reply is encoded
+     */
+    void onReplyEncoded(int responseTo, int numberReturned, int responseLength, @Nonnegative long nanos) {
+        ProfiledOperation profiledOperation;
+        synchronized (awaitingReply) {
+            profiledOperation = awaitingReply.remove(responseTo);
+        }
+        if (profiledOperation == null) {
+            return;
+        }
+        profiledOperation.numberReturned = numberReturned;
+        profiledOperation.responseLength = responseLength;
+        profiledOperation.encodeNanos = nanos;
+        if (profiledOperation.pending.decrementAndGet() == 0) {
+            finish(profiledOperation);
+        }
+    }
+
+    /**
+     * Called once the connection is closed
+     */
+    void close() {
+        synchronized (awaitingReply) {
+            awaitingReply.clear();
+        }
+    }
+
+    private void finish(ProfiledOperation profiledOperation) {
+        RequestMessage requestMessage = profiledOperation.requestMessage;
+        long totalNanos = profiledOperation.decodeNanos + profiledOperation.backendNanos + profiledOperation.encodeNanos;
+        assert requestMessage instanceof CollectionRequestMessage;
+        CollectionRequestMessage collectionRequestMessage = (CollectionRequestMessage) requestMessage;
+        String collection = getCollection(profiledOperation);
+        QueryShape queryShape = getQueryShape(profiledOperation);
+        if (queryShape != null) {
+            queryShapeStats.record(
+                    collectionRequestMessage.getDatabase(),
+                    collection,
+                    queryShape,
+                    totalNanos,
+                    profiledOperation.numberReturned,
+                    profiledOperation.docsExamined
+            );
+        }
+        if (!queryProfiler.shouldCapture(
+                collectionRequestMessage.getDatabase(),
+                totalNanos,
+                requestMessage.getBaseMessage().getRequestId())) {
+            return;
+        }
+        queryProfiler.capture(new ProfileEntry.Builder()
+                .setOp(getOpName(profiledOperation.operation))
+                .setNamespace(collectionRequestMessage.getDatabase(), collection)
+                .setQueryShape(queryShape)
+                .setNumberReturned(profiledOperation.numberReturned)
+                .setResponseLength(profiledOperation.responseLength)
+                .setDecodeNanos(profiledOperation.decodeNanos)
+                .setBackendNanos(profiledOperation.backendNanos)
+                .setEncodeNanos(profiledOperation.encodeNanos)
+                .setClient(client)
+                .build()
+        );
+    }
+
+    private static String getOpName(TopStats.Operation operation) {
+        switch (operation) {
+            case QUERIES:
+                return "query";
+            case COMMANDS:
+                return "command";
+            default:
+                return operation.getKey();
+        }
+    }
+
+    /**
+     * @return the collection the operation runs on, which for commands is the
+     *         one they name, if any
+     */
+    private static String getCollection(ProfiledOperation profiledOperation) {
+        RequestMessage requestMessage = profiledOperation.requestMessage;
+        assert requestMessage instanceof CollectionRequestMessage;
+        if (profiledOperation.operation == TopStats.Operation.COMMANDS) {
+            assert requestMessage instanceof QueryMessage;
+            String collection = AbstractRequestProcessor.getCommandCollection(((QueryMessage) requestMessage).getDocument());
+            if (collection != null) {
+                return collection;
+            }
+        }
+        return ((CollectionRequestMessage) requestMessage).getCollection();
+    }
+
+    @Nullable
+    private static QueryShape getQueryShape(ProfiledOperation profiledOperation) {
+        RequestMessage requestMessage = profiledOperation.requestMessage;
+        BSONDocument query;
+        switch (requestMessage.getOpCode()) {
+            case OP_QUERY:
+                assert requestMessage instanceof QueryMessage;
+                query = ((QueryMessage) requestMessage).getDocument();
+                if (profiledOperation.operation == TopStats.Operation.COMMANDS) {
+                    // like count and find, only commands that filter a collection are shaped
+                    BSONObject commandFilter = getDocument(query, "query");
+                    if (commandFilter == null) {
+                        commandFilter = getDocument(query, "filter");
+                    }
+                    return commandFilter != null ? QueryShape.of(commandFilter) : null;
+                }
+                // as parsed by AbstractRequestProcessor, the filter may be wrapped
+                BSONObject filter = getDocument(query, "$query");
+                if (filter == null) {
+                    filter = getDocument(query, "query");
+                }
+                if (filter != null) {
+                    return QueryShape.of(filter);
+                }
+                break;
+            case OP_UPDATE:
+                assert requestMessage instanceof UpdateMessage;
+                query = ((UpdateMessage) requestMessage).getSelector();
+                break;
+            case OP_DELETE:
+                assert requestMessage instanceof DeleteMessage;
+                query = ((DeleteMessage) requestMessage).getDocument();
+                break;
+            default:
+                return null;
+        }
+        return QueryShape.of(query);
+    }
+
+    /**
+     * The operations awaiting their reply, in the order they were started, so
+     * the oldest one is evicted once the limit is reached
+     */
+    private static class AwaitingReplies extends LinkedHashMap<Integer, ProfiledOperation> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ProfiledOperation> eldest) {
+            return size() > MAX_AWAITING_REPLIES;
+        }
+    }
+
+    @Nullable
+    private static BSONObject getDocument(BSONDocument document, String key) {
+        Object value = document.hasKey(key) ? document.getValue(key) : null;
+        return value instanceof BSONObject && !(value instanceof List) ? (BSONObject) value : null;
+    }
+
+    static class ProfiledOperation {
+        private final RequestMessage requestMessage;
+        private final TopStats.Operation operation;
+        private final long decodeNanos;
+        /**
+         * The events left to finish the operation. It also publishes the
+         * fields below to the thread that finishes it
+         */
+        private final AtomicInteger pending;
+        private long backendNanos;
+        private long encodeNanos;
+        private int numberReturned;
+        private int responseLength;
+        private long docsExamined;
+
+        private ProfiledOperation(RequestMessage requestMessage, TopStats.Operation operation, long decodeNanos, int events) {
+            this.requestMessage = requestMessage;
+            this.operation = operation;
+            this.decodeNanos = decodeNanos;
+            this.pending = new AtomicInteger(events);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.api.metrics.ServerStatusSection;
+
+/**
+ * Adds the connections that can still be accepted to the
+ * <code>connections</code> section of <code>serverStatus</code>.
+ */
+class ConnectionsStatusSection implements ServerStatusSection {
+    private static final String NAME = "connections";
+
+    private final MetricsRegistry metricsRegistry;
+    private final int maxConnections;
+
+    ConnectionsStatusSection(@Nonnull MetricsRegistry metricsRegistry, @Nonnegative int maxConnections) {
+        this.metricsRegistry = metricsRegistry;
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Map<String, ?> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("available", Math.max(0, maxConnections - metricsRegistry.getActiveConnections().get()));
+        return status;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.metrics.ServerStatusSection;
+
+/**
+ * Reports the cursors spooled by the server on the <code>cursors</code>
+ * section of <code>serverStatus</code>.
+ */
+class CursorsStatusSection implements ServerStatusSection {
+    private static final String NAME = "cursors";
+
+    private final CursorManager cursorManager;
+
+    CursorsStatusSection(@Nonnull CursorManager cursorManager) {
+        this.cursorManager = cursorManager;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Map<String, ?> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("totalOpen", cursorManager.getOpenCursors());
+        status.put("totalOpened", cursorManager.getTotalOpened());
+        status.put("timedOut", cursorManager.getTimedOut());
+        status.put("spooledMemoryBytes", cursorManager.getMemoryBytes());
+        status.put("spooledDiskBytes", cursorManager.getDiskBytes());
+        return status;
+    }
+}
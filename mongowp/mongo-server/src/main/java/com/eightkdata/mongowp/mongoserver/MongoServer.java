@@ -22,6 +22,7 @@
 package com.eightkdata.mongowp.mongoserver;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
@@ -30,36 +31,100 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.eightkdata.mongowp.mongoserver.api.callback.BatchWriteRequestProcessor;
 import com.eightkdata.mongowp.mongoserver.api.callback.RequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsReporter;
+import com.eightkdata.mongowp.mongoserver.api.projection.CursorProjections;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShapesStatusSection;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.ConnectionLimitHandler;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.ConnectionMemoryAccountant;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.FairRequestScheduler;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.MemoryAccountingHandler;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.MemoryBudget;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.SerialExecutor;
 import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.mongowp.mongoserver.util.LengthFieldPrependerLittleEndian;
+import com.google.common.base.Preconditions;
 
 /**
  *
  */
 public class MongoServer implements RequestIdGenerator {
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoServer.class);
+    /**
+     * The number of query shapes reported by serverStatus
+     */
+    private static final int QUERY_SHAPES_REPORTED = 10;
 	
     private final int port;
     private final RequestProcessor requestProcessor;
+    private final MongoServerOptions options;
+    private final MemoryBudget memoryBudget;
+    /**
+     * Shared by the connections, as any of them can read a backend cursor
+     */
+    private final CursorProjections cursorProjections = new CursorProjections();
     private final AtomicInteger requestId;
     private EventLoopGroup connectionGroup;
-    private EventLoopGroup workerGroup;
+    private volatile EventLoopGroup workerGroup;
+    private volatile FairRequestScheduler requestScheduler;
 
-    @Inject
     public MongoServer(MongoServerConfig mongoServerConfig, RequestProcessor requestProcessor) {
+        this(mongoServerConfig, new MongoServerOptions(), requestProcessor);
+    }
+
+    @Inject
+    public MongoServer(
+            MongoServerConfig mongoServerConfig,
+            MongoServerOptions options,
+            RequestProcessor requestProcessor) {
+        Preconditions.checkArgument(
+                !options.isWriteBatching() || requestProcessor instanceof BatchWriteRequestProcessor,
+                "Write batching requires a " + BatchWriteRequestProcessor.class.getSimpleName()
+        );
         this.port = mongoServerConfig.getPort();
+        this.options = options;
         this.requestProcessor = requestProcessor;
+        this.memoryBudget = new MemoryBudget(options.getMemoryLimit(), options.getMemoryLowWatermark());
         requestId = new AtomicInteger(0);
+
+        MetricsRegistry metricsRegistry = options.getMetricsRegistry();
+        if (metricsRegistry != null) {
+            addServerStatusSections(metricsRegistry);
+        }
+    }
+
+    private void addServerStatusSections(MetricsRegistry metricsRegistry) {
+        metricsRegistry.addServerStatusSection(new MongoServerStatusSection(this));
+        if (options.getMaxConnections() < Integer.MAX_VALUE) {
+            metricsRegistry.addServerStatusSection(
+                    new ConnectionsStatusSection(metricsRegistry, options.getMaxConnections())
+            );
+        }
+        metricsRegistry.addServerStatusSection(
+                new QueryShapesStatusSection(options.getQueryShapeStats(), QUERY_SHAPES_REPORTED)
+        );
+        CursorManager cursorManager = options.getCursorManager();
+        if (cursorManager != null) {
+            metricsRegistry.addServerStatusSection(new CursorsStatusSection(cursorManager));
+            cursorManager.setOpenCursorsCounter(metricsRegistry.getOpenCursors());
+        }
     }
 
     @Override
@@ -67,30 +132,120 @@ public class MongoServer implements RequestIdGenerator {
         return requestId.incrementAndGet();
     }
 
-    private void buildChildHandlerPipeline(ChannelPipeline pipeline) {
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Nullable
+    public MetricsRegistry getMetricsRegistry() {
+        return options.getMetricsRegistry();
+    }
+
+    @Nullable
+    EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    @Nullable
+    FairRequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    private void buildChildHandlerPipeline(Channel channel) {
+        ConnectionMemoryAccountant memoryAccountant = new ConnectionMemoryAccountant(
+                channel,
+                memoryBudget,
+                options.getConnectionMemoryHighWatermark(),
+                options.getConnectionMemoryLowWatermark()
+        );
+
+        ConnectionProfiler connectionProfiler = new ConnectionProfiler(
+                options.getQueryProfiler(),
+                options.getQueryShapeStats(),
+                getClientAddress(channel)
+        );
+
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast(new MemoryAccountingHandler(memoryAccountant));
+        pipeline.addLast(new PreEncodedReplyHandler(this, options.getMetricsRegistry(), connectionProfiler));
         pipeline.addLast(new LengthFieldBasedFrameDecoder(
                 ByteOrder.LITTLE_ENDIAN, MongoWP.MAX_MESSAGE_SIZE_BYTES, 0,
                 MongoWP.MESSAGE_LENGTH_FIELD_BYTES, -MongoWP.MESSAGE_LENGTH_FIELD_BYTES,
                 MongoWP.MESSAGE_LENGTH_FIELD_BYTES, true
         ));
-        pipeline.addLast(new RequestMessageByteHandler());
+        pipeline.addLast(new RequestMessageByteHandler(options.getMetricsRegistry(), connectionProfiler));
         pipeline.addLast(new LengthFieldPrependerLittleEndian(MongoWP.MESSAGE_LENGTH_FIELD_BYTES, true));
-        pipeline.addLast(new ReplyMessageObjectHandler(this));
-        pipeline.addLast(new RequestMessageObjectHandler(requestProcessor));
+        pipeline.addLast(new ReplyMessageObjectHandler(this, options.getMetricsRegistry(), connectionProfiler));
+        Executor requestExecutor = createRequestExecutor(channel);
+        pipeline.addLast(new RequestMessageObjectHandler(
+                requestProcessor,
+                createWriteBatcher(memoryAccountant, requestExecutor),
+                memoryAccountant,
+                requestExecutor,
+                options.getMetricsRegistry(),
+                connectionProfiler,
+                options.getResultCache(),
+                options.getCursorManager(),
+                cursorProjections
+        ));
+    }
+
+    private Executor createRequestExecutor(Channel channel) {
+        FairRequestScheduler scheduler = requestScheduler;
+        if (scheduler == null) {
+            return null;
+        }
+        return new SerialExecutor(scheduler, getClientAddress(channel));
+    }
+
+    private static String getClientAddress(Channel channel) {
+        SocketAddress remoteAddress = channel.remoteAddress();
+        return remoteAddress instanceof InetSocketAddress
+                ? ((InetSocketAddress) remoteAddress).getAddress().getHostAddress()
+                : String.valueOf(remoteAddress);
+    }
+
+    private WriteBatcher createWriteBatcher(ConnectionMemoryAccountant memoryAccountant, Executor requestExecutor) {
+        if (!options.isWriteBatching()) {
+            return null;
+        }
+        return new WriteBatcher(
+                (BatchWriteRequestProcessor) requestProcessor,
+                options.getWriteBatchMaxSize(),
+                options.getWriteBatchMaxDelayMillis(),
+                memoryAccountant,
+                requestExecutor,
+                options.getMetricsRegistry()
+        );
     }
 
     public void run() {
         // TODO: provide custom ThreadFactories to the EventLoopGroup to name threads correctly?
         connectionGroup = new NioEventLoopGroup();
         workerGroup = new NioEventLoopGroup();
+        if (options.getSchedulerThreads() > 0) {
+            requestScheduler = new FairRequestScheduler(
+                    options.getSchedulerThreads(),
+                    options.getClientWeights(),
+                    new DefaultThreadFactory("mongowp-request", true)
+            );
+            requestScheduler.start();
+        }
+        startMetricsReporters();
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
+            if (options.getMaxConnections() < Integer.MAX_VALUE
+                    || options.getMaxConnectionsPerClient() < Integer.MAX_VALUE) {
+                bootstrap.handler(new ConnectionLimitHandler(
+                        options.getMaxConnections(), options.getMaxConnectionsPerClient()
+                ));
+            }
             bootstrap.group(connectionGroup, workerGroup)
                     .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            buildChildHandlerPipeline(socketChannel.pipeline());
+                            buildChildHandlerPipeline(socketChannel);
                         }
                     })
                     // TODO: set TCP channel options?
@@ -110,11 +265,54 @@ public class MongoServer implements RequestIdGenerator {
         } finally {
             workerGroup.shutdownGracefully();
             connectionGroup.shutdownGracefully();
+            shutdownRequestScheduler();
+            closeCursors();
+            stopMetricsReporters();
         }
     }
     
     public void stop() {
         if (workerGroup != null) workerGroup.shutdownGracefully();
         if (connectionGroup != null) connectionGroup.shutdownGracefully();
+        shutdownRequestScheduler();
+        closeCursors();
+    }
+
+    private void closeCursors() {
+        CursorManager cursorManager = options.getCursorManager();
+        if (cursorManager != null) {
+            cursorManager.closeAll();
+        }
+    }
+
+    private void startMetricsReporters() {
+        MetricsRegistry metricsRegistry = options.getMetricsRegistry();
+        if (metricsRegistry == null) {
+            return;
+        }
+        for (MetricsReporter reporter : options.getMetricsReporters()) {
+            try {
+                reporter.start(metricsRegistry);
+            } catch (Exception exception) {
+                LOGGER.error("Error while starting a metrics reporter", exception);
+            }
+        }
+    }
+
+    private void stopMetricsReporters() {
+        for (MetricsReporter reporter : options.getMetricsReporters()) {
+            try {
+                reporter.stop();
+            } catch (Exception exception) {
+                LOGGER.error("Error while stopping a metrics reporter", exception);
+            }
+        }
+    }
+
+    private void shutdownRequestScheduler() {
+        FairRequestScheduler scheduler = requestScheduler;
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
     }
 }
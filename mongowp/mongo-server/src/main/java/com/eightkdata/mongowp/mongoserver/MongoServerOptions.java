@@ -0,0 +1,454 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import com.eightkdata.mongowp.mongoserver.api.cache.ResultCache;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsReporter;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryProfiler;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShapeStats;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+
+/**
+ * Optional tuning of a {@link MongoServer}. The default constructor returns
+ * the default options.
+ */
+@Immutable
+public class MongoServerOptions {
+
+    private final boolean writeBatching;
+    private final int writeBatchMaxSize;
+    private final long writeBatchMaxDelayMillis;
+    private final long connectionMemoryHighWatermark;
+    private final long connectionMemoryLowWatermark;
+    private final long memoryLimit;
+    private final long memoryLowWatermark;
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    private final int schedulerThreads;
+    private final ImmutableMap<String, Integer> clientWeights;
+    @Nullable private final MetricsRegistry metricsRegistry;
+    private final ImmutableList<MetricsReporter> metricsReporters;
+    private final QueryProfiler queryProfiler;
+    private final QueryShapeStats queryShapeStats;
+    @Nullable private final ResultCache resultCache;
+    @Nullable private final CursorManager cursorManager;
+
+    public MongoServerOptions() {
+        this(new Builder());
+    }
+
+    private MongoServerOptions(Builder builder) {
+        this.writeBatching = builder.writeBatching;
+        this.writeBatchMaxSize = builder.writeBatchMaxSize;
+        this.writeBatchMaxDelayMillis = builder.writeBatchMaxDelayMillis;
+        this.connectionMemoryHighWatermark = builder.connectionMemoryHighWatermark;
+        this.connectionMemoryLowWatermark = builder.connectionMemoryLowWatermark;
+        this.memoryLimit = builder.memoryLimit;
+        this.memoryLowWatermark = builder.memoryLowWatermark;
+        this.maxConnections = builder.maxConnections;
+        this.maxConnectionsPerClient = builder.maxConnectionsPerClient;
+        this.schedulerThreads = builder.schedulerThreads;
+        this.clientWeights = ImmutableMap.copyOf(builder.clientWeights);
+        this.metricsRegistry = builder.metricsRegistry;
+        this.metricsReporters = ImmutableList.copyOf(builder.metricsReporters);
+        this.queryProfiler = builder.queryProfiler;
+        this.queryShapeStats = builder.queryShapeStats;
+        this.resultCache = builder.resultCache;
+        this.cursorManager = builder.cursorManager;
+    }
+
+    /**
+     * @return true iff legacy unacknowledged writes are queued and delivered
+     *         in batches to a
+     *         {@link com.eightkdata.mongowp.mongoserver.api.callback.BatchWriteRequestProcessor}
+     */
+    public boolean isWriteBatching() {
+        return writeBatching;
+    }
+
+    /**
+     * @return the number of documents (for inserts) or operations (for
+     *         updates and deletes) that trigger the processing of a batch
+     */
+    @Nonnegative
+    public int getWriteBatchMaxSize() {
+        return writeBatchMaxSize;
+    }
+
+    /**
+     * @return the maximum time a write is kept queued before its batch is
+     *         processed
+     */
+    @Nonnegative
+    public long getWriteBatchMaxDelayMillis() {
+        return writeBatchMaxDelayMillis;
+    }
+
+    /**
+     * @return the bytes a connection can hold in pending requests and
+     *         replies before reads are disabled on it
+     */
+    @Nonnegative
+    public long getConnectionMemoryHighWatermark() {
+        return connectionMemoryHighWatermark;
+    }
+
+    /**
+     * @return the bytes held by a connection below which reads are enabled
+     *         again on it
+     */
+    @Nonnegative
+    public long getConnectionMemoryLowWatermark() {
+        return connectionMemoryLowWatermark;
+    }
+
+    /**
+     * @return the bytes all the connections can hold in pending requests and
+     *         replies before reads are disabled on the connections that
+     *         acquire more
+     */
+    @Nonnegative
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return the bytes held by all the connections below which the
+     *         connections paused by the memory limit are resumed
+     */
+    @Nonnegative
+    public long getMemoryLowWatermark() {
+        return memoryLowWatermark;
+    }
+
+    /**
+     * @return the number of open connections above which new connections are
+     *         closed as soon as they are accepted
+     */
+    @Nonnegative
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the number of open connections from the same client address
+     *         above which new connections from it are closed as soon as they
+     *         are accepted
+     */
+    @Nonnegative
+    public int getMaxConnectionsPerClient() {
+        return maxConnectionsPerClient;
+    }
+
+    /**
+     * @return the number of threads that process the requests, sharing them
+     *         among client addresses in proportion to their weights, or 0 if
+     *         requests are processed on the event loop of their connection
+     */
+    @Nonnegative
+    public int getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    /**
+     * @return the scheduling weight of each client address, as returned by
+     *         {@link java.net.InetAddress#getHostAddress()}. Client addresses
+     *         not included have a weight of 1
+     */
+    @Nonnull
+    public ImmutableMap<String, Integer> getClientWeights() {
+        return clientWeights;
+    }
+
+    /**
+     * @return the registry where the server records its metrics, or null if
+     *         no metrics are recorded
+     */
+    @Nullable
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * @return the reporters started and stopped with the server
+     */
+    @Nonnull
+    public ImmutableList<MetricsReporter> getMetricsReporters() {
+        return metricsReporters;
+    }
+
+    /**
+     * @return the profiler that captures the operations of the server, as
+     *         configured at runtime by the <code>profile</code> command
+     */
+    @Nonnull
+    public QueryProfiler getQueryProfiler() {
+        return queryProfiler;
+    }
+
+    /**
+     * @return the aggregated stats of the query shapes executed on the
+     *         server. They are disabled by default
+     */
+    @Nonnull
+    public QueryShapeStats getQueryShapeStats() {
+        return queryShapeStats;
+    }
+
+    /**
+     * @return the cache of the replies of idempotent read commands, or null if
+     *         they are not cached
+     */
+    @Nullable
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the manager of the cursors spooled by the server, or null if
+     *         the replies are sent as returned by the backend
+     */
+    @Nullable
+    public CursorManager getCursorManager() {
+        return cursorManager;
+    }
+
+    public static class Builder {
+        private boolean writeBatching = false;
+        private int writeBatchMaxSize = MongoWP.MAX_WRITE_BATCH_SIZE;
+        private long writeBatchMaxDelayMillis = 10;
+        private long connectionMemoryHighWatermark = 2L * MongoWP.MAX_MESSAGE_SIZE_BYTES;
+        private long connectionMemoryLowWatermark = MongoWP.MAX_MESSAGE_SIZE_BYTES / 2;
+        private long memoryLimit = Runtime.getRuntime().maxMemory() / 2;
+        private long memoryLowWatermark = memoryLimit / 4 * 3;
+        private int maxConnections = Integer.MAX_VALUE;
+        private int maxConnectionsPerClient = Integer.MAX_VALUE;
+        private int schedulerThreads = 0;
+        private Map<String, Integer> clientWeights = ImmutableMap.of();
+        @Nullable private MetricsRegistry metricsRegistry = null;
+        private List<MetricsReporter> metricsReporters = ImmutableList.of();
+        private QueryProfiler queryProfiler = new QueryProfiler();
+        private QueryShapeStats queryShapeStats = new QueryShapeStats();
+        @Nullable private ResultCache resultCache = null;
+        @Nullable private CursorManager cursorManager = null;
+
+        public boolean isWriteBatching() {
+            return writeBatching;
+        }
+
+        public Builder setWriteBatching(boolean writeBatching) {
+            this.writeBatching = writeBatching;
+            return this;
+        }
+
+        public int getWriteBatchMaxSize() {
+            return writeBatchMaxSize;
+        }
+
+        public Builder setWriteBatchMaxSize(@Nonnegative int writeBatchMaxSize) {
+            Preconditions.checkArgument(writeBatchMaxSize > 0, "The write batch size must be positive");
+            this.writeBatchMaxSize = writeBatchMaxSize;
+            return this;
+        }
+
+        public long getWriteBatchMaxDelayMillis() {
+            return writeBatchMaxDelayMillis;
+        }
+
+        public Builder setWriteBatchMaxDelayMillis(@Nonnegative long writeBatchMaxDelayMillis) {
+            Preconditions.checkArgument(writeBatchMaxDelayMillis >= 0, "The write batch delay cannot be negative");
+            this.writeBatchMaxDelayMillis = writeBatchMaxDelayMillis;
+            return this;
+        }
+
+        public long getConnectionMemoryHighWatermark() {
+            return connectionMemoryHighWatermark;
+        }
+
+        public Builder setConnectionMemoryHighWatermark(@Nonnegative long connectionMemoryHighWatermark) {
+            Preconditions.checkArgument(connectionMemoryHighWatermark > 0, "The connection memory high watermark must be positive");
+            this.connectionMemoryHighWatermark = connectionMemoryHighWatermark;
+            return this;
+        }
+
+        public long getConnectionMemoryLowWatermark() {
+            return connectionMemoryLowWatermark;
+        }
+
+        public Builder setConnectionMemoryLowWatermark(@Nonnegative long connectionMemoryLowWatermark) {
+            Preconditions.checkArgument(connectionMemoryLowWatermark >= 0, "The connection memory low watermark cannot be negative");
+            this.connectionMemoryLowWatermark = connectionMemoryLowWatermark;
+            return this;
+        }
+
+        public long getMemoryLimit() {
+            return memoryLimit;
+        }
+
+        public Builder setMemoryLimit(@Nonnegative long memoryLimit) {
+            Preconditions.checkArgument(memoryLimit > 0, "The memory limit must be positive");
+            this.memoryLimit = memoryLimit;
+            return this;
+        }
+
+        public long getMemoryLowWatermark() {
+            return memoryLowWatermark;
+        }
+
+        public Builder setMemoryLowWatermark(@Nonnegative long memoryLowWatermark) {
+            Preconditions.checkArgument(memoryLowWatermark >= 0, "The memory low watermark cannot be negative");
+            this.memoryLowWatermark = memoryLowWatermark;
+            return this;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public Builder setMaxConnections(@Nonnegative int maxConnections) {
+            Preconditions.checkArgument(maxConnections > 0, "The maximum number of connections must be positive");
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public int getMaxConnectionsPerClient() {
+            return maxConnectionsPerClient;
+        }
+
+        public Builder setMaxConnectionsPerClient(@Nonnegative int maxConnectionsPerClient) {
+            Preconditions.checkArgument(maxConnectionsPerClient > 0, "The maximum number of connections per client must be positive");
+            this.maxConnectionsPerClient = maxConnectionsPerClient;
+            return this;
+        }
+
+        public int getSchedulerThreads() {
+            return schedulerThreads;
+        }
+
+        public Builder setSchedulerThreads(@Nonnegative int schedulerThreads) {
+            Preconditions.checkArgument(schedulerThreads >= 0, "The number of scheduler threads cannot be negative");
+            this.schedulerThreads = schedulerThreads;
+            return this;
+        }
+
+        public Map<String, Integer> getClientWeights() {
+            return clientWeights;
+        }
+
+        public Builder setClientWeights(@Nonnull Map<String, Integer> clientWeights) {
+            for (Integer weight : clientWeights.values()) {
+                Preconditions.checkArgument(weight > 0, "Client weights must be positive");
+            }
+            this.clientWeights = ImmutableMap.copyOf(clientWeights);
+            return this;
+        }
+
+        @Nullable
+        public MetricsRegistry getMetricsRegistry() {
+            return metricsRegistry;
+        }
+
+        public Builder setMetricsRegistry(@Nullable MetricsRegistry metricsRegistry) {
+            this.metricsRegistry = metricsRegistry;
+            return this;
+        }
+
+        public List<MetricsReporter> getMetricsReporters() {
+            return metricsReporters;
+        }
+
+        public Builder setMetricsReporters(@Nonnull List<MetricsReporter> metricsReporters) {
+            this.metricsReporters = ImmutableList.copyOf(metricsReporters);
+            return this;
+        }
+
+        public QueryProfiler getQueryProfiler() {
+            return queryProfiler;
+        }
+
+        public Builder setQueryProfiler(@Nonnull QueryProfiler queryProfiler) {
+            Preconditions.checkNotNull(queryProfiler);
+            this.queryProfiler = queryProfiler;
+            return this;
+        }
+
+        public QueryShapeStats getQueryShapeStats() {
+            return queryShapeStats;
+        }
+
+        public Builder setQueryShapeStats(@Nonnull QueryShapeStats queryShapeStats) {
+            Preconditions.checkNotNull(queryShapeStats);
+            this.queryShapeStats = queryShapeStats;
+            return this;
+        }
+
+        @Nullable
+        public ResultCache getResultCache() {
+            return resultCache;
+        }
+
+        public Builder setResultCache(@Nullable ResultCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        @Nullable
+        public CursorManager getCursorManager() {
+            return cursorManager;
+        }
+
+        public Builder setCursorManager(@Nullable CursorManager cursorManager) {
+            this.cursorManager = cursorManager;
+            return this;
+        }
+
+        public MongoServerOptions build() {
+            Preconditions.checkState(
+                    connectionMemoryLowWatermark <= connectionMemoryHighWatermark,
+                    "The connection memory low watermark cannot be greater than the high one"
+            );
+            Preconditions.checkState(
+                    memoryLowWatermark <= memoryLimit,
+                    "The memory low watermark cannot be greater than the memory limit"
+            );
+            Preconditions.checkState(
+                    metricsRegistry != null || metricsReporters.isEmpty(),
+                    "Metrics reporters need a metrics registry"
+            );
+            return new MongoServerOptions(this);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.eightkdata.mongowp.mongoserver.api.metrics.ServerStatusSection;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.FairRequestScheduler;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.MemoryBudget;
+
+/**
+ * The <code>serverStatus</code> section with the internals of a
+ * {@link MongoServer}: its event loops, request scheduler, memory budget and
+ * buffer allocator.
+ */
+class MongoServerStatusSection implements ServerStatusSection {
+    private static final String NAME = "mongowp";
+
+    private final MongoServer server;
+
+    MongoServerStatusSection(@Nonnull MongoServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Map<String, ?> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("eventLoops", getEventLoopsStatus(server.getWorkerGroup()));
+
+        FairRequestScheduler requestScheduler = server.getRequestScheduler();
+        if (requestScheduler != null) {
+            Map<String, Object> schedulerStatus = new LinkedHashMap<String, Object>();
+            schedulerStatus.put("queuedTasks", requestScheduler.getQueuedTasks());
+            status.put("requestScheduler", schedulerStatus);
+        }
+
+        MemoryBudget memoryBudget = server.getMemoryBudget();
+        Map<String, Object> memoryBudgetStatus = new LinkedHashMap<String, Object>();
+        memoryBudgetStatus.put("usedBytes", memoryBudget.getUsed());
+        memoryBudgetStatus.put("limitBytes", memoryBudget.getLimit());
+        memoryBudgetStatus.put("lowWatermarkBytes", memoryBudget.getLowWatermark());
+        memoryBudgetStatus.put("exhausted", memoryBudget.isExhausted());
+        status.put("memoryBudget", memoryBudgetStatus);
+
+        ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        Map<String, Object> allocatorStatus = new LinkedHashMap<String, Object>();
+        allocatorStatus.put("type", allocator.getClass().getSimpleName());
+        allocatorStatus.put("pooled", allocator instanceof PooledByteBufAllocator);
+        status.put("allocator", allocatorStatus);
+
+        return status;
+    }
+
+    private static Map<String, Object> getEventLoopsStatus(@Nullable EventLoopGroup workerGroup) {
+        Map<String, Object> eventLoopsStatus = new LinkedHashMap<String, Object>();
+        if (workerGroup == null) {
+            return eventLoopsStatus;
+        }
+        List<Integer> pendingTasks = new ArrayList<Integer>();
+        int totalPendingTasks = 0;
+        for (EventExecutor eventExecutor : workerGroup) {
+            if (eventExecutor instanceof SingleThreadEventExecutor) {
+                int eventLoopPendingTasks = ((SingleThreadEventExecutor) eventExecutor).pendingTasks();
+                pendingTasks.add(eventLoopPendingTasks);
+                totalPendingTasks += eventLoopPendingTasks;
+            }
+        }
+        eventLoopsStatus.put("count", pendingTasks.size());
+        eventLoopsStatus.put("pendingTasks", totalPendingTasks);
+        eventLoopsStatus.put("pendingTasksPerLoop", pendingTasks);
+        return eventLoopsStatus;
+    }
+}
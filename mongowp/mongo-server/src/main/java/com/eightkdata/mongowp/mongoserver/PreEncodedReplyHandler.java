@@ -0,0 +1,78 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+package com.eightkdata.mongowp.mongoserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.nio.ByteOrder;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.eightkdata.mongowp.messages.response.PreEncodedReply;
+import com.eightkdata.mongowp.messages.response.ResponseOpCode;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
+
+/**
+ * Writes the {@link PreEncodedReply pre-encoded replies} as a header, built for
+ * each reply, followed by a retained duplicate of their shared body.
+ * <p>
+ * As it writes whole messages, including their length, it must be placed
+ * between the length field prepender and the head of the pipeline.
+ */
+public class PreEncodedReplyHandler extends MessageToMessageEncoder<PreEncodedReply.Message> {
+    private final RequestIdGenerator requestIdGenerator;
+    @Nullable private final MetricsRegistry metricsRegistry;
+    @Nullable private final ConnectionProfiler connectionProfiler;
+
+    public PreEncodedReplyHandler(
+            RequestIdGenerator requestIdGenerator,
+            @Nullable MetricsRegistry metricsRegistry,
+            @Nullable ConnectionProfiler connectionProfiler) {
+        this.requestIdGenerator = requestIdGenerator;
+        this.metricsRegistry = metricsRegistry;
+        this.connectionProfiler = connectionProfiler;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, PreEncodedReply.Message msg, List<Object> out) throws Exception {
+        PreEncodedReply reply = msg.getReply();
+        int messageLength = MongoWP.MESSAGE_HEADER_BYTES + reply.getBodyLength();
+
+        ByteBuf header = ctx.alloc().buffer(MongoWP.MESSAGE_HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN)
+                .writeInt(messageLength)
+                .writeInt(requestIdGenerator.getNextRequestId())
+                .writeInt(msg.getResponseTo())
+                .writeInt(ResponseOpCode.OP_REPLY.getOpCode());
+        out.add(header);
+        out.add(reply.retainedBody());
+
+        if (metricsRegistry != null) {
+            metricsRegistry.getBytesOut().add(messageLength);
+        }
+        if (connectionProfiler != null && connectionProfiler.isAwaitingReplies()) {
+            connectionProfiler.onReplyEncoded(msg.getResponseTo(), reply.getNumberReturned(), messageLength, 0);
+        }
+    }
+}
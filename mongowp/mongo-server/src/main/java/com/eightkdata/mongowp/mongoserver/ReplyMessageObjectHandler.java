@@ -22,24 +22,62 @@
 package com.eightkdata.mongowp.mongoserver;
 
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
 import com.eightkdata.mongowp.mongoserver.encoder.ReplyMessageEncoder;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import com.eightkdata.mongowp.mongoserver.util.ChannelLittleEndianEncoder;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
+import javax.annotation.Nullable;
+
 /**
  *
  */
 public class ReplyMessageObjectHandler extends ChannelLittleEndianEncoder {
     private final RequestIdGenerator requestIdGenerator;
+    @Nullable private final MetricsRegistry metricsRegistry;
+    @Nullable private final ConnectionProfiler connectionProfiler;
+    private int encodedMessages;
 
     public ReplyMessageObjectHandler(RequestIdGenerator requestIdGenerator) {
+        this(requestIdGenerator, null, null);
+    }
+
+    public ReplyMessageObjectHandler(
+            RequestIdGenerator requestIdGenerator,
+            @Nullable MetricsRegistry metricsRegistry,
+            @Nullable ConnectionProfiler connectionProfiler) {
         this.requestIdGenerator = requestIdGenerator;
+        this.metricsRegistry = metricsRegistry;
+        this.connectionProfiler = connectionProfiler;
     }
 
     @Override
     protected void encodeLittleEndian(ChannelHandlerContext ctx, ReplyMessage message, ByteBuf out) throws Exception {
+        boolean sampled = metricsRegistry != null
+                && (encodedMessages++ & RequestMessageByteHandler.TIMING_SAMPLE_MASK) == 0;
+        boolean profiled = connectionProfiler != null && connectionProfiler.isAwaitingReplies();
+        long start = sampled || profiled ? System.nanoTime() : 0;
+        int startIndex = out.writerIndex();
+
         ReplyMessageEncoder.encodeMessageHeader(out, message, requestIdGenerator.getNextRequestId());
         ReplyMessageEncoder.encodeMessageBody(out, message);
+
+        long elapsed = sampled || profiled ? System.nanoTime() - start : 0;
+        // The message length field is prepended later on the pipeline
+        int messageLength = out.writerIndex() - startIndex + MongoWP.MESSAGE_LENGTH_FIELD_BYTES;
+        if (metricsRegistry != null) {
+            metricsRegistry.getBytesOut().add(messageLength);
+            if (sampled) {
+                metricsRegistry.getEncodeTime().record(elapsed);
+            }
+        }
+        if (profiled) {
+            assert connectionProfiler != null;
+            connectionProfiler.onReplyEncoded(
+                    message.getResponseTo(), message.getDocuments().size(), messageLength, elapsed
+            );
+        }
     }
 }
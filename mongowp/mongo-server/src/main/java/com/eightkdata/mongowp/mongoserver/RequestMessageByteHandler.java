@@ -27,6 +27,7 @@ import io.netty.channel.ChannelHandlerContext;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import org.slf4j.Logger;
@@ -36,6 +37,7 @@ import com.google.common.primitives.Ints;
 
 import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
 import com.eightkdata.mongowp.messages.request.RequestOpCode;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
 import com.eightkdata.mongowp.mongoserver.decoder.BaseMessageDecoder;
 import com.eightkdata.mongowp.mongoserver.decoder.MessageDecoder;
 import com.eightkdata.mongowp.mongoserver.decoder.MessageDecoderLocator;
@@ -50,7 +52,25 @@ public class RequestMessageByteHandler extends ChannelLittleEndianHandler {
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestMessageByteHandler.class);
     private static final String INVALID_OPCODE_MESSAGE = "Received and invalid message with opCode {}";
     private static final String OPERATION_NOT_IMPLEMENTED = "Message decoder not implemented for opCode {}";
-    
+    /**
+     * Only one of each 16 messages is timed, to keep the cost of the metrics low
+     */
+    static final int TIMING_SAMPLE_MASK = 15;
+
+    @Nullable private final MetricsRegistry metricsRegistry;
+    @Nullable private final ConnectionProfiler connectionProfiler;
+    private int decodedMessages;
+
+    public RequestMessageByteHandler() {
+        this(null, null);
+    }
+
+    public RequestMessageByteHandler(
+            @Nullable MetricsRegistry metricsRegistry,
+            @Nullable ConnectionProfiler connectionProfiler) {
+        this.metricsRegistry = metricsRegistry;
+        this.connectionProfiler = connectionProfiler;
+    }
 
     @Override
     protected void decodeLittleEndian(
@@ -60,7 +80,12 @@ public class RequestMessageByteHandler extends ChannelLittleEndianHandler {
     		//TODO: This is a workaround. Check how to prevent calling decode on channel inactive
     		return;
     	}
-    	
+
+        boolean sampled = metricsRegistry != null && (decodedMessages++ & TIMING_SAMPLE_MASK) == 0;
+        // The profiler needs the decode time of every message
+        boolean profiled = connectionProfiler != null && connectionProfiler.isEnabled();
+        long start = sampled || profiled ? System.nanoTime() : 0;
+
         // Header
         RequestBaseMessage requestBaseMessage = BaseMessageDecoder.decode(channelHandlerContext, byteBuf);
         byteBuf.skipBytes(Ints.BYTES);  // Ignore responseTo field in header
@@ -79,5 +104,16 @@ public class RequestMessageByteHandler extends ChannelLittleEndianHandler {
         }
 
         objects.add(messageDecoder.decode(byteBuf, requestBaseMessage));
+
+        long elapsed = sampled || profiled ? System.nanoTime() - start : 0;
+        if (metricsRegistry != null) {
+            metricsRegistry.getBytesIn().add(requestBaseMessage.getMessageLength());
+            if (sampled) {
+                metricsRegistry.getDecodeTime().record(elapsed);
+            }
+        }
+        if (connectionProfiler != null) {
+            connectionProfiler.onDecoded(elapsed);
+        }
     }
 }
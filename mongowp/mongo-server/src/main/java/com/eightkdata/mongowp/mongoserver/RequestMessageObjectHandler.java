@@ -22,14 +22,31 @@
 package com.eightkdata.mongowp.mongoserver;
 
 import com.eightkdata.mongowp.messages.request.*;
+import com.eightkdata.mongowp.mongoserver.ConnectionProfiler.ProfiledOperation;
+import com.eightkdata.mongowp.mongoserver.api.cache.ResultCache;
+import com.eightkdata.mongowp.mongoserver.api.cursor.CursorManager;
+import com.eightkdata.mongowp.mongoserver.api.callback.CancellationToken;
+import com.eightkdata.mongowp.mongoserver.api.callback.Deadline;
 import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.AbstractRequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.QueryCommandProcessor.QueryCommand;
 import com.eightkdata.mongowp.mongoserver.api.callback.RequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryProfiler;
+import com.eightkdata.mongowp.mongoserver.api.profiler.QueryShapeStats;
+import com.eightkdata.mongowp.mongoserver.api.projection.CursorProjections;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.ConnectionMemoryAccountant;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
@@ -41,20 +58,213 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
     public static final AttributeKey<RequestOpCode> REQUEST_OP_CODE = AttributeKey.valueOf("requestOpCode");
 
     private final RequestProcessor requestProcessor;
+    @Nullable private final WriteBatcher writeBatcher;
+    @Nullable private final ConnectionMemoryAccountant memoryAccountant;
+    @Nullable private final Executor requestExecutor;
+    @Nullable private final MetricsRegistry metricsRegistry;
+    @Nullable private final ConnectionProfiler connectionProfiler;
+    @Nullable private final ResultCache resultCache;
+    @Nullable private final CursorManager cursorManager;
+    private final CursorProjections cursorProjections;
+    /**
+     * Cancelled when the channel is closed
+     */
+    private final CancellationToken connectionToken = new CancellationToken();
 
     @Inject
     public RequestMessageObjectHandler(RequestProcessor requestProcessor) {
+        this(requestProcessor, null, null, null, null, null, null, null, new CursorProjections());
+    }
+
+    public RequestMessageObjectHandler(
+            RequestProcessor requestProcessor,
+            @Nullable WriteBatcher writeBatcher,
+            @Nullable ConnectionMemoryAccountant memoryAccountant,
+            @Nullable Executor requestExecutor,
+            @Nullable MetricsRegistry metricsRegistry,
+            @Nullable ConnectionProfiler connectionProfiler,
+            @Nullable ResultCache resultCache,
+            @Nullable CursorManager cursorManager,
+            CursorProjections cursorProjections) {
         this.requestProcessor = requestProcessor;
+        this.writeBatcher = writeBatcher;
+        this.memoryAccountant = memoryAccountant;
+        this.requestExecutor = requestExecutor;
+        this.metricsRegistry = metricsRegistry;
+        this.connectionProfiler = connectionProfiler;
+        this.resultCache = resultCache;
+        this.cursorManager = cursorManager;
+        this.cursorProjections = cursorProjections;
     }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        RequestMessage requestMessage = (RequestMessage) msg;
-    	ctx.attr(MessageReplier.REQUEST_ID).set(requestMessage.getBaseMessage().getRequestId());
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        final RequestMessage requestMessage = (RequestMessage) msg;
+        if (metricsRegistry != null) {
+            metricsRegistry.getRequestCount(requestMessage.getOpCode()).increment();
+        }
+        // Decoded messages are charged by their size on the wire until they are processed
+        final int messageLength = requestMessage.getBaseMessage().getMessageLength();
+        if (memoryAccountant != null) {
+            memoryAccountant.acquire(messageLength);
+        }
+        // The accounted memory is released here unless the message is handed over
+        boolean handedOver = false;
+        try {
+            if (writeBatcher != null) {
+                if (WriteBatcher.isBatchable(requestMessage)) {
+                    LOGGER.debug("Queued message type: {}, data: {}", requestMessage.getOpCode(), requestMessage);
+                    // The batcher releases the accounted memory once the batch is processed
+                    writeBatcher.enqueue(ctx, requestMessage);
+                    handedOver = true;
+                    return;
+                }
+                // Any other message acts as a barrier for the queued writes
+                writeBatcher.flush(ctx);
+            }
+
+            // The deadline starts when the request is received, not when it is processed
+            Deadline deadline = Deadline.forRequest(requestMessage);
+            final ProfiledOperation profiledOperation = connectionProfiler != null
+                    ? connectionProfiler.start(requestMessage)
+                    : null;
+            final CancellationToken requestToken = connectionToken.newChild(deadline);
+            if (requestExecutor == null) {
+                processMessage(ctx, requestMessage, requestToken, profiledOperation);
+                return;
+            }
+            try {
+                requestExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processMessage(ctx, requestMessage, requestToken, profiledOperation);
+                        } catch (Throwable throwable) {
+                            handleError(ctx, throwable);
+                        } finally {
+                            releaseMemory(messageLength);
+                        }
+                    }
+                });
+            } catch (RuntimeException exception) {
+                requestToken.close();
+                throw exception;
+            }
+            handedOver = true;
+        } finally {
+            if (!handedOver) {
+                releaseMemory(messageLength);
+            }
+        }
+    }
+
+    private void releaseMemory(int bytes) {
+        if (memoryAccountant != null) {
+            memoryAccountant.release(bytes);
+        }
+    }
+
+    /**
+     * Queries and getMores are not processed once they are cancelled. Writes
+     * and killCursors are always processed, even if their connection has been
+     * closed.
+     */
+    private static boolean isDroppable(RequestOpCode requestOpCode) {
+        return requestOpCode == RequestOpCode.OP_QUERY || requestOpCode == RequestOpCode.OP_GET_MORE;
+    }
+
+    private void processMessage(
+            ChannelHandlerContext ctx,
+            RequestMessage requestMessage,
+            CancellationToken requestToken,
+            @Nullable ProfiledOperation profiledOperation) throws Exception {
+        try {
+            ctx.attr(MessageReplier.REQUEST_ID).set(requestMessage.getBaseMessage().getRequestId());
+            ctx.attr(REQUEST_OP_CODE).set(requestMessage.getOpCode());
+            ctx.attr(CancellationToken.REQUEST_TOKEN).set(requestToken);
+
+            if (requestToken.isCancelled() && isDroppable(requestMessage.getOpCode())) {
+                dropMessage(ctx, requestMessage, requestToken);
+                return;
+            }
+            if (metricsRegistry == null && profiledOperation == null) {
+                processMessage(ctx, requestMessage);
+                return;
+            }
+            if (profiledOperation != null) {
+                ctx.attr(QueryShapeStats.DOCS_EXAMINED).remove();
+            }
+            long start = System.nanoTime();
+            try {
+                processMessage(ctx, requestMessage);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                if (metricsRegistry != null) {
+                    // The command attribute is only reset by queries
+                    QueryCommand queryCommand = requestMessage.getOpCode() == RequestOpCode.OP_QUERY
+                            ? ctx.attr(AbstractRequestProcessor.QUERY_COMMAND).get()
+                            : null;
+                    metricsRegistry.recordRequest(requestMessage.getOpCode(), queryCommand, elapsed);
+                    metricsRegistry.getTopStats().record(requestMessage, elapsed);
+                }
+                if (profiledOperation != null) {
+                    assert connectionProfiler != null;
+                    connectionProfiler.onProcessed(
+                            profiledOperation, elapsed, ctx.attr(QueryShapeStats.DOCS_EXAMINED).getAndRemove()
+                    );
+                }
+            }
+        } finally {
+            ctx.attr(CancellationToken.REQUEST_TOKEN).set(null);
+            requestToken.close();
+            invalidateCachedResults(requestMessage);
+        }
+    }
+
+    /**
+     * Legacy writes invalidate the cached results they could have changed, as
+     * explained by {@link WriteBatcher#invalidateCachedResults}
+     */
+    private void invalidateCachedResults(RequestMessage requestMessage) {
+        if (resultCache == null || !WriteBatcher.isBatchable(requestMessage)) {
+            return;
+        }
+        assert requestMessage instanceof CollectionRequestMessage;
+        CollectionRequestMessage write = (CollectionRequestMessage) requestMessage;
+        WriteBatcher.invalidateCachedResults(
+                resultCache, write.getDatabase(), write.getCollection(), Collections.singletonList(requestMessage)
+        );
+    }
+
+    private void dropMessage(ChannelHandlerContext ctx, RequestMessage requestMessage, CancellationToken requestToken) {
+        if (!requestToken.isDeadlineExceeded()) {
+            LOGGER.debug("Dropped message type: {} from a closed connection", requestMessage.getOpCode());
+            return;
+        }
+        LOGGER.debug("Dropped message type: {}: its deadline expired before it was processed", requestMessage.getOpCode());
+        MessageReplier messageReplier = new MessageReplier(ctx);
+        if (isCommand(requestMessage)) {
+            messageReplier.replyQueryCommandFailure(MongoWP.ErrorCode.EXCEEDED_TIME_LIMIT);
+        } else {
+            messageReplier.replyQueryFailure(MongoWP.ErrorCode.EXCEEDED_TIME_LIMIT);
+        }
+    }
+
+    /**
+     * Commands are replied with the command shape even if they are dropped
+     * before they are parsed
+     */
+    private static boolean isCommand(RequestMessage requestMessage) {
+        return requestMessage instanceof QueryMessage
+                && AbstractRequestProcessor.QUERY_MESSAGE_COMMAND_COLLECTION.equals(
+                        ((QueryMessage) requestMessage).getCollection()
+                );
+    }
+
+    private void processMessage(ChannelHandlerContext ctx, RequestMessage requestMessage) throws Exception {
         LOGGER.debug("Received message type: {}, data: {}", requestMessage.getOpCode(), requestMessage);
 
         MessageReplier messageReplier = new MessageReplier(ctx);
-    	ctx.attr(REQUEST_OP_CODE).set(requestMessage.getOpCode());
         switch (requestMessage.getOpCode()) {
 	        case OP_QUERY:
                 assert requestMessage instanceof QueryMessage;
@@ -62,11 +272,21 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
 	            break;
 	        case OP_GET_MORE:
                 assert requestMessage instanceof GetMoreMessage;
-	            requestProcessor.getMore((GetMoreMessage) requestMessage, messageReplier);
+                GetMoreMessage getMoreMessage = (GetMoreMessage) requestMessage;
+                if (cursorManager == null || !cursorManager.getMore(getMoreMessage, messageReplier)) {
+                    requestProcessor.getMore(
+                            getMoreMessage,
+                            cursorProjections.getMoreReplier(getMoreMessage.getCursorId(), messageReplier)
+                    );
+                }
 	            break;
 	        case OP_KILL_CURSORS:
                 assert requestMessage instanceof KillCursorsMessage;
-	            requestProcessor.killCursors((KillCursorsMessage) requestMessage, messageReplier);
+                KillCursorsMessage killCursorsMessage = (KillCursorsMessage) requestMessage;
+                if (cursorManager == null || !cursorManager.killCursors(killCursorsMessage)) {
+                    cursorProjections.forget(killCursorsMessage.getCursorIds());
+                    requestProcessor.killCursors(killCursorsMessage, messageReplier);
+                }
 	            break;
 	        case OP_INSERT:
                 assert requestMessage instanceof InsertMessage;
@@ -96,17 +316,61 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
         requestProcessor.handleError(ctx.attr(REQUEST_OP_CODE).get(), messageReplier, cause);
     }
 
+    private void handleError(ChannelHandlerContext ctx, Throwable cause) {
+        try {
+            exceptionCaught(ctx, cause);
+        } catch (Exception handlerException) {
+            LOGGER.error("Error while handling a request error", handlerException);
+        }
+    }
+
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		if (metricsRegistry != null) {
+			ctx.attr(MetricsRegistry.METRICS_REGISTRY).set(metricsRegistry);
+			metricsRegistry.getActiveConnections().increment();
+			metricsRegistry.getTotalConnections().increment();
+		}
+		if (resultCache != null) {
+			ctx.attr(ResultCache.RESULT_CACHE).set(resultCache);
+		}
+		if (cursorManager != null) {
+			ctx.attr(CursorManager.CURSOR_MANAGER).set(cursorManager);
+		}
+		ctx.attr(CursorProjections.CURSOR_PROJECTIONS).set(cursorProjections);
+		if (connectionProfiler != null) {
+			ctx.attr(QueryProfiler.QUERY_PROFILER).set(connectionProfiler.getQueryProfiler());
+			ctx.attr(QueryShapeStats.QUERY_SHAPE_STATS).set(connectionProfiler.getQueryShapeStats());
+		}
 		requestProcessor.onChannelActive(ctx);
 		
 		super.channelActive(ctx);
 	}
 
 	@Override
-	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		connectionToken.cancel();
+		if (metricsRegistry != null) {
+			metricsRegistry.getActiveConnections().decrement();
+		}
+		if (writeBatcher != null) {
+			writeBatcher.flush(ctx);
+		}
+		if (connectionProfiler != null) {
+			connectionProfiler.close();
+		}
 		super.channelInactive(ctx);
-		
-		requestProcessor.onChannelInactive(ctx);
+
+		if (requestExecutor == null) {
+			requestProcessor.onChannelInactive(ctx);
+			return;
+		}
+		// The processor is notified once the pending requests of the channel are processed
+		requestExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				requestProcessor.onChannelInactive(ctx);
+			}
+		});
 	}
 }
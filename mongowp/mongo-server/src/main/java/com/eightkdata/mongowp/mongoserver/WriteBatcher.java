@@ -0,0 +1,301 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.InsertMessage;
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.mongoserver.api.cache.ResultCache;
+import com.eightkdata.mongowp.mongoserver.api.callback.BatchWriteRequestProcessor;
+import com.eightkdata.mongowp.mongoserver.api.callback.MessageReplier;
+import com.eightkdata.mongowp.mongoserver.api.metrics.MetricsRegistry;
+import com.eightkdata.mongowp.mongoserver.flowcontrol.ConnectionMemoryAccountant;
+import com.eightkdata.nettybson.api.BSONDocument;
+
+/**
+ * Queues the legacy unacknowledged writes received by a connection,
+ * delivering them to a {@link BatchWriteRequestProcessor} when a batch is
+ * full, when the batch delay expires or when {@link #flush} is called.
+ * <p>
+ * Writes are kept in the order they were received: consecutive writes to the
+ * same namespace are grouped in a batch and a write to another namespace
+ * starts a new one, so the writes <code>A1, B1, A2</code> are processed as
+ * the batches <code>[A1], [B1], [A2]</code>.
+ * <p>
+ * Instances are bound to a single channel and must only be used from its event
+ * loop.
+ * <p>
+ * The memory accounted for the queued writes is released once their batch is
+ * processed. When an executor is given, batches are processed on it instead
+ * of on the event loop.
+ */
+@NotThreadSafe
+public class WriteBatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBatcher.class);
+    private static final String INDEXES_COLLECTION = "system.indexes";
+
+    private final BatchWriteRequestProcessor requestProcessor;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    @Nullable private final ConnectionMemoryAccountant memoryAccountant;
+    @Nullable private final Executor executor;
+    @Nullable private final MetricsRegistry metricsRegistry;
+    private final ArrayDeque<Batch> batches = new ArrayDeque<Batch>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    public WriteBatcher(
+            @Nonnull BatchWriteRequestProcessor requestProcessor,
+            @Nonnegative int maxBatchSize,
+            @Nonnegative long maxDelayMillis
+    ) {
+        this(requestProcessor, maxBatchSize, maxDelayMillis, null, null, null);
+    }
+
+    public WriteBatcher(
+            @Nonnull BatchWriteRequestProcessor requestProcessor,
+            @Nonnegative int maxBatchSize,
+            @Nonnegative long maxDelayMillis,
+            @Nullable ConnectionMemoryAccountant memoryAccountant,
+            @Nullable Executor executor,
+            @Nullable MetricsRegistry metricsRegistry
+    ) {
+        this.requestProcessor = requestProcessor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.memoryAccountant = memoryAccountant;
+        this.executor = executor;
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    public static boolean isBatchable(@Nonnull RequestMessage requestMessage) {
+        switch (requestMessage.getOpCode()) {
+            case OP_INSERT:
+            case OP_UPDATE:
+            case OP_DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Invalidates the cached results that depend on the given legacy writes
+     * on a namespace, even if they failed, as they could have been partially
+     * applied. Inserts on <code>system.indexes</code> invalidate the indexed
+     * collections, and any other write on it the whole database.
+     */
+    static void invalidateCachedResults(
+            @Nonnull ResultCache resultCache,
+            @Nonnull String database,
+            @Nonnull String collection,
+            @Nonnull List<? extends RequestMessage> writes) {
+        if (!INDEXES_COLLECTION.equals(collection)) {
+            resultCache.invalidate(database, collection);
+            return;
+        }
+        for (RequestMessage write : writes) {
+            if (!(write instanceof InsertMessage)) {
+                resultCache.invalidate(database, null);
+                return;
+            }
+            for (BSONDocument index : ((InsertMessage) write).getDocuments()) {
+                String namespace = index.getString("ns", null);
+                if (namespace == null || !namespace.startsWith(database + '.')) {
+                    resultCache.invalidate(database, null);
+                    return;
+                }
+                resultCache.invalidate(database, namespace.substring(database.length() + 1));
+            }
+        }
+    }
+
+    public void enqueue(@Nonnull ChannelHandlerContext ctx, @Nonnull RequestMessage write) {
+        String database;
+        String collection;
+        int size;
+        switch (write.getOpCode()) {
+            case OP_INSERT:
+                assert write instanceof InsertMessage;
+                InsertMessage insertMessage = (InsertMessage) write;
+                database = insertMessage.getDatabase();
+                collection = insertMessage.getCollection();
+                size = Math.max(1, insertMessage.getDocuments().size());
+                break;
+            case OP_UPDATE:
+                assert write instanceof UpdateMessage;
+                UpdateMessage updateMessage = (UpdateMessage) write;
+                database = updateMessage.getDatabase();
+                collection = updateMessage.getCollection();
+                size = 1;
+                break;
+            case OP_DELETE:
+                assert write instanceof DeleteMessage;
+                DeleteMessage deleteMessage = (DeleteMessage) write;
+                database = deleteMessage.getDatabase();
+                collection = deleteMessage.getCollection();
+                size = 1;
+                break;
+            default:
+                throw new IllegalArgumentException(write.getOpCode() + " messages cannot be batched");
+        }
+
+        Batch batch = batches.peekLast();
+        if (batch == null || !batch.isOn(database, collection)) {
+            batch = new Batch(database, collection);
+            batches.addLast(batch);
+        }
+        batch.add(write, size, write.getBaseMessage().getMessageLength());
+
+        if (batch.size >= maxBatchSize) {
+            // The previous batches were received before, so they go first
+            flush(ctx);
+        }
+        else if (scheduledFlush == null) {
+            scheduleFlush(ctx);
+        }
+    }
+
+    /**
+     * Processes all queued writes, in the order they were received.
+     */
+    public void flush(@Nonnull ChannelHandlerContext ctx) {
+        cancelScheduledFlush();
+        Batch batch;
+        while ((batch = batches.pollFirst()) != null) {
+            process(ctx, batch);
+        }
+    }
+
+    private void scheduleFlush(final ChannelHandlerContext ctx) {
+        scheduledFlush = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduledFlush = null;
+                flush(ctx);
+            }
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void process(final ChannelHandlerContext ctx, final Batch batch) {
+        if (executor == null) {
+            processBatch(ctx, batch);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processBatch(ctx, batch);
+            }
+        });
+    }
+
+    private void processBatch(ChannelHandlerContext ctx, Batch batch) {
+        RequestMessage last = batch.writes.get(batch.writes.size() - 1);
+        ctx.attr(MessageReplier.REQUEST_ID).set(last.getBaseMessage().getRequestId());
+        ctx.attr(RequestMessageObjectHandler.REQUEST_OP_CODE).set(last.getOpCode());
+        MessageReplier messageReplier = new MessageReplier(ctx);
+
+        LOGGER.debug("Processing a batch of {} writes on {}.{}", batch.writes.size(), batch.database, batch.collection);
+        long start = metricsRegistry != null ? System.nanoTime() : 0;
+        try {
+            requestProcessor.writeBatch(batch.database, batch.collection, batch.writes, messageReplier);
+        } catch (Exception exception) {
+            LOGGER.error("Error while processing a write batch", exception);
+            try {
+                requestProcessor.handleError(last.getOpCode(), messageReplier, exception);
+            } catch (Exception handlerException) {
+                LOGGER.error("Error while handling a write batch error", handlerException);
+            }
+        } finally {
+            if (memoryAccountant != null) {
+                memoryAccountant.release(batch.bytes);
+            }
+            ResultCache resultCache = ctx.attr(ResultCache.RESULT_CACHE).get();
+            if (resultCache != null) {
+                invalidateCachedResults(resultCache, batch.database, batch.collection, batch.writes);
+            }
+            if (metricsRegistry != null) {
+                recordBatch(batch, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * The time of a batch is evenly split among its writes
+     */
+    private void recordBatch(Batch batch, long nanos) {
+        assert metricsRegistry != null;
+        long nanosPerWrite = nanos / batch.writes.size();
+        for (RequestMessage write : batch.writes) {
+            metricsRegistry.recordRequest(write.getOpCode(), null, nanosPerWrite);
+            metricsRegistry.getTopStats().record(write, nanosPerWrite);
+        }
+    }
+
+    private static class Batch {
+        private final String database;
+        private final String collection;
+        private final List<RequestMessage> writes = new ArrayList<RequestMessage>();
+        private int size;
+        private long bytes;
+
+        private Batch(String database, String collection) {
+            this.database = database;
+            this.collection = collection;
+        }
+
+        private boolean isOn(String otherDatabase, String otherCollection) {
+            return database.equals(otherDatabase) && collection.equals(otherCollection);
+        }
+
+        private void add(RequestMessage write, int writeSize, long writeBytes) {
+            writes.add(write);
+            size += writeSize;
+            bytes += writeBytes;
+        }
+    }
+}
@@ -22,6 +22,7 @@
 package com.eightkdata.mongowp.mongoserver.decoder;
 
 import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.mongoserver.protocol.MongoWP;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
@@ -45,6 +46,11 @@ public class BaseMessageDecoder {
     public static RequestBaseMessage decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf) {
         InetSocketAddress socketAddress = (InetSocketAddress) channelHandlerContext.channel().remoteAddress();
 
-        return new RequestBaseMessage(socketAddress.getAddress(), socketAddress.getPort(), byteBuf.readInt());
+        // The frame decoder has already stripped the message length field
+        int messageLength = byteBuf.readableBytes() + MongoWP.MESSAGE_LENGTH_FIELD_BYTES;
+
+        return new RequestBaseMessage(
+                socketAddress.getAddress(), socketAddress.getPort(), byteBuf.readInt(), messageLength
+        );
     }
 }
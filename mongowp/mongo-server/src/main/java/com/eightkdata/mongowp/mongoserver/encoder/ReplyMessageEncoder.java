@@ -23,7 +23,6 @@ package com.eightkdata.mongowp.mongoserver.encoder;
 
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import com.eightkdata.mongowp.messages.response.ResponseOpCode;
-import com.eightkdata.mongowp.messages.util.EnumInt32FlagsUtil;
 import com.eightkdata.nettybson.api.BSONDocument;
 import io.netty.buffer.ByteBuf;
 
@@ -38,7 +37,7 @@ public class ReplyMessageEncoder {
     }
 
     public static void encodeMessageBody(ByteBuf buffer, ReplyMessage message) {
-        buffer.writeInt(EnumInt32FlagsUtil.getInt32Flags(message.getFlags()));
+        buffer.writeInt(message.getInt32Flags());
         buffer.writeLong(message.getCursorId());
         buffer.writeInt(message.getStartingFrom());
         buffer.writeInt(message.getDocuments().size());
@@ -0,0 +1,144 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits the number of open connections, both in total and per client
+ * address.
+ * <p>
+ * It must be added to the pipeline of the server channel, where it sees the
+ * accepted channels before they are registered. Rejected channels are closed
+ * as soon as they are registered, before their own handlers are initialized,
+ * so nothing is read from them nor sent to them.
+ */
+@ThreadSafe
+public class ConnectionLimitHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionLimitHandler.class);
+
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    @GuardedBy("this") private int connections;
+    @GuardedBy("this") private final Map<InetAddress, Integer> connectionsPerClient = new HashMap<InetAddress, Integer>();
+    private final ChannelFutureListener releaseListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            release(getClientAddress(future.channel()));
+        }
+    };
+
+    public ConnectionLimitHandler(@Nonnegative int maxConnections, @Nonnegative int maxConnectionsPerClient) {
+        Preconditions.checkArgument(maxConnections > 0, "The maximum number of connections must be positive");
+        Preconditions.checkArgument(maxConnectionsPerClient > 0, "The maximum number of connections per client must be positive");
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof Channel)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        Channel child = (Channel) msg;
+        InetAddress clientAddress = getClientAddress(child);
+        if (!tryAcquire(clientAddress)) {
+            LOGGER.debug("Rejected connection from {}: connection limit reached", child.remoteAddress());
+            child.pipeline().addFirst(RejectHandler.INSTANCE);
+        } else {
+            child.closeFuture().addListener(releaseListener);
+        }
+        ctx.fireChannelRead(child);
+    }
+
+    private synchronized boolean tryAcquire(InetAddress clientAddress) {
+        if (connections >= maxConnections) {
+            return false;
+        }
+        Integer clientConnections = connectionsPerClient.get(clientAddress);
+        int newClientConnections = clientConnections == null ? 1 : clientConnections + 1;
+        if (newClientConnections > maxConnectionsPerClient) {
+            return false;
+        }
+        connections++;
+        connectionsPerClient.put(clientAddress, newClientConnections);
+        return true;
+    }
+
+    private synchronized void release(InetAddress clientAddress) {
+        connections--;
+        Integer clientConnections = connectionsPerClient.get(clientAddress);
+        if (clientConnections == null || clientConnections <= 1) {
+            connectionsPerClient.remove(clientAddress);
+        } else {
+            connectionsPerClient.put(clientAddress, clientConnections - 1);
+        }
+    }
+
+    private static InetAddress getClientAddress(Channel channel) {
+        SocketAddress remoteAddress = channel.remoteAddress();
+        if (remoteAddress instanceof InetSocketAddress) {
+            return ((InetSocketAddress) remoteAddress).getAddress();
+        }
+        return null;
+    }
+
+    /**
+     * Closes the channel once it is registered, as an unregistered channel
+     * cannot be closed without an event loop. It does not propagate the
+     * registration, so the handlers of the child channel are never initialized.
+     */
+    @Sharable
+    private static class RejectHandler extends ChannelInboundHandlerAdapter {
+        private static final RejectHandler INSTANCE = new RejectHandler();
+
+        @Override
+        public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+            ctx.channel().close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Accounts the memory used by a connection: the decoded requests that have
+ * not been processed yet (charged by their length on the wire) and the
+ * replies that have not been written to the socket yet.
+ * <p>
+ * Reads are disabled on the channel when its usage goes above the high
+ * watermark or when the server {@link MemoryBudget} is exhausted. They are
+ * enabled again once the usage of the connection is below the low watermark
+ * and the server budget is below its own low watermark.
+ */
+@ThreadSafe
+public class ConnectionMemoryAccountant {
+    /**
+     * The value of {@link #used} once the accountant is closed, so closing
+     * and accounting are atomic
+     */
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final Channel channel;
+    private final MemoryBudget budget;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final AtomicBoolean waitingForBudget = new AtomicBoolean();
+
+    public ConnectionMemoryAccountant(
+            @Nonnull Channel channel,
+            @Nonnull MemoryBudget budget,
+            @Nonnegative long highWatermark,
+            @Nonnegative long lowWatermark
+    ) {
+        Preconditions.checkArgument(lowWatermark <= highWatermark, "The low watermark cannot be greater than the high one");
+        this.channel = channel;
+        this.budget = budget;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public long getUsed() {
+        long current = used.get();
+        return current == CLOSED ? 0 : current;
+    }
+
+    public boolean isPaused() {
+        return paused.get();
+    }
+
+    public void acquire(@Nonnegative long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long current = add(bytes);
+        if (current == CLOSED) {
+            return;
+        }
+        boolean budgetExhausted = budget.acquire(bytes);
+        if (current > highWatermark || budgetExhausted) {
+            pause(budgetExhausted);
+        }
+    }
+
+    public void release(@Nonnegative long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long current = add(-bytes);
+        if (current == CLOSED) {
+            return;
+        }
+        budget.release(bytes);
+        if (current <= lowWatermark && paused.get()) {
+            tryResume();
+        }
+    }
+
+    /**
+     * Returns to the server budget all the memory still accounted by this
+     * connection. Later calls to {@link #acquire} and {@link #release} are
+     * ignored.
+     */
+    public void close() {
+        long remaining = used.getAndSet(CLOSED);
+        if (remaining != CLOSED && remaining != 0) {
+            budget.release(remaining);
+        }
+    }
+
+    /**
+     * Each byte added to {@link #used} is returned to the budget exactly
+     * once: by {@link #release} if it happens before {@link #close} and by
+     * close otherwise.
+     *
+     * @return the new usage, or {@link #CLOSED} if nothing was added because
+     *         the accountant is closed
+     */
+    private long add(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current == CLOSED) {
+                return CLOSED;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return current + bytes;
+            }
+        }
+    }
+
+    void onBudgetAvailable() {
+        waitingForBudget.set(false);
+        if (used.get() != CLOSED && paused.get()) {
+            tryResume();
+        }
+    }
+
+    private void pause(boolean budgetExhausted) {
+        if (paused.compareAndSet(false, true)) {
+            channel.config().setAutoRead(false);
+        }
+        if (budgetExhausted) {
+            waitForBudget();
+        }
+    }
+
+    private void tryResume() {
+        if (used.get() > lowWatermark) {
+            // a later release on this connection will try again
+            return;
+        }
+        if (budget.isAboveLowWatermark()) {
+            waitForBudget();
+            return;
+        }
+        if (paused.compareAndSet(true, false)) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    private void waitForBudget() {
+        if (waitingForBudget.compareAndSet(false, true)) {
+            budget.registerPaused(this);
+            if (!budget.isAboveLowWatermark()) {
+                // the budget could have been released before this connection was registered
+                onBudgetAvailable();
+            }
+        }
+    }
+}
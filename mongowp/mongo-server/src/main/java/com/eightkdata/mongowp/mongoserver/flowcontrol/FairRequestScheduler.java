@@ -0,0 +1,288 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Longs;
+
+/**
+ * Runs the submitted tasks on a pool of worker threads, sharing the workers
+ * among tenants in proportion to their weights.
+ * <p>
+ * Each tenant has a virtual time that advances by the time its tasks run
+ * divided by its weight, and the next task to run is always taken from the
+ * tenant with the lowest virtual time. As the cost of a task is only known
+ * once it has run, tenants are charged with their average cost when a task
+ * is dispatched and the difference is adjusted when it completes. A tenant
+ * that becomes active starts at the virtual time of the last dispatched task,
+ * so idle tenants do not accumulate credit.
+ */
+@ThreadSafe
+public class FairRequestScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FairRequestScheduler.class);
+    private static final long INITIAL_COST_ESTIMATE_NANOS = 100000;
+    private static final Comparator<Tenant> VIRTUAL_TIME_COMPARATOR = new Comparator<Tenant>() {
+        @Override
+        public int compare(Tenant t1, Tenant t2) {
+            int diff = Longs.compare(t1.virtualTime, t2.virtualTime);
+            if (diff != 0) {
+                return diff;
+            }
+            return Longs.compare(t1.activationOrder, t2.activationOrder);
+        }
+    };
+
+    private final ImmutableMap<String, Integer> weights;
+    private final Thread[] workers;
+    private final Lock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    @GuardedBy("lock") private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    @GuardedBy("lock") private final PriorityQueue<Tenant> runnableTenants =
+            new PriorityQueue<Tenant>(16, VIRTUAL_TIME_COMPARATOR);
+    @GuardedBy("lock") private long virtualTime;
+    @GuardedBy("lock") private long activations;
+    @GuardedBy("lock") private boolean shutdown;
+
+    /**
+     * @param threads       the number of worker threads
+     * @param weights       the weight of each tenant. Tenants not included
+     *                      have a weight of 1
+     * @param threadFactory the factory used to create the worker threads
+     */
+    public FairRequestScheduler(
+            @Nonnegative int threads,
+            @Nonnull Map<String, Integer> weights,
+            @Nonnull ThreadFactory threadFactory
+    ) {
+        Preconditions.checkArgument(threads > 0, "The number of threads must be positive");
+        for (Integer weight : weights.values()) {
+            Preconditions.checkArgument(weight > 0, "Tenant weights must be positive");
+        }
+        this.weights = ImmutableMap.copyOf(weights);
+        this.workers = new Thread[threads];
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        };
+        for (int i = 0; i < threads; i++) {
+            workers[i] = threadFactory.newThread(worker);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads once they finish their current tasks. Queued
+     * tasks are run on the calling thread, so the cleanup they do (like
+     * releasing accounted memory) is not lost. The tasks of a
+     * {@link SerialExecutor} then run the rest of its queue, as any task it
+     * submits from now on is rejected.
+     */
+    public void shutdown() {
+        List<Runnable> drained = new ArrayList<Runnable>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Tenant tenant : runnableTenants) {
+                drained.addAll(tenant.tasks);
+                tenant.tasks.clear();
+                tenant.runnable = false;
+            }
+            queuedTasks.set(0);
+            tenants.clear();
+            runnableTenants.clear();
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable task : drained) {
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                LOGGER.error("Unexpected error on a task run at shutdown", throwable);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker. It can be read without
+     *         locking the scheduler
+     */
+    public int getQueuedTasks() {
+        return queuedTasks.get();
+    }
+
+    /**
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public void submit(@Nonnull String tenantId, @Nonnull Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("The scheduler has been shut down");
+            }
+            Tenant tenant = tenants.get(tenantId);
+            if (tenant == null) {
+                Integer weight = weights.get(tenantId);
+                tenant = new Tenant(tenantId, weight == null ? 1 : weight);
+                tenants.put(tenantId, tenant);
+            }
+            tenant.tasks.add(task);
+            queuedTasks.incrementAndGet();
+            if (!tenant.runnable) {
+                tenant.virtualTime = Math.max(tenant.virtualTime, virtualTime);
+                tenant.activationOrder = activations++;
+                tenant.runnable = true;
+                runnableTenants.add(tenant);
+                workAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        Dispatch dispatch;
+        while ((dispatch = take()) != null) {
+            long start = System.nanoTime();
+            try {
+                dispatch.task.run();
+            } catch (Throwable throwable) {
+                LOGGER.error("Unexpected error on a scheduled task", throwable);
+            } finally {
+                complete(dispatch, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private Dispatch take() {
+        lock.lock();
+        try {
+            while (!shutdown && runnableTenants.isEmpty()) {
+                workAvailable.await();
+            }
+            if (shutdown) {
+                return null;
+            }
+            Tenant tenant = runnableTenants.poll();
+            Runnable task = tenant.tasks.poll();
+            queuedTasks.decrementAndGet();
+            long estimate = tenant.costEstimate;
+
+            virtualTime = tenant.virtualTime;
+            tenant.virtualTime += estimate / tenant.weight;
+            tenant.running++;
+            if (tenant.tasks.isEmpty()) {
+                tenant.runnable = false;
+            } else {
+                runnableTenants.add(tenant);
+            }
+            return new Dispatch(tenant, task, estimate);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Dispatch dispatch, long elapsedNanos) {
+        Tenant tenant = dispatch.tenant;
+        lock.lock();
+        try {
+            tenant.running--;
+            tenant.costEstimate += (elapsedNanos - tenant.costEstimate) / 8;
+            long adjustment = (elapsedNanos - dispatch.estimate) / tenant.weight;
+            if (tenant.runnable) {
+                // linear, but there are as many runnable tenants as active clients
+                runnableTenants.remove(tenant);
+                tenant.virtualTime += adjustment;
+                runnableTenants.add(tenant);
+            } else {
+                tenant.virtualTime += adjustment;
+                if (tenant.running == 0 && tenants.get(tenant.id) == tenant) {
+                    tenants.remove(tenant.id);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Tenant {
+        private final String id;
+        private final int weight;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private long virtualTime;
+        private long activationOrder;
+        private long costEstimate = INITIAL_COST_ESTIMATE_NANOS;
+        private int running;
+        private boolean runnable;
+
+        private Tenant(String id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+    private static class Dispatch {
+        private final Tenant tenant;
+        private final Runnable task;
+        private final long estimate;
+
+        private Dispatch(Tenant tenant, Runnable task, long estimate) {
+            this.tenant = tenant;
+            this.task = task;
+            this.estimate = estimate;
+        }
+    }
+}
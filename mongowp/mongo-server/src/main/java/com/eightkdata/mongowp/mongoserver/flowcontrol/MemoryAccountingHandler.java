@@ -0,0 +1,77 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Accounts the outbound bytes of a connection until they are written to the
+ * socket and returns all the memory of the connection to the server budget
+ * once it is closed.
+ * <p>
+ * It must be the first handler of the pipeline, so it sees the encoded
+ * replies.
+ */
+public class MemoryAccountingHandler extends ChannelDuplexHandler {
+    private final ConnectionMemoryAccountant accountant;
+
+    public MemoryAccountingHandler(@Nonnull ConnectionMemoryAccountant accountant) {
+        this.accountant = accountant;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, final ChannelPromise promise) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        final int bytes = ((ByteBuf) msg).readableBytes();
+        accountant.acquire(bytes);
+        ChannelPromise accountedPromise = ctx.newPromise();
+        accountedPromise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                accountant.release(bytes);
+                if (future.isSuccess()) {
+                    promise.trySuccess();
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            }
+        });
+        ctx.write(msg, accountedPromise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        accountant.close();
+        super.channelInactive(ctx);
+    }
+}
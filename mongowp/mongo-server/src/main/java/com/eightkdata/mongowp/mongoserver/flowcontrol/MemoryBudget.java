@@ -0,0 +1,99 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Server wide accounting of the memory used by the connections.
+ * <p>
+ * The budget is exhausted once the used memory goes above its limit. The
+ * connections paused while the budget was exhausted are resumed once the
+ * used memory goes below the low watermark.
+ */
+@ThreadSafe
+public class MemoryBudget {
+    private final long limit;
+    private final long lowWatermark;
+    private final AtomicLong used = new AtomicLong();
+    private final Queue<ConnectionMemoryAccountant> pausedConnections =
+            new ConcurrentLinkedQueue<ConnectionMemoryAccountant>();
+
+    public MemoryBudget(@Nonnegative long limit, @Nonnegative long lowWatermark) {
+        Preconditions.checkArgument(limit > 0, "The memory limit must be positive");
+        Preconditions.checkArgument(lowWatermark <= limit, "The low watermark cannot be greater than the limit");
+        this.limit = limit;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public boolean isExhausted() {
+        return used.get() > limit;
+    }
+
+    public boolean isAboveLowWatermark() {
+        return used.get() > lowWatermark;
+    }
+
+    /**
+     * @return true iff the budget is exhausted after acquiring the given bytes
+     */
+    boolean acquire(@Nonnegative long bytes) {
+        return used.addAndGet(bytes) > limit;
+    }
+
+    void release(@Nonnegative long bytes) {
+        if (used.addAndGet(-bytes) <= lowWatermark) {
+            resumePausedConnections();
+        }
+    }
+
+    void registerPaused(@Nonnull ConnectionMemoryAccountant accountant) {
+        pausedConnections.add(accountant);
+    }
+
+    private void resumePausedConnections() {
+        ConnectionMemoryAccountant accountant;
+        while ((accountant = pausedConnections.poll()) != null) {
+            accountant.onBudgetAvailable();
+        }
+    }
+}
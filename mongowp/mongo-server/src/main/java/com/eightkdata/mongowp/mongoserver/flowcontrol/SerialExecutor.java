@@ -0,0 +1,129 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the tasks of a connection on a {@link FairRequestScheduler}, one at a
+ * time and in the order they were submitted, so requests are processed and
+ * replied in order.
+ * <p>
+ * If the scheduler rejects the tasks (because it has been shut down), the
+ * queued tasks are run on the calling thread, so the cleanup they do (like
+ * releasing accounted memory) is not lost.
+ */
+@ThreadSafe
+public class SerialExecutor implements Executor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final FairRequestScheduler scheduler;
+    private final String tenantId;
+    @GuardedBy("this") private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    @GuardedBy("this") private boolean scheduled;
+    private final Runnable runNext = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    public SerialExecutor(@Nonnull FairRequestScheduler scheduler, @Nonnull String tenantId) {
+        this.scheduler = scheduler;
+        this.tenantId = tenantId;
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        synchronized (this) {
+            tasks.add(command);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        submit();
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (this) {
+            task = tasks.poll();
+        }
+        try {
+            task.run();
+        } finally {
+            scheduleNext();
+        }
+    }
+
+    private void scheduleNext() {
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        }
+        // only one task per turn, so other tenants are not starved by a long queue
+        submit();
+    }
+
+    private void submit() {
+        try {
+            scheduler.submit(tenantId, runNext);
+        } catch (RejectedExecutionException ex) {
+            LOGGER.debug("Tasks of {} rejected by the scheduler, running them on the calling thread", tenantId);
+            runRemaining();
+        }
+    }
+
+    /**
+     * Runs the queued tasks until the queue is empty. The executor stays
+     * scheduled meanwhile, so tasks added concurrently are still run in order.
+     */
+    private void runRemaining() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Unexpected error on a rejected task", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.DefaultAttributeMap;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.InsertMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.request.RequestMessage;
+import com.eightkdata.mongowp.mongoserver.api.callback.BatchWriteRequestProcessor;
+import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.mongodriver.MongoBSONDocument;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class WriteBatcherTest {
+    /**
+     * Long enough for the scheduled flushes to never run during a test
+     */
+    private static final long MAX_DELAY_MILLIS = 3600 * 1000;
+
+    private final List<String> batches = new ArrayList<String>();
+    private EventExecutor executor;
+    private ChannelHandlerContext ctx;
+    private int requestId;
+
+    @Before
+    public void setUp() {
+        executor = new DefaultEventExecutorGroup(1).next();
+        ctx = newContext(executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownGracefully();
+    }
+
+    /**
+     * A context with the attributes and the executor the batcher uses
+     */
+    private static ChannelHandlerContext newContext(final EventExecutor executor) {
+        final DefaultAttributeMap attributes = new DefaultAttributeMap();
+        return (ChannelHandlerContext) Proxy.newProxyInstance(
+                WriteBatcherTest.class.getClassLoader(),
+                new Class<?>[] {ChannelHandlerContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("executor".equals(method.getName())) {
+                            return executor;
+                        }
+                        if ("attr".equals(method.getName())) {
+                            return attributes.attr((AttributeKey<?>) args[0]);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+
+    /**
+     * A processor that records each batch as "namespace:requestIds"
+     */
+    private BatchWriteRequestProcessor newProcessor() {
+        return (BatchWriteRequestProcessor) Proxy.newProxyInstance(
+                WriteBatcherTest.class.getClassLoader(),
+                new Class<?>[] {BatchWriteRequestProcessor.class},
+                new InvocationHandler() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (!"writeBatch".equals(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        StringBuilder batch = new StringBuilder().append(args[0]).append('.').append(args[1]).append(':');
+                        for (RequestMessage write : (List<RequestMessage>) args[2]) {
+                            batch.append(write.getBaseMessage().getRequestId());
+                        }
+                        batches.add(batch.toString());
+                        return null;
+                    }
+                }
+        );
+    }
+
+    private RequestBaseMessage nextBaseMessage() {
+        return new RequestBaseMessage(InetAddress.getLoopbackAddress(), 27017, ++requestId);
+    }
+
+    private RequestMessage insert(String namespace) {
+        return new InsertMessage(nextBaseMessage(), 0, namespace, Collections.<BSONDocument>emptyList());
+    }
+
+    private RequestMessage delete(String namespace) {
+        BSONObject filter = new BasicBSONObject();
+        return new DeleteMessage(nextBaseMessage(), 0, namespace, new MongoBSONDocument(filter));
+    }
+
+    @Test
+    public void testConsecutiveWritesAreBatched() {
+        WriteBatcher batcher = new WriteBatcher(newProcessor(), 100, MAX_DELAY_MILLIS);
+        batcher.enqueue(ctx, insert("db.a"));
+        batcher.enqueue(ctx, delete("db.a"));
+        batcher.enqueue(ctx, insert("db.b"));
+        assertEquals(Collections.emptyList(), batches);
+
+        batcher.flush(ctx);
+        assertEquals(Arrays.asList("db.a:12", "db.b:3"), batches);
+    }
+
+    @Test
+    public void testInterleavedWritesKeepTheirOrder() {
+        WriteBatcher batcher = new WriteBatcher(newProcessor(), 100, MAX_DELAY_MILLIS);
+        batcher.enqueue(ctx, insert("db.a"));
+        batcher.enqueue(ctx, insert("db.b"));
+        batcher.enqueue(ctx, delete("db.a"));
+        batcher.flush(ctx);
+        assertEquals(Arrays.asList("db.a:1", "db.b:2", "db.a:3"), batches);
+    }
+
+    @Test
+    public void testFullBatchFlushesThePreviousOnes() {
+        WriteBatcher batcher = new WriteBatcher(newProcessor(), 2, MAX_DELAY_MILLIS);
+        batcher.enqueue(ctx, insert("db.a"));
+        batcher.enqueue(ctx, insert("db.b"));
+        assertEquals(Collections.emptyList(), batches);
+
+        batcher.enqueue(ctx, insert("db.b"));
+        assertEquals(Arrays.asList("db.a:1", "db.b:23"), batches);
+
+        batcher.enqueue(ctx, insert("db.a"));
+        batcher.flush(ctx);
+        assertEquals(Arrays.asList("db.a:1", "db.b:23", "db.a:4"), batches);
+    }
+
+    @Test
+    public void testFlushWithoutWrites() {
+        WriteBatcher batcher = new WriteBatcher(newProcessor(), 2, MAX_DELAY_MILLIS);
+        batcher.flush(ctx);
+        assertEquals(Collections.emptyList(), batches);
+    }
+}
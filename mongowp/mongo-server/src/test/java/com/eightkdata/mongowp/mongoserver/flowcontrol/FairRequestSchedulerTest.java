@@ -0,0 +1,120 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.flowcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class FairRequestSchedulerTest {
+
+    /**
+     * A worker is kept busy while two connections queue tasks, so the
+     * scheduler is shut down with tasks queued on it and on the executors
+     */
+    @Test
+    public void queuedTasksRunOnShutdown() throws Exception {
+        FairRequestScheduler scheduler = new FairRequestScheduler(
+                1, Collections.<String, Integer>emptyMap(), Executors.defaultThreadFactory()
+        );
+        scheduler.start();
+        SerialExecutor busy = new SerialExecutor(scheduler, "busy");
+        SerialExecutor waiting = new SerialExecutor(scheduler, "waiting");
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        busy.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.add("busy0");
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 2; i++) {
+            busy.execute(new Record(ran, "busy" + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            waiting.execute(new Record(ran, "waiting" + i));
+        }
+        assertEquals(1, scheduler.getQueuedTasks());
+
+        scheduler.shutdown();
+        assertEquals(0, scheduler.getQueuedTasks());
+        assertEquals(Arrays.asList("waiting0", "waiting1", "waiting2"), ran);
+
+        final CountDownLatch busyDone = new CountDownLatch(1);
+        busy.execute(new Runnable() {
+            @Override
+            public void run() {
+                busyDone.countDown();
+            }
+        });
+        release.countDown();
+        assertTrue(busyDone.await(10, TimeUnit.SECONDS));
+        assertEquals(
+                Arrays.asList("waiting0", "waiting1", "waiting2", "busy0", "busy1", "busy2"),
+                ran
+        );
+
+        // The executors are not left scheduled, so new tasks run on the calling thread
+        waiting.execute(new Record(ran, "waiting3"));
+        busy.execute(new Record(ran, "busy3"));
+        assertEquals("waiting3", ran.get(6));
+        assertEquals("busy3", ran.get(7));
+    }
+
+    private static class Record implements Runnable {
+        private final List<String> ran;
+        private final String name;
+
+        Record(List<String> ran, String name) {
+            this.ran = ran;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+    }
+}
@@ -22,36 +22,57 @@
 package com.eightkdata.mongowp.messages.request;
 
 import com.eightkdata.mongowp.messages.util.EnumBitFlags;
+import com.eightkdata.mongowp.messages.util.EnumInt32FlagsTable;
 import com.eightkdata.mongowp.messages.util.EnumInt32FlagsUtil;
 
 import javax.annotation.Nonnull;
-import java.util.EnumSet;
+import javax.annotation.Nullable;
 import java.util.Set;
 
 /**
- *
+ * The flags are kept as the int received on the wire, so checking them is a
+ * bit test and decoding them does not allocate.
  */
 public abstract class AbstractRequestMessageWithFlags<T extends Enum<T> & EnumBitFlags> extends AbstractRequestMessage {
-    @Nonnull protected final EnumSet<T> flags;
+    @Nonnull private final EnumInt32FlagsTable<T> flagsTable;
+    protected final int flags;
 
-    protected AbstractRequestMessageWithFlags(@Nonnull RequestBaseMessage requestBaseMessage, EnumSet<T> flags) {
+    protected AbstractRequestMessageWithFlags(
+            @Nonnull RequestBaseMessage requestBaseMessage, @Nonnull Class<T> enumClass, @Nullable Set<T> flags
+    ) {
         super(requestBaseMessage);
-        this.flags = flags;
+        this.flagsTable = EnumInt32FlagsUtil.getFlagsTable(enumClass);
+        this.flags = flagsTable.getInt32Flags(flags);
     }
 
+    /**
+     * @throws java.lang.IllegalArgumentException If there are flags set outside of the given mask
+     */
     protected AbstractRequestMessageWithFlags(
             @Nonnull RequestBaseMessage requestBaseMessage, @Nonnull Class<T> enumClass, int enumMask, int flags
     ) {
-        this(requestBaseMessage, EnumInt32FlagsUtil.getActiveFlags(enumClass, enumMask, flags));
+        super(requestBaseMessage);
+        if((flags & ~enumMask) != 0) {
+            throw new IllegalArgumentException("Unsupported flags within int (" + flags + ")");
+        }
+        this.flagsTable = EnumInt32FlagsUtil.getFlagsTable(enumClass);
+        this.flags = flags;
     }
 
     public boolean isFlagSet(T flag) {
-        return flags.contains(flag);
+        return flagsTable.isSet(flags, flag);
     }
 
+    public int getInt32Flags() {
+        return flags;
+    }
+
+    /**
+     * @return an immutable set shared by all the messages with the same flags
+     */
     @Nonnull
     public Set<T> getFlags() {
-        return flags;
+        return flagsTable.getActiveFlags(flags);
     }
 
     @Override
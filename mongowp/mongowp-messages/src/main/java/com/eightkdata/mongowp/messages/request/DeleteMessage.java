@@ -33,7 +33,7 @@ import javax.annotation.concurrent.Immutable;
  *
  */
 @Immutable
-public class DeleteMessage extends AbstractRequestMessageWithFlags<DeleteMessage.Flag> implements RequestMessage {
+public class DeleteMessage extends AbstractRequestMessageWithFlags<DeleteMessage.Flag> implements CollectionRequestMessage {
     public enum Flag implements EnumBitFlags {
         SINGLE_REMOVE(0);
 
@@ -29,7 +29,7 @@ import javax.annotation.concurrent.Immutable;
  *
  */
 @Immutable
-public class GetMoreMessage extends AbstractRequestMessage implements RequestMessage {
+public class GetMoreMessage extends AbstractRequestMessage implements CollectionRequestMessage {
 
     public static final RequestOpCode REQUEST_OP_CODE = RequestOpCode.OP_GET_MORE;
 
@@ -35,7 +35,7 @@ import com.eightkdata.nettybson.api.BSONDocument;
  *
  */
 @Immutable
-public class InsertMessage extends AbstractRequestMessageWithFlags<InsertMessage.Flag> implements RequestMessage {
+public class InsertMessage extends AbstractRequestMessageWithFlags<InsertMessage.Flag> implements CollectionRequestMessage {
     public enum Flag implements EnumBitFlags {
         CONTINUE_ON_ERROR(0);
 
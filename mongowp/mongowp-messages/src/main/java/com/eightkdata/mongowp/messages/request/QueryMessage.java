@@ -33,7 +33,7 @@ import javax.annotation.concurrent.Immutable;
  *
  */
 @Immutable
-public class QueryMessage extends AbstractRequestMessageWithFlags<QueryMessage.Flag> implements RequestMessage {
+public class QueryMessage extends AbstractRequestMessageWithFlags<QueryMessage.Flag> implements CollectionRequestMessage {
     public enum Flag implements EnumBitFlags {
         TAILABLE_CURSOR(1),
         SLAVE_OK(2),
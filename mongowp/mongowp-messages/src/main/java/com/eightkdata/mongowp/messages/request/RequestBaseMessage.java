@@ -34,11 +34,19 @@ public class RequestBaseMessage {
     @Nonnull private final InetAddress clientAddress;
     @Nonnegative private final int clientPort;
     private final int requestId;
+    @Nonnegative private final int messageLength;
 
     public RequestBaseMessage(@Nonnull InetAddress clientAddress, int clientPort, int requestId) {
+        this(clientAddress, clientPort, requestId, 0);
+    }
+
+    public RequestBaseMessage(
+            @Nonnull InetAddress clientAddress, int clientPort, int requestId, @Nonnegative int messageLength
+    ) {
         this.clientAddress = clientAddress;
         this.clientPort = clientPort;
         this.requestId = requestId;
+        this.messageLength = messageLength;
     }
 
     @Nonnull
@@ -57,4 +65,12 @@ public class RequestBaseMessage {
     public int getRequestId() {
         return requestId;
     }
+
+    /**
+     * @return the length in bytes of the message on the wire, including its header, or 0 if unknown
+     */
+    @Nonnegative
+    public int getMessageLength() {
+        return messageLength;
+    }
 }
@@ -33,7 +33,7 @@ import javax.annotation.concurrent.Immutable;
  *
  */
 @Immutable
-public class UpdateMessage extends AbstractRequestMessageWithFlags<UpdateMessage.Flag> implements RequestMessage {
+public class UpdateMessage extends AbstractRequestMessageWithFlags<UpdateMessage.Flag> implements CollectionRequestMessage {
     public enum Flag implements EnumBitFlags {
         UPSERT(0),
         MULTI_UPDATE(1);
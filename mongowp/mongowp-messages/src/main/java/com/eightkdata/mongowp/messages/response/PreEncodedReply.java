@@ -0,0 +1,156 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *     
+ */
+
+package com.eightkdata.mongowp.messages.response;
+
+import com.eightkdata.mongowp.messages.util.EnumInt32FlagsUtil;
+import com.eightkdata.nettybson.api.BSONDocument;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteOrder;
+import java.util.Set;
+
+/**
+ * A reply whose body (flags, cursor, starting position and documents) is
+ * encoded once into a read-only direct buffer, so it can be sent any number
+ * of times without encoding it again. Only the header, which identifies the
+ * request being replied, is written for each reply.
+ * <p>
+ * It is meant for static or rarely changing replies. The buffer is shared by
+ * all the replies and is never released.
+ * <p>
+ * Replies whose body is encoded elsewhere, like the batches of a spooled
+ * cursor, are {@link #wrap(ByteBuf, int) wrapped}. They can only be sent once
+ * and their body is released once written.
+ */
+@Immutable
+public class PreEncodedReply {
+    /**
+     * The length of the fields that precede the documents on the body: flags,
+     * cursor id, starting position and number of documents
+     */
+    public static final int BODY_HEADER_BYTES = 4 + 8 + 4 + 4;
+
+    private final ByteBuf body;
+    private final int numberReturned;
+    private final boolean shared;
+
+    private PreEncodedReply(ByteBuf body, int numberReturned, boolean shared) {
+        this.body = body;
+        this.numberReturned = numberReturned;
+        this.shared = shared;
+    }
+
+    @Nonnull
+    public static PreEncodedReply of(@Nonnull BSONDocument... documents) {
+        return of(null, documents);
+    }
+
+    @Nonnull
+    public static PreEncodedReply of(@Nullable Set<ReplyMessage.Flag> flags, @Nonnull BSONDocument... documents) {
+        ByteBuf buffer = Unpooled.directBuffer(BODY_HEADER_BYTES);
+        ByteBuf littleEndianBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        littleEndianBuffer.writeInt(EnumInt32FlagsUtil.getInt32Flags(flags));
+        littleEndianBuffer.writeLong(0);
+        littleEndianBuffer.writeInt(0);
+        littleEndianBuffer.writeInt(documents.length);
+        for (BSONDocument document : documents) {
+            document.writeToByteBuf(littleEndianBuffer);
+        }
+        return new PreEncodedReply(Unpooled.unmodifiableBuffer(buffer), documents.length, true);
+    }
+
+    /**
+     * Creates a reply that can be sent only once from an already encoded
+     * body, which starts with the {@link #BODY_HEADER_BYTES header fields} in
+     * little endian order and is followed by the documents.
+     * <p>
+     * The reply takes the ownership of the body, which is released once the
+     * reply is written.
+     */
+    @Nonnull
+    public static PreEncodedReply wrap(@Nonnull ByteBuf body, @Nonnegative int numberReturned) {
+        return new PreEncodedReply(body, numberReturned, false);
+    }
+
+    /**
+     * @return the number of documents of the reply
+     */
+    public int getNumberReturned() {
+        return numberReturned;
+    }
+
+    /**
+     * @return the length of the body, in bytes
+     */
+    public int getBodyLength() {
+        return body.readableBytes();
+    }
+
+    /**
+     * @return a retained read-only duplicate of the body or, if the reply
+     *         {@link #wrap wraps} a body, the body itself. It must be released
+     *         by the caller
+     */
+    @Nonnull
+    public ByteBuf retainedBody() {
+        if (!shared) {
+            return body;
+        }
+        return body.duplicate().retain();
+    }
+
+    /**
+     * @return a message that sends this reply as the reply of the given
+     *         request
+     */
+    @Nonnull
+    public Message toRequest(int requestId) {
+        return new Message(this, requestId);
+    }
+
+    /**
+     * A {@link PreEncodedReply} bound to the request it replies
+     */
+    @Immutable
+    public static class Message {
+        private final PreEncodedReply reply;
+        private final int responseTo;
+
+        private Message(PreEncodedReply reply, int responseTo) {
+            this.reply = reply;
+            this.responseTo = responseTo;
+        }
+
+        @Nonnull
+        public PreEncodedReply getReply() {
+            return reply;
+        }
+
+        public int getResponseTo() {
+            return responseTo;
+        }
+    }
+}
@@ -22,6 +22,8 @@
 package com.eightkdata.mongowp.messages.response;
 
 import com.eightkdata.mongowp.messages.util.EnumBitFlags;
+import com.eightkdata.mongowp.messages.util.EnumInt32FlagsTable;
+import com.eightkdata.mongowp.messages.util.EnumInt32FlagsUtil;
 import com.eightkdata.nettybson.api.BSONDocument;
 
 import javax.annotation.Nonnegative;
@@ -31,8 +33,8 @@ import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -45,6 +47,8 @@ public class ReplyMessage {
         SHARD_CONFIG_STALE(2),
         AWAIT_CAPABLE(3);
 
+        private static final EnumInt32FlagsTable<Flag> FLAGS_TABLE = EnumInt32FlagsUtil.getFlagsTable(Flag.class);
+
         @Nonnegative
         private final int flagBitPosition;
 
@@ -61,7 +65,7 @@ public class ReplyMessage {
     @NotThreadSafe
     public static class Builder {
         private final int requestId;
-        @Nullable private EnumSet<Flag> flags;
+        private int flags;
         private final long cursorId;
         private final int startingFrom;
         @Nonnull final private List<BSONDocument> documents = new ArrayList<BSONDocument>();
@@ -79,18 +83,25 @@ public class ReplyMessage {
             documents.add(firstDocument);
         }
 
-        public Builder setFlags(EnumSet<Flag> flags) {
+        public Builder setFlags(@Nullable Set<Flag> flags) {
+            this.flags = Flag.FLAGS_TABLE.getInt32Flags(flags);
+
+            return this;
+        }
+
+        /**
+         * @throws java.lang.IllegalArgumentException If there are flags set outside of the positions denoted by
+         * {@link Flag}
+         */
+        public Builder setInt32Flags(int flags) {
+            Flag.FLAGS_TABLE.checkSupported(flags);
             this.flags = flags;
 
             return this;
         }
 
         public Builder addFlag(Flag flag) {
-            if(null == flags) {
-                flags = EnumSet.of(flag);
-            } else {
-                flags.add(flag);
-            }
+            flags |= Flag.FLAGS_TABLE.getMask(flag);
 
             return this;
         }
@@ -107,13 +118,13 @@ public class ReplyMessage {
     }
 
     private final int responseTo;
-    @Nullable private final EnumSet<Flag> flags;
+    private final int flags;
     private final long cursorId;
     private final int startingFrom;
     @Nonnull final private Collection<BSONDocument> documents;
 
     private ReplyMessage(
-            int requestId, EnumSet<Flag> flags, long cursorId, int startingFrom,
+            int requestId, int flags, long cursorId, int startingFrom,
             @Nonnull Collection<BSONDocument> documents
     ) {
         this.responseTo = requestId;
@@ -131,11 +142,22 @@ public class ReplyMessage {
         return startingFrom;
     }
 
-    @Nullable
-    public EnumSet<Flag> getFlags() {
+    /**
+     * @return an immutable set shared by all the replies with the same flags
+     */
+    @Nonnull
+    public Set<Flag> getFlags() {
+        return Flag.FLAGS_TABLE.getActiveFlags(flags);
+    }
+
+    public int getInt32Flags() {
         return flags;
     }
 
+    public boolean isFlagSet(@Nonnull Flag flag) {
+        return Flag.FLAGS_TABLE.isSet(flags, flag);
+    }
+
     public int getResponseTo() {
         return responseTo;
     }
@@ -0,0 +1,154 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.messages.util;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Precomputed conversions between the int32 flags of the wire protocol and
+ * the constants of an {@link EnumBitFlags} enum.
+ * <p>
+ * When all the flags of the enum fit in the lowest byte, the immutable set of
+ * every valid int is computed in advance, so decoding flags does not
+ * allocate. Otherwise the sets are built on each call.
+ * <p>
+ * Instances are obtained with {@link EnumInt32FlagsUtil#getFlagsTable(Class)}.
+ */
+@Immutable
+public final class EnumInt32FlagsTable<T extends Enum<T> & EnumBitFlags> {
+    private static final int MAX_PRECOMPUTED_BITS = 8;
+
+    private final Class<T> enumClass;
+    /**
+     * The mask of each constant, indexed by ordinal
+     */
+    private final int[] masks;
+    private final int allFlagsMask;
+    @Nullable private final ImmutableSet<T>[] precomputedSets;
+
+    EnumInt32FlagsTable(@Nonnull Class<T> enumClass) {
+        this.enumClass = enumClass;
+
+        T[] constants = enumClass.getEnumConstants();
+        this.masks = new int[constants.length];
+        int all = 0;
+        for (T constant : constants) {
+            int position = constant.getFlagBitPosition();
+            if (position < 0 || position >= Integer.SIZE) {
+                throw new IndexOutOfBoundsException(
+                        "Flag " + constant + " is at position " + position + ", outside of an int32"
+                );
+            }
+            masks[constant.ordinal()] = 1 << position;
+            all |= 1 << position;
+        }
+        this.allFlagsMask = all;
+
+        if ((all & ~((1 << MAX_PRECOMPUTED_BITS) - 1)) == 0) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ImmutableSet<T>[] sets = new ImmutableSet[1 << MAX_PRECOMPUTED_BITS];
+            for (int flags = 0; flags < sets.length; flags++) {
+                if ((flags & ~all) == 0) {
+                    sets[flags] = Sets.immutableEnumSet(buildSet(flags));
+                }
+            }
+            this.precomputedSets = sets;
+        }
+        else {
+            this.precomputedSets = null;
+        }
+    }
+
+    @Nonnull
+    public Class<T> getEnumClass() {
+        return enumClass;
+    }
+
+    public int getAllFlagsMask() {
+        return allFlagsMask;
+    }
+
+    public int getMask(@Nonnull T flag) {
+        return masks[flag.ordinal()];
+    }
+
+    public boolean isSet(int flags, @Nonnull T flag) {
+        return (flags & masks[flag.ordinal()]) != 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException If there are flags set outside of the
+     *                                  positions denoted by the enum
+     */
+    public void checkSupported(int flags) {
+        if ((flags & ~allFlagsMask) != 0) {
+            throw new IllegalArgumentException("Unsupported flags within int (" + flags + ")");
+        }
+    }
+
+    /**
+     * @return the immutable set of the flags active on the given int
+     * @throws IllegalArgumentException If there are flags set outside of the
+     *                                  positions denoted by the enum
+     */
+    @Nonnull
+    public ImmutableSet<T> getActiveFlags(int flags) {
+        checkSupported(flags);
+        if (precomputedSets != null) {
+            return precomputedSets[flags];
+        }
+        return Sets.immutableEnumSet(buildSet(flags));
+    }
+
+    public int getInt32Flags(@Nullable Set<T> flags) {
+        if (flags == null || flags.isEmpty()) {
+            return 0;
+        }
+        int result = 0;
+        for (T flag : flags) {
+            result |= masks[flag.ordinal()];
+        }
+        return result;
+    }
+
+    private EnumSet<T> buildSet(int flags) {
+        EnumSet<T> set = EnumSet.noneOf(enumClass);
+        for (T constant : enumClass.getEnumConstants()) {
+            if ((flags & masks[constant.ordinal()]) != 0) {
+                set.add(constant);
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public String toString() {
+        return "EnumInt32FlagsTable{" + enumClass.getSimpleName() + '}';
+    }
+}
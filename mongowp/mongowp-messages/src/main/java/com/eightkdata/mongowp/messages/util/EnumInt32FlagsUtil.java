@@ -22,31 +22,54 @@
 package com.eightkdata.mongowp.messages.util;
 
 import com.google.common.base.Preconditions;
-import com.google.common.primitives.Ints;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.*;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
  */
 public class EnumInt32FlagsUtil {
-    private static <T extends Enum<T> & EnumBitFlags> int getInt32FlagsArray(@Nullable Collection<T> flags) {
+    private static final ConcurrentMap<Class<?>, EnumInt32FlagsTable<?>> TABLES =
+            new ConcurrentHashMap<Class<?>, EnumInt32FlagsTable<?>>();
+
+    /**
+     * @return the precomputed flag conversions of the given enum, which are
+     *         computed once per enum
+     * @throws java.lang.IndexOutOfBoundsException If the getFlagBitPosition() returned by any of the enum values
+     * is greater than 32
+     */
+    @Nonnull
+    public static <T extends Enum<T> & EnumBitFlags> EnumInt32FlagsTable<T> getFlagsTable(@Nonnull Class<T> enumClass) {
+        EnumInt32FlagsTable<?> table = TABLES.get(enumClass);
+        if (table == null) {
+            EnumInt32FlagsTable<T> newTable = new EnumInt32FlagsTable<T>(enumClass);
+            table = TABLES.putIfAbsent(enumClass, newTable);
+            if (table == null) {
+                return newTable;
+            }
+        }
+        assert table.getEnumClass() == enumClass;
+        @SuppressWarnings("unchecked")
+        EnumInt32FlagsTable<T> result = (EnumInt32FlagsTable<T>) table;
+        return result;
+    }
+
+    public static <T extends Enum<T> & EnumBitFlags> int getInt32Flags(@Nullable Set<T> flags) {
         if(null == flags || flags.isEmpty()) {
             return 0;
         }
 
-        BitSet bitSet = new BitSet(Ints.BYTES);
+        int result = 0;
         for(T t : flags) {
-            bitSet.set(t.getFlagBitPosition());
+            result |= 1 << t.getFlagBitPosition();
         }
-
-        return convert(bitSet);
-    }
-
-    public static <T extends Enum<T> & EnumBitFlags> int getInt32Flags(@Nullable Set<T> flags) {
-        return getInt32FlagsArray(flags);
+        return result;
     }
 
     /**
@@ -60,10 +83,13 @@ public class EnumInt32FlagsUtil {
     public static <T extends Enum<T> & EnumBitFlags> int getInt32AllFlagsMask(@Nonnull Class<T> enumClass) {
         Preconditions.checkNotNull(enumClass);
 
-        return getInt32FlagsArray(Arrays.asList(enumClass.getEnumConstants()));
+        return getFlagsTable(enumClass).getAllFlagsMask();
     }
 
     /**
+     * Returns a new mutable set with the active flags. Use
+     * {@link EnumInt32FlagsTable#getActiveFlags(int)} to get a shared
+     * immutable one instead.
      *
      * @param enumClass
      * @param flagsMask
@@ -79,13 +105,8 @@ public class EnumInt32FlagsUtil {
             throw new IllegalArgumentException("Unsupported flags within int (" + flags + ")");
         }
 
-        BitSet bitSet = convert(flags);
         EnumSet<T> flagEnumSet = EnumSet.noneOf(enumClass);
-        for(T flag : enumClass.getEnumConstants()) {
-            if(bitSet.get(flag.getFlagBitPosition())) {
-                flagEnumSet.add(flag);
-            }
-        }
+        flagEnumSet.addAll(getFlagsTable(enumClass).getActiveFlags(flags));
 
         return flagEnumSet;
     }
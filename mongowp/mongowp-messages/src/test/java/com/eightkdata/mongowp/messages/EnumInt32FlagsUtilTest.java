@@ -22,12 +22,16 @@
 package com.eightkdata.mongowp.messages;
 
 import com.eightkdata.mongowp.messages.util.EnumBitFlags;
+import com.eightkdata.mongowp.messages.util.EnumInt32FlagsTable;
 import com.eightkdata.mongowp.messages.util.EnumInt32FlagsUtil;
 import org.junit.Test;
 
 import java.util.EnumSet;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -52,6 +56,23 @@ public class EnumInt32FlagsUtilTest {
         public static final int NON_COMPUTED_MASK = 0x20000002;
     }
 
+    private enum LowEnum implements EnumBitFlags {
+        A(0),
+        B(3),
+        C(7);
+
+        private final int position;
+
+        private LowEnum(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public int getFlagBitPosition() {
+            return position;
+        }
+    }
+
     @Test
     public void getInt32PossibleMaskBasicCorrectnessTest() {
         assertEquals(BasicEnum.NON_COMPUTED_MASK, EnumInt32FlagsUtil.getInt32AllFlagsMask(BasicEnum.class));
@@ -70,4 +91,49 @@ public class EnumInt32FlagsUtilTest {
         enumFlags = EnumInt32FlagsUtil.getActiveFlags(BasicEnum.class, basicEnumMask, 0x20000002);
         assertTrue(AssertSetsUtil.assertSetsEqual(EnumSet.of(BasicEnum.B, BasicEnum.A), enumFlags));
     }
+
+    @Test
+    public void getInt32FlagsBasicCorrectnessTest() {
+        assertEquals(0, EnumInt32FlagsUtil.getInt32Flags(EnumSet.noneOf(BasicEnum.class)));
+        assertEquals(0x00000002, EnumInt32FlagsUtil.getInt32Flags(EnumSet.of(BasicEnum.A)));
+        assertEquals(0x20000002, EnumInt32FlagsUtil.getInt32Flags(EnumSet.of(BasicEnum.A, BasicEnum.B)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getActiveFlagsUnsupportedTest() {
+        EnumInt32FlagsUtil.getActiveFlags(BasicEnum.class, BasicEnum.NON_COMPUTED_MASK, 0x00000004);
+    }
+
+    @Test
+    public void flagsTableTest() {
+        EnumInt32FlagsTable<LowEnum> table = EnumInt32FlagsUtil.getFlagsTable(LowEnum.class);
+        assertSame(table, EnumInt32FlagsUtil.getFlagsTable(LowEnum.class));
+        assertEquals(0x89, table.getAllFlagsMask());
+
+        for (int flags = 0; flags <= 0xFF; flags++) {
+            if ((flags & ~0x89) != 0) {
+                continue;
+            }
+            Set<LowEnum> activeFlags = table.getActiveFlags(flags);
+            assertSame(activeFlags, table.getActiveFlags(flags));
+            assertEquals(flags, table.getInt32Flags(activeFlags));
+            for (LowEnum flag : LowEnum.values()) {
+                assertEquals((flags & (1 << flag.getFlagBitPosition())) != 0, table.isSet(flags, flag));
+                assertEquals(table.isSet(flags, flag), activeFlags.contains(flag));
+            }
+        }
+    }
+
+    @Test
+    public void flagsTableHighBitsTest() {
+        EnumInt32FlagsTable<BasicEnum> table = EnumInt32FlagsUtil.getFlagsTable(BasicEnum.class);
+        assertTrue(AssertSetsUtil.assertSetsEqual(EnumSet.of(BasicEnum.B), table.getActiveFlags(0x20000000)));
+        assertTrue(table.isSet(0x20000002, BasicEnum.A));
+        assertFalse(table.isSet(0x20000000, BasicEnum.A));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flagsTableUnsupportedTest() {
+        EnumInt32FlagsUtil.getFlagsTable(LowEnum.class).getActiveFlags(0x02);
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+package com.eightkdata.mongowp.mongoserver.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An error message whose <code>{n}</code> placeholders are parsed once, so
+ * formatting it only concatenates its literal parts and the arguments.
+ * <p>
+ * Unlike {@link java.text.MessageFormat}, quotes are copied literally and the
+ * arguments are always formatted with {@link String#valueOf(Object)}. Missing
+ * arguments are formatted as their placeholder.
+ */
+@Immutable
+public final class ErrorMessageTemplate {
+    private final String pattern;
+    /**
+     * The literal parts of the pattern. There is one more literal than
+     * arguments, so literal <em>i</em> goes before argument <em>i</em>.
+     */
+    private final String[] literals;
+    private final int[] argumentIndexes;
+
+    private ErrorMessageTemplate(String pattern, String[] literals, int[] argumentIndexes) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.argumentIndexes = argumentIndexes;
+    }
+
+    @Nonnull
+    public static ErrorMessageTemplate compile(@Nonnull String pattern) {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> indexes = new ArrayList<Integer>();
+
+        int literalStart = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            int argumentEnd = pattern.charAt(i) == '{' ? parsePlaceholder(pattern, i) : -1;
+            if (argumentEnd < 0) {
+                i++;
+                continue;
+            }
+            literals.add(pattern.substring(literalStart, i));
+            indexes.add(Integer.parseInt(pattern.substring(i + 1, argumentEnd)));
+            i = argumentEnd + 1;
+            literalStart = i;
+        }
+        literals.add(pattern.substring(literalStart));
+
+        int[] argumentIndexes = new int[indexes.size()];
+        for (int j = 0; j < argumentIndexes.length; j++) {
+            argumentIndexes[j] = indexes.get(j);
+        }
+        return new ErrorMessageTemplate(pattern, literals.toArray(new String[literals.size()]), argumentIndexes);
+    }
+
+    /**
+     * Formats the given pattern without keeping its compiled form. Useful for
+     * messages that are not known in advance. It is not named
+     * <code>format</code>, so calls to {@link #format(Object...)} whose first
+     * argument is a string are not resolved to it.
+     */
+    @Nonnull
+    public static String formatPattern(@Nonnull String pattern, @Nullable Object... arguments) {
+        return compile(pattern).format(arguments);
+    }
+
+    /**
+     * @return the index of the closing brace of the placeholder that starts at
+     *         the given position or -1 if there is no placeholder there
+     */
+    private static int parsePlaceholder(String pattern, int openBrace) {
+        int i = openBrace + 1;
+        while (i < pattern.length() && i - openBrace <= 9 && Character.isDigit(pattern.charAt(i))) {
+            i++;
+        }
+        if (i == openBrace + 1 || i >= pattern.length() || pattern.charAt(i) != '}') {
+            return -1;
+        }
+        return i;
+    }
+
+    @Nonnull
+    public String getPattern() {
+        return pattern;
+    }
+
+    public int getArgumentCount() {
+        return argumentIndexes.length;
+    }
+
+    @Nonnull
+    public String format(@Nullable Object... arguments) {
+        if (argumentIndexes.length == 0) {
+            return literals[0];
+        }
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * argumentIndexes.length);
+        for (int i = 0; i < argumentIndexes.length; i++) {
+            sb.append(literals[i]);
+            int index = argumentIndexes[i];
+            if (arguments != null && index < arguments.length) {
+                sb.append(String.valueOf(arguments[index]));
+            }
+            else {
+                sb.append('{').append(index).append('}');
+            }
+        }
+        sb.append(literals[argumentIndexes.length]);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -76,9 +76,12 @@ public class MongoWP {
 
     public enum ErrorCode {
         // TODO: the following are not true Mongo error codes. Find the really used ones
+        BAD_VALUE(2, "{0}"),
     	WRONG_FIELD_TYPE(9, "Wrong type for '{0}' field, expected {1}, found {2}: {3}"),
     	MUST_RUN_ON_ADMIN(13, "{0}  may only be run against the admin database."),
+        EXCEEDED_TIME_LIMIT(50, "operation exceeded time limit"),
         NO_SUCH_COMMAND(59, "No such command: {0}"),
+        INTERRUPTED(11601, "operation was interrupted"),
         INTERNAL_ERROR(1000001, "Internal error: {0}"),
         UNIMPLEMENTED_COMMAND(1000002, "Unimplemented command: {0}"),
         UNIMPLEMENTED_FLAG(1000003, "Unimplemented flag: {0}"),
@@ -86,10 +89,12 @@ public class MongoWP {
 
         private final int errorCode;
         private final String errorMessage;
+        private final ErrorMessageTemplate template;
 
         ErrorCode(int errorCode, String errorMessage) {
             this.errorCode = errorCode;
             this.errorMessage = errorMessage;
+            this.template = ErrorMessageTemplate.compile(errorMessage);
         }
 
         public int getErrorCode() {
@@ -99,5 +104,13 @@ public class MongoWP {
         public String getErrorMessage() {
             return errorMessage;
         }
+
+        public ErrorMessageTemplate getTemplate() {
+            return template;
+        }
+
+        public String format(Object... args) {
+            return template.format(args);
+        }
     }
 }
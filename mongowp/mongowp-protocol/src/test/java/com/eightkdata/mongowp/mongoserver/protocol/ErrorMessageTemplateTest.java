@@ -0,0 +1,60 @@
+/*
+ *     This file is part of mongowp.
+ *
+ *     mongowp is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     mongowp is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2014, 8Kdata Technology
+ *
+ */
+
+
+
+
+package com.eightkdata.mongowp.mongoserver.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class ErrorMessageTemplateTest {
+
+    @Test
+    public void placeholdersAreReplacedByTheirArguments() {
+        ErrorMessageTemplate template = ErrorMessageTemplate.compile("ns {0} has {1} documents");
+        assertEquals(2, template.getArgumentCount());
+        assertEquals("ns db.a has 3 documents", template.format("db.a", 3));
+        assertEquals("b then a", ErrorMessageTemplate.formatPattern("{1} then {0}", "a", "b"));
+        assertEquals("a, a", ErrorMessageTemplate.formatPattern("{0}, {0}", "a"));
+        assertEquals("null", ErrorMessageTemplate.formatPattern("{0}", (Object) null));
+    }
+
+    @Test
+    public void missingArgumentsAreFormattedAsTheirPlaceholder() {
+        assertEquals("a and {1}", ErrorMessageTemplate.formatPattern("{0} and {1}", "a"));
+        assertEquals("Internal error: {0}", ErrorMessageTemplate.formatPattern("Internal error: {0}"));
+        assertEquals("{0}", ErrorMessageTemplate.formatPattern("{0}", (Object[]) null));
+    }
+
+    @Test
+    public void everythingElseIsCopiedLiterally() {
+        ErrorMessageTemplate template = ErrorMessageTemplate.compile("can't parse '{a}' {} { {0");
+        assertEquals(0, template.getArgumentCount());
+        assertEquals("can't parse '{a}' {} { {0", template.format("x"));
+        assertEquals("{x}", ErrorMessageTemplate.formatPattern("{{0}}", "x"));
+        assertEquals("{12345678901}", ErrorMessageTemplate.formatPattern("{12345678901}", "x"));
+    }
+}
@@ -21,12 +21,16 @@
 
 package com.eightkdata.nettybson.mongodriver;
 
-import com.eightkdata.nettybson.api.BSONDocument;
+import com.eightkdata.nettybson.api.AbstractBSONDocument;
+import com.eightkdata.nettybson.api.BSONType;
 import io.netty.buffer.ByteBuf;
 import org.bson.*;
+import org.bson.types.*;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -34,7 +38,7 @@ import java.util.Set;
  *
  */
 @Immutable
-public class MongoBSONDocument implements BSONDocument {
+public class MongoBSONDocument extends AbstractBSONDocument {
     private final BSONObject bson;
 
     /**
@@ -79,6 +83,45 @@ public class MongoBSONDocument implements BSONDocument {
         return bson.get(key);
     }
 
+    /**
+     * Adds the types of the values decoded by the driver
+     */
+    @Nonnull
+    @Override
+    protected BSONType getTypeOf(@Nullable Object value) {
+        if (value instanceof ObjectId) {
+            return BSONType.OBJECT_ID;
+        }
+        if (value instanceof BSONTimestamp) {
+            return BSONType.TIMESTAMP;
+        }
+        if (value instanceof Binary) {
+            return BSONType.BINARY;
+        }
+        if (value instanceof CodeWScope) {
+            return BSONType.JAVASCRIPT_WITH_SCOPE;
+        }
+        if (value instanceof Code) {
+            return BSONType.JAVASCRIPT;
+        }
+        if (value instanceof Symbol) {
+            return BSONType.SYMBOL;
+        }
+        if (value instanceof MinKey) {
+            return BSONType.MIN_KEY;
+        }
+        if (value instanceof MaxKey) {
+            return BSONType.MAX_KEY;
+        }
+        if (value instanceof List) {
+            return BSONType.ARRAY;
+        }
+        if (value instanceof BSONObject) {
+            return BSONType.DOCUMENT;
+        }
+        return super.getTypeOf(value);
+    }
+
     @Override
     public void writeToByteBuf(@Nonnull ByteBuf buffer) {
         buffer.writeBytes(new BasicBSONEncoder().encode(bson));
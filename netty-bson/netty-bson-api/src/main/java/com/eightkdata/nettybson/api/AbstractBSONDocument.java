@@ -0,0 +1,150 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+
+package com.eightkdata.nettybson.api;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * A base for the documents whose values are decoded: the typed accessors
+ * read {@link #getValue(String)} and convert its result.
+ * <p>
+ * The types of the values are the ones of the JDK. Documents with other
+ * value classes, like the ones of a driver, override
+ * {@link #getTypeOf(Object)}.
+ */
+public abstract class AbstractBSONDocument implements BSONDocument {
+
+    @Nullable
+    @Override
+    public BSONType getType(@Nonnull String key) {
+        if (!hasKey(key)) {
+            return null;
+        }
+        return getTypeOf(getValue(key));
+    }
+
+    /**
+     * @return the BSON type of a decoded value
+     * @throws IllegalArgumentException If the class of the value has no BSON
+     *                                  type
+     */
+    @Nonnull
+    protected BSONType getTypeOf(@Nullable Object value) {
+        if (value == null) {
+            return BSONType.NULL;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return BSONType.DOUBLE;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return BSONType.INT32;
+        }
+        if (value instanceof Long) {
+            return BSONType.INT64;
+        }
+        if (value instanceof String || value instanceof Character) {
+            return BSONType.STRING;
+        }
+        if (value instanceof Boolean) {
+            return BSONType.BOOLEAN;
+        }
+        if (value instanceof Date) {
+            return BSONType.DATETIME;
+        }
+        if (value instanceof Pattern) {
+            return BSONType.REGEX;
+        }
+        if (value instanceof byte[] || value instanceof UUID) {
+            return BSONType.BINARY;
+        }
+        if (value instanceof List || value instanceof Object[]) {
+            return BSONType.ARRAY;
+        }
+        if (value instanceof BSONDocument || value instanceof Map) {
+            return BSONType.DOCUMENT;
+        }
+        throw new IllegalArgumentException("No BSON type for values of " + value.getClass());
+    }
+
+    @Override
+    public int getInt(@Nonnull String key, int defaultValue) {
+        Number value = getNumber(key);
+        return value != null ? value.intValue() : defaultValue;
+    }
+
+    @Override
+    public long getLong(@Nonnull String key, long defaultValue) {
+        Number value = getNumber(key);
+        return value != null ? value.longValue() : defaultValue;
+    }
+
+    @Override
+    public double getDouble(@Nonnull String key, double defaultValue) {
+        Number value = getNumber(key);
+        return value != null ? value.doubleValue() : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        Object value = getValue(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getString(@Nonnull String key, @Nullable String defaultValue) {
+        Object value = getValue(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Field " + key + " is not a string: " + value);
+        }
+        return (String) value;
+    }
+
+    @Nullable
+    private Number getNumber(String key) {
+        Object value = getValue(key);
+        if (value != null && !(value instanceof Number)) {
+            throw new IllegalArgumentException("Field " + key + " is not a number: " + value);
+        }
+        return (Number) value;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * A base for the documents kept as their encoded bytes. The typed accessors
+ * and {@link #hasKey(String)} read the bytes directly, so they neither decode
+ * the document nor box the values; subclasses only decode it for
+ * {@link #getKeys()} and {@link #getValue(String)}.
+ */
+public abstract class AbstractRawBSONDocument implements BSONDocument {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] bytes;
+    private final int length;
+    private final ByteBuf buffer;
+
+    /**
+     * @param bytes the encoded document, which must not be modified later
+     */
+    protected AbstractRawBSONDocument(@Nonnull byte[] bytes) {
+        this(bytes, bytes.length);
+    }
+
+    /**
+     * @param bytes  an array that starts with the encoded document, which must
+     *               not be modified later
+     * @param length the length of the encoded document
+     */
+    protected AbstractRawBSONDocument(@Nonnull byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+        this.buffer = Unpooled.wrappedBuffer(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return an array that starts with the encoded document, which must not
+     *         be modified
+     * @see #getLength()
+     */
+    @Nonnull
+    protected final byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the length of the encoded document
+     */
+    protected final int getLength() {
+        return length;
+    }
+
+    /**
+     * @return a little endian buffer on the encoded document, which must only
+     *         be read with absolute indexes
+     */
+    @Nonnull
+    protected final ByteBuf getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean hasKey(@Nonnull String key) {
+        return RawBSONUtil.findElement(buffer, 0, key) >= 0;
+    }
+
+    @Nullable
+    @Override
+    public BSONType getType(@Nonnull String key) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        return index < 0 ? null : BSONType.getByCode(buffer.getByte(index));
+    }
+
+    @Override
+    public int getInt(@Nonnull String key, int defaultValue) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        int valueIndex = getValueIndex(index);
+        switch (type) {
+            case INT32:
+                return buffer.getInt(valueIndex);
+            case INT64:
+                return (int) buffer.getLong(valueIndex);
+            case DOUBLE:
+                return (int) buffer.getDouble(valueIndex);
+            case NULL:
+            case UNDEFINED:
+                return defaultValue;
+            default:
+                throw notANumber(key, type);
+        }
+    }
+
+    @Override
+    public long getLong(@Nonnull String key, long defaultValue) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        int valueIndex = getValueIndex(index);
+        switch (type) {
+            case INT32:
+                return buffer.getInt(valueIndex);
+            case INT64:
+                return buffer.getLong(valueIndex);
+            case DOUBLE:
+                return (long) buffer.getDouble(valueIndex);
+            case NULL:
+            case UNDEFINED:
+                return defaultValue;
+            default:
+                throw notANumber(key, type);
+        }
+    }
+
+    @Override
+    public double getDouble(@Nonnull String key, double defaultValue) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        int valueIndex = getValueIndex(index);
+        switch (type) {
+            case INT32:
+                return buffer.getInt(valueIndex);
+            case INT64:
+                return buffer.getLong(valueIndex);
+            case DOUBLE:
+                return buffer.getDouble(valueIndex);
+            case NULL:
+            case UNDEFINED:
+                return defaultValue;
+            default:
+                throw notANumber(key, type);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        int valueIndex = getValueIndex(index);
+        switch (type) {
+            case BOOLEAN:
+                return buffer.getByte(valueIndex) != 0;
+            case INT32:
+                return buffer.getInt(valueIndex) != 0;
+            case INT64:
+                return buffer.getLong(valueIndex) != 0;
+            case DOUBLE:
+                return buffer.getDouble(valueIndex) != 0;
+            case NULL:
+            case UNDEFINED:
+                return defaultValue;
+            default:
+                return true;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getString(@Nonnull String key, @Nullable String defaultValue) {
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        int valueIndex = getValueIndex(index);
+        switch (type) {
+            case STRING:
+            case SYMBOL:
+                return buffer.toString(valueIndex + 4, buffer.getInt(valueIndex) - 1, UTF8);
+            case NULL:
+            case UNDEFINED:
+                return defaultValue;
+            default:
+                throw new IllegalArgumentException("Field " + key + " is not a string but a " + type);
+        }
+    }
+
+    @Override
+    public void writeToByteBuf(@Nonnull ByteBuf buffer) {
+        buffer.writeBytes(bytes, 0, length);
+    }
+
+    private int getValueIndex(int elementIndex) {
+        return RawBSONUtil.getCStringEnd(buffer, elementIndex + 1) + 1;
+    }
+
+    private static IllegalArgumentException notANumber(String key, BSONType type) {
+        return new IllegalArgumentException("Field " + key + " is not a number but a " + type);
+    }
+}
@@ -25,11 +25,18 @@ package com.eightkdata.nettybson.api;
 import io.netty.buffer.ByteBuf;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import java.util.Set;
 
 /**
- *
+ * A BSON document.
+ * <p>
+ * Besides the generic {@link #getValue(String)}, fields can be read with
+ * typed accessors that return a default value when the field is missing or
+ * null, so implementations backed by encoded BSON can read them without
+ * boxing. See {@link AbstractBSONDocument} and
+ * {@link AbstractRawBSONDocument}.
  */
 @Immutable
 public interface BSONDocument {
@@ -37,6 +44,43 @@ public interface BSONDocument {
     @Nonnull public Set<String> getKeys();
     public Object getValue(@Nonnull String key);
 
+    /**
+     * @return the type of the field, or null if the document does not have it
+     */
+    @Nullable public BSONType getType(@Nonnull String key);
+
+    /**
+     * @return the value of a numeric field, narrowed as a Java cast would do,
+     *         or the default value if the field is missing or null
+     * @throws IllegalArgumentException If the field is not a number
+     */
+    public int getInt(@Nonnull String key, int defaultValue);
+
+    /**
+     * @see #getInt(String, int)
+     */
+    public long getLong(@Nonnull String key, long defaultValue);
+
+    /**
+     * @see #getInt(String, int)
+     */
+    public double getDouble(@Nonnull String key, double defaultValue);
+
+    /**
+     * Reads a flag as MongoDB does: numbers are true if they are not zero and
+     * the rest of the values are true.
+     * @return the value of the flag, or the default value if the field is
+     *         missing or null
+     */
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue);
+
+    /**
+     * @return the value of a string field, or the default value if the field
+     *         is missing or null
+     * @throws IllegalArgumentException If the field is not a string
+     */
+    @Nullable public String getString(@Nonnull String key, @Nullable String defaultValue);
+
     /**
      * Writes the BSON document to the given ByteBuf.
      * This method advances the internal write position of the ByteBuf, leaving it just after writing the document
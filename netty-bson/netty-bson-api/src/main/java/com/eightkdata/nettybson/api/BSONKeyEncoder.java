@@ -0,0 +1,327 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteOrder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Encodes BSON values as keys whose unsigned lexicographic order is the
+ * order of {@link RawBSONComparator}, so sorted structures compare keys with
+ * a plain byte comparison (see {@link #compare(byte[], byte[])}) instead of
+ * decoding them.
+ * <p>
+ * Values that compare as equal have the same key, so <code>1</code>,
+ * <code>1L</code> and <code>1.0</code> are encoded the same way and keys can
+ * be hashed. No key is a prefix of another, so compound keys are the
+ * concatenation of the keys of their components. Descending components are
+ * encoded with all their bits inverted.
+ * <p>
+ * Each key starts with the canonical rank of its type, followed by:
+ * <ul>
+ * <li>numbers: NaN, doubles below the long range, the floor of the value as a
+ * long and its fraction, or doubles above the long range</li>
+ * <li>strings, symbols, regular expressions and code: their bytes, with zeros
+ * escaped, followed by two zeros</li>
+ * <li>documents and arrays: the rank, name and value of each element followed
+ * by a zero</li>
+ * <li>binaries: the length, the subtype and the data</li>
+ * <li>object ids, booleans, dates and timestamps: their bytes in big endian
+ * order</li>
+ * </ul>
+ * Decimal128 values are not supported.
+ */
+public final class BSONKeyEncoder {
+    private static final byte END = 0x00;
+    private static final byte ESCAPE = (byte) 0xFF;
+
+    private static final byte NAN = 0x00;
+    private static final byte BELOW_LONG_RANGE = 0x01;
+    private static final byte IN_LONG_RANGE = 0x02;
+    private static final byte ABOVE_LONG_RANGE = 0x03;
+    private static final byte INTEGRAL = 0x00;
+    private static final byte FRACTIONAL = 0x01;
+
+    private BSONKeyEncoder() {
+    }
+
+    /**
+     * @return the key of the value
+     * @throws IllegalArgumentException If the value is a Decimal128
+     */
+    @Nonnull
+    public static byte[] encode(
+            @Nonnull ByteBuf buffer,
+            @Nonnull BSONType type,
+            @Nonnegative int valueIndex,
+            boolean descending) {
+        ByteBuf out = Unpooled.buffer(16);
+        write(out, buffer, type, valueIndex, descending);
+        return toArray(out);
+    }
+
+    /**
+     * @param index      the index of the first byte of a document, like the
+     *                   <code>{"": 1, "": "a"}</code> keys of MongoDB indexes
+     * @param descending the direction of each element. Elements without a
+     *                   direction are ascending
+     * @return the compound key of the values of the elements of the document,
+     *         in order
+     */
+    @Nonnull
+    public static byte[] encodeElements(
+            @Nonnull ByteBuf document,
+            @Nonnegative int index,
+            @Nonnull boolean... descending) {
+        ByteBuf out = Unpooled.buffer(32);
+        int end = index + RawBSONUtil.getDocumentLength(document, index) - 1;
+        int position = index + 4;
+        int element = 0;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(document.getByte(position));
+            int valueIndex = RawBSONUtil.getCStringEnd(document, position + 1) + 1;
+            write(out, document, type, valueIndex, element < descending.length && descending[element]);
+            position = valueIndex + RawBSONUtil.getValueLength(document, type, valueIndex);
+            element++;
+        }
+        return toArray(out);
+    }
+
+    /**
+     * Appends the key of the value to the given buffer, whatever its order
+     *
+     * @throws IllegalArgumentException If the value is a Decimal128
+     */
+    public static void write(
+            @Nonnull ByteBuf out,
+            @Nonnull ByteBuf buffer,
+            @Nonnull BSONType type,
+            @Nonnegative int valueIndex,
+            boolean descending) {
+        ByteBuf bigEndian = out.order(ByteOrder.BIG_ENDIAN);
+        int start = bigEndian.writerIndex();
+        writeRank(bigEndian, type);
+        writeValue(bigEndian, buffer, type, valueIndex);
+        if (descending) {
+            invert(bigEndian, start);
+        }
+    }
+
+    /**
+     * Appends the key of null, which is also the key of missing values
+     */
+    public static void writeNull(@Nonnull ByteBuf out, boolean descending) {
+        int start = out.writerIndex();
+        writeRank(out, BSONType.NULL);
+        if (descending) {
+            invert(out, start);
+        }
+    }
+
+    /**
+     * Compares two keys as unsigned bytes
+     */
+    public static int compare(@Nonnull byte[] key1, @Nonnull byte[] key2) {
+        int length = Math.min(key1.length, key2.length);
+        for (int i = 0; i < length; i++) {
+            int byte1 = key1[i] & 0xFF;
+            int byte2 = key2[i] & 0xFF;
+            if (byte1 != byte2) {
+                return byte1 < byte2 ? -1 : 1;
+            }
+        }
+        return key1.length < key2.length ? -1 : (key1.length > key2.length ? 1 : 0);
+    }
+
+    /**
+     * Compares the readable bytes of two keys as unsigned bytes
+     */
+    public static int compare(@Nonnull ByteBuf key1, @Nonnull ByteBuf key2) {
+        int index1 = key1.readerIndex();
+        int index2 = key2.readerIndex();
+        int length1 = key1.readableBytes();
+        int length2 = key2.readableBytes();
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int byte1 = key1.getUnsignedByte(index1 + i);
+            int byte2 = key2.getUnsignedByte(index2 + i);
+            if (byte1 != byte2) {
+                return byte1 < byte2 ? -1 : 1;
+            }
+        }
+        return length1 < length2 ? -1 : (length1 > length2 ? 1 : 0);
+    }
+
+    private static void writeRank(ByteBuf out, BSONType type) {
+        // Ranks go from -1 to 127 and the zero is kept for the ends
+        out.writeByte(RawBSONComparator.getCanonicalRank(type) + 2);
+    }
+
+    private static void writeValue(ByteBuf out, ByteBuf buffer, BSONType type, int valueIndex) {
+        switch (type) {
+            case MIN_KEY:
+            case MAX_KEY:
+            case NULL:
+            case UNDEFINED:
+                return;
+            case DOUBLE:
+                writeDouble(out, Double.longBitsToDouble(RawBSONUtil.getInt64(buffer, valueIndex)));
+                return;
+            case INT32:
+                writeIntegral(out, RawBSONUtil.getInt32(buffer, valueIndex));
+                return;
+            case INT64:
+                writeIntegral(out, RawBSONUtil.getInt64(buffer, valueIndex));
+                return;
+            case DECIMAL128:
+                throw new IllegalArgumentException("Decimal128 values cannot be encoded as keys");
+            case STRING:
+            case SYMBOL:
+                // The bytes between the length and the trailing zero
+                writeEscaped(out, buffer, valueIndex + 4, RawBSONUtil.getInt32(buffer, valueIndex) - 1);
+                return;
+            case DOCUMENT:
+            case ARRAY:
+                writeDocument(out, buffer, valueIndex);
+                return;
+            case BINARY:
+                int length = RawBSONUtil.getInt32(buffer, valueIndex);
+                out.writeInt(length);
+                out.writeBytes(buffer, valueIndex + 4, length + 1);
+                return;
+            case OBJECT_ID:
+            case BOOLEAN:
+                out.writeBytes(buffer, valueIndex, type.getFixedValueLength());
+                return;
+            case DATETIME:
+                out.writeLong(RawBSONUtil.getInt64(buffer, valueIndex) ^ Long.MIN_VALUE);
+                return;
+            case TIMESTAMP:
+                out.writeLong(RawBSONUtil.getInt64(buffer, valueIndex));
+                return;
+            default:
+                writeEscaped(out, buffer, valueIndex, RawBSONUtil.getValueLength(buffer, type, valueIndex));
+        }
+    }
+
+    private static void writeDocument(ByteBuf out, ByteBuf buffer, int documentIndex) {
+        int end = documentIndex + RawBSONUtil.getDocumentLength(buffer, documentIndex) - 1;
+        int position = documentIndex + 4;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int nameEnd = RawBSONUtil.getCStringEnd(buffer, position + 1);
+            int valueIndex = nameEnd + 1;
+            writeRank(out, type);
+            writeEscaped(out, buffer, position + 1, nameEnd - position - 1);
+            writeValue(out, buffer, type, valueIndex);
+            position = valueIndex + RawBSONUtil.getValueLength(buffer, type, valueIndex);
+        }
+        out.writeByte(END);
+    }
+
+    private static void writeIntegral(ByteBuf out, long value) {
+        out.writeByte(IN_LONG_RANGE);
+        out.writeLong(value ^ Long.MIN_VALUE);
+        out.writeByte(INTEGRAL);
+    }
+
+    /**
+     * Doubles in the long range are split in their floor and their fraction,
+     * so they are ordered exactly with longs. Both are exact, as the floor is
+     * in the long range and the fraction has the precision of the double.
+     */
+    private static void writeDouble(ByteBuf out, double value) {
+        if (Double.isNaN(value)) {
+            out.writeByte(NAN);
+        }
+        else if (value < -0x1p63) {
+            out.writeByte(BELOW_LONG_RANGE);
+            out.writeLong(orderedBits(value));
+        }
+        else if (value >= 0x1p63) {
+            out.writeByte(ABOVE_LONG_RANGE);
+            out.writeLong(orderedBits(value));
+        }
+        else {
+            double floor = Math.floor(value);
+            double fraction = value - floor;
+            out.writeByte(IN_LONG_RANGE);
+            out.writeLong((long) floor ^ Long.MIN_VALUE);
+            if (fraction > 0) {
+                out.writeByte(FRACTIONAL);
+                // Positive doubles are ordered as their bits
+                out.writeLong(Double.doubleToRawLongBits(fraction));
+            }
+            else {
+                out.writeByte(INTEGRAL);
+            }
+        }
+    }
+
+    /**
+     * @return the bits of the double, changed so they are ordered as
+     *         unsigned longs
+     */
+    private static long orderedBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Zeros are written as a zero followed by 0xFF, so the two zeros that end
+     * the bytes are lower than any other continuation
+     */
+    private static void writeEscaped(ByteBuf out, ByteBuf buffer, int index, int length) {
+        int end = index + length;
+        int from = index;
+        while (from < end) {
+            int zero = buffer.indexOf(from, end, END);
+            if (zero < 0) {
+                out.writeBytes(buffer, from, end - from);
+                break;
+            }
+            out.writeBytes(buffer, from, zero - from);
+            out.writeByte(END);
+            out.writeByte(ESCAPE);
+            from = zero + 1;
+        }
+        out.writeByte(END);
+        out.writeByte(END);
+    }
+
+    private static void invert(ByteBuf out, int start) {
+        for (int i = start; i < out.writerIndex(); i++) {
+            out.setByte(i, ~out.getByte(i));
+        }
+    }
+
+    private static byte[] toArray(ByteBuf out) {
+        byte[] key = new byte[out.readableBytes()];
+        out.readBytes(key);
+        return key;
+    }
+}
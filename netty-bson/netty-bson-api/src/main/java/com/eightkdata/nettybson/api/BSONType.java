@@ -0,0 +1,101 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+package com.eightkdata.nettybson.api;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The types of the BSON elements, with the code written before each element
+ * and the length of its value when it is fixed.
+ */
+public enum BSONType {
+    DOUBLE(0x01, 8),
+    STRING(0x02, -1),
+    DOCUMENT(0x03, -1),
+    ARRAY(0x04, -1),
+    BINARY(0x05, -1),
+    UNDEFINED(0x06, 0),
+    OBJECT_ID(0x07, 12),
+    BOOLEAN(0x08, 1),
+    DATETIME(0x09, 8),
+    NULL(0x0A, 0),
+    REGEX(0x0B, -1),
+    DB_POINTER(0x0C, -1),
+    JAVASCRIPT(0x0D, -1),
+    SYMBOL(0x0E, -1),
+    JAVASCRIPT_WITH_SCOPE(0x0F, -1),
+    INT32(0x10, 4),
+    TIMESTAMP(0x11, 8),
+    INT64(0x12, 8),
+    DECIMAL128(0x13, 16),
+    MIN_KEY(0xFF, 0),
+    MAX_KEY(0x7F, 0);
+
+    private static final BSONType[] BY_CODE = new BSONType[256];
+    static {
+        for (BSONType type : values()) {
+            BY_CODE[type.code & 0xFF] = type;
+        }
+    }
+
+    private final byte code;
+    private final int fixedValueLength;
+
+    private BSONType(int code, int fixedValueLength) {
+        this.code = (byte) code;
+        this.fixedValueLength = fixedValueLength;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * @return the length of the values of this type, or -1 if it depends on
+     *         each value
+     */
+    public int getFixedValueLength() {
+        return fixedValueLength;
+    }
+
+    /**
+     * @return the type with the given code, or null if there is none
+     */
+    @Nullable
+    public static BSONType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    /**
+     * @throws IllegalArgumentException If there is no type with the given
+     *                                  code
+     */
+    @Nonnull
+    public static BSONType getByCode(byte code) {
+        BSONType type = BY_CODE[code & 0xFF];
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown BSON type 0x" + Integer.toHexString(code & 0xFF));
+        }
+        return type;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes a BSON document element by element on a heap buffer, instead of
+ * filling a map that is encoded later:
+ * <pre>
+ * BSONDocument reply = new BSONWriter()
+ *         .append("n", count)
+ *         .startDocument("indexSizes")
+ *             .append("_id_", idIndexSize)
+ *         .end()
+ *         .append("ok", 1.0)
+ *         .build();
+ * </pre>
+ * The elements of arrays are named by their positions, so they are appended
+ * with null names.
+ * <p>
+ * {@link #build()} hands the array of the buffer over to the document without
+ * copying it, so it must be called once the document is written. The elements
+ * are checked before they are written, so a writer stays usable after an
+ * append throws.
+ */
+@NotThreadSafe
+public final class BSONWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ByteBuf buffer;
+    /**
+     * The index of the length of each open document or array
+     */
+    private int[] starts = new int[8];
+    /**
+     * The position of the next element of each open array, or -1 for the
+     * open documents
+     */
+    private int[] positions = new int[8];
+    private int depth;
+
+    public BSONWriter() {
+        this.buffer = Unpooled.buffer(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        open(-1);
+    }
+
+    @Nonnull
+    public BSONWriter append(@Nullable String name, int value) {
+        writeHeader(BSONType.INT32, name);
+        buffer.writeInt(value);
+        return this;
+    }
+
+    @Nonnull
+    public BSONWriter append(@Nullable String name, long value) {
+        writeHeader(BSONType.INT64, name);
+        buffer.writeLong(value);
+        return this;
+    }
+
+    @Nonnull
+    public BSONWriter append(@Nullable String name, double value) {
+        writeHeader(BSONType.DOUBLE, name);
+        buffer.writeDouble(value);
+        return this;
+    }
+
+    @Nonnull
+    public BSONWriter append(@Nullable String name, boolean value) {
+        writeHeader(BSONType.BOOLEAN, name);
+        buffer.writeByte(value ? 1 : 0);
+        return this;
+    }
+
+    /**
+     * @param value the string, or null to append a null
+     */
+    @Nonnull
+    public BSONWriter append(@Nullable String name, @Nullable String value) {
+        if (value == null) {
+            return appendNull(name);
+        }
+        writeHeader(BSONType.STRING, name);
+        int start = buffer.writerIndex();
+        buffer.writeInt(0);
+        writeUtf8(value);
+        buffer.writeByte(0);
+        buffer.setInt(start, buffer.writerIndex() - start - 4);
+        return this;
+    }
+
+    /**
+     * Appends an embedded document, copied as the given document encodes
+     * itself
+     */
+    @Nonnull
+    public BSONWriter append(@Nullable String name, @Nonnull BSONDocument document) {
+        writeHeader(BSONType.DOCUMENT, name);
+        document.writeToByteBuf(buffer);
+        return this;
+    }
+
+    @Nonnull
+    public BSONWriter appendNull(@Nullable String name) {
+        writeHeader(BSONType.NULL, name);
+        return this;
+    }
+
+    /**
+     * Starts an embedded document, whose elements are the ones appended
+     * until the matching {@link #end()}
+     */
+    @Nonnull
+    public BSONWriter startDocument(@Nullable String name) {
+        writeHeader(BSONType.DOCUMENT, name);
+        open(-1);
+        return this;
+    }
+
+    /**
+     * Starts an array, whose elements are the ones appended until the
+     * matching {@link #end()}
+     */
+    @Nonnull
+    public BSONWriter startArray(@Nullable String name) {
+        writeHeader(BSONType.ARRAY, name);
+        open(0);
+        return this;
+    }
+
+    /**
+     * Ends the last started document or array
+     *
+     * @throws IllegalStateException If there is no started document or array
+     */
+    @Nonnull
+    public BSONWriter end() {
+        if (depth < 2) {
+            throw new IllegalStateException("There is no embedded document or array to end");
+        }
+        close();
+        return this;
+    }
+
+    /**
+     * Ends the document, which keeps the buffer it was written on
+     *
+     * @throws IllegalStateException If there is a document or array to end
+     *                               or the document is already built
+     */
+    @Nonnull
+    public RawBSONDocument build() {
+        checkNotBuilt();
+        if (depth > 1) {
+            throw new IllegalStateException(depth - 1 + " embedded documents or arrays are not ended");
+        }
+        close();
+        return new RawBSONDocument(buffer.array(), buffer.writerIndex());
+    }
+
+    private void open(int position) {
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+            positions = Arrays.copyOf(positions, depth * 2);
+        }
+        starts[depth] = buffer.writerIndex();
+        positions[depth] = position;
+        depth++;
+        buffer.writeInt(0);
+    }
+
+    private void close() {
+        depth--;
+        buffer.writeByte(0);
+        buffer.setInt(starts[depth], buffer.writerIndex() - starts[depth]);
+    }
+
+    private void checkNotBuilt() {
+        if (depth == 0) {
+            throw new IllegalStateException("The document is already built");
+        }
+    }
+
+    private void writeHeader(BSONType type, @Nullable String name) {
+        checkNotBuilt();
+        int position = positions[depth - 1];
+        if (position >= 0) {
+            if (name != null) {
+                throw new IllegalArgumentException("The elements of arrays are named by their positions, not " + name);
+            }
+        }
+        else {
+            if (name == null) {
+                throw new IllegalArgumentException("The elements of documents need a name");
+            }
+            if (name.indexOf(0) >= 0) {
+                throw new IllegalArgumentException("BSON names cannot contain zeros: " + name);
+            }
+        }
+        buffer.writeByte(type.getCode());
+        if (position >= 0) {
+            writePosition(position);
+            positions[depth - 1] = position + 1;
+        }
+        else {
+            writeUtf8(name);
+        }
+        buffer.writeByte(0);
+    }
+
+    private void writePosition(int position) {
+        if (position >= 10) {
+            writePosition(position / 10);
+        }
+        buffer.writeByte('0' + position % 10);
+    }
+
+    /**
+     * ASCII strings are written without encoding them
+     */
+    private void writeUtf8(String string) {
+        int start = buffer.writerIndex();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                buffer.writerIndex(start);
+                buffer.writeBytes(string.getBytes(UTF8));
+                return;
+            }
+            buffer.writeByte(c);
+        }
+    }
+}
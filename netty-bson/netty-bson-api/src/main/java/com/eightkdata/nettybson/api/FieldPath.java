@@ -0,0 +1,211 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+/**
+ * A dotted path, like <code>a.b.c</code>, compiled to visit the values it
+ * reaches on encoded documents. The names of the path are encoded once, so
+ * documents are walked comparing bytes and without decoding them.
+ * <p>
+ * Paths go through arrays as MongoDB does: a name that follows an array is
+ * an element position if it is numeric and it is also looked for on each
+ * document of the array. At the end of the path, the elements of an array
+ * are visited as values. A path that is missing on a document is visited
+ * once, with a null type.
+ */
+@Immutable
+public final class FieldPath {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern DOT = Pattern.compile("\\.");
+
+    private final String path;
+    private final byte[][] names;
+
+    private FieldPath(String path, byte[][] names) {
+        this.path = path;
+        this.names = names;
+    }
+
+    @Nonnull
+    public static FieldPath of(@Nonnull String path) {
+        String[] split = DOT.split(path, -1);
+        byte[][] names = new byte[split.length][];
+        for (int i = 0; i < split.length; i++) {
+            names[i] = split[i].getBytes(UTF8);
+        }
+        return new FieldPath(path, names);
+    }
+
+    @Nonnull
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the number of names of the path
+     */
+    public int getLength() {
+        return names.length;
+    }
+
+    /**
+     * Visits the values the path reaches on the document, in the order they
+     * are encoded, until the visitor asks to stop. A missing value is visited
+     * where the path does not go on: on the documents without the next name,
+     * on the values that are neither documents nor arrays and on the arrays
+     * whose elements do not reach the rest of the path.
+     *
+     * @param documentIndex the index of the first byte of the document
+     * @param visitArrays   if the arrays at the end of the path are visited
+     *                      themselves before their elements, as queries
+     *                      need, or only their elements, as sorts need
+     * @return true iff the visitor stopped the traversal
+     */
+    public boolean visit(
+            @Nonnull ByteBuf buffer,
+            @Nonnegative int documentIndex,
+            boolean visitArrays,
+            @Nonnull Visitor visitor) {
+        return visitDocument(buffer, documentIndex, 0, visitArrays, visitor);
+    }
+
+    private boolean visitDocument(ByteBuf buffer, int documentIndex, int depth, boolean visitArrays, Visitor visitor) {
+        byte[] name = names[depth];
+        int end = documentIndex + RawBSONUtil.getDocumentLength(buffer, documentIndex) - 1;
+        int position = documentIndex + 4;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int nameEnd = RawBSONUtil.getCStringEnd(buffer, position + 1);
+            int valueIndex = nameEnd + 1;
+            if (RawBSONUtil.equals(buffer, position + 1, nameEnd - position - 1, name)) {
+                return visitValue(buffer, type, valueIndex, depth + 1, visitArrays, visitor);
+            }
+            position = valueIndex + RawBSONUtil.getValueLength(buffer, type, valueIndex);
+        }
+        return visitor.visit(buffer, null, 0);
+    }
+
+    private boolean visitValue(
+            ByteBuf buffer,
+            BSONType type,
+            int valueIndex,
+            int depth,
+            boolean visitArrays,
+            Visitor visitor) {
+        if (depth == names.length) {
+            if (type != BSONType.ARRAY) {
+                return visitor.visit(buffer, type, valueIndex);
+            }
+            if (visitArrays && visitor.visit(buffer, type, valueIndex)) {
+                return true;
+            }
+            return visitElements(buffer, valueIndex, visitor);
+        }
+        if (type == BSONType.DOCUMENT) {
+            return visitDocument(buffer, valueIndex, depth, visitArrays, visitor);
+        }
+        if (type == BSONType.ARRAY) {
+            return visitArray(buffer, valueIndex, depth, visitArrays, visitor);
+        }
+        return visitor.visit(buffer, null, 0);
+    }
+
+    private static boolean visitElements(ByteBuf buffer, int arrayIndex, Visitor visitor) {
+        int end = arrayIndex + RawBSONUtil.getDocumentLength(buffer, arrayIndex) - 1;
+        int position = arrayIndex + 4;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int valueIndex = RawBSONUtil.getCStringEnd(buffer, position + 1) + 1;
+            if (visitor.visit(buffer, type, valueIndex)) {
+                return true;
+            }
+            position = valueIndex + RawBSONUtil.getValueLength(buffer, type, valueIndex);
+        }
+        return false;
+    }
+
+    private boolean visitArray(ByteBuf buffer, int arrayIndex, int depth, boolean visitArrays, Visitor visitor) {
+        byte[] name = names[depth];
+        int end = arrayIndex + RawBSONUtil.getDocumentLength(buffer, arrayIndex) - 1;
+        int position = arrayIndex + 4;
+        boolean reached = false;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int nameEnd = RawBSONUtil.getCStringEnd(buffer, position + 1);
+            int valueIndex = nameEnd + 1;
+            if (RawBSONUtil.equals(buffer, position + 1, nameEnd - position - 1, name)) {
+                reached = true;
+                if (visitValue(buffer, type, valueIndex, depth + 1, visitArrays, visitor)) {
+                    return true;
+                }
+            }
+            if (type == BSONType.DOCUMENT) {
+                reached = true;
+                if (visitDocument(buffer, valueIndex, depth, visitArrays, visitor)) {
+                    return true;
+                }
+            }
+            position = valueIndex + RawBSONUtil.getValueLength(buffer, type, valueIndex);
+        }
+        return !reached && visitor.visit(buffer, null, 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FieldPath && path.equals(((FieldPath) obj).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * Receives the values reached by a {@link FieldPath}
+     */
+    public interface Visitor {
+
+        /**
+         * @param type       the type of the value, or null if the path is
+         *                   missing
+         * @param valueIndex the index of the first byte of the value
+         * @return true to stop the traversal
+         */
+        boolean visit(@Nonnull ByteBuf buffer, @Nullable BSONType type, int valueIndex);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Compares encoded BSON values as MongoDB orders them: first by the canonical
+ * rank of their types and then by value, without decoding them.
+ * <p>
+ * Numbers of different types are compared by their exact value, so
+ * <code>1</code>, <code>1L</code> and <code>1.0</code> are equal, and NaN is
+ * lower than any other number. Strings are compared by their UTF-8 bytes,
+ * that is by code point. Embedded documents and arrays are compared element
+ * by element: first the rank of their types, then their names and then their
+ * values. Binaries are compared by length, subtype and bytes.
+ * <p>
+ * Decimal128 values are ranked as numbers, but they can only be compared
+ * with other Decimal128 values.
+ */
+public final class RawBSONComparator {
+
+    private RawBSONComparator() {
+    }
+
+    /**
+     * @return the rank of the type when values of different types are
+     *         compared. Types with the same rank are compared by value
+     */
+    public static int getCanonicalRank(@Nonnull BSONType type) {
+        switch (type) {
+            case MIN_KEY: return -1;
+            case UNDEFINED:
+            case NULL: return 1;
+            case DOUBLE:
+            case INT32:
+            case INT64:
+            case DECIMAL128: return 2;
+            case STRING:
+            case SYMBOL: return 3;
+            case DOCUMENT: return 4;
+            case ARRAY: return 5;
+            case BINARY: return 6;
+            case OBJECT_ID: return 7;
+            case BOOLEAN: return 8;
+            case DATETIME: return 9;
+            case TIMESTAMP: return 10;
+            case REGEX: return 11;
+            case DB_POINTER: return 12;
+            case JAVASCRIPT: return 13;
+            case JAVASCRIPT_WITH_SCOPE: return 14;
+            case MAX_KEY: return 127;
+            default: throw new AssertionError("Unexpected type " + type);
+        }
+    }
+
+    public static boolean isNumber(@Nonnull BSONType type) {
+        return type == BSONType.DOUBLE || type == BSONType.INT32 || type == BSONType.INT64;
+    }
+
+    /**
+     * @param valueIndex1 the index of the first byte of the first value
+     * @param valueIndex2 the index of the first byte of the second value
+     * @return a negative number, zero or a positive number as the first value
+     *         is lower than, equal to or greater than the second one
+     */
+    public static int compare(
+            @Nonnull ByteBuf buffer1, @Nonnull BSONType type1, @Nonnegative int valueIndex1,
+            @Nonnull ByteBuf buffer2, @Nonnull BSONType type2, @Nonnegative int valueIndex2) {
+        int rank1 = getCanonicalRank(type1);
+        int rank2 = getCanonicalRank(type2);
+        if (rank1 != rank2) {
+            return rank1 < rank2 ? -1 : 1;
+        }
+        switch (type1) {
+            case DECIMAL128:
+                if (type2 != BSONType.DECIMAL128) {
+                    throw new IllegalArgumentException("Decimal128 values cannot be compared with " + type2);
+                }
+                return compareUnsigned(buffer1, valueIndex1, 16, buffer2, valueIndex2, 16);
+            case DOUBLE:
+            case INT32:
+            case INT64:
+                if (type2 == BSONType.DECIMAL128) {
+                    throw new IllegalArgumentException("Decimal128 values cannot be compared with " + type1);
+                }
+                return compareNumbers(buffer1, type1, valueIndex1, buffer2, type2, valueIndex2);
+            case STRING:
+            case SYMBOL:
+                // The bytes between the length and the trailing zero
+                return compareUnsigned(
+                        buffer1, valueIndex1 + 4, RawBSONUtil.getInt32(buffer1, valueIndex1) - 1,
+                        buffer2, valueIndex2 + 4, RawBSONUtil.getInt32(buffer2, valueIndex2) - 1
+                );
+            case DOCUMENT:
+            case ARRAY:
+                return compareDocuments(buffer1, valueIndex1, buffer2, valueIndex2);
+            case BINARY:
+                int length1 = RawBSONUtil.getInt32(buffer1, valueIndex1);
+                int length2 = RawBSONUtil.getInt32(buffer2, valueIndex2);
+                if (length1 != length2) {
+                    return length1 < length2 ? -1 : 1;
+                }
+                // The subtype and then the data
+                return compareUnsigned(buffer1, valueIndex1 + 4, length1 + 1, buffer2, valueIndex2 + 4, length2 + 1);
+            case DATETIME:
+                return compareLongs(
+                        RawBSONUtil.getInt64(buffer1, valueIndex1),
+                        RawBSONUtil.getInt64(buffer2, valueIndex2)
+                );
+            case TIMESTAMP:
+                return compareLongs(
+                        RawBSONUtil.getInt64(buffer1, valueIndex1) ^ Long.MIN_VALUE,
+                        RawBSONUtil.getInt64(buffer2, valueIndex2) ^ Long.MIN_VALUE
+                );
+            default:
+                return compareUnsigned(
+                        buffer1, valueIndex1, RawBSONUtil.getValueLength(buffer1, type1, valueIndex1),
+                        buffer2, valueIndex2, RawBSONUtil.getValueLength(buffer2, type2, valueIndex2)
+                );
+        }
+    }
+
+    /**
+     * @param index1 the index of the first byte of the first document
+     * @param index2 the index of the first byte of the second document
+     */
+    public static int compareDocuments(
+            @Nonnull ByteBuf buffer1, @Nonnegative int index1,
+            @Nonnull ByteBuf buffer2, @Nonnegative int index2) {
+        int end1 = index1 + RawBSONUtil.getDocumentLength(buffer1, index1) - 1;
+        int end2 = index2 + RawBSONUtil.getDocumentLength(buffer2, index2) - 1;
+        int position1 = index1 + 4;
+        int position2 = index2 + 4;
+        while (position1 < end1 && position2 < end2) {
+            BSONType elementType1 = BSONType.getByCode(buffer1.getByte(position1));
+            BSONType elementType2 = BSONType.getByCode(buffer2.getByte(position2));
+            int rank1 = getCanonicalRank(elementType1);
+            int rank2 = getCanonicalRank(elementType2);
+            if (rank1 != rank2) {
+                return rank1 < rank2 ? -1 : 1;
+            }
+            int nameEnd1 = RawBSONUtil.getCStringEnd(buffer1, position1 + 1);
+            int nameEnd2 = RawBSONUtil.getCStringEnd(buffer2, position2 + 1);
+            int result = compareUnsigned(
+                    buffer1, position1 + 1, nameEnd1 - position1 - 1,
+                    buffer2, position2 + 1, nameEnd2 - position2 - 1
+            );
+            if (result != 0) {
+                return result;
+            }
+            result = compare(buffer1, elementType1, nameEnd1 + 1, buffer2, elementType2, nameEnd2 + 1);
+            if (result != 0) {
+                return result;
+            }
+            position1 = nameEnd1 + 1 + RawBSONUtil.getValueLength(buffer1, elementType1, nameEnd1 + 1);
+            position2 = nameEnd2 + 1 + RawBSONUtil.getValueLength(buffer2, elementType2, nameEnd2 + 1);
+        }
+        boolean finished1 = position1 >= end1;
+        boolean finished2 = position2 >= end2;
+        return finished1 == finished2 ? 0 : (finished1 ? -1 : 1);
+    }
+
+    private static int compareNumbers(
+            ByteBuf buffer1, BSONType type1, int valueIndex1,
+            ByteBuf buffer2, BSONType type2, int valueIndex2) {
+        boolean isDouble1 = type1 == BSONType.DOUBLE;
+        boolean isDouble2 = type2 == BSONType.DOUBLE;
+        if (!isDouble1 && !isDouble2) {
+            return compareLongs(getIntegral(buffer1, type1, valueIndex1), getIntegral(buffer2, type2, valueIndex2));
+        }
+        if (isDouble1 && isDouble2) {
+            return compareDoubles(getDouble(buffer1, valueIndex1), getDouble(buffer2, valueIndex2));
+        }
+        if (isDouble1) {
+            return compareDoubleToLong(getDouble(buffer1, valueIndex1), getIntegral(buffer2, type2, valueIndex2));
+        }
+        return -compareDoubleToLong(getDouble(buffer2, valueIndex2), getIntegral(buffer1, type1, valueIndex1));
+    }
+
+    private static long getIntegral(ByteBuf buffer, BSONType type, int valueIndex) {
+        if (type == BSONType.INT32) {
+            return RawBSONUtil.getInt32(buffer, valueIndex);
+        }
+        return RawBSONUtil.getInt64(buffer, valueIndex);
+    }
+
+    private static double getDouble(ByteBuf buffer, int valueIndex) {
+        return Double.longBitsToDouble(RawBSONUtil.getInt64(buffer, valueIndex));
+    }
+
+    /**
+     * NaN is lower than any other number
+     */
+    public static int compareDoubles(double double1, double double2) {
+        if (Double.isNaN(double1)) {
+            return Double.isNaN(double2) ? 0 : -1;
+        }
+        if (Double.isNaN(double2)) {
+            return 1;
+        }
+        return double1 < double2 ? -1 : (double1 > double2 ? 1 : 0);
+    }
+
+    /**
+     * Compares the exact values, so large longs are not rounded
+     */
+    public static int compareDoubleToLong(double doubleValue, long longValue) {
+        if (Double.isNaN(doubleValue) || doubleValue < -0x1p63) {
+            return -1;
+        }
+        if (doubleValue >= 0x1p63) {
+            return 1;
+        }
+        long truncated = (long) doubleValue;
+        if (truncated != longValue) {
+            return truncated < longValue ? -1 : 1;
+        }
+        double fraction = doubleValue - truncated;
+        return fraction > 0 ? 1 : (fraction < 0 ? -1 : 0);
+    }
+
+    private static int compareLongs(long long1, long long2) {
+        return long1 < long2 ? -1 : (long1 > long2 ? 1 : 0);
+    }
+
+    private static int compareUnsigned(
+            ByteBuf buffer1, int index1, int length1,
+            ByteBuf buffer2, int index2, int length2) {
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int byte1 = buffer1.getUnsignedByte(index1 + i);
+            int byte2 = buffer2.getUnsignedByte(index2 + i);
+            if (byte1 != byte2) {
+                return byte1 < byte2 ? -1 : 1;
+            }
+        }
+        return length1 < length2 ? -1 : (length1 > length2 ? 1 : 0);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A document kept as its encoded bytes, like the ones built by a
+ * {@link BSONWriter}.
+ * <p>
+ * The values returned by {@link #getValue(String)} are decoded on each call
+ * as JDK types: embedded documents are raw documents too and arrays are
+ * lists. Values without a JDK type, like object ids or timestamps, can only
+ * be copied with the document.
+ */
+@Immutable
+public final class RawBSONDocument extends AbstractRawBSONDocument {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * @param bytes the encoded document, which must not be modified later
+     */
+    public RawBSONDocument(@Nonnull byte[] bytes) {
+        super(bytes);
+    }
+
+    /**
+     * @param bytes  an array that starts with the encoded document, which must
+     *               not be modified later
+     * @param length the length of the encoded document
+     */
+    RawBSONDocument(@Nonnull byte[] bytes, int length) {
+        super(bytes, length);
+    }
+
+    /**
+     * @param index the index of the first byte of the document
+     * @return a document with a copy of the bytes of the given one
+     */
+    @Nonnull
+    public static RawBSONDocument copyOf(@Nonnull ByteBuf buffer, int index) {
+        byte[] bytes = new byte[RawBSONUtil.getDocumentLength(buffer, index)];
+        buffer.getBytes(index, bytes);
+        return new RawBSONDocument(bytes);
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getKeys() {
+        ByteBuf buffer = getBuffer();
+        Set<String> keys = new LinkedHashSet<String>();
+        int end = buffer.capacity() - 1;
+        int position = 4;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int nameEnd = RawBSONUtil.getCStringEnd(buffer, position + 1);
+            keys.add(buffer.toString(position + 1, nameEnd - position - 1, UTF8));
+            position = nameEnd + 1 + RawBSONUtil.getValueLength(buffer, type, nameEnd + 1);
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * @throws UnsupportedOperationException If the value has no JDK type
+     */
+    @Override
+    public Object getValue(@Nonnull String key) {
+        ByteBuf buffer = getBuffer();
+        int index = RawBSONUtil.findElement(buffer, 0, key);
+        if (index < 0) {
+            return null;
+        }
+        BSONType type = BSONType.getByCode(buffer.getByte(index));
+        return decode(buffer, type, RawBSONUtil.getCStringEnd(buffer, index + 1) + 1);
+    }
+
+    @Nullable
+    private static Object decode(ByteBuf buffer, BSONType type, int valueIndex) {
+        switch (type) {
+            case DOUBLE:
+                return buffer.getDouble(valueIndex);
+            case STRING:
+            case SYMBOL:
+                return buffer.toString(valueIndex + 4, buffer.getInt(valueIndex) - 1, UTF8);
+            case DOCUMENT:
+                return copyOf(buffer, valueIndex);
+            case ARRAY:
+                return decodeArray(buffer, valueIndex);
+            case BINARY:
+                byte[] data = new byte[buffer.getInt(valueIndex)];
+                buffer.getBytes(valueIndex + 5, data);
+                return data;
+            case UNDEFINED:
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return buffer.getByte(valueIndex) != 0;
+            case DATETIME:
+                return new Date(buffer.getLong(valueIndex));
+            case REGEX:
+                int patternEnd = RawBSONUtil.getCStringEnd(buffer, valueIndex);
+                int optionsEnd = RawBSONUtil.getCStringEnd(buffer, patternEnd + 1);
+                return Pattern.compile(
+                        buffer.toString(valueIndex, patternEnd - valueIndex, UTF8),
+                        toFlags(buffer, patternEnd + 1, optionsEnd)
+                );
+            case INT32:
+                return buffer.getInt(valueIndex);
+            case INT64:
+                return buffer.getLong(valueIndex);
+            default:
+                throw new UnsupportedOperationException("Values of type " + type + " cannot be decoded");
+        }
+    }
+
+    private static List<Object> decodeArray(ByteBuf buffer, int arrayIndex) {
+        List<Object> result = new ArrayList<Object>();
+        int end = arrayIndex + RawBSONUtil.getDocumentLength(buffer, arrayIndex) - 1;
+        int position = arrayIndex + 4;
+        while (position < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(position));
+            int valueIndex = RawBSONUtil.getCStringEnd(buffer, position + 1) + 1;
+            result.add(decode(buffer, type, valueIndex));
+            position = valueIndex + RawBSONUtil.getValueLength(buffer, type, valueIndex);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static int toFlags(ByteBuf buffer, int optionsIndex, int optionsEnd) {
+        int flags = 0;
+        for (int i = optionsIndex; i < optionsEnd; i++) {
+            switch (buffer.getByte(i)) {
+                case 'i':
+                    flags |= Pattern.CASE_INSENSITIVE;
+                    break;
+                case 'm':
+                    flags |= Pattern.MULTILINE;
+                    break;
+                case 's':
+                    flags |= Pattern.DOTALL;
+                    break;
+                case 'x':
+                    flags |= Pattern.COMMENTS;
+                    break;
+                case 'u':
+                    flags |= Pattern.UNICODE_CASE;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return flags;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (String key : getKeys()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append('"').append(key).append("\": ");
+            try {
+                Object value = getValue(key);
+                sb.append(value instanceof String ? '"' + (String) value + '"' : String.valueOf(value));
+            } catch (UnsupportedOperationException ex) {
+                sb.append(getType(key));
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
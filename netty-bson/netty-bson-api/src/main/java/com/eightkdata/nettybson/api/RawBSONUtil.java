@@ -0,0 +1,181 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Utilities to walk encoded BSON without decoding it.
+ * <p>
+ * All the methods take absolute indexes and do not change the indexes of the
+ * buffers. Numbers are read as little endian whatever the order of the given
+ * buffer.
+ */
+public final class RawBSONUtil {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RawBSONUtil() {
+    }
+
+    /**
+     * @return a little endian buffer on the encoded document, which must only
+     *         be read with absolute indexes, or null if the document is not
+     *         kept encoded
+     */
+    @Nullable
+    public static ByteBuf getEncoded(@Nonnull BSONDocument document) {
+        if (document instanceof AbstractRawBSONDocument) {
+            return ((AbstractRawBSONDocument) document).getBuffer();
+        }
+        return null;
+    }
+
+    public static int getInt32(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(index);
+    }
+
+    public static long getInt64(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN).getLong(index);
+    }
+
+    /**
+     * @param index the index of the first byte of the document
+     * @return the length of the document, including its length and its
+     *         trailing zero
+     */
+    public static int getDocumentLength(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        return getInt32(buffer, index);
+    }
+
+    /**
+     * @param index the index of the first byte of the string
+     * @return the index of the zero that ends the string
+     * @throws IndexOutOfBoundsException If the string is not terminated
+     */
+    public static int getCStringEnd(@Nonnull ByteBuf buffer, @Nonnegative int index) {
+        int end = buffer.indexOf(index, buffer.writerIndex(), (byte) 0);
+        if (end < 0) {
+            throw new IndexOutOfBoundsException("Unterminated BSON cstring at " + index);
+        }
+        return end;
+    }
+
+    /**
+     * @param type       the type of the element
+     * @param valueIndex the index of the first byte of the value, that is the
+     *                   byte that follows the zero of the element name
+     * @return the length of the value
+     */
+    public static int getValueLength(@Nonnull ByteBuf buffer, @Nonnull BSONType type, @Nonnegative int valueIndex) {
+        if (type.getFixedValueLength() >= 0) {
+            return type.getFixedValueLength();
+        }
+        switch (type) {
+            case STRING:
+            case JAVASCRIPT:
+            case SYMBOL:
+                return 4 + getInt32(buffer, valueIndex);
+            case DOCUMENT:
+            case ARRAY:
+            case JAVASCRIPT_WITH_SCOPE:
+                return getInt32(buffer, valueIndex);
+            case BINARY:
+                return 4 + 1 + getInt32(buffer, valueIndex);
+            case REGEX:
+                int patternEnd = getCStringEnd(buffer, valueIndex);
+                return getCStringEnd(buffer, patternEnd + 1) + 1 - valueIndex;
+            case DB_POINTER:
+                return 4 + getInt32(buffer, valueIndex) + 12;
+            default:
+                throw new AssertionError("Unexpected variable length type " + type);
+        }
+    }
+
+    /**
+     * Compares the bytes of the buffer at the given index with the given ones
+     */
+    public static boolean equals(
+            @Nonnull ByteBuf buffer,
+            @Nonnegative int index,
+            @Nonnegative int length,
+            @Nonnull byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.getByte(index + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the bytes of the buffer at the given index with the UTF-8
+     * encoding of the given string. ASCII strings are compared without
+     * encoding them.
+     */
+    public static boolean equals(
+            @Nonnull ByteBuf buffer,
+            @Nonnegative int index,
+            @Nonnegative int length,
+            @Nonnull String string) {
+        if (length < string.length()) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                return equals(buffer, index, length, string.getBytes(UTF8));
+            }
+            if (buffer.getByte(index + i) != c) {
+                return false;
+            }
+        }
+        return length == string.length();
+    }
+
+    /**
+     * @param documentIndex the index of the first byte of the document
+     * @return the index of the type byte of the element with the given name,
+     *         or -1 if the document has no such element
+     */
+    public static int findElement(@Nonnull ByteBuf buffer, @Nonnegative int documentIndex, @Nonnull String name) {
+        int end = documentIndex + getDocumentLength(buffer, documentIndex) - 1;
+        int index = documentIndex + 4;
+        while (index < end) {
+            BSONType type = BSONType.getByCode(buffer.getByte(index));
+            int nameEnd = getCStringEnd(buffer, index + 1);
+            if (equals(buffer, index + 1, nameEnd - index - 1, name)) {
+                return index;
+            }
+            index = nameEnd + 1 + getValueLength(buffer, type, nameEnd + 1);
+        }
+        return -1;
+    }
+}
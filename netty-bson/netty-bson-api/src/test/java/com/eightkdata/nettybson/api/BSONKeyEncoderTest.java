@@ -0,0 +1,250 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class BSONKeyEncoderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A value encoded as the only element of a document with an empty name
+     */
+    private static class Value {
+        private final BSONType type;
+        private final ByteBuf document;
+
+        Value(BSONType type, byte[] value) {
+            this.type = type;
+            this.document = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+            document.writeInt(4 + 1 + 1 + value.length + 1);
+            document.writeByte(type.getCode());
+            document.writeByte(0);
+            document.writeBytes(value);
+            document.writeByte(0);
+        }
+
+        byte[] key(boolean descending) {
+            return BSONKeyEncoder.encode(document, type, 6, descending);
+        }
+
+        int compareTo(Value other) {
+            return RawBSONComparator.compare(document, type, 6, other.document, other.type, 6);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + Arrays.toString(Arrays.copyOfRange(document.array(), 6, document.writerIndex() - 1));
+        }
+    }
+
+    private static ByteBuf littleEndian() {
+        return Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] toArray(ByteBuf buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.writerIndex());
+    }
+
+    private static Value int32(int value) {
+        return new Value(BSONType.INT32, toArray(littleEndian().writeInt(value)));
+    }
+
+    private static Value int64(long value) {
+        return new Value(BSONType.INT64, toArray(littleEndian().writeLong(value)));
+    }
+
+    private static Value float64(double value) {
+        return new Value(BSONType.DOUBLE, toArray(littleEndian().writeLong(Double.doubleToRawLongBits(value))));
+    }
+
+    private static Value string(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        ByteBuf buffer = littleEndian().writeInt(bytes.length + 1).writeBytes(bytes).writeByte(0);
+        return new Value(BSONType.STRING, toArray(buffer));
+    }
+
+    private static Value document(String name, Value value) {
+        ByteBuf buffer = littleEndian();
+        byte[] nameBytes = name.getBytes(UTF8);
+        byte[] valueBytes = Arrays.copyOfRange(value.document.array(), 6, value.document.writerIndex() - 1);
+        buffer.writeInt(4 + 1 + nameBytes.length + 1 + valueBytes.length + 1);
+        buffer.writeByte(value.type.getCode());
+        buffer.writeBytes(nameBytes).writeByte(0);
+        buffer.writeBytes(valueBytes);
+        buffer.writeByte(0);
+        return new Value(BSONType.DOCUMENT, toArray(buffer));
+    }
+
+    private static Value of(BSONType type, int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        return new Value(type, value);
+    }
+
+    private static int signum(int comparison) {
+        return comparison < 0 ? -1 : (comparison > 0 ? 1 : 0);
+    }
+
+    /**
+     * Checks that the order of the keys of every pair of values is the order
+     * of the values, in both directions
+     */
+    private static void assertOrderPreserved(List<Value> values) {
+        for (Value value1 : values) {
+            for (Value value2 : values) {
+                int expected = signum(value1.compareTo(value2));
+                String message = value1 + " vs " + value2;
+                assertEquals(message, expected, signum(BSONKeyEncoder.compare(value1.key(false), value2.key(false))));
+                assertEquals(message, -expected, signum(BSONKeyEncoder.compare(value1.key(true), value2.key(true))));
+            }
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        List<Value> values = Arrays.asList(
+                float64(Double.NaN),
+                float64(Double.NEGATIVE_INFINITY),
+                float64(-1e300),
+                int64(Long.MIN_VALUE),
+                float64(-0x1p63),
+                int64(Long.MIN_VALUE + 1),
+                float64(-1.5),
+                int32(-1),
+                float64(-0.0),
+                int32(0),
+                float64(Double.MIN_VALUE),
+                float64(0.5),
+                int32(1),
+                int64(1),
+                float64(1.0),
+                float64(1.0000000000000002),
+                float64(0x1p53),
+                int64((1L << 53) + 1),
+                int64(Long.MAX_VALUE),
+                float64(0x1p63),
+                float64(Double.POSITIVE_INFINITY)
+        );
+        assertOrderPreserved(values);
+        for (int i = 1; i < values.size(); i++) {
+            assertTrue(values.get(i) + " is lower", values.get(i - 1).compareTo(values.get(i)) <= 0);
+        }
+    }
+
+    @Test
+    public void testEqualNumbersHaveTheSameKey() {
+        assertArrayEquals(int32(7).key(false), int64(7).key(false));
+        assertArrayEquals(int32(7).key(false), float64(7.0).key(false));
+        assertArrayEquals(int32(0).key(true), float64(-0.0).key(true));
+        assertArrayEquals(int64(Long.MIN_VALUE).key(false), float64(-0x1p63).key(false));
+    }
+
+    @Test
+    public void testStrings() {
+        assertOrderPreserved(Arrays.asList(
+                string(""),
+                string("a"),
+                string("a\u0000"),
+                string("a\u0000b"),
+                string("ab"),
+                string("b"),
+                string("é"),
+                string("😀")
+        ));
+    }
+
+    @Test
+    public void testTypeBrackets() {
+        assertOrderPreserved(Arrays.asList(
+                of(BSONType.MIN_KEY),
+                of(BSONType.NULL),
+                of(BSONType.UNDEFINED),
+                int32(5),
+                string("5"),
+                document("a", int32(1)),
+                of(BSONType.OBJECT_ID, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1),
+                of(BSONType.OBJECT_ID, 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0),
+                of(BSONType.BOOLEAN, 0),
+                of(BSONType.BOOLEAN, 1),
+                new Value(BSONType.DATETIME, toArray(littleEndian().writeLong(-1))),
+                new Value(BSONType.DATETIME, toArray(littleEndian().writeLong(1))),
+                new Value(BSONType.TIMESTAMP, toArray(littleEndian().writeLong(1))),
+                new Value(BSONType.TIMESTAMP, toArray(littleEndian().writeLong(-1))),
+                of(BSONType.MAX_KEY)
+        ));
+    }
+
+    @Test
+    public void testDocuments() {
+        List<Value> values = new ArrayList<Value>();
+        values.add(new Value(BSONType.DOCUMENT, new byte[] {5, 0, 0, 0, 0}));
+        values.add(document("a", int32(1)));
+        values.add(document("a", float64(1.0)));
+        values.add(document("a", float64(1.5)));
+        values.add(document("a", string("x")));
+        values.add(document("a", document("b", of(BSONType.NULL))));
+        values.add(document("aa", int32(1)));
+        values.add(document("b", of(BSONType.MIN_KEY)));
+        assertOrderPreserved(values);
+        assertArrayEquals(document("a", int32(1)).key(false), document("a", int64(1)).key(false));
+    }
+
+    @Test
+    public void testCompoundKeys() {
+        ByteBuf lower = littleEndian();
+        BSONKeyEncoder.write(lower, int32(1).document, BSONType.INT32, 6, false);
+        BSONKeyEncoder.write(lower, string("b").document, BSONType.STRING, 6, true);
+        ByteBuf higher = littleEndian();
+        BSONKeyEncoder.write(higher, int32(1).document, BSONType.INT32, 6, false);
+        BSONKeyEncoder.write(higher, string("a").document, BSONType.STRING, 6, true);
+        assertTrue(BSONKeyEncoder.compare(lower, higher) < 0);
+
+        ByteBuf document = littleEndian();
+        byte[] first = Arrays.copyOfRange(int32(1).document.array(), 4, 4 + 1 + 1 + 4);
+        byte[] second = Arrays.copyOfRange(string("b").document.array(), 4, 4 + 1 + 1 + 4 + 2);
+        document.writeInt(4 + first.length + second.length + 1).writeBytes(first).writeBytes(second).writeByte(0);
+        assertArrayEquals(toArray(lower), BSONKeyEncoder.encodeElements(document, 0, false, true));
+
+        ByteBuf withNull = littleEndian();
+        BSONKeyEncoder.write(withNull, int32(1).document, BSONType.INT32, 6, false);
+        BSONKeyEncoder.writeNull(withNull, true);
+        assertTrue(BSONKeyEncoder.compare(higher, withNull) < 0);
+    }
+}
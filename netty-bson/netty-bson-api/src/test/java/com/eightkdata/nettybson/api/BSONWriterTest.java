@@ -0,0 +1,98 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class BSONWriterTest {
+
+    private static ByteBuf encode(BSONDocument document) {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        document.writeToByteBuf(buffer);
+        return buffer;
+    }
+
+    @Test
+    public void testBuild() {
+        RawBSONDocument document = new BSONWriter()
+                .append("n", 3)
+                .startArray("a")
+                    .append(null, "x")
+                    .startDocument(null)
+                        .append("b", true)
+                    .end()
+                .end()
+                .build();
+        assertEquals(3, document.getInt("n", 0));
+        assertEquals(Arrays.asList("n", "a"), Arrays.asList(document.getKeys().toArray()));
+
+        ByteBuf buffer = encode(document);
+        // Only the document is written, not the rest of the array it was built on
+        assertEquals(buffer.getInt(0), buffer.readableBytes());
+        assertEquals(0, buffer.getByte(buffer.readableBytes() - 1));
+    }
+
+    @Test
+    public void testFailedAppendsWriteNothing() {
+        BSONWriter writer = new BSONWriter().append("n", 1);
+        try {
+            writer.append("bad\u0000name", 2);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        try {
+            writer.append(null, 3);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        writer.startArray("a");
+        try {
+            writer.append("b", 4);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        RawBSONDocument document = writer.append(null, 5).end().build();
+
+        RawBSONDocument expected = new BSONWriter()
+                .append("n", 1)
+                .startArray("a")
+                    .append(null, 5)
+                .end()
+                .build();
+        assertEquals(encode(expected), encode(document));
+    }
+}
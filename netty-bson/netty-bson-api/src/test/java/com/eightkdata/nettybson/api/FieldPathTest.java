@@ -0,0 +1,245 @@
+/*
+*     This file is part of mongowp.
+*
+*     mongowp is free software: you can redistribute it and/or modify
+*     it under the terms of the GNU Affero General Public License as published by
+*     the Free Software Foundation, either version 3 of the License, or
+*     (at your option) any later version.
+*
+*     mongowp is distributed in the hope that it will be useful,
+*     but WITHOUT ANY WARRANTY; without even the implied warranty of
+*     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*     GNU Affero General Public License for more details.
+*
+*     You should have received a copy of the GNU Affero General Public License
+*     along with mongowp. If not, see <http://www.gnu.org/licenses/>.
+*
+*     Copyright (c) 2014, 8Kdata Technology
+*
+*/
+
+
+
+package com.eightkdata.nettybson.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class FieldPathTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MISSING = "missing";
+
+    /**
+     * Encodes a document or an array, element by element
+     */
+    private static class Document {
+        private final ByteBuf elements = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        private final BSONType type;
+        private int positions;
+
+        private Document(BSONType type) {
+            this.type = type;
+        }
+
+        static Document document() {
+            return new Document(BSONType.DOCUMENT);
+        }
+
+        static Document array(Object... values) {
+            Document array = new Document(BSONType.ARRAY);
+            for (Object value : values) {
+                array.append(Integer.toString(array.positions++), value);
+            }
+            return array;
+        }
+
+        Document append(String name, Object value) {
+            if (value instanceof Integer) {
+                writeHeader(BSONType.INT32, name);
+                elements.writeInt((Integer) value);
+            }
+            else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(UTF8);
+                writeHeader(BSONType.STRING, name);
+                elements.writeInt(bytes.length + 1).writeBytes(bytes).writeByte(0);
+            }
+            else {
+                Document document = (Document) value;
+                writeHeader(document.type, name);
+                document.writeTo(elements);
+            }
+            return this;
+        }
+
+        private void writeHeader(BSONType elementType, String name) {
+            elements.writeByte(elementType.getCode());
+            elements.writeBytes(name.getBytes(UTF8)).writeByte(0);
+        }
+
+        void writeTo(ByteBuf buffer) {
+            buffer.writeInt(4 + elements.readableBytes() + 1);
+            buffer.writeBytes(elements, elements.readerIndex(), elements.readableBytes());
+            buffer.writeByte(0);
+        }
+
+        ByteBuf encode() {
+            ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+            writeTo(buffer);
+            return buffer;
+        }
+    }
+
+    /**
+     * Describes the visited values: <code>missing</code>, the values of
+     * integers and strings, and the types of the rest. It can stop at a given
+     * value.
+     */
+    private static class Recorder implements FieldPath.Visitor {
+        private final List<String> visited = new ArrayList<String>();
+        private final String stopAt;
+
+        Recorder(String stopAt) {
+            this.stopAt = stopAt;
+        }
+
+        @Override
+        public boolean visit(ByteBuf buffer, BSONType type, int valueIndex) {
+            String value;
+            if (type == null) {
+                value = MISSING;
+            }
+            else if (type == BSONType.INT32) {
+                value = Integer.toString(RawBSONUtil.getInt32(buffer, valueIndex));
+            }
+            else if (type == BSONType.STRING) {
+                int length = RawBSONUtil.getInt32(buffer, valueIndex);
+                value = buffer.toString(valueIndex + 4, length - 1, UTF8);
+            }
+            else {
+                value = type.name().toLowerCase();
+            }
+            visited.add(value);
+            return value.equals(stopAt);
+        }
+    }
+
+    private static List<String> visit(String path, Document document, boolean visitArrays) {
+        Recorder recorder = new Recorder(null);
+        assertFalse(FieldPath.of(path).visit(document.encode(), 0, visitArrays, recorder));
+        return recorder.visited;
+    }
+
+    private static void assertVisits(Document document, String path, String... expected) {
+        assertEquals(path, Arrays.asList(expected), visit(path, document, true));
+    }
+
+    @Test
+    public void testNames() {
+        FieldPath path = FieldPath.of("a.0.b");
+        assertEquals("a.0.b", path.getPath());
+        assertEquals(3, path.getLength());
+        assertEquals(FieldPath.of("a.0.b"), path);
+        assertFalse(path.equals(FieldPath.of("a.0")));
+    }
+
+    @Test
+    public void testFieldsOfDocuments() {
+        Document document = Document.document()
+                .append("a", 1)
+                .append("b", Document.document().append("c", Document.document().append("d", "x")));
+        assertVisits(document, "a", "1");
+        assertVisits(document, "b.c.d", "x");
+        assertVisits(document, "b.c", "document");
+        assertVisits(document, "z", MISSING);
+        assertVisits(document, "b.z", MISSING);
+        assertVisits(document, "a.z", MISSING);
+        assertVisits(document, "b.c.d.e", MISSING);
+    }
+
+    @Test
+    public void testArraysAtTheEndOfThePath() {
+        Document document = Document.document().append("a", Document.array(1, 2));
+        assertEquals(Arrays.asList("array", "1", "2"), visit("a", document, true));
+        assertEquals(Arrays.asList("1", "2"), visit("a", document, false));
+    }
+
+    @Test
+    public void testNestedArraysAreNotExpanded() {
+        Document document = Document.document().append("a", Document.array(Document.array(1, 2), 3));
+        assertEquals(Arrays.asList("array", "array", "3"), visit("a", document, true));
+        assertEquals(Arrays.asList("array", "3"), visit("a", document, false));
+    }
+
+    @Test
+    public void testFieldsOfTheDocumentsOfArrays() {
+        Document document = Document.document().append("a", Document.array(
+                Document.document().append("b", 1),
+                Document.document().append("c", 2),
+                5,
+                Document.document().append("b", Document.array(3, 4))
+        ));
+        // Documents without the field are visited as missing, other values are skipped
+        assertVisits(document, "a.b", "1", MISSING, "array", "3", "4");
+        assertEquals(Arrays.asList("1", MISSING, "3", "4"), visit("a.b", document, false));
+    }
+
+    @Test
+    public void testNumericNamesArePositions() {
+        Document document = Document.document().append("a", Document.array(10, 20, Document.array(30, 40)));
+        assertVisits(document, "a.1", "20");
+        assertVisits(document, "a.2.1", "40");
+        // Arrays whose elements do not reach the path are visited as missing
+        assertVisits(document, "a.5", MISSING);
+        assertVisits(document, "a.2.5", MISSING);
+        assertVisits(document, "a.b", MISSING);
+        assertVisits(Document.document().append("a", Document.array(1, 2)), "a.b", MISSING);
+        assertVisits(Document.document().append("a", Document.array()), "a.b", MISSING);
+    }
+
+    @Test
+    public void testNumericNamesAreAlsoFieldNames() {
+        Document document = Document.document().append("a", Document.array(
+                Document.document().append("0", "x"),
+                "y",
+                Document.document().append("1", "z")
+        ));
+        // The first element is reached as a position and its field as a name
+        assertVisits(document, "a.0", "document", "x", MISSING);
+        assertVisits(document, "a.1", MISSING, "y", "z");
+
+        Document withoutArrays = Document.document().append("a", Document.document().append("0", "x"));
+        assertVisits(withoutArrays, "a.0", "x");
+    }
+
+    @Test
+    public void testVisitorsStopTheTraversal() {
+        Document document = Document.document().append("a", Document.array(1, 2, 3));
+        Recorder recorder = new Recorder("2");
+        assertTrue(FieldPath.of("a").visit(document.encode(), 0, false, recorder));
+        assertEquals(Arrays.asList("1", "2"), recorder.visited);
+    }
+
+    @Test
+    public void testDocumentsAtAnIndex() {
+        ByteBuf buffer = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.writeBytes(new byte[] {1, 2, 3});
+        Document.document().append("a", Document.document().append("b", 7)).writeTo(buffer);
+        Recorder recorder = new Recorder(null);
+        assertFalse(FieldPath.of("a.b").visit(buffer, 3, true, recorder));
+        assertEquals(Arrays.asList("7"), recorder.visited);
+    }
+}